@@ -0,0 +1,213 @@
+/*!
+* Copyright 2010 - 2017 Hitachi Vantara.  All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+/*
+ pentaho.columnar
+ Decoder of the columnar binary result format written by the metadata service
+ (org.pentaho.common.ui.metadata.service.ColumnarResultWriter).
+ */
+define("common-data/columnar", [], function() {
+  pentaho = typeof pentaho == "undefined" ? {} : pentaho;
+
+  var NUMBER = 1,
+      BOOLEAN = 2,
+      DATE = 3,
+      STRING = 4;
+
+  function Reader(buffer) {
+    this.view = new DataView(buffer);
+    this.bytes = new Uint8Array(buffer);
+    this.pos = 0;
+  }
+
+  Reader.prototype = {
+    byte: function() {
+      return this.view.getUint8(this.pos++);
+    },
+    int: function() {
+      var value = this.view.getInt32(this.pos);
+      this.pos += 4;
+      return value;
+    },
+    string: function() {
+      var length = this.int();
+      if (length < 0) {
+        return null;
+      }
+      var value = utf8(this.bytes, this.pos, length);
+      this.pos += length;
+      return value;
+    },
+    bitmap: function(rowCount) {
+      var bits = this.bytes.subarray(this.pos, this.pos + ((rowCount + 7) >> 3));
+      this.pos += bits.length;
+      return bits;
+    },
+    doubles: function(rowCount) {
+      var values = new Float64Array(rowCount);
+      for (var i = 0; i < rowCount; i++) {
+        values[i] = this.view.getFloat64(this.pos);
+        this.pos += 8;
+      }
+      return values;
+    },
+    ints: function(rowCount) {
+      var values = new Int32Array(rowCount);
+      for (var i = 0; i < rowCount; i++) {
+        values[i] = this.view.getInt32(this.pos);
+        this.pos += 4;
+      }
+      return values;
+    }
+  };
+
+  function utf8(bytes, start, length) {
+    if (typeof TextDecoder != "undefined") {
+      return new TextDecoder("utf-8").decode(bytes.subarray(start, start + length));
+    }
+    var s = "";
+    for (var i = start, end = start + length; i < end; i++) {
+      s += String.fromCharCode(bytes[i]);
+    }
+    return decodeURIComponent(escape(s));
+  }
+
+  function isSet(bits, row) {
+    return (bits[row >> 3] & (1 << (row & 7))) != 0;
+  }
+
+  pentaho.columnar = {
+
+    NUMBER: NUMBER,
+    BOOLEAN: BOOLEAN,
+    DATE: DATE,
+    STRING: STRING,
+
+    /**
+     * @method decode
+     * @description decodes a columnar result
+     * @param buffer - ArrayBuffer with the result
+     * @return - object with the metadata of the columns (as in CDA JSON) and one column object per column, holding
+     *           the typed array of its values: {metadata: [...], rowCount: n, columns: [{encoding, values, valid,
+     *           dictionary}]}
+     */
+    decode: function(buffer) {
+      var reader = new Reader(buffer);
+      if (reader.byte() != 0x50 || reader.byte() != 0x43 || reader.byte() != 0x52 || reader.byte() != 0x53) {
+        throw new Error("Not a columnar result");
+      }
+      var version = reader.byte();
+      if (version != 1) {
+        throw new Error("Unsupported columnar result version " + version);
+      }
+      var columnCount = reader.int(),
+          rowCount = reader.int(),
+          metadata = [],
+          columns = [],
+          i, info;
+
+      for (i = 0; i < columnCount; i++) {
+        info = {colIndex: i, colName: reader.string(), colType: reader.string()};
+        var label = reader.string();
+        if (label != null) {
+          info.colLabel = label;
+        }
+        metadata.push(info);
+        columns.push({encoding: reader.byte()});
+      }
+
+      for (i = 0; i < columnCount; i++) {
+        var column = columns[i];
+        switch (column.encoding) {
+          case NUMBER:
+          case DATE:
+            column.valid = reader.bitmap(rowCount);
+            column.values = reader.doubles(rowCount);
+            break;
+          case BOOLEAN:
+            column.valid = reader.bitmap(rowCount);
+            column.values = reader.bitmap(rowCount);
+            break;
+          case STRING:
+            var size = reader.int();
+            column.dictionary = [];
+            for (var d = 0; d < size; d++) {
+              column.dictionary.push(reader.string());
+            }
+            column.values = reader.ints(rowCount);
+            break;
+          default:
+            throw new Error("Unknown column encoding " + column.encoding);
+        }
+      }
+      return {metadata: metadata, rowCount: rowCount, columns: columns};
+    },
+
+    /**
+     * @method getValue
+     * @description returns a single value of a decoded result, null values are returned as null
+     */
+    getValue: function(result, row, col) {
+      var column = result.columns[col];
+      switch (column.encoding) {
+        case STRING:
+          var index = column.values[row];
+          return index < 0 ? null : column.dictionary[index];
+        case BOOLEAN:
+          return isSet(column.valid, row) ? isSet(column.values, row) : null;
+        case DATE:
+          return isSet(column.valid, row) ? new Date(column.values[row]) : null;
+        default:
+          return isSet(column.valid, row) ? column.values[row] : null;
+      }
+    },
+
+    /**
+     * @method toCdaJson
+     * @description converts a decoded result to the CDA JSON form returned by doJsonQueryToCdaJson, for code that
+     *              expects rows. Dates are returned as milliseconds since the epoch.
+     */
+    toCdaJson: function(result) {
+      var resultset = new Array(result.rowCount),
+          columnCount = result.columns.length;
+      for (var row = 0; row < result.rowCount; row++) {
+        var values = new Array(columnCount);
+        for (var col = 0; col < columnCount; col++) {
+          var value = this.getValue(result, row, col);
+          values[col] = value instanceof Date ? value.getTime() : value;
+        }
+        resultset[row] = values;
+      }
+      return {metadata: result.metadata, resultset: resultset};
+    },
+
+    /**
+     * @method fromBase64
+     * @description returns the ArrayBuffer of a base64 encoded result, as returned by doJsonQueryToColumnar
+     */
+    fromBase64: function(text) {
+      var s = atob(text),
+          bytes = new Uint8Array(s.length);
+      for (var i = 0; i < s.length; i++) {
+        bytes[i] = s.charCodeAt(i);
+      }
+      return bytes.buffer;
+    }
+  };
+
+  return pentaho.columnar;
+});
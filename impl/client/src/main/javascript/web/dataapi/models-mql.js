@@ -18,7 +18,7 @@
 /*
  pentaho.pda.MqlHandler
  */
-define("common-data/models-mql", ['common-data/oop', 'common-data/controller', 'common-repo/pentaho-ajax'], function(){
+define("common-data/models-mql", ['common-data/oop', 'common-data/controller', 'common-repo/pentaho-ajax', 'common-data/columnar'], function(){
 pentaho.pda.MqlHandler = function mqlHandler(sandbox) {
   pentaho.pda.Handler.call(this, sandbox);
   this.type = pentaho.pda.SOURCE_TYPE_MQL;
@@ -224,40 +224,90 @@ pentaho.pda.model.mql.prototype.discoverModelDetail = function() {
       this.categories.push(category);
       //console.log(category);
       this.addElement( category );
-      // get the columns
-      var colnodes = catnodes[idx].getElementsByTagName('columns');
-      for( var idx2=0; idx2<colnodes.length; idx2++ ) {
-        //this.addColumnFromNode( nodes[idx], model, category );
-        var element = new pentaho.pda.dataelement();
-
-        element.id = this.getNodeText( colnodes[idx2], 'id' );
-        element.name = this.getNodeText( colnodes[idx2], 'name' );
-        element.description = this.getNodeText( colnodes[idx2], 'description' );
-        element.elementType = this.getNodeText( colnodes[idx2], 'fieldType' );
-        element.dataType = this.getNodeText( colnodes[idx2], 'type' );
-        element.horizontalAlignment = this.getNodeText( colnodes[idx2], 'horizontalAlignment' );
-        element.formatMask = this.getNodeText( colnodes[idx2], 'formatMask' );
-        element.selectedAggregation = this.getNodeText( colnodes[idx2], 'selectedAggType' );
-        element.defaultAggregation = this.getNodeText( colnodes[idx2], 'defaultAggType' );
-        element.hiddenForUser = this.getNodeText( colnodes[idx2], 'hiddenForUser' );
-        element.parent = category;
-        element.isQueryElement = true;
-        element.category = category;
-        category.addChild(element);
-
-        var aggnodes = colnodes[idx2].getElementsByTagName('aggTypes');
-        for( var idx3=0; idx3<aggnodes.length; idx3++ ) {
-          element.availableAggregations.push( this.getText( aggnodes[idx3] ) );
-        }
+      this.addColumnsFromNode( catnodes[idx], category );
+    }
+
+  }
+  // return the number of models loaded
+}
 
-        this.addElement( element );
+// Gets the categories of the model without their columns, which is much faster for large models. The columns of a
+// category are loaded with discoverCategoryDetail when they are needed, category.columnCount tells how many there are.
+pentaho.pda.model.mql.prototype.discoverModelOutline = function() {
 
-      }
+  var url = this.handler.METADATA_SERVICE_URL+'/loadModelOutline';
+  var query = 'domainId='+encodeURIComponent(this.domainId)+'&modelId='+encodeURIComponent(this.modelId);
+  var result = pentahoGet( url, query );
+  var xml = parseXML( result );
+  this.categories = [];
 
+  var nodes = xml.getElementsByTagName('return');
+  if( nodes && nodes.length> 0 ) {
+    var catnodes = nodes[0].getElementsByTagName('categories');
+    for( var idx=0; idx<catnodes.length; idx++ ) {
+      var category = new pentaho.pda.dataelement();
+      category.dataType = pentaho.pda.Column.DATA_TYPES.NONE;
+      category.elementType = pentaho.pda.Column.ELEMENT_TYPES.CATEGORY;
+      category.id = this.getNodeText( catnodes[idx], 'id' );
+      category.name = this.getNodeText( catnodes[idx], 'name' );
+      category.description = this.getNodeText( catnodes[idx], 'description' );
+      category.columnCount = parseInt( this.getNodeText( catnodes[idx], 'columnCount' ), 10 ) || 0;
+      category.columnsLoaded = false;
+      category.isQueryElement = false;
+      this.categories.push(category);
+      this.addElement( category );
     }
+  }
+}
+
+// Loads the columns of a category of a model outline, see discoverModelOutline
+pentaho.pda.model.mql.prototype.discoverCategoryDetail = function( category ) {
+  if( category.columnsLoaded ) {
+    return;
+  }
+  var url = this.handler.METADATA_SERVICE_URL+'/loadCategory';
+  var query = 'domainId='+encodeURIComponent(this.domainId)+'&modelId='+encodeURIComponent(this.modelId)+
+      '&categoryId='+encodeURIComponent(category.id);
+  var result = pentahoGet( url, query );
+  var xml = parseXML( result );
+
+  var nodes = xml.getElementsByTagName('return');
+  if( nodes && nodes.length> 0 ) {
+    this.addColumnsFromNode( nodes[0], category );
+    category.columnsLoaded = true;
+  }
+}
+
+pentaho.pda.model.mql.prototype.addColumnsFromNode = function( catnode, category ) {
+  // get the columns
+  var colnodes = catnode.getElementsByTagName('columns');
+  for( var idx2=0; idx2<colnodes.length; idx2++ ) {
+    //this.addColumnFromNode( nodes[idx], model, category );
+    var element = new pentaho.pda.dataelement();
+
+    element.id = this.getNodeText( colnodes[idx2], 'id' );
+    element.name = this.getNodeText( colnodes[idx2], 'name' );
+    element.description = this.getNodeText( colnodes[idx2], 'description' );
+    element.elementType = this.getNodeText( colnodes[idx2], 'fieldType' );
+    element.dataType = this.getNodeText( colnodes[idx2], 'type' );
+    element.horizontalAlignment = this.getNodeText( colnodes[idx2], 'horizontalAlignment' );
+    element.formatMask = this.getNodeText( colnodes[idx2], 'formatMask' );
+    element.selectedAggregation = this.getNodeText( colnodes[idx2], 'selectedAggType' );
+    element.defaultAggregation = this.getNodeText( colnodes[idx2], 'defaultAggType' );
+    element.hiddenForUser = this.getNodeText( colnodes[idx2], 'hiddenForUser' );
+    element.parent = category;
+    element.isQueryElement = true;
+    element.category = category;
+    category.addChild(element);
+
+    var aggnodes = colnodes[idx2].getElementsByTagName('aggTypes');
+    for( var idx3=0; idx3<aggnodes.length; idx3++ ) {
+      element.availableAggregations.push( this.getText( aggnodes[idx3] ) );
+    }
+
+    this.addElement( element );
 
   }
-  // return the number of models loaded
 }
 
 pentaho.pda.model.mql.prototype.getAllColumns = function() {
@@ -344,6 +394,35 @@ pentaho.pda.model.mql.prototype.submit = function( jsonString, rowLimit, callbac
 
 }
 
+// get the results of the query in the columnar binary form, see pentaho.columnar.decode for the returned object.
+// This is a synchronous call unless a callback is provided.
+pentaho.pda.model.mql.prototype.submitColumnar = function( jsonString, rowLimit, callback ) {
+  if (!rowLimit) {
+    rowLimit = -1;
+  }
+  var handleResultCallback = dojo.hitch(this, function(resultXml) {
+    var nodes = parseXML( resultXml ).getElementsByTagName('return');
+    var result = pentaho.columnar.decode(pentaho.columnar.fromBase64(this.getText( nodes[0] )));
+    if (callback) {
+      callback(result);
+    }
+    return result;
+  });
+
+  try {
+    var url = this.handler.METADATA_SERVICE_URL+'/doJsonQueryToColumnar';
+    var query = 'json='+encodeURIComponent(jsonString)+'&rowLimit='+rowLimit;
+
+    var resultXml = pentahoGet( url, query, callback ? handleResultCallback : undefined);
+    if (!callback) {
+      return handleResultCallback(resultXml);
+    }
+  } catch (e) {
+    alert(e.message);
+  }
+  return null;
+}
+
 // get the results of the query by submiting XML
 pentaho.pda.model.mql.prototype.submitXmlQuery = function( queryObject, rowLimit ) {
   var xml = queryObject.serialize();
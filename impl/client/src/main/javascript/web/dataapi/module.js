@@ -23,6 +23,7 @@ define("common-data/module", [
   'common-data/controller',
   'common-data/xhr',
   'common-data/cda',
+  'common-data/columnar',
   'common-data/models-mql'
 ], function(){
 
@@ -0,0 +1,129 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2015 - 2017 Hitachi Vantara. All rights reserved.
+ */
+
+define(["common-data/columnar"], function(columnar) {
+
+  describe("columnar", function() {
+
+    // builds a result the way ColumnarResultWriter does
+    function encode(rowCount, columns) {
+      var bytes = [];
+      function int(value) {
+        bytes.push((value >>> 24) & 0xff, (value >>> 16) & 0xff, (value >>> 8) & 0xff, value & 0xff);
+      }
+      function string(value) {
+        if (value == null) {
+          int(-1);
+          return;
+        }
+        var utf8 = unescape(encodeURIComponent(value));
+        int(utf8.length);
+        for (var i = 0; i < utf8.length; i++) {
+          bytes.push(utf8.charCodeAt(i));
+        }
+      }
+      function double(value) {
+        var view = new DataView(new ArrayBuffer(8));
+        view.setFloat64(0, value);
+        for (var i = 0; i < 8; i++) {
+          bytes.push(view.getUint8(i));
+        }
+      }
+      bytes.push(0x50, 0x43, 0x52, 0x53, 1);
+      int(columns.length);
+      int(rowCount);
+      columns.forEach(function(c) {
+        string(c.name);
+        string(c.type);
+        string(c.label);
+        bytes.push(c.encoding);
+      });
+      columns.forEach(function(c) {
+        c.write(bytes, int, string, double);
+      });
+      return new Uint8Array(bytes).buffer;
+    }
+
+    var buffer;
+
+    beforeEach(function() {
+      buffer = encode(3, [
+        {name: "region", type: "STRING", label: "Région", encoding: columnar.STRING, write: function(bytes, int, string) {
+          int(2);
+          string("east");
+          string("wést");
+          int(0);
+          int(1);
+          int(-1);
+        }},
+        {name: "amount", type: "NUMERIC", label: null, encoding: columnar.NUMBER, write: function(bytes, int, string, double) {
+          bytes.push(5);
+          double(1.5);
+          double(0);
+          double(-3);
+        }},
+        {name: "flag", type: "BOOLEAN", label: null, encoding: columnar.BOOLEAN, write: function(bytes) {
+          bytes.push(3, 1);
+        }},
+        {name: "day", type: "DATE", label: null, encoding: columnar.DATE, write: function(bytes, int, string, double) {
+          bytes.push(1);
+          double(1000);
+          double(0);
+          double(0);
+        }}
+      ]);
+    });
+
+    it("decode() should read the metadata of the columns", function() {
+      var result = columnar.decode(buffer);
+      expect(result.rowCount).toBe(3);
+      expect(result.metadata).toEqual([
+        {colIndex: 0, colName: "region", colType: "STRING", colLabel: "Région"},
+        {colIndex: 1, colName: "amount", colType: "NUMERIC"},
+        {colIndex: 2, colName: "flag", colType: "BOOLEAN"},
+        {colIndex: 3, colName: "day", colType: "DATE"}
+      ]);
+    });
+
+    it("decode() should return typed column buffers", function() {
+      var result = columnar.decode(buffer);
+      expect(result.columns[0].dictionary).toEqual(["east", "wést"]);
+      expect(result.columns[0].values instanceof Int32Array).toBe(true);
+      expect(result.columns[1].values instanceof Float64Array).toBe(true);
+      expect(Array.prototype.slice.call(result.columns[1].values)).toEqual([1.5, 0, -3]);
+    });
+
+    it("toCdaJson() should return the rows with nulls", function() {
+      var result = columnar.toCdaJson(columnar.decode(buffer));
+      expect(result.resultset).toEqual([
+        ["east", 1.5, true, 1000],
+        ["wést", null, false, null],
+        [null, -3, null, null]
+      ]);
+    });
+
+    it("decode() should reject other content", function() {
+      expect(function() {
+        columnar.decode(new Uint8Array([0x7b, 0x7d, 0, 0, 0]).buffer);
+      }).toThrowError("Not a columnar result");
+    });
+
+    it("fromBase64() should return the bytes", function() {
+      expect(Array.prototype.slice.call(new Uint8Array(columnar.fromBase64("UENSUw==")))).toEqual([0x50, 0x43, 0x52, 0x53]);
+    });
+  });
+});
@@ -0,0 +1,184 @@
+/*!
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+ */
+
+package org.pentaho.common.ui.metadata.model;
+
+/**
+ * Builds the open formula of conditions. Values are quoted or wrapped while they are appended, so the values of a
+ * condition are never modified and the same condition always gives the same formula. One builder can be reused for all
+ * the conditions of a query, see {@link #reset()}.
+ */
+public class FormulaBuilder {
+
+  /**
+   * How the values of a condition are written to the formula
+   */
+  public enum ValueFormat {
+    /**
+     * The value is written as it is, text operators quote it unless it starts or ends with a quote
+     */
+    LITERAL,
+    /**
+     * The value is a string and is always quoted
+     */
+    STRING,
+    /**
+     * The value is a date, written as <code>DATEVALUE("value")</code>
+     */
+    DATE,
+    /**
+     * The value is the name of a date parameter, written as <code>DATEVALUE([param:value])</code>
+     */
+    DATE_PARAMETER
+  }
+
+  private static final int DEFAULT_CAPACITY = 64;
+
+  private static final String PARAMETER_PREFIX = "[param:"; //$NON-NLS-1$
+
+  private static final String DATE_FUNCTION = "DATEVALUE("; //$NON-NLS-1$
+
+  private final StringBuilder sb;
+
+  public FormulaBuilder() {
+    this( DEFAULT_CAPACITY );
+  }
+
+  public FormulaBuilder( int capacity ) {
+    sb = new StringBuilder( capacity );
+  }
+
+  public FormulaBuilder append( String text ) {
+    sb.append( text );
+    return this;
+  }
+
+  public FormulaBuilder append( char c ) {
+    sb.append( c );
+    return this;
+  }
+
+  /**
+   * Appends a column reference of the form <code>[category.column]</code> or <code>[category.column.aggregation]</code>
+   * 
+   * @param category
+   * @param column
+   * @param aggType
+   *          the selected aggregation, or null or empty if there is none
+   * @return
+   */
+  public FormulaBuilder appendColumn( String category, String column, String aggType ) {
+    sb.append( '[' ).append( category ).append( '.' ).append( column );
+    if ( aggType != null && aggType.length() > 0 ) {
+      sb.append( '.' ).append( aggType );
+    }
+    sb.append( ']' );
+    return this;
+  }
+
+  /**
+   * Appends a parameter reference of the form <code>[param:name]</code>. Curly braces are removed from the name.
+   * 
+   * @param name
+   * @return
+   */
+  public FormulaBuilder appendParameter( String name ) {
+    sb.append( PARAMETER_PREFIX );
+    for ( int i = 0, length = name.length(); i < length; i++ ) {
+      char c = name.charAt( i );
+      if ( c != '{' && c != '}' ) {
+        sb.append( c );
+      }
+    }
+    sb.append( ']' );
+    return this;
+  }
+
+  /**
+   * Appends a value of a condition
+   * 
+   * @param value
+   * @param format
+   * @param quote
+   *          true if the operator compares text, in which case literal values and dates are quoted
+   * @return
+   */
+  public FormulaBuilder appendValue( String value, ValueFormat format, boolean quote ) {
+    switch ( format ) {
+      case STRING:
+        sb.append( '"' ).append( value ).append( '"' );
+        break;
+      case DATE:
+        appendQuote( quote );
+        sb.append( DATE_FUNCTION ).append( '"' ).append( value ).append( "\")" ); //$NON-NLS-1$
+        appendQuote( quote );
+        break;
+      case DATE_PARAMETER:
+        appendQuote( quote );
+        sb.append( DATE_FUNCTION );
+        appendParameter( value );
+        sb.append( ')' );
+        appendQuote( quote );
+        break;
+      default:
+        quote = quote && !isQuoted( value );
+        appendQuote( quote );
+        sb.append( value );
+        appendQuote( quote );
+        break;
+    }
+    return this;
+  }
+
+  /**
+   * Makes sure that the given number of characters can be appended without growing the buffer again
+   * 
+   * @param count
+   */
+  public void ensureAvailable( int count ) {
+    sb.ensureCapacity( sb.length() + count );
+  }
+
+  public int length() {
+    return sb.length();
+  }
+
+  /**
+   * Empties the builder, keeping its buffer for the next formula
+   */
+  public void reset() {
+    sb.setLength( 0 );
+  }
+
+  /**
+   * Returns the formula built so far
+   */
+  @Override
+  public String toString() {
+    return sb.toString();
+  }
+
+  private void appendQuote( boolean quote ) {
+    if ( quote ) {
+      sb.append( '"' );
+    }
+  }
+
+  private static boolean isQuoted( String value ) {
+    return value.startsWith( "\"" ) || value.endsWith( "\"" ); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+}
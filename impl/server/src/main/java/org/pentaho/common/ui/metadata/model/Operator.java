@@ -18,6 +18,11 @@
 package org.pentaho.common.ui.metadata.model;
 
 import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.pentaho.common.ui.messages.Messages;
 
 /**
  * Operator is used in the definition of a @see MqlCondition
@@ -56,52 +61,61 @@ public enum Operator implements Serializable {
     return strVal;
   }
 
+  /**
+   * The operators by every name they can be given: the UI name and the name of the generated open formula function
+   */
+  private static final Map<String, Operator> LOOKUP = createLookup();
+
+  private static Map<String, Operator> createLookup() {
+    Map<String, Operator> lookup = new HashMap<String, Operator>();
+    for ( Operator operator : values() ) {
+      // These are the UI equivalents that are re-resolved. Note this needs to be i18n
+      // @TODO i18n
+      lookup.put( operator.strVal, operator );
+    }
+    // Actual generated Open Formula formula name is passed in from deserialization routine. Try to match those here.
+    lookup.put( "BEGINSWITH", Operator.BEGINS_WITH ); //$NON-NLS-1$
+    lookup.put( "ENDSWITH", Operator.ENDS_WITH ); //$NON-NLS-1$
+    lookup.put( "ISNA", Operator.IS_NULL ); //$NON-NLS-1$
+    return lookup;
+  }
+
+  /**
+   * Returns the operator of the given name, ignoring case. A missing or unknown operator is read as EQUAL.
+   * 
+   * @param val
+   * @return
+   */
   public static Operator parse( String val ) {
+    return parse( val, false );
+  }
 
-    if ( val == null || val.equals( "" ) ) { //$NON-NLS-1$
+  /**
+   * Returns the operator of the given name, ignoring case. A missing operator is read as EQUAL.
+   * 
+   * @param val
+   * @param strict
+   *          if true an unknown operator is rejected, otherwise it is read as EQUAL
+   * @return
+   * @throws IllegalArgumentException
+   *           if strict and the operator is unknown
+   */
+  public static Operator parse( String val, boolean strict ) {
+    if ( val == null || val.length() == 0 ) {
       return Operator.EQUAL;
     }
-    val = val.toUpperCase();
-    // These are the UI equivalents that are re-resolved. Note this needs to be i18n
-    // @TODO i18n
-    if ( val.equals( ">" ) ) { //$NON-NLS-1$
-      return Operator.GREATER_THAN;
-    } else if ( val.equals( ">=" ) ) { //$NON-NLS-1$
-      return Operator.GREATOR_OR_EQUAL;
-    } else if ( val.equals( "=" ) ) { //$NON-NLS-1$
-      return Operator.EQUAL;
-    } else if ( val.equals( "<" ) ) { //$NON-NLS-1$
-      return Operator.LESS_THAN;
-    } else if ( val.equals( "<=" ) ) { //$NON-NLS-1$
-      return Operator.LESS_OR_EQUAL;
-    } else if ( val.equals( "EXACTLY MATCHES" ) ) { //$NON-NLS-1$
-      return Operator.EXACTLY_MATCHES;
-    } else if ( val.equals( "CONTAINS" ) ) { //$NON-NLS-1$
-      return Operator.CONTAINS;
-    } else if ( val.equals( "DOES NOT CONTAIN" ) ) { //$NON-NLS-1$
-      return Operator.DOES_NOT_CONTAIN;
-    } else if ( val.equals( "BEGINS WITH" ) ) { //$NON-NLS-1$
-      return Operator.BEGINS_WITH;
-    } else if ( val.equals( "ENDS WITH" ) ) { //$NON-NLS-1$
-      return Operator.ENDS_WITH;
-    } else if ( val.equals( "IS NULL" ) ) { //$NON-NLS-1$
-      return Operator.IS_NULL;
-    } else if ( val.equals( "IS NOT NULL" ) ) { //$NON-NLS-1$
-      return Operator.IS_NOT_NULL;
+    Operator operator = LOOKUP.get( val );
+    if ( operator == null ) {
+      operator = LOOKUP.get( val.toUpperCase( Locale.ENGLISH ) );
     }
-
-    // Actual generated Open Formula formula name is passed in from deserialization routine. Try to match those here.
-    if ( val.equals( "CONTAINS" ) ) { //$NON-NLS-1$
-      return Operator.CONTAINS;
-    } else if ( val.equals( "BEGINSWITH" ) ) { //$NON-NLS-1$
-      return Operator.BEGINS_WITH;
-    } else if ( val.equals( "ENDSWITH" ) ) { //$NON-NLS-1$
-      return Operator.ENDS_WITH;
-    } else if ( val.equals( "ISNA" ) ) { //$NON-NLS-1$
-      return Operator.IS_NULL;
+    if ( operator == null ) {
+      if ( strict ) {
+        throw new IllegalArgumentException( Messages.getErrorString(
+            "MetadataService.ERROR_0013_UNKNOWN_OPERATOR", val ) ); //$NON-NLS-1$
+      }
+      return Operator.EQUAL;
     }
-
-    return Operator.EQUAL;
+    return operator;
   }
 
   public boolean requiresValue() {
@@ -121,63 +135,104 @@ public enum Operator implements Serializable {
    * !stringType) { ops.add(vals[i]); } } return ops.toArray(new Operator[]{}); }
    */
 
+  /**
+   * Returns the formula of a condition on a column. The value array is not modified.
+   * 
+   * @param columnName
+   *          the column reference, e.g. <code>[category.column]</code>
+   * @param paramName
+   *          the name of the parameter, used if the condition is parameterized
+   * @param value
+   * @param parameterized
+   * @return
+   */
   public String formatCondition( String columnName, String paramName, String[] value, boolean parameterized ) {
+    return appendCondition( new FormulaBuilder(), columnName, paramName, value, FormulaBuilder.ValueFormat.LITERAL,
+        parameterized ).toString();
+  }
 
-    if ( parameterized ) {
-      value = new String[] { "[param:" + paramName.replaceAll( "[\\{\\}]", "" ) + "]" }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
-    } else if ( this.operatorType == 0 || this.operatorType == 2 ) {
-      for ( int idx = 0; idx < value.length; idx++ ) {
-        if ( !value[idx].startsWith( "\"" ) && !value[idx].endsWith( "\"" ) ) { //$NON-NLS-1$ //$NON-NLS-2$
-          value[idx] = "\"" + value[idx] + "\""; //$NON-NLS-1$ //$NON-NLS-2$ 
-        }
-      }
-    }
-    String retVal = ""; //$NON-NLS-1$
+  /**
+   * Appends the formula of a condition on a column to a builder. The value array is not modified.
+   * 
+   * @param formula
+   * @param columnName
+   *          the column reference, e.g. <code>[category.column]</code>
+   * @param paramName
+   *          the name of the parameter, used if the condition is parameterized
+   * @param value
+   * @param format
+   *          how the values are written
+   * @param parameterized
+   * @return the builder
+   */
+  public FormulaBuilder appendCondition( FormulaBuilder formula, String columnName, String paramName, String[] value,
+      FormulaBuilder.ValueFormat format, boolean parameterized ) {
+    boolean quote = this.operatorType == 0 || this.operatorType == 2;
 
     switch ( this ) {
       case EXACTLY_MATCHES:
-        if ( value.length == 1 ) {
-          retVal += columnName + " = " + value[0]; //$NON-NLS-1$          
+        if ( parameterized || value.length == 1 ) {
+          formula.append( columnName ).append( " = " ); //$NON-NLS-1$
+          appendValue( formula, paramName, value, format, quote, parameterized );
         } else {
-          StringBuilder sb = new StringBuilder();
-          sb.append( "IN(" ) //$NON-NLS-1$
+          int size = columnName.length() + 6;
+          for ( int idx = 0; idx < value.length; idx++ ) {
+            size += value[idx].length() + 3;
+          }
+          formula.ensureAvailable( size );
+          formula.append( "IN(" ) //$NON-NLS-1$
               .append( columnName ).append( "; " ); //$NON-NLS-1$
           for ( int idx = 0; idx < value.length; idx++ ) {
             if ( idx > 0 ) {
-              sb.append( ";" ); //$NON-NLS-1$
+              formula.append( ';' );
             }
-            sb.append( value[idx] );
+            formula.appendValue( value[idx], format, quote );
           }
-          sb.append( ")" ); //$NON-NLS-1$
-          retVal = sb.toString();
+          formula.append( ')' );
         }
         break;
       case CONTAINS:
-        retVal += "CONTAINS(" + columnName + ";" + value[0] + ")"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        formula.append( "CONTAINS(" ).append( columnName ).append( ';' ); //$NON-NLS-1$
+        appendValue( formula, paramName, value, format, quote, parameterized );
+        formula.append( ')' );
         break;
       case DOES_NOT_CONTAIN:
-        retVal += "NOT(CONTAINS(" + columnName + ";" + value[0] + "))"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        formula.append( "NOT(CONTAINS(" ).append( columnName ).append( ';' ); //$NON-NLS-1$
+        appendValue( formula, paramName, value, format, quote, parameterized );
+        formula.append( "))" ); //$NON-NLS-1$
         break;
       case BEGINS_WITH:
-        retVal += "BEGINSWITH(" + columnName + ";" + value[0] + ")"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        formula.append( "BEGINSWITH(" ).append( columnName ).append( ';' ); //$NON-NLS-1$
+        appendValue( formula, paramName, value, format, quote, parameterized );
+        formula.append( ')' );
         break;
       case ENDS_WITH:
-        retVal += "ENDSWITH(" + columnName + ";" + value[0] + ")"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        formula.append( "ENDSWITH(" ).append( columnName ).append( ';' ); //$NON-NLS-1$
+        appendValue( formula, paramName, value, format, quote, parameterized );
+        formula.append( ')' );
         break;
       case IS_NULL:
-        retVal += "ISNA(" + columnName + ")"; //$NON-NLS-1$ //$NON-NLS-2$
+        formula.append( "ISNA(" ).append( columnName ).append( ')' ); //$NON-NLS-1$
         break;
       case IS_NOT_NULL:
-        retVal += "NOT(ISNA(" + columnName + "))"; //$NON-NLS-1$ //$NON-NLS-2$
+        formula.append( "NOT(ISNA(" ).append( columnName ).append( "))" ); //$NON-NLS-1$ //$NON-NLS-2$
         break;
       default:
-        retVal = columnName + " " + this.toString(); //$NON-NLS-1$
+        formula.append( columnName ).append( ' ' ).append( this.strVal );
         if ( this.requiresValue ) {
-          retVal += value[0];
+          appendValue( formula, paramName, value, format, quote, parameterized );
         }
         break;
     }
-    return retVal;
+    return formula;
+  }
 
+  private static void appendValue( FormulaBuilder formula, String paramName, String[] value,
+      FormulaBuilder.ValueFormat format, boolean quote, boolean parameterized ) {
+    if ( parameterized ) {
+      formula.appendParameter( paramName );
+    } else {
+      formula.appendValue( value[0], format, quote );
+    }
   }
 }
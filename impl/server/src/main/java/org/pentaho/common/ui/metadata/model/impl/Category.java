@@ -32,6 +32,7 @@ public class Category implements ICategory, Serializable {
   private static final long serialVersionUID = -454688567483551796L;
   private String id, name, description;
   private Column[] columns = new Column[0];
+  private int columnCount;
 
   /**
    * Returns the id of the category
@@ -89,6 +90,26 @@ public class Category implements ICategory, Serializable {
    */
   public void setColumns( Column[] columns ) {
     this.columns = columns;
+    this.columnCount = columns != null ? columns.length : 0;
+  }
+
+  /**
+   * Returns the number of columns of the category. The outline of a model has the column counts of its categories but
+   * not their columns.
+   * 
+   * @return
+   */
+  public int getColumnCount() {
+    return columnCount;
+  }
+
+  /**
+   * Sets the number of columns of the category, without setting the columns
+   * 
+   * @param columnCount
+   */
+  public void setColumnCount( int columnCount ) {
+    this.columnCount = columnCount;
   }
 
   public void setDescription( String description ) {
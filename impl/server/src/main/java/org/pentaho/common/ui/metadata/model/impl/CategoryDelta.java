@@ -0,0 +1,143 @@
+/*!
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+ */
+
+package org.pentaho.common.ui.metadata.model.impl;
+
+import java.io.Serializable;
+
+/**
+ * The changes to one category of a thin model between two versions, see {@link ModelDelta}. A complete category delta
+ * has every column of the category and replaces the client's copy. Otherwise the client takes the name, description
+ * and column count of the delta, replaces the columns of the delta (adding the ones it does not have), drops the
+ * removed columns and orders the columns by {@link #getColumnIds()}.
+ */
+public class CategoryDelta implements Serializable {
+
+  private static final long serialVersionUID = 2883413706591287040L;
+
+  private String id, name, description;
+
+  private int columnCount;
+
+  private boolean complete;
+
+  private Column[] columns = new Column[0];
+
+  private String[] removedColumnIds = new String[0];
+
+  private String[] columnIds = new String[0];
+
+  /**
+   * Returns the id of the category
+   * 
+   * @return
+   */
+  public String getId() {
+    return id;
+  }
+
+  public void setId( String id ) {
+    this.id = id;
+  }
+
+  /**
+   * Returns the name of the category in the newer version
+   * 
+   * @return
+   */
+  public String getName() {
+    return name;
+  }
+
+  public void setName( String name ) {
+    this.name = name;
+  }
+
+  /**
+   * Returns the description of the category in the newer version
+   * 
+   * @return
+   */
+  public String getDescription() {
+    return description;
+  }
+
+  public void setDescription( String description ) {
+    this.description = description;
+  }
+
+  public int getColumnCount() {
+    return columnCount;
+  }
+
+  public void setColumnCount( int columnCount ) {
+    this.columnCount = columnCount;
+  }
+
+  /**
+   * Determines whether the delta has every column of the category because the client does not have the category
+   * 
+   * @return
+   */
+  public boolean isComplete() {
+    return complete;
+  }
+
+  public void setComplete( boolean complete ) {
+    this.complete = complete;
+  }
+
+  /**
+   * Returns the columns that were added or changed
+   * 
+   * @return
+   */
+  public Column[] getColumns() {
+    return columns;
+  }
+
+  public void setColumns( Column[] columns ) {
+    this.columns = columns;
+  }
+
+  /**
+   * Returns the ids of the columns that were removed
+   * 
+   * @return
+   */
+  public String[] getRemovedColumnIds() {
+    return removedColumnIds;
+  }
+
+  public void setRemovedColumnIds( String[] removedColumnIds ) {
+    this.removedColumnIds = removedColumnIds;
+  }
+
+  /**
+   * Returns the ids of all of the columns of the category in the newer version, in the order of the category
+   * 
+   * @return
+   */
+  public String[] getColumnIds() {
+    return columnIds;
+  }
+
+  public void setColumnIds( String[] columnIds ) {
+    this.columnIds = columnIds;
+  }
+
+}
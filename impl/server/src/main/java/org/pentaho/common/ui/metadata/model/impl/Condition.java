@@ -17,9 +17,9 @@
 
 package org.pentaho.common.ui.metadata.model.impl;
 
-import org.apache.commons.lang.StringUtils;
 import org.pentaho.metadata.model.concept.types.DataType;
 import org.pentaho.metadata.query.model.CombinationType;
+import org.pentaho.common.ui.metadata.model.FormulaBuilder;
 import org.pentaho.common.ui.metadata.model.ICondition;
 import org.pentaho.common.ui.metadata.model.Operator;
 
@@ -80,41 +80,61 @@ public class Condition implements ICondition {
   }
 
   public String getCondition( String type, String paramName ) {
-    String[] val = this.value;
+    return appendCondition( new FormulaBuilder(), type, paramName ).toString();
+  }
+
+  /**
+   * Appends the formula of the condition to a builder, see {@link #getCondition(String, String)}. The values of the
+   * condition are not modified, so the formula can be built any number of times.
+   * 
+   * @param formula
+   * @param type
+   *          the name of the data type of the column
+   * @param paramName
+   *          If set, this value is to be used as the name of the parameter for this condition
+   * @return the builder
+   */
+  public FormulaBuilder appendCondition( FormulaBuilder formula, String type, String paramName ) {
     /*
      * if(val == null && defaultValue != null) { val = defaultValue; }
      */
-    Operator theOperator = Operator.parse( operator );
-    if ( type.equalsIgnoreCase( DataType.STRING.getName() ) && theOperator == Operator.EQUAL ) {
+    return appendCondition( formula, type, paramName, Operator.parse( operator ) );
+  }
+
+  /**
+   * Appends the formula of the condition to a builder using an operator the caller has already resolved from
+   * {@link #getOperator()}, see {@link #appendCondition(FormulaBuilder, String, String)}.
+   * 
+   * @param formula
+   * @param type
+   *          the name of the data type of the column
+   * @param paramName
+   *          If set, this value is to be used as the name of the parameter for this condition
+   * @param theOperator
+   *          the operator of the condition
+   * @return the builder
+   */
+  public FormulaBuilder appendCondition( FormulaBuilder formula, String type, String paramName,
+      Operator theOperator ) {
+    boolean isString = type.equalsIgnoreCase( DataType.STRING.getName() );
+    if ( isString && theOperator == Operator.EQUAL ) {
       theOperator = Operator.EXACTLY_MATCHES;
     }
 
     boolean enforceParameters = isParameterized() && paramName != null;
 
-    if ( !enforceParameters && type.equalsIgnoreCase( DataType.STRING.getName() ) ) {
-      for ( int idx = 0; idx < val.length; idx++ ) {
-        val[idx] = "\"" + val[idx] + "\""; //$NON-NLS-1$ //$NON-NLS-2$
-      }
-    }
-
-    String columnName =
-        "[" + category + "." + column + ( StringUtils.isEmpty( selectedAggType ) ? "" : "." + selectedAggType ) + "]"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$;
+    String columnName = new FormulaBuilder().appendColumn( category, column, selectedAggType ).toString();
     // Date is a special case where we craft a formula function.
     if ( type.equals( DataType.DATE.getName() ) ) {
-      if ( enforceParameters ) {
-        // Due to the fact that the value of a Date is a forumula function, the tokenizing of
-        // the value needs to happen here instead of letting the Operator class handle it.
-        for ( int idx = 0; idx < val.length; idx++ ) {
-          val[idx] = "DATEVALUE(" + "[param:" + value[idx].replaceAll( "[\\{\\}]", "" ) + "]" + ")"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$
-        }
-        return theOperator.formatCondition( columnName, paramName, val, false );
-      } else {
-        for ( int idx = 0; idx < val.length; idx++ ) {
-          val[idx] = "DATEVALUE(\"" + val[idx] + "\")"; //$NON-NLS-1$ //$NON-NLS-2$
-        }
-      }
+      // Due to the fact that the value of a Date is a forumula function, the tokenizing of
+      // the value needs to happen here instead of letting the Operator class handle it.
+      FormulaBuilder.ValueFormat format =
+          enforceParameters ? FormulaBuilder.ValueFormat.DATE_PARAMETER : FormulaBuilder.ValueFormat.DATE;
+      return theOperator.appendCondition( formula, columnName, paramName, value, format, false );
     }
-    return theOperator.formatCondition( columnName, paramName, val, enforceParameters );
+    FormulaBuilder.ValueFormat format =
+        !enforceParameters && isString ? FormulaBuilder.ValueFormat.STRING : FormulaBuilder.ValueFormat.LITERAL;
+    return theOperator.appendCondition( formula, columnName, paramName, value, format, enforceParameters );
   }
 
   public boolean isParameterized() {
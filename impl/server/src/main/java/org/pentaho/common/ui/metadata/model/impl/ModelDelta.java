@@ -0,0 +1,173 @@
+/*!
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+ */
+
+package org.pentaho.common.ui.metadata.model.impl;
+
+import java.io.Serializable;
+
+/**
+ * The changes to a thin model between two of its versions. The version token of a model is the entity tag of its JSON
+ * without the quotes. A client applies a delta to its copy of the older version: it applies the category deltas
+ * (adding the categories it does not have), drops the removed categories and orders the categories by
+ * {@link #getCategoryIds()}. Categories without a delta did not change. A changed category only carries its changed
+ * columns, see {@link CategoryDelta}.
+ * 
+ * If the older version is not known any more the delta is complete: it has every category of the model with all of
+ * its columns.
+ */
+public class ModelDelta implements Serializable {
+
+  private static final long serialVersionUID = 7154024873561372193L;
+
+  private String id, domainId, name, description;
+
+  private String fromVersion, version;
+
+  private boolean complete;
+
+  private CategoryDelta[] categories = new CategoryDelta[0];
+
+  private String[] removedCategoryIds = new String[0];
+
+  private String[] categoryIds = new String[0];
+
+  /**
+   * Returns the id of the model
+   * 
+   * @return
+   */
+  public String getId() {
+    return id;
+  }
+
+  public void setId( String id ) {
+    this.id = id;
+  }
+
+  public String getDomainId() {
+    return domainId;
+  }
+
+  public void setDomainId( String domainId ) {
+    this.domainId = domainId;
+  }
+
+  /**
+   * Returns the name of the model in the newer version
+   * 
+   * @return
+   */
+  public String getName() {
+    return name;
+  }
+
+  public void setName( String name ) {
+    this.name = name;
+  }
+
+  /**
+   * Returns the description of the model in the newer version
+   * 
+   * @return
+   */
+  public String getDescription() {
+    return description;
+  }
+
+  public void setDescription( String description ) {
+    this.description = description;
+  }
+
+  /**
+   * Returns the version the changes are relative to, as given by the client
+   * 
+   * @return
+   */
+  public String getFromVersion() {
+    return fromVersion;
+  }
+
+  public void setFromVersion( String fromVersion ) {
+    this.fromVersion = fromVersion;
+  }
+
+  /**
+   * Returns the current version of the model, the version of the client after the delta has been applied
+   * 
+   * @return
+   */
+  public String getVersion() {
+    return version;
+  }
+
+  public void setVersion( String version ) {
+    this.version = version;
+  }
+
+  /**
+   * Determines whether the delta has every category of the model because the older version is not known
+   * 
+   * @return
+   */
+  public boolean isComplete() {
+    return complete;
+  }
+
+  public void setComplete( boolean complete ) {
+    this.complete = complete;
+  }
+
+  /**
+   * Returns the changes to the categories that were added or changed
+   * 
+   * @return
+   */
+  public CategoryDelta[] getCategories() {
+    return categories;
+  }
+
+  public void setCategories( CategoryDelta[] categories ) {
+    this.categories = categories;
+  }
+
+  /**
+   * Returns the ids of the categories that were removed
+   * 
+   * @return
+   */
+  public String[] getRemovedCategoryIds() {
+    return removedCategoryIds;
+  }
+
+  public void setRemovedCategoryIds( String[] removedCategoryIds ) {
+    this.removedCategoryIds = removedCategoryIds;
+  }
+
+  /**
+   * Returns the ids of all of the categories of the newer version, in the order of the model
+   * 
+   * @return
+   */
+  public String[] getCategoryIds() {
+    return categoryIds;
+  }
+
+  public void setCategoryIds( String[] categoryIds ) {
+    this.categoryIds = categoryIds;
+  }
+
+}
@@ -0,0 +1,149 @@
+/*!
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+ */
+
+package org.pentaho.common.ui.metadata.service;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.pentaho.commons.connection.IPentahoMetaData;
+import org.pentaho.commons.connection.IPentahoResultSet;
+import org.pentaho.metadata.model.IPhysicalColumn;
+import org.pentaho.metadata.model.concept.Concept;
+import org.pentaho.metadata.model.concept.types.DataType;
+import org.pentaho.metadata.model.concept.types.LocalizedString;
+
+/**
+ * Writes a query result set as CDA compatible JSON. The rows are written to the output as they are read from the result
+ * set, so no JSON tree or string of the whole result is built. The result set itself is still held in memory: the
+ * services execute their queries with a result set that is read completely before it is returned, so it can be
+ * cached and the database connection is freed before the response is written.
+ *
+ * The JSON has the form <code>{"metadata":[{"colIndex":0,"colName":..,"colType":..,"colLabel":..},...],
+ * "resultset":[[row 0 values],[row 1 values],...]}</code>, pages of a result have an additional queryInfo member.
+ */
+public class CdaJsonWriter {
+
+  private static final int BUFFER_SIZE = 16 * 1024;
+
+  /**
+   * Writes the result set as UTF-8 encoded JSON. The stream is flushed but not closed.
+   *
+   * @param resultSet
+   * @param locale
+   *          the locale of the column labels, no labels are written if null
+   * @param output
+   * @throws JSONException
+   * @throws IOException
+   */
+  public void write( IPentahoResultSet resultSet, String locale, OutputStream output ) throws JSONException,
+    IOException {
+    Writer writer = new BufferedWriter( new OutputStreamWriter( output, "UTF-8" ), BUFFER_SIZE ); //$NON-NLS-1$
+    write( resultSet, locale, writer );
+    writer.flush();
+  }
+
+  /**
+   * Writes the result set as JSON. The writer is not flushed or closed.
+   *
+   * @param resultSet
+   * @param locale
+   *          the locale of the column labels, no labels are written if null
+   * @param writer
+   * @throws JSONException
+   * @throws IOException
+   */
+  public void write( IPentahoResultSet resultSet, String locale, Writer writer ) throws JSONException, IOException {
+    write( resultSet, locale, null, writer );
+  }
+
+  /**
+   * Writes a page of a result as JSON. A <code>"queryInfo":{"pageStart":..,"pageSize":..,"totalRows":..}</code>
+   * member tells the client where the page is in the whole result. The writer is not flushed or closed.
+   *
+   * @param page
+   * @param locale
+   *          the locale of the column labels, no labels are written if null
+   * @param writer
+   * @throws JSONException
+   * @throws IOException
+   */
+  public void writePage( QueryResultCache.Page page, String locale, Writer writer ) throws JSONException,
+    IOException {
+    JSONObject queryInfo = new JSONObject();
+    queryInfo.put( "pageStart", page.getOffset() ); //$NON-NLS-1$
+    queryInfo.put( "pageSize", page.getResultSet().getRowCount() ); //$NON-NLS-1$
+    queryInfo.put( "totalRows", page.getTotalRows() ); //$NON-NLS-1$
+    write( page.getResultSet(), locale, queryInfo, writer );
+  }
+
+  private void write( IPentahoResultSet resultSet, String locale, JSONObject queryInfo, Writer writer )
+    throws JSONException, IOException {
+    final int columnCount = resultSet.getColumnCount();
+    final int rowCount = resultSet.getRowCount();
+
+    // Generate the metadata
+    writer.write( "{\"metadata\":[" ); //$NON-NLS-1$
+    IPentahoMetaData metaData = resultSet.getMetaData();
+    for ( int i = 0; i < columnCount; i++ ) {
+      if ( i > 0 ) {
+        writer.write( ',' );
+      }
+      writer.write( createColumnInfo( metaData, i, locale ).toString() );
+    }
+
+    // add the rows of data
+    writer.write( "],\"resultset\":[" ); //$NON-NLS-1$
+    for ( int rowIdx = 0; rowIdx < rowCount; rowIdx++ ) {
+      if ( rowIdx > 0 ) {
+        writer.write( ',' );
+      }
+      writer.write( '[' );
+      for ( int colIdx = 0; colIdx < columnCount; colIdx++ ) {
+        if ( colIdx > 0 ) {
+          writer.write( ',' );
+        }
+        writer.write( JSONObject.valueToString( resultSet.getValueAt( rowIdx, colIdx ) ) );
+      }
+      writer.write( ']' );
+    }
+    writer.write( ']' );
+    if ( queryInfo != null ) {
+      writer.write( ",\"queryInfo\":" ); //$NON-NLS-1$
+      writer.write( queryInfo.toString() );
+    }
+    writer.write( '}' );
+  }
+
+  private JSONObject createColumnInfo( IPentahoMetaData metaData, int i, String locale ) throws JSONException {
+    JSONObject info = new JSONObject();
+    info.put( "colIndex", i ); //$NON-NLS-1$
+    info.put( "colName", metaData.getColumnHeaders()[0][i] ); //$NON-NLS-1$
+    DataType type = (DataType) metaData.getAttribute( 0, i, IPhysicalColumn.DATATYPE_PROPERTY );
+    info.put( "colType", type.getName().toUpperCase() ); //$NON-NLS-1$
+    LocalizedString name = (LocalizedString) metaData.getAttribute( 0, i, Concept.NAME_PROPERTY );
+    if ( name != null && locale != null ) {
+      info.put( "colLabel", name.getString( locale ) ); //$NON-NLS-1$
+    }
+    return info;
+  }
+}
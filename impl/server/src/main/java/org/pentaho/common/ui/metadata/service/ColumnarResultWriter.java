@@ -0,0 +1,239 @@
+/*!
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+ */
+
+package org.pentaho.common.ui.metadata.service;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.pentaho.commons.connection.IPentahoMetaData;
+import org.pentaho.commons.connection.IPentahoResultSet;
+import org.pentaho.metadata.model.IPhysicalColumn;
+import org.pentaho.metadata.model.concept.Concept;
+import org.pentaho.metadata.model.concept.types.DataType;
+import org.pentaho.metadata.model.concept.types.LocalizedString;
+
+/**
+ * Writes a query result set in a compact columnar binary form, an alternative to CDA JSON for clients that read large
+ * numeric results. The values of a column are written together in a typed buffer instead of one boxed JSON value per
+ * cell, and the distinct strings of a column are written once.
+ *
+ * All numbers are big-endian, strings are an int byte count followed by UTF-8 bytes (-1 for null):
+ * 
+ * <pre>
+ * "PCRS" version:byte columnCount:int rowCount:int
+ * per column: name:string type:string label:string encoding:byte
+ * per column: the values of the column in its encoding
+ *   NUMBER  validity bitmap, rowCount float64
+ *   BOOLEAN validity bitmap, value bitmap
+ *   DATE    validity bitmap, rowCount float64 milliseconds since the epoch
+ *   STRING  dictionary size:int, dictionary strings, rowCount int32 dictionary index (-1 for null)
+ * </pre>
+ * 
+ * Bitmaps hold one bit per row, least significant bit first, in (rowCount + 7) / 8 bytes. Numbers are written as
+ * doubles, like JSON numbers they lose precision beyond 53 bits. A column that mixes kinds of values is written as
+ * strings. The matching decoder is common-data/columnar.
+ */
+public class ColumnarResultWriter {
+
+  public static final String CONTENT_TYPE = "application/x-pentaho-columnar"; //$NON-NLS-1$
+
+  static final byte VERSION = 1;
+
+  static final byte NUMBER = 1;
+
+  static final byte BOOLEAN = 2;
+
+  static final byte DATE = 3;
+
+  static final byte STRING = 4;
+
+  private static final byte[] MAGIC = { 'P', 'C', 'R', 'S' };
+
+  private static final Charset UTF_8 = Charset.forName( "UTF-8" ); //$NON-NLS-1$
+
+  private static final int BUFFER_SIZE = 16 * 1024;
+
+  /**
+   * Writes the result set to a stream. The stream is flushed but not closed.
+   * 
+   * @param resultSet
+   * @param locale
+   *          the locale of the column labels, no labels are written if null
+   * @param output
+   * @throws IOException
+   */
+  public void write( IPentahoResultSet resultSet, String locale, OutputStream output ) throws IOException {
+    final int columnCount = resultSet.getColumnCount();
+    final int rowCount = resultSet.getRowCount();
+    DataOutputStream out = new DataOutputStream( new BufferedOutputStream( output, BUFFER_SIZE ) );
+
+    out.write( MAGIC );
+    out.writeByte( VERSION );
+    out.writeInt( columnCount );
+    out.writeInt( rowCount );
+
+    IPentahoMetaData metaData = resultSet.getMetaData();
+    byte[] encodings = new byte[columnCount];
+    for ( int i = 0; i < columnCount; i++ ) {
+      encodings[i] = getEncoding( resultSet, i, rowCount );
+      writeString( out, String.valueOf( metaData.getColumnHeaders()[0][i] ) );
+      DataType type = (DataType) metaData.getAttribute( 0, i, IPhysicalColumn.DATATYPE_PROPERTY );
+      writeString( out, type != null ? type.getName().toUpperCase() : null );
+      LocalizedString name = (LocalizedString) metaData.getAttribute( 0, i, Concept.NAME_PROPERTY );
+      writeString( out, name != null && locale != null ? name.getString( locale ) : null );
+      out.writeByte( encodings[i] );
+    }
+
+    for ( int i = 0; i < columnCount; i++ ) {
+      switch ( encodings[i] ) {
+        case NUMBER:
+          writeValidity( out, resultSet, i, rowCount );
+          for ( int row = 0; row < rowCount; row++ ) {
+            Object value = resultSet.getValueAt( row, i );
+            out.writeDouble( value != null ? ( (Number) value ).doubleValue() : 0 );
+          }
+          break;
+        case BOOLEAN:
+          writeValidity( out, resultSet, i, rowCount );
+          writeBooleans( out, resultSet, i, rowCount );
+          break;
+        case DATE:
+          writeValidity( out, resultSet, i, rowCount );
+          for ( int row = 0; row < rowCount; row++ ) {
+            Object value = resultSet.getValueAt( row, i );
+            out.writeDouble( value != null ? ( (Date) value ).getTime() : 0 );
+          }
+          break;
+        default:
+          writeStrings( out, resultSet, i, rowCount );
+      }
+    }
+    out.flush();
+  }
+
+  /**
+   * Picks the encoding of a column from its values, the declared data type of a column does not always match the
+   * objects the driver returns
+   */
+  private byte getEncoding( IPentahoResultSet resultSet, int column, int rowCount ) {
+    byte encoding = 0;
+    for ( int row = 0; row < rowCount; row++ ) {
+      Object value = resultSet.getValueAt( row, column );
+      if ( value == null ) {
+        continue;
+      }
+      byte kind;
+      if ( value instanceof Number ) {
+        kind = NUMBER;
+      } else if ( value instanceof Boolean ) {
+        kind = BOOLEAN;
+      } else if ( value instanceof Date ) {
+        kind = DATE;
+      } else {
+        return STRING;
+      }
+      if ( encoding == 0 ) {
+        encoding = kind;
+      } else if ( encoding != kind ) {
+        return STRING;
+      }
+    }
+    return encoding != 0 ? encoding : STRING;
+  }
+
+  private void writeValidity( DataOutputStream out, IPentahoResultSet resultSet, int column, int rowCount )
+    throws IOException {
+    int bits = 0;
+    for ( int row = 0; row < rowCount; row++ ) {
+      if ( resultSet.getValueAt( row, column ) != null ) {
+        bits |= 1 << ( row & 7 );
+      }
+      if ( ( row & 7 ) == 7 ) {
+        out.writeByte( bits );
+        bits = 0;
+      }
+    }
+    if ( ( rowCount & 7 ) != 0 ) {
+      out.writeByte( bits );
+    }
+  }
+
+  private void writeBooleans( DataOutputStream out, IPentahoResultSet resultSet, int column, int rowCount )
+    throws IOException {
+    int bits = 0;
+    for ( int row = 0; row < rowCount; row++ ) {
+      if ( Boolean.TRUE.equals( resultSet.getValueAt( row, column ) ) ) {
+        bits |= 1 << ( row & 7 );
+      }
+      if ( ( row & 7 ) == 7 ) {
+        out.writeByte( bits );
+        bits = 0;
+      }
+    }
+    if ( ( rowCount & 7 ) != 0 ) {
+      out.writeByte( bits );
+    }
+  }
+
+  private void writeStrings( DataOutputStream out, IPentahoResultSet resultSet, int column, int rowCount )
+    throws IOException {
+    Map<String, Integer> indexes = new HashMap<String, Integer>();
+    List<String> dictionary = new ArrayList<String>();
+    int[] rows = new int[rowCount];
+    for ( int row = 0; row < rowCount; row++ ) {
+      Object value = resultSet.getValueAt( row, column );
+      if ( value == null ) {
+        rows[row] = -1;
+        continue;
+      }
+      String string = value.toString();
+      Integer index = indexes.get( string );
+      if ( index == null ) {
+        index = dictionary.size();
+        indexes.put( string, index );
+        dictionary.add( string );
+      }
+      rows[row] = index;
+    }
+    out.writeInt( dictionary.size() );
+    for ( String string : dictionary ) {
+      writeString( out, string );
+    }
+    for ( int row = 0; row < rowCount; row++ ) {
+      out.writeInt( rows[row] );
+    }
+  }
+
+  private void writeString( DataOutputStream out, String value ) throws IOException {
+    if ( value == null ) {
+      out.writeInt( -1 );
+      return;
+    }
+    byte[] bytes = value.getBytes( UTF_8 );
+    out.writeInt( bytes.length );
+    out.write( bytes );
+  }
+}
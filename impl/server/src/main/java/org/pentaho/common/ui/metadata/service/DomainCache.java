@@ -0,0 +1,240 @@
+/*!
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+ */
+
+package org.pentaho.common.ui.metadata.service;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.pentaho.metadata.model.Domain;
+
+/**
+ * A bounded, least-recently-used cache for objects derived from a metadata domain.
+ * <p>
+ * Every entry remembers the {@link Domain} instance it was built from. The metadata repository hands out a new instance
+ * whenever a domain is stored again, so an entry whose domain instance differs from the one the caller currently holds
+ * is stale; all entries of that domain are then dropped. Passing a <code>null</code> domain (the domain was removed)
+ * drops them as well.
+ *
+ * @param <K>
+ *          the type of the key within a domain
+ * @param <V>
+ *          the type of the cached values
+ */
+public class DomainCache<K, V> {
+
+  private final int maxSize;
+
+  private final LinkedHashMap<Key<K>, Entry<V>> entries;
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private final AtomicLong misses = new AtomicLong();
+
+  private final AtomicLong evictions = new AtomicLong();
+
+  private final AtomicLong invalidations = new AtomicLong();
+
+  /**
+   * Creates a cache holding at most <code>maxSize</code> entries. A size of zero or less disables caching.
+   *
+   * @param maxSize
+   */
+  public DomainCache( final int maxSize ) {
+    this.maxSize = maxSize;
+    this.entries = new LinkedHashMap<Key<K>, Entry<V>>( 16, 0.75f, true ) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry( Map.Entry<Key<K>, Entry<V>> eldest ) {
+        if ( size() > DomainCache.this.maxSize ) {
+          evictions.incrementAndGet();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Returns the value cached for the key, or null if there is none or it was built from another version of the domain
+   *
+   * @param domainId
+   * @param domain
+   *          the current domain instance, null if the domain no longer exists
+   * @param key
+   * @return
+   */
+  public V get( String domainId, Domain domain, K key ) {
+    if ( maxSize <= 0 ) {
+      misses.incrementAndGet();
+      return null;
+    }
+    synchronized ( entries ) {
+      Entry<V> entry = entries.get( new Key<K>( domainId, key ) );
+      if ( entry == null ) {
+        misses.incrementAndGet();
+        if ( domain == null ) {
+          removeDomain( domainId );
+        }
+        return null;
+      }
+      if ( domain == null || entry.getDomain() != domain ) {
+        // the domain has been removed or stored again since this entry was built
+        misses.incrementAndGet();
+        removeDomain( domainId );
+        return null;
+      }
+      hits.incrementAndGet();
+      return entry.value;
+    }
+  }
+
+  /**
+   * Caches a value built from the given domain instance
+   *
+   * @param domainId
+   * @param domain
+   * @param key
+   * @param value
+   */
+  public void put( String domainId, Domain domain, K key, V value ) {
+    if ( maxSize <= 0 || domain == null || value == null ) {
+      return;
+    }
+    synchronized ( entries ) {
+      entries.put( new Key<K>( domainId, key ), new Entry<V>( domain, value ) );
+    }
+  }
+
+  /**
+   * Drops every entry of a domain, typically because the repository no longer returns it
+   *
+   * @param domainId
+   */
+  public void invalidate( String domainId ) {
+    synchronized ( entries ) {
+      removeDomain( domainId );
+    }
+  }
+
+  private void removeDomain( String domainId ) {
+    for ( Iterator<Key<K>> it = entries.keySet().iterator(); it.hasNext(); ) {
+      Key<K> key = it.next();
+      if ( key.domainId == null ? domainId == null : key.domainId.equals( domainId ) ) {
+        it.remove();
+        invalidations.incrementAndGet();
+      }
+    }
+  }
+
+  public int size() {
+    synchronized ( entries ) {
+      return entries.size();
+    }
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /**
+   * Returns the number of entries dropped to keep the cache within its size
+   *
+   * @return
+   */
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  /**
+   * Returns the number of entries dropped because their domain changed or was removed
+   *
+   * @return
+   */
+  public long getInvalidationCount() {
+    return invalidations.get();
+  }
+
+  @Override
+  public String toString() {
+    return "DomainCache[size=" + size() + ", maxSize=" + maxSize + ", hits=" + getHitCount() + ", misses=" //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+        + getMissCount() + ", evictions=" + getEvictionCount() + ", invalidations=" + getInvalidationCount() + "]"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+  }
+
+  private static final class Key<K> {
+
+    private final String domainId;
+
+    private final K key;
+
+    Key( String domainId, K key ) {
+      this.domainId = domainId;
+      this.key = key;
+    }
+
+    @Override
+    public int hashCode() {
+      final int prime = 31;
+      int result = 1;
+      result = prime * result + ( ( domainId == null ) ? 0 : domainId.hashCode() );
+      result = prime * result + ( ( key == null ) ? 0 : key.hashCode() );
+      return result;
+    }
+
+    @Override
+    public boolean equals( Object obj ) {
+      if ( this == obj ) {
+        return true;
+      }
+      if ( !( obj instanceof Key ) ) {
+        return false;
+      }
+      Key<?> other = (Key<?>) obj;
+      return ( domainId == null ? other.domainId == null : domainId.equals( other.domainId ) )
+          && ( key == null ? other.key == null : key.equals( other.key ) );
+    }
+  }
+
+  private static final class Entry<V> {
+
+    // do not keep old versions of a domain alive just because something was cached for them
+    private final WeakReference<Domain> domain;
+
+    private final V value;
+
+    Entry( Domain domain, V value ) {
+      this.domain = new WeakReference<Domain>( domain );
+      this.value = value;
+    }
+
+    Domain getDomain() {
+      return domain.get();
+    }
+  }
+}
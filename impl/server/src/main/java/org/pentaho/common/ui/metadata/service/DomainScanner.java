@@ -0,0 +1,160 @@
+/*!
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+ */
+
+package org.pentaho.common.ui.metadata.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.pentaho.platform.api.engine.IPentahoSession;
+import org.pentaho.platform.engine.core.system.PentahoSessionHolder;
+import org.pentaho.platform.util.messages.LocaleHelper;
+
+/**
+ * Processes the domains of the metadata repository in parallel. Loading a domain can mean repository I/O and parsing
+ * its XMI, so listing the models of all the domains one after the other is slow on servers with many domains. The
+ * domains are processed on a small shared pool, with the session and locale of the calling thread, and the results are
+ * collected in the order of the domain ids, so they do not depend on which domain happens to load first.
+ */
+class DomainScanner {
+
+  /**
+   * The work done for one domain
+   */
+  interface Task<T> {
+    void scan( String domainId, List<T> results );
+  }
+
+  private static final int DEFAULT_THREADS = 4;
+
+  private static DomainScanner instance;
+
+  private final ThreadPoolExecutor executor;
+
+  /**
+   * @param threads
+   *          the number of domains processed at the same time, 1 or less processes them on the calling thread
+   */
+  DomainScanner( int threads ) {
+    if ( threads > 1 ) {
+      executor =
+          new ThreadPoolExecutor( threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+              createThreadFactory() );
+      executor.allowCoreThreadTimeOut( true );
+    } else {
+      executor = null;
+    }
+  }
+
+  static synchronized DomainScanner getInstance() {
+    if ( instance == null ) {
+      instance =
+          new DomainScanner( MetadataSettings.getIntSetting( MetadataSettings.DOMAIN_SCAN_THREADS, DEFAULT_THREADS ) );
+    }
+    return instance;
+  }
+
+  /**
+   * Runs a task for each of the domains and adds what the tasks found to the results, in the order of the domain ids.
+   * If a task fails the results of the domains before it are kept, the remaining domains are skipped and the failure
+   * is thrown.
+   * 
+   * @param domainIds
+   * @param task
+   * @param results
+   * @throws InterruptedException
+   */
+  <T> void scan( Collection<String> domainIds, final Task<T> task, List<T> results ) throws InterruptedException {
+    if ( executor == null || domainIds.size() < 2 ) {
+      for ( String domainId : domainIds ) {
+        task.scan( domainId, results );
+      }
+      return;
+    }
+
+    final IPentahoSession session = PentahoSessionHolder.getSession();
+    final Locale locale = LocaleHelper.getLocale();
+    List<Future<List<T>>> futures = new ArrayList<Future<List<T>>>( domainIds.size() );
+    try {
+      for ( final String domainId : domainIds ) {
+        futures.add( executor.submit( new Callable<List<T>>() {
+          public List<T> call() {
+            PentahoSessionHolder.setSession( session );
+            LocaleHelper.setLocale( locale );
+            try {
+              List<T> found = new ArrayList<T>();
+              task.scan( domainId, found );
+              return found;
+            } finally {
+              PentahoSessionHolder.removeSession();
+              LocaleHelper.setLocale( null );
+            }
+          }
+        } ) );
+      }
+      for ( Future<List<T>> future : futures ) {
+        try {
+          results.addAll( future.get() );
+        } catch ( ExecutionException e ) {
+          Throwable cause = e.getCause();
+          if ( cause instanceof RuntimeException ) {
+            throw (RuntimeException) cause;
+          }
+          if ( cause instanceof Error ) {
+            throw (Error) cause;
+          }
+          throw new IllegalStateException( cause );
+        }
+      }
+    } finally {
+      // nothing is left running when the scan fails or is interrupted
+      for ( Future<List<T>> future : futures ) {
+        future.cancel( true );
+      }
+    }
+  }
+
+  /**
+   * Stops the pool
+   */
+  void shutdown() {
+    if ( executor != null ) {
+      executor.shutdownNow();
+    }
+  }
+
+  private static ThreadFactory createThreadFactory() {
+    final AtomicInteger count = new AtomicInteger();
+    return new ThreadFactory() {
+      public Thread newThread( Runnable r ) {
+        Thread thread = new Thread( r, "metadata-domain-scan-" + count.getAndIncrement() ); //$NON-NLS-1$
+        thread.setDaemon( true );
+        return thread;
+      }
+    };
+  }
+}
@@ -0,0 +1,150 @@
+/*!
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+ */
+
+package org.pentaho.common.ui.metadata.service;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.pentaho.common.ui.metadata.model.FormulaBuilder;
+import org.pentaho.common.ui.metadata.model.Operator;
+import org.pentaho.metadata.model.concept.types.DataType;
+import org.pentaho.metadata.query.model.Parameter;
+
+/**
+ * Binds long lists of values of string conditions as one multi-valued parameter when a thin query is converted. The
+ * formula of such a condition is <code>IN([category.column]; [param:in_list_0])</code> whatever the values are. The
+ * values are still part of the query: they are the default value of the parameter, which the MQL of the query holds.
+ * 
+ * A list is only bound when its values can be read back from the MQL, other lists keep the inline formula.
+ * 
+ * One instance is used for the conversion of one query.
+ */
+class InListParameters {
+
+  static final String PARAMETER_PREFIX = "in_list_"; //$NON-NLS-1$
+
+  /**
+   * The characters that separate and quote the values of a default value in the MQL
+   */
+  private static final String RESERVED_CHARS = "|\""; //$NON-NLS-1$
+
+  private final int threshold;
+
+  private final Set<String> usedNames = new HashSet<String>();
+
+  private final List<Parameter> parameters = new ArrayList<Parameter>( 1 );
+
+  private int next;
+
+  /**
+   * @param threshold
+   *          the minimum number of values bound as a parameter, 0 or less means lists are never bound
+   */
+  InListParameters( int threshold ) {
+    this.threshold = threshold;
+  }
+
+  /**
+   * Reserves the name of a parameter of the thin query, so that no list parameter is given the same name
+   * 
+   * @param name
+   */
+  void reserveName( String name ) {
+    usedNames.add( name );
+  }
+
+  /**
+   * Determines whether a condition is bound as a parameter: a condition with literal values that compares a string
+   * column with at least threshold values, all of which can be read back from the MQL
+   * 
+   * @param operator
+   *          the operator of the condition
+   * @param parameterized
+   * @param value
+   * @param type
+   *          the data type of the column
+   * @return
+   */
+  boolean accepts( Operator operator, boolean parameterized, String[] value, DataType type ) {
+    if ( threshold <= 0 || parameterized || value == null || value.length < threshold || type != DataType.STRING ) {
+      return false;
+    }
+    return ( operator == Operator.EQUAL || operator == Operator.EXACTLY_MATCHES ) && isSerializable( value );
+  }
+
+  /**
+   * Determines whether the values survive the MQL of the query. The default value of the parameter is written as one
+   * string, so a single value, an empty value and values holding a separator, a quote or a control character are not
+   * read back as they were
+   * 
+   * @param value
+   * @return
+   */
+  static boolean isSerializable( String[] value ) {
+    if ( value.length < 2 ) {
+      return false;
+    }
+    for ( String item : value ) {
+      if ( item == null || item.length() == 0 ) {
+        return false;
+      }
+      for ( int i = 0; i < item.length(); i++ ) {
+        char c = item.charAt( i );
+        if ( c < ' ' || RESERVED_CHARS.indexOf( c ) >= 0 ) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Appends the IN formula of a condition and creates the parameter holding its values
+   * 
+   * @param formula
+   * @param category
+   * @param column
+   * @param aggType
+   *          the selected aggregation of the condition, may be null
+   * @param value
+   *          the values of the condition, the array is copied
+   * @return the name of the parameter
+   */
+  String bind( FormulaBuilder formula, String category, String column, String aggType, String[] value ) {
+    String name;
+    do {
+      name = PARAMETER_PREFIX + next++;
+    } while ( usedNames.contains( name ) );
+    usedNames.add( name );
+    formula.append( "IN(" ).appendColumn( category, column, aggType ).append( "; " ) //$NON-NLS-1$ //$NON-NLS-2$
+        .appendParameter( name ).append( ')' );
+    parameters.add( new Parameter( name, DataType.STRING, value.clone() ) );
+    return name;
+  }
+
+  /**
+   * Returns the parameters created for the bound conditions
+   * 
+   * @return
+   */
+  List<Parameter> getParameters() {
+    return parameters;
+  }
+}
@@ -0,0 +1,114 @@
+/*!
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+ */
+
+package org.pentaho.common.ui.metadata.service;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.pentaho.platform.util.messages.LocaleHelper;
+
+/**
+ * Resolves the locale of a request against the locales of a domain. The negotiation of
+ * {@link LocaleHelper#getClosestLocale(String, String[])} is the same for every request in the same locale, so the
+ * results are kept in a small cache shared by all requests.
+ */
+final class LocaleResolver {
+
+  private static final int MAX_ENTRIES = 256;
+
+  private static final ConcurrentMap<Key, String> closestLocales = new ConcurrentHashMap<Key, String>();
+
+  private LocaleResolver() {
+  }
+
+  /**
+   * Returns the locale of a domain closest to the locale of the current request
+   *
+   * @param localeCodes
+   *          the locales of the domain
+   * @return
+   */
+  static String getClosestLocale( String[] localeCodes ) {
+    return getClosestLocale( LocaleHelper.getLocale().toString(), localeCodes );
+  }
+
+  /**
+   * Returns the locale of a domain closest to a locale
+   *
+   * @param locale
+   * @param localeCodes
+   *          the locales of the domain
+   * @return
+   */
+  static String getClosestLocale( String locale, String[] localeCodes ) {
+    if ( localeCodes == null ) {
+      return LocaleHelper.getClosestLocale( locale, localeCodes );
+    }
+    Key key = new Key( locale, localeCodes );
+    String closest = closestLocales.get( key );
+    if ( closest == null ) {
+      closest = LocaleHelper.getClosestLocale( locale, localeCodes );
+      if ( closestLocales.size() >= MAX_ENTRIES ) {
+        // there are only a few combinations in practice, start over if there are more
+        closestLocales.clear();
+      }
+      // the array of the key must not change, store a copy
+      closestLocales.put( new Key( locale, localeCodes.clone() ), closest );
+    }
+    return closest;
+  }
+
+  static int size() {
+    return closestLocales.size();
+  }
+
+  static void clear() {
+    closestLocales.clear();
+  }
+
+  private static final class Key {
+
+    private final String locale;
+
+    private final String[] localeCodes;
+
+    private final int hash;
+
+    Key( String locale, String[] localeCodes ) {
+      this.locale = locale;
+      this.localeCodes = localeCodes;
+      this.hash = 31 * ( locale != null ? locale.hashCode() : 0 ) + Arrays.hashCode( localeCodes );
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals( Object obj ) {
+      if ( !( obj instanceof Key ) ) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return hash == other.hash && ( locale != null ? locale.equals( other.locale ) : other.locale == null )
+          && Arrays.equals( localeCodes, other.localeCodes );
+    }
+  }
+}
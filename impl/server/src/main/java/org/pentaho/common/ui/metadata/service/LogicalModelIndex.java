@@ -0,0 +1,89 @@
+/*!
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+ */
+
+package org.pentaho.common.ui.metadata.service;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.pentaho.metadata.model.Category;
+import org.pentaho.metadata.model.LogicalColumn;
+import org.pentaho.metadata.model.LogicalModel;
+import org.pentaho.metadata.model.LogicalTable;
+
+/**
+ * Maps the column ids of a logical model to their logical column and to the category that holds them.
+ * LogicalModel.findLogicalColumn and the category scan in getCategory are linear in the size of the model, which adds
+ * up when a query selects many columns of a large model. An index is built once per model and domain version, see
+ * {@link MetadataCaches#getModelIndex(org.pentaho.metadata.model.Domain, LogicalModel)}.
+ */
+public class LogicalModelIndex {
+
+  private final LogicalModel logicalModel;
+
+  private final Map<String, LogicalColumn> columns = new HashMap<String, LogicalColumn>();
+
+  private final Map<String, Category> categories = new HashMap<String, Category>();
+
+  public LogicalModelIndex( LogicalModel logicalModel ) {
+    this.logicalModel = logicalModel;
+    // the first match wins, the same as the linear lookups
+    for ( LogicalTable table : logicalModel.getLogicalTables() ) {
+      for ( LogicalColumn column : table.getLogicalColumns() ) {
+        if ( !columns.containsKey( column.getId() ) ) {
+          columns.put( column.getId(), column );
+        }
+      }
+    }
+    for ( Category category : logicalModel.getCategories() ) {
+      for ( LogicalColumn column : category.getLogicalColumns() ) {
+        if ( !categories.containsKey( column.getId() ) ) {
+          categories.put( column.getId(), category );
+        }
+      }
+    }
+  }
+
+  public LogicalModel getLogicalModel() {
+    return logicalModel;
+  }
+
+  /**
+   * Returns the logical column with the given id
+   * 
+   * @param columnId
+   * @return the column, or null if the model does not have it
+   */
+  public LogicalColumn findLogicalColumn( String columnId ) {
+    LogicalColumn column = columns.get( columnId );
+    if ( column == null ) {
+      // not indexed, let the model have the last word
+      column = logicalModel.findLogicalColumn( columnId );
+    }
+    return column;
+  }
+
+  /**
+   * Returns the first category that holds the column with the given id
+   * 
+   * @param columnId
+   * @return the category, or null if the column is not in the index
+   */
+  public Category findCategory( String columnId ) {
+    return categories.get( columnId );
+  }
+}
@@ -0,0 +1,210 @@
+/*!
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+ */
+
+package org.pentaho.common.ui.metadata.service;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.pentaho.metadata.model.Domain;
+import org.pentaho.metadata.model.LogicalModel;
+
+/**
+ * Holds the caches shared by all of the metadata service objects. The services are created per session (or per
+ * request), so anything expensive that is derived from a domain is kept here instead.
+ * <p>
+ * Domains are stored and removed by the platform, not through this plugin, so nothing here is told about it. The
+ * caches stay fresh on their own: the model and query plan caches and the model catalog only serve an entry built from
+ * the domain instance the repository currently returns (see {@link DomainCache}), and the result and paging caches
+ * keep results only for their time to live.
+ */
+public class MetadataCaches {
+
+  private static final int DEFAULT_MODEL_CACHE_SIZE = 200;
+
+  private static final int DEFAULT_QUERY_PLAN_CACHE_SIZE = 500;
+
+  private static final int DEFAULT_RESULT_CACHE_SIZE = 100;
+
+  private static final long DEFAULT_RESULT_CACHE_MAX_BYTES = 64L * 1024 * 1024;
+
+  private static final long DEFAULT_RESULT_CACHE_TTL = 60;
+
+  private static final int DEFAULT_PAGING_CACHE_SIZE = 20;
+
+  private static final long DEFAULT_PAGING_CACHE_MAX_BYTES = 256L * 1024 * 1024;
+
+  private static final long DEFAULT_PAGING_CACHE_TTL = 300;
+
+  private static final int DEFAULT_MODEL_HISTORY_SIZE = 500;
+
+  private static MetadataCaches instance;
+
+  private final DomainCache<List<Object>, Object> modelCache;
+
+  private final DomainCache<String, QueryPlan> queryPlanCache;
+
+  private final QueryResultCache resultCache;
+
+  private final QueryResultCache pagingCache;
+
+  private final ModelCatalog modelCatalog;
+
+  private final ModelHistory modelHistory;
+
+  MetadataCaches() {
+    modelCache =
+        new DomainCache<List<Object>, Object>( MetadataSettings.getIntSetting( MetadataSettings.MODEL_CACHE_SIZE,
+            DEFAULT_MODEL_CACHE_SIZE ) );
+    queryPlanCache =
+        new DomainCache<String, QueryPlan>( MetadataSettings.getIntSetting( MetadataSettings.QUERY_PLAN_CACHE_SIZE,
+            DEFAULT_QUERY_PLAN_CACHE_SIZE ) );
+    resultCache =
+        new QueryResultCache( MetadataSettings.getBooleanSetting( MetadataSettings.RESULT_CACHE_ENABLED, false ),
+            MetadataSettings.getIntSetting( MetadataSettings.RESULT_CACHE_SIZE, DEFAULT_RESULT_CACHE_SIZE ),
+            MetadataSettings.getLongSetting( MetadataSettings.RESULT_CACHE_MAX_BYTES, DEFAULT_RESULT_CACHE_MAX_BYTES ),
+            MetadataSettings.getLongSetting( MetadataSettings.RESULT_CACHE_TTL, DEFAULT_RESULT_CACHE_TTL ) * 1000 );
+    pagingCache =
+        new QueryResultCache( true, MetadataSettings.getIntSetting( MetadataSettings.PAGING_CACHE_SIZE,
+            DEFAULT_PAGING_CACHE_SIZE ), MetadataSettings.getLongSetting( MetadataSettings.PAGING_CACHE_MAX_BYTES,
+            DEFAULT_PAGING_CACHE_MAX_BYTES ), MetadataSettings.getLongSetting( MetadataSettings.PAGING_CACHE_TTL,
+            DEFAULT_PAGING_CACHE_TTL ) * 1000 );
+    modelCatalog =
+        new ModelCatalog( MetadataSettings.getBooleanSetting( MetadataSettings.MODEL_CATALOG_ENABLED, true ) );
+    modelHistory =
+        new ModelHistory( MetadataSettings.getIntSetting( MetadataSettings.MODEL_HISTORY_SIZE,
+            DEFAULT_MODEL_HISTORY_SIZE ) );
+  }
+
+  public static synchronized MetadataCaches getInstance() {
+    if ( instance == null ) {
+      instance = new MetadataCaches();
+    }
+    return instance;
+  }
+
+  /**
+   * Returns the cache of thin models. Thin models of different types (v1 and v2) share this cache, the model class is
+   * part of the key.
+   *
+   * @return
+   */
+  public DomainCache<List<Object>, Object> getModelCache() {
+    return modelCache;
+  }
+
+  /**
+   * Returns the cache of converted queries, keyed by {@link QueryPlan#createKey(Object)}
+   *
+   * @return
+   */
+  public DomainCache<String, QueryPlan> getQueryPlanCache() {
+    return queryPlanCache;
+  }
+
+  /**
+   * Returns the cache of query results
+   *
+   * @return
+   */
+  public QueryResultCache getResultCache() {
+    return resultCache;
+  }
+
+  /**
+   * Returns the cache of the results paged through with the page methods of the services. Unlike the result cache it
+   * is always on, the next page of a result should not run the query again.
+   *
+   * @return
+   */
+  public QueryResultCache getPagingCache() {
+    return pagingCache;
+  }
+
+  /**
+   * Returns the catalog of the models of the domains, used to list the models without walking the domains
+   *
+   * @return
+   */
+  public ModelCatalog getModelCatalog() {
+    return modelCatalog;
+  }
+
+  /**
+   * Returns the versions of the thin models, used to send clients the changes to a model instead of the whole model.
+   * The history outlives the invalidation of the domains.
+   *
+   * @return
+   */
+  public ModelHistory getModelHistory() {
+    return modelHistory;
+  }
+
+  /**
+   * Returns the key of a thin model in the model cache
+   *
+   * @param type
+   *          the class of the thin model
+   * @param modelId
+   * @param locale
+   *          the locale the model was built for
+   * @return
+   */
+  static List<Object> modelKey( Class<?> type, String modelId, String locale ) {
+    return Arrays.<Object>asList( type, modelId, locale );
+  }
+
+  /**
+   * Returns the key of a part of a thin model in the model cache
+   *
+   * @param type
+   *          the class of the part
+   * @param modelId
+   * @param locale
+   *          the locale the model was built for
+   * @param part
+   *          the id of the part within the model
+   * @return
+   */
+  static List<Object> modelKey( Class<?> type, String modelId, String locale, String part ) {
+    return Arrays.<Object>asList( type, modelId, locale, part );
+  }
+
+  /**
+   * Returns the column index of a logical model. Indexes are kept in the model cache, so they are rebuilt when the
+   * domain is stored again.
+   *
+   * @param domain
+   *          the domain of the model, the index is not cached if null
+   * @param logicalModel
+   * @return
+   */
+  public LogicalModelIndex getModelIndex( Domain domain, LogicalModel logicalModel ) {
+    String domainId = domain != null ? domain.getId() : null;
+    if ( domainId == null || logicalModel.getId() == null ) {
+      return new LogicalModelIndex( logicalModel );
+    }
+    List<Object> key = modelKey( LogicalModelIndex.class, logicalModel.getId(), null );
+    Object cached = modelCache.get( domainId, domain, key );
+    if ( cached instanceof LogicalModelIndex && ( (LogicalModelIndex) cached ).getLogicalModel() == logicalModel ) {
+      return (LogicalModelIndex) cached;
+    }
+    LogicalModelIndex index = new LogicalModelIndex( logicalModel );
+    modelCache.put( domainId, domain, key, index );
+    return index;
+  }
+}
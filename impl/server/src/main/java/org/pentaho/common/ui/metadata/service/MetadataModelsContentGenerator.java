@@ -29,13 +29,14 @@ import org.pentaho.metadata.model.thin.Query;
 import org.pentaho.platform.api.engine.IParameterProvider;
 import org.pentaho.platform.engine.services.solution.SimpleContentGenerator;
 
-import flexjson.JSONDeserializer;
 import flexjson.JSONSerializer;
 
 public class MetadataModelsContentGenerator extends SimpleContentGenerator {
 
   private static final long serialVersionUID = -3934988366302705814L;
 
+  private static final ThinQueryReader<Query> QUERY_READER = new ThinQueryReader<Query>( Query.class );
+
   private Log logger = LogFactory.getLog( MetadataModelsContentGenerator.class );
 
   public static final String LIST_MODELS_ACTION = "listmodels"; //$NON-NLS-1$
@@ -63,8 +64,7 @@ public class MetadataModelsContentGenerator extends SimpleContentGenerator {
     } else if ( QUERY_ACTION.equals( action ) ) {
       String queryStr = params.getStringParameter( "query", null ); //$NON-NLS-1$
       int rowLimit = (int) params.getLongParameter( "rowlimit", -1 ); //$NON-NLS-1$
-      JSONDeserializer<Query> de = new JSONDeserializer<Query>();
-      Query query = de.deserialize( queryStr );
+      Query query = QUERY_READER.read( queryStr );
       MetadataModelsService svc = new MetadataModelsService();
       DataTable table = svc.executeQuery( query, rowLimit );
       writeJson( table, output );
@@ -0,0 +1,78 @@
+/*!
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+ */
+
+package org.pentaho.common.ui.metadata.service;
+
+import org.pentaho.metadata.model.Domain;
+import org.pentaho.metadata.model.LogicalModel;
+
+/**
+ * The MQL of a query together with the objects it was generated from. Queries that start out as thin queries already
+ * have their domain and logical model resolved, carrying them along means the MQL does not have to be parsed again to
+ * find them.
+ */
+public class MetadataQueryContext {
+
+  private final String xml;
+
+  private final Domain domain;
+
+  private final LogicalModel logicalModel;
+
+  private final String locale;
+
+  /**
+   * Creates a context and resolves the locale of the current request against the locales of the domain
+   *
+   * @param xml
+   *          the MQL of the query
+   * @param domain
+   * @param logicalModel
+   */
+  public MetadataQueryContext( String xml, Domain domain, LogicalModel logicalModel ) {
+    this.xml = xml;
+    this.domain = domain;
+    this.logicalModel = logicalModel;
+    this.locale = domain != null ? LocaleResolver.getClosestLocale( domain.getLocaleCodes() ) : null;
+  }
+
+  /**
+   * Returns the MQL of the query
+   *
+   * @return
+   */
+  public String getXml() {
+    return xml;
+  }
+
+  public Domain getDomain() {
+    return domain;
+  }
+
+  public LogicalModel getLogicalModel() {
+    return logicalModel;
+  }
+
+  /**
+   * Returns the locale of the domain closest to the locale of the request the context was created in
+   *
+   * @return
+   */
+  public String getLocale() {
+    return locale;
+  }
+}
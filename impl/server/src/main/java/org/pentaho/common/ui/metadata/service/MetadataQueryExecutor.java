@@ -0,0 +1,315 @@
+/*!
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+ */
+
+package org.pentaho.common.ui.metadata.service;
+
+import java.lang.reflect.Method;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.pentaho.commons.connection.IPentahoResultSet;
+import org.pentaho.platform.api.engine.IPentahoSession;
+import org.pentaho.platform.engine.core.system.PentahoSessionHolder;
+import org.pentaho.platform.util.messages.LocaleHelper;
+
+/**
+ * Runs metadata queries in the background so that they do not hold on to request threads. Queries run on a bounded
+ * pool, on virtual threads when the JVM has them, with the session and locale of the request that submitted them.
+ * Finished queries are kept until their result is taken, they are cancelled or they expire.
+ */
+public class MetadataQueryExecutor {
+
+  private static final int DEFAULT_THREADS = 8;
+
+  private static final int DEFAULT_QUEUE_SIZE = 100;
+
+  private static final long DEFAULT_RESULT_TTL = 300;
+
+  private static final Log logger = LogFactory.getLog( MetadataQueryExecutor.class );
+
+  private static MetadataQueryExecutor instance;
+
+  private final ThreadPoolExecutor executor;
+
+  private final ConcurrentMap<String, MetadataQueryHandle> handles =
+      new ConcurrentHashMap<String, MetadataQueryHandle>();
+
+  private final long resultTtl;
+
+  /**
+   * @param threads
+   *          the number of queries that run at the same time
+   * @param queueSize
+   *          the number of queries that may wait for a thread, more are rejected
+   * @param resultTtl
+   *          the time in milliseconds a finished query is kept
+   * @param virtualThreads
+   *          whether to run the queries on virtual threads if the JVM supports them
+   */
+  MetadataQueryExecutor( int threads, int queueSize, long resultTtl, boolean virtualThreads ) {
+    this.resultTtl = resultTtl;
+    executor =
+        new ThreadPoolExecutor( threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>( queueSize ),
+            createThreadFactory( virtualThreads ) );
+    executor.allowCoreThreadTimeOut( true );
+  }
+
+  public static synchronized MetadataQueryExecutor getInstance() {
+    if ( instance == null ) {
+      instance =
+          new MetadataQueryExecutor( Math.max( 1, MetadataSettings.getIntSetting( MetadataSettings.QUERY_THREADS,
+              DEFAULT_THREADS ) ), Math.max( 1, MetadataSettings.getIntSetting( MetadataSettings.QUERY_QUEUE_SIZE,
+              DEFAULT_QUEUE_SIZE ) ), MetadataSettings.getLongSetting( MetadataSettings.QUERY_RESULT_TTL,
+              DEFAULT_RESULT_TTL ) * 1000, MetadataSettings.getBooleanSetting( MetadataSettings.QUERY_VIRTUAL_THREADS,
+              true ) );
+    }
+    return instance;
+  }
+
+  /**
+   * Submits a query. It runs with the session and locale of the calling thread.
+   * 
+   * @param context
+   *          the query being executed
+   * @param query
+   *          executes the query, returns null if the query failed
+   * @return the handle of the query
+   * @throws RejectedExecutionException
+   *           if the queue is full
+   */
+  public MetadataQueryHandle submit( MetadataQueryContext context, final Callable<IPentahoResultSet> query ) {
+    return submit( context, query, null );
+  }
+
+  /**
+   * Submits a query that has already been admitted for the current user. The query holds the admission until it has
+   * run, it is cancelled before it runs or it cannot be submitted, and it is not admitted again on the pool thread.
+   * 
+   * @param context
+   *          the query being executed
+   * @param query
+   *          executes the query, returns null if the query failed
+   * @param admission
+   *          the controller that admitted the query, null if it has not been admitted
+   * @return the handle of the query
+   * @throws RejectedExecutionException
+   *           if the queue is full, the admission has been released
+   */
+  public MetadataQueryHandle submit( MetadataQueryContext context, final Callable<IPentahoResultSet> query,
+      final QueryAdmissionController admission ) {
+    return submit( context, query, admission, 0 );
+  }
+
+  /**
+   * Submits a query that has already been admitted, see
+   * {@link #submit(MetadataQueryContext, Callable, QueryAdmissionController)}, and whose statements are cancelled by
+   * the driver after a timeout. Cancelling a query does not stop its statement, the timeout bounds how long a
+   * cancelled query keeps running in the database.
+   * 
+   * @param context
+   *          the query being executed
+   * @param query
+   *          executes the query, returns null if the query failed
+   * @param admission
+   *          the controller that admitted the query, null if it has not been admitted
+   * @param timeout
+   *          the JDBC statement timeout in seconds, 0 or less for the timeout of the query runner
+   * @return the handle of the query
+   * @throws RejectedExecutionException
+   *           if the queue is full, the admission has been released
+   */
+  public MetadataQueryHandle submit( MetadataQueryContext context, final Callable<IPentahoResultSet> query,
+      final QueryAdmissionController admission, final int timeout ) {
+    purgeExpired();
+    final IPentahoSession session = PentahoSessionHolder.getSession();
+    final Locale locale = LocaleHelper.getLocale();
+    final MetadataQueryHandle handle =
+        new MetadataQueryHandle( UUID.randomUUID().toString(), session != null ? session.getName() : null, context );
+    if ( admission != null ) {
+      handle.setAdmissionRelease( new Runnable() {
+        public void run() {
+          admission.release( handle.getOwner() );
+        }
+      } );
+    }
+    handles.put( handle.getId(), handle );
+    try {
+      handle.setFuture( executor.submit( new Runnable() {
+        public void run() {
+          execute( handle, query, session, locale, admission, timeout );
+        }
+      } ) );
+    } catch ( RejectedExecutionException e ) {
+      handles.remove( handle.getId() );
+      handle.releaseAdmission();
+      throw e;
+    }
+    return handle;
+  }
+
+  /**
+   * Returns the handle of a query submitted by the current user. Clients poll the status of their queries through this,
+   * so the finished queries that were never taken are released here as well as on submit.
+   * 
+   * @param id
+   * @return the handle, or null if there is no such query, it has expired or it belongs to someone else
+   */
+  public MetadataQueryHandle getHandle( String id ) {
+    purgeExpired();
+    MetadataQueryHandle handle = id != null ? handles.get( id ) : null;
+    if ( handle == null ) {
+      return null;
+    }
+    IPentahoSession session = PentahoSessionHolder.getSession();
+    String user = session != null ? session.getName() : null;
+    if ( user == null ? handle.getOwner() != null : !user.equals( handle.getOwner() ) ) {
+      return null;
+    }
+    return handle;
+  }
+
+  /**
+   * Forgets a query. The result of the query is not released, the caller is expected to have taken it.
+   * 
+   * @param handle
+   */
+  public void remove( MetadataQueryHandle handle ) {
+    handles.remove( handle.getId(), handle );
+  }
+
+  /**
+   * Returns the number of queries waiting for a thread
+   * 
+   * @return
+   */
+  public int getQueueDepth() {
+    return executor.getQueue().size();
+  }
+
+  /**
+   * Returns the number of queries that are running
+   * 
+   * @return
+   */
+  public int getActiveCount() {
+    return executor.getActiveCount();
+  }
+
+  /**
+   * Returns the number of queries that have been submitted and not taken, cancelled or expired yet
+   * 
+   * @return
+   */
+  public int getHandleCount() {
+    return handles.size();
+  }
+
+  /**
+   * Stops the pool, running queries are interrupted
+   */
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  private void execute( MetadataQueryHandle handle, Callable<IPentahoResultSet> query, IPentahoSession session,
+      Locale locale, QueryAdmissionController admission, int timeout ) {
+    if ( !handle.start() ) {
+      // cancelled while it was waiting
+      handle.releaseAdmission();
+      return;
+    }
+    PentahoSessionHolder.setSession( session );
+    LocaleHelper.setLocale( locale );
+    if ( admission != null ) {
+      admission.setHeld( true );
+    }
+    if ( timeout > 0 ) {
+      MetadataQueryRunner.setThreadTimeout( timeout );
+    }
+    IPentahoResultSet result = null;
+    Throwable failure = null;
+    try {
+      result = query.call();
+    } catch ( Throwable t ) {
+      logger.error( t.getLocalizedMessage(), t );
+      failure = t;
+    } finally {
+      if ( admission != null ) {
+        admission.setHeld( false );
+      }
+      MetadataQueryRunner.setThreadTimeout( null );
+      PentahoSessionHolder.removeSession();
+      LocaleHelper.setLocale( null );
+      // free the admission before the waiting callers are woken up, they may submit the next query
+      handle.releaseAdmission();
+      handle.finish( result, failure );
+    }
+  }
+
+  private void purgeExpired() {
+    long now = System.currentTimeMillis();
+    for ( Iterator<MetadataQueryHandle> it = handles.values().iterator(); it.hasNext(); ) {
+      MetadataQueryHandle handle = it.next();
+      if ( handle.isExpired( now, resultTtl ) ) {
+        it.remove();
+        handle.release();
+      }
+    }
+  }
+
+  /**
+   * Creates the factory of the query threads. Virtual threads are looked up reflectively, this code still has to run
+   * on JVMs that do not have them.
+   * 
+   * @param virtualThreads
+   * @return
+   */
+  static ThreadFactory createThreadFactory( boolean virtualThreads ) {
+    if ( virtualThreads ) {
+      try {
+        Object builder = Thread.class.getMethod( "ofVirtual" ).invoke( null ); //$NON-NLS-1$
+        Class<?> builderClass = Class.forName( "java.lang.Thread$Builder" ); //$NON-NLS-1$
+        Method name = builderClass.getMethod( "name", String.class, long.class ); //$NON-NLS-1$
+        builder = name.invoke( builder, "metadata-query-", 0L ); //$NON-NLS-1$
+        return (ThreadFactory) builderClass.getMethod( "factory" ).invoke( builder ); //$NON-NLS-1$
+      } catch ( Exception e ) {
+        // not available (or a preview feature) in this JVM
+        logger.debug( "Virtual threads are not available, using platform threads" ); //$NON-NLS-1$
+      }
+    }
+    final AtomicInteger count = new AtomicInteger();
+    return new ThreadFactory() {
+      public Thread newThread( Runnable r ) {
+        Thread thread = new Thread( r, "metadata-query-" + count.getAndIncrement() ); //$NON-NLS-1$
+        thread.setDaemon( true );
+        return thread;
+      }
+    };
+  }
+}
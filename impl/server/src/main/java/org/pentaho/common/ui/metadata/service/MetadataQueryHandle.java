@@ -0,0 +1,261 @@
+/*!
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+ */
+
+package org.pentaho.common.ui.metadata.service;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.pentaho.commons.connection.IPentahoResultSet;
+
+/**
+ * A query submitted to the {@link MetadataQueryExecutor}. The handle is used to poll the state of the query, to wait
+ * for its result and to cancel it.
+ */
+public class MetadataQueryHandle {
+
+  public enum Status {
+    QUEUED, RUNNING, DONE, FAILED, CANCELLED
+  }
+
+  private final String id;
+
+  private final String owner;
+
+  private final MetadataQueryContext context;
+
+  private final long submitTime = System.currentTimeMillis();
+
+  private final CountDownLatch finished = new CountDownLatch( 1 );
+
+  private Status status = Status.QUEUED;
+
+  private Future<?> future;
+
+  private IPentahoResultSet resultSet;
+
+  private Throwable error;
+
+  private long finishTime;
+
+  // gives back the admission the query was submitted with, null once it has been given back
+  private Runnable admissionRelease;
+
+  MetadataQueryHandle( String id, String owner, MetadataQueryContext context ) {
+    this.id = id;
+    this.owner = owner;
+    this.context = context;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  /**
+   * Returns the name of the user that submitted the query, null if there was no session
+   * 
+   * @return
+   */
+  public String getOwner() {
+    return owner;
+  }
+
+  public MetadataQueryContext getContext() {
+    return context;
+  }
+
+  public long getSubmitTime() {
+    return submitTime;
+  }
+
+  public synchronized Status getStatus() {
+    return status;
+  }
+
+  /**
+   * Returns the error the query failed with, if any
+   * 
+   * @return
+   */
+  public synchronized Throwable getError() {
+    return error;
+  }
+
+  /**
+   * Returns the result of the query, or null if the query has not finished successfully
+   * 
+   * @return
+   */
+  public synchronized IPentahoResultSet getResultSet() {
+    return status == Status.DONE ? resultSet : null;
+  }
+
+  /**
+   * Waits for the query to finish
+   * 
+   * @param timeout
+   *          the maximum time to wait in milliseconds, 0 or less does not wait
+   * @return true if the query has finished, failed or was cancelled
+   * @throws InterruptedException
+   */
+  public boolean await( long timeout ) throws InterruptedException {
+    return finished.await( Math.max( 0, timeout ), TimeUnit.MILLISECONDS );
+  }
+
+  /**
+   * Cancels the query. A queued query will not be run, a running query is interrupted and its result is discarded, the
+   * result of a finished query is released. The platform's query component does not expose the JDBC statement of a
+   * running query, so the statement itself is only stopped by the driver once the timeout of submitted queries
+   * (metadata-async-query-timeout) has passed.
+   * 
+   * @return false if the query had already failed or been cancelled
+   */
+  public boolean cancel() {
+    Future<?> running = null;
+    IPentahoResultSet result = null;
+    synchronized ( this ) {
+      if ( status == Status.FAILED || status == Status.CANCELLED ) {
+        return false;
+      }
+      if ( status == Status.RUNNING ) {
+        running = future;
+      } else if ( status == Status.DONE ) {
+        result = resultSet;
+        resultSet = null;
+      } else if ( future != null ) {
+        // still queued, it will be skipped if it is picked up anyway
+        future.cancel( false );
+      }
+      setFinished( Status.CANCELLED );
+    }
+    if ( running != null ) {
+      // the worker closes the result when the query comes back
+      running.cancel( true );
+    } else {
+      // a queued query will not run, its admission is free again
+      releaseAdmission();
+    }
+    close( result );
+    return true;
+  }
+
+  /**
+   * Releases the result of the query
+   */
+  void release() {
+    IPentahoResultSet result;
+    synchronized ( this ) {
+      result = resultSet;
+      resultSet = null;
+    }
+    close( result );
+  }
+
+  /**
+   * Forgets the result without closing it, it has been handed to the caller
+   */
+  synchronized void setResultTaken() {
+    resultSet = null;
+  }
+
+  /**
+   * Sets what gives back the admission the query was submitted with, see {@link #releaseAdmission()}
+   * 
+   * @param release
+   */
+  synchronized void setAdmissionRelease( Runnable release ) {
+    this.admissionRelease = release;
+  }
+
+  /**
+   * Gives back the admission the query was submitted with, once: when it has run, when it has been cancelled before it
+   * ran or when it could not be submitted
+   */
+  void releaseAdmission() {
+    Runnable release;
+    synchronized ( this ) {
+      release = admissionRelease;
+      admissionRelease = null;
+    }
+    if ( release != null ) {
+      release.run();
+    }
+  }
+
+  synchronized void setFuture( Future<?> future ) {
+    this.future = future;
+  }
+
+  /**
+   * Moves the query to the running state
+   * 
+   * @return false if the query has been cancelled while it was queued
+   */
+  synchronized boolean start() {
+    if ( status != Status.QUEUED ) {
+      return false;
+    }
+    status = Status.RUNNING;
+    return true;
+  }
+
+  /**
+   * Records the result of the query. The result is closed if the query has been cancelled in the meantime.
+   * 
+   * @param result
+   * @param failure
+   */
+  void finish( IPentahoResultSet result, Throwable failure ) {
+    synchronized ( this ) {
+      if ( status == Status.RUNNING ) {
+        if ( result != null ) {
+          resultSet = result;
+          setFinished( Status.DONE );
+          return;
+        }
+        error = failure;
+        setFinished( Status.FAILED );
+      }
+    }
+    close( result );
+  }
+
+  /**
+   * Determines whether the query finished longer ago than the given time
+   * 
+   * @param now
+   * @param ttl
+   *          in milliseconds
+   * @return
+   */
+  synchronized boolean isExpired( long now, long ttl ) {
+    return finishTime > 0 && now - finishTime > ttl;
+  }
+
+  private void setFinished( Status finalStatus ) {
+    status = finalStatus;
+    finishTime = System.currentTimeMillis();
+    finished.countDown();
+  }
+
+  private static void close( IPentahoResultSet result ) {
+    if ( result != null ) {
+      result.close();
+    }
+  }
+}
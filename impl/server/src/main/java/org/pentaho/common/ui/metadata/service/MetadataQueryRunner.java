@@ -0,0 +1,155 @@
+/*!
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+ */
+
+package org.pentaho.common.ui.metadata.service;
+
+import java.util.concurrent.Callable;
+
+import org.pentaho.commons.connection.IPentahoResultSet;
+import org.pentaho.platform.api.engine.IPentahoSession;
+import org.pentaho.platform.engine.core.system.PentahoSessionHolder;
+import org.pentaho.platform.plugin.action.pentahometadata.MetadataQueryComponent;
+
+/**
+ * Executes the MQL queries of both versions of the metadata service: identical queries share their results through the
+ * result cache, the number of queries running at the same time is limited by the admission controller and the
+ * statements are given the query timeout.
+ */
+class MetadataQueryRunner {
+
+  // the timeout of the statements run by the current thread, set by the query executor for submitted queries
+  private static final ThreadLocal<Integer> threadTimeout = new ThreadLocal<Integer>();
+
+  private final QueryAdmissionController admission;
+
+  private final QueryResultCache resultCache;
+
+  private final int timeout;
+
+  /**
+   * @param admission
+   * @param resultCache
+   * @param timeout
+   *          the JDBC statement timeout in seconds, 0 or less for no timeout
+   */
+  MetadataQueryRunner( QueryAdmissionController admission, QueryResultCache resultCache, int timeout ) {
+    this.admission = admission;
+    this.resultCache = resultCache;
+    this.timeout = timeout;
+  }
+
+  /**
+   * Executes a XML query, or returns the result of an identical query of the same user if the result cache has one
+   * 
+   * @param query
+   * @param rowLimit
+   *          An optional row limit, -1 or null means all rows
+   * @return the result, or null if the query failed
+   * @throws QueryRejectedException
+   *           if the query was not admitted
+   */
+  IPentahoResultSet execute( final String query, final Integer rowLimit ) {
+    if ( !resultCache.isEnabled() ) {
+      return run( query, rowLimit );
+    }
+    IPentahoSession session = PentahoSessionHolder.getSession();
+    return resultCache.get( query, rowLimit, session != null ? session.getName() : null,
+        new Callable<IPentahoResultSet>() {
+          public IPentahoResultSet call() {
+            return run( query, rowLimit );
+          }
+        } );
+  }
+
+  /**
+   * Executes a XML query against the database once it is admitted. A query that was admitted before it was handed to
+   * the current thread (see {@link QueryAdmissionController#isHeld()}) runs right away.
+   * 
+   * @param query
+   * @param rowLimit
+   *          An optional row limit, -1 or null means all rows
+   * @return the result, or null if the query failed
+   * @throws QueryRejectedException
+   *           if the query was not admitted
+   */
+  IPentahoResultSet run( String query, Integer rowLimit ) {
+    if ( admission.isHeld() ) {
+      return runAdmitted( query, rowLimit );
+    }
+    // wait for our turn, the number of queries running at the same time is limited
+    IPentahoSession session = PentahoSessionHolder.getSession();
+    String user = session != null ? session.getName() : null;
+    try {
+      if ( !admission.acquire( user ) ) {
+        throw new QueryRejectedException();
+      }
+    } catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+    try {
+      return runAdmitted( query, rowLimit );
+    } finally {
+      admission.release( user );
+    }
+  }
+
+  /**
+   * Sets the timeout of the statements run by the current thread, in place of the timeout of the runner
+   * 
+   * @param seconds
+   *          the JDBC statement timeout in seconds, null to use the timeout of the runner again
+   */
+  static void setThreadTimeout( Integer seconds ) {
+    if ( seconds == null ) {
+      threadTimeout.remove();
+    } else {
+      threadTimeout.set( seconds );
+    }
+  }
+
+  /**
+   * Returns the timeout of the statements run by the current thread
+   * 
+   * @return the timeout in seconds, or null if the thread uses the timeout of the runner
+   */
+  static Integer getThreadTimeout() {
+    return threadTimeout.get();
+  }
+
+  private IPentahoResultSet runAdmitted( String query, Integer rowLimit ) {
+    // create a component to execute the query
+    MetadataQueryComponent dataComponent = new MetadataQueryComponent();
+    dataComponent.setQuery( query );
+    dataComponent.setLive( false );
+    dataComponent.setUseForwardOnlyResultSet( true );
+    if ( rowLimit != null && rowLimit > -1 ) {
+      // set the row limit
+      dataComponent.setMaxRows( rowLimit );
+    }
+    Integer seconds = threadTimeout.get();
+    int statementTimeout = seconds != null ? seconds : timeout;
+    if ( statementTimeout > 0 ) {
+      // the statement is cancelled by the driver when the query takes longer
+      dataComponent.setTimeout( statementTimeout );
+    }
+    if ( dataComponent.execute() ) {
+      return dataComponent.getResultSet();
+    }
+    return null;
+  }
+}
@@ -17,16 +17,33 @@
 
 package org.pentaho.common.ui.metadata.service;
 
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringEscapeUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.json.JSONArray;
 import org.json.JSONException;
+import org.json.JSONObject;
 import org.pentaho.common.ui.messages.Messages;
+import org.pentaho.common.ui.metadata.model.impl.Category;
 import org.pentaho.common.ui.metadata.model.impl.Model;
+import org.pentaho.common.ui.metadata.model.impl.ModelDelta;
 import org.pentaho.common.ui.metadata.model.impl.ModelInfo;
 import org.pentaho.common.ui.metadata.model.impl.ModelInfoComparator;
 import org.pentaho.common.ui.metadata.model.impl.Query;
@@ -37,11 +54,10 @@ import org.pentaho.metadata.model.LogicalModel;
 import org.pentaho.metadata.query.model.util.QueryXmlHelper;
 import org.pentaho.metadata.repository.IMetadataDomainRepository;
 import org.pentaho.platform.api.engine.ILogger;
+import org.pentaho.platform.api.engine.IPentahoSession;
 import org.pentaho.platform.engine.core.system.PentahoBase;
 import org.pentaho.platform.engine.core.system.PentahoSessionHolder;
 import org.pentaho.platform.engine.core.system.PentahoSystem;
-import org.pentaho.platform.plugin.action.pentahometadata.MetadataQueryComponent;
-import org.pentaho.platform.util.messages.LocaleHelper;
 import org.pentaho.pms.core.exception.PentahoMetadataException;
 
 import flexjson.JSONSerializer;
@@ -57,6 +73,17 @@ public class MetadataService extends PentahoBase {
 
   private static final long serialVersionUID = 8481450224870463494L;
 
+  // the part of the model cache key of a model outline
+  private static final String MODEL_OUTLINE = "outline"; //$NON-NLS-1$
+
+  // seconds after which the driver cancels the statement of a submitted query, see getAsyncQueryTimeout()
+  static final int DEFAULT_ASYNC_QUERY_TIMEOUT = 300;
+
+  // rows of a paged result, all of them are kept in the paging cache
+  static final int DEFAULT_PAGING_MAX_ROWS = 100000;
+
+  private static final Pattern DOMAIN_ID_PATTERN = Pattern.compile( "<domain_id>([^<]*)</domain_id>" ); //$NON-NLS-1$
+
   private Log logger = LogFactory.getLog( MetadataService.class );
 
   private MetadataServiceUtil util = new MetadataServiceUtil();
@@ -77,7 +104,7 @@ public class MetadataService extends PentahoBase {
    * @return list of ModelInfo objects representing the available models
    * @throws IOException
    */
-  public ModelInfo[] listBusinessModels( String domainName, String context ) throws IOException {
+  public ModelInfo[] listBusinessModels( String domainName, final String context ) throws IOException {
 
     List<ModelInfo> models = new ArrayList<ModelInfo>();
 
@@ -90,10 +117,12 @@ public class MetadataService extends PentahoBase {
 
     try {
       if ( StringUtils.isEmpty( domainName ) ) {
-        // if no domain has been specified, loop over all of them
-        for ( String domain : repo.getDomainIds() ) {
-          getModelInfos( domain, context, models );
-        }
+        // if no domain has been specified, scan all of them, several at a time
+        getDomainScanner().scan( repo.getDomainIds(), new DomainScanner.Task<ModelInfo>() {
+          public void scan( String domain, List<ModelInfo> found ) {
+            getModelInfos( domain, context, found );
+          }
+        }, models );
       } else {
         // get the models for the specified domain
         getModelInfos( domainName, context, models );
@@ -137,6 +166,25 @@ public class MetadataService extends PentahoBase {
 
     IMetadataDomainRepository repo = getMetadataRepository();
 
+    ModelCatalog catalog = getModelCatalog();
+    if ( catalog.isEnabled() ) {
+      // the catalog knows the models of the domain; the repository still checks that the domain may be read
+      ModelCatalog.Entry entry = catalog.getEntry( domain, repo );
+      if ( entry == null ) {
+        // the domain does not exist
+        return;
+      }
+      String locale = LocaleResolver.getClosestLocale( entry.getLocaleCodes() );
+      if ( entry.hasLocale( locale ) ) {
+        // only the models visible in the context are visited
+        for ( ModelCatalog.Model model : entry.getVisibleModels( context ) ) {
+          models.add( createModelInfo( domain, model.getId(), model.getName( locale ), model.hasDescription(), model
+              .getDescription( locale ) ) );
+        }
+        return;
+      }
+    }
+
     Domain domainObject = repo.getDomain( domain );
     if ( domainObject == null ) {
       // the domain does not exist
@@ -144,40 +192,49 @@ public class MetadataService extends PentahoBase {
     }
 
     // find the best locale
-    String locale = LocaleHelper.getClosestLocale( LocaleHelper.getLocale().toString(), domainObject.getLocaleCodes() );
+    String locale = LocaleResolver.getClosestLocale( domainObject.getLocaleCodes() );
 
     // iterate over all of the models in this domain
     for ( LogicalModel model : domainObject.getLogicalModels() ) {
-      String vis = (String) model.getProperty( "visible" );
-      if ( vis != null ) {
-        String[] visibleContexts = vis.split( "," );
-        boolean visibleToContext = false;
-        for ( String c : visibleContexts ) {
-          if ( c.equals( context ) ) {
-            visibleToContext = true;
-            break;
-          }
-        }
-        if ( !visibleToContext ) {
-          continue;
-        }
+      if ( !isVisible( (String) model.getProperty( "visible" ), context ) ) {
+        continue;
       }
-      // create a new ModelInfo object and give it the envelope information about the model
-      ModelInfo modelInfo = new ModelInfo();
-      modelInfo.setDomainId( domain );
-      modelInfo.setModelId( model.getId() );
-      modelInfo.setModelName( model.getName( locale ).replaceAll( "<", "&lt;" ).replaceAll( ">", "&gt;" )  );
-      if ( model.getDescription() != null ) {
-        String modelDescription = model.getDescription( locale );
-        modelInfo.setModelDescription( modelDescription );
-      }
-      models.add( modelInfo );
+      boolean hasDescription = model.getDescription() != null;
+      models.add( createModelInfo( domain, model.getId(), model.getName( locale ), hasDescription,
+          hasDescription ? model.getDescription( locale ) : null ) );
     }
     return;
   }
 
+  private boolean isVisible( String vis, String context ) {
+    if ( vis == null ) {
+      return true;
+    }
+    String[] visibleContexts = vis.split( "," );
+    for ( String c : visibleContexts ) {
+      if ( c.equals( context ) ) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private ModelInfo createModelInfo( String domain, String modelId, String name, boolean hasDescription,
+      String description ) {
+    // create a new ModelInfo object and give it the envelope information about the model
+    ModelInfo modelInfo = new ModelInfo();
+    modelInfo.setDomainId( domain );
+    modelInfo.setModelId( modelId );
+    modelInfo.setModelName( name.replaceAll( "<", "&lt;" ).replaceAll( ">", "&gt;" )  );
+    if ( hasDescription ) {
+      modelInfo.setModelDescription( description );
+    }
+    return modelInfo;
+  }
+
   /**
    * Returns a Model object for the requested model. The model will include the basic metadata - categories and columns.
+   * Models are shared between callers through the model cache and must not be modified.
    * 
    * @param domainId
    * @param modelId
@@ -198,12 +255,34 @@ public class MetadataService extends PentahoBase {
     }
 
     // because it's lighter weight, check the thin model
-    Domain domain = getMetadataRepository().getDomain( domainId );
+    return loadModel( domainId, modelId, getMetadataRepository().getDomain( domainId ) );
+  }
+
+  /**
+   * Returns the thin model of a domain the caller has already looked up, see {@link #loadModel(String, String)}
+   * 
+   * @param domainId
+   * @param modelId
+   * @param domain
+   *          the domain as returned by the repository, null if it was not found
+   * @return
+   */
+  Model loadModel( String domainId, String modelId, Domain domain ) {
+    DomainCache<List<Object>, Object> modelCache = getModelCache();
     if ( domain == null ) {
+      modelCache.invalidate( domainId );
       error( Messages.getErrorString( "MetadataService.ERROR_0005_DOMAIN_NOT_FOUND", domainId ) ); //$NON-NLS-1$
       return null;
     }
 
+    // models are cached per locale, the names and descriptions are localized
+    String locale = LocaleResolver.getClosestLocale( domain.getLocaleCodes() );
+    List<Object> cacheKey = MetadataCaches.modelKey( Model.class, modelId, locale );
+    Object cached = modelCache.get( domainId, domain, cacheKey );
+    if ( cached instanceof Model ) {
+      return (Model) cached;
+    }
+
     LogicalModel model = domain.findLogicalModel( modelId );
 
     if ( model == null ) {
@@ -214,8 +293,8 @@ public class MetadataService extends PentahoBase {
 
     // create the thin metadata model and return it
     MetadataServiceUtil util = getMetadataServiceUtil();
-    util.setDomain( domain );
-    Model thinModel = util.createThinModel( model, domainId );
+    Model thinModel = util.createThinModel( model, domainId, locale );
+    modelCache.put( domainId, domain, cacheKey, thinModel );
     return thinModel;
 
   }
@@ -229,11 +308,196 @@ public class MetadataService extends PentahoBase {
    * @return JSON string of the model
    */
   public String loadModelJson( String domainId, String modelId ) {
+    return loadModelJsonSnapshot( domainId, modelId ).toString();
+  }
+
+  /**
+   * Returns the serialized JSON of the requested model. When snapshots are enabled the serialized form is kept in the
+   * model cache, so callers that can write bytes (and honor entity tags) do not serialize the model again.
+   * 
+   * @param domainId
+   * @param modelId
+   * @return the JSON snapshot of the model
+   */
+  public ModelJsonSnapshot loadModelJsonSnapshot( String domainId, String modelId ) {
+    Domain domain = null;
+    boolean resolved = false;
+    List<Object> cacheKey = null;
+    if ( domainId != null && modelId != null && isModelJsonSnapshots() ) {
+      domain = getMetadataRepository().getDomain( domainId );
+      resolved = true;
+      if ( domain != null ) {
+        String locale = LocaleResolver.getClosestLocale( domain.getLocaleCodes() );
+        cacheKey = MetadataCaches.modelKey( ModelJsonSnapshot.class, modelId, locale );
+        Object cached = getModelCache().get( domainId, domain, cacheKey );
+        if ( cached instanceof ModelJsonSnapshot ) {
+          return (ModelJsonSnapshot) cached;
+        }
+      }
+    }
+
+    // on a miss the domain is passed down instead of being looked up again
+    Model model = resolved ? loadModel( domainId, modelId, domain ) : loadModel( domainId, modelId );
+    JSONSerializer serializer = new JSONSerializer();
+    ModelJsonSnapshot snapshot = new ModelJsonSnapshot( serializer.deepSerialize( model ) );
+    if ( cacheKey != null && model != null ) {
+      getModelCache().put( domainId, domain, cacheKey, snapshot );
+    }
+    return snapshot;
+  }
+
+  /**
+   * Returns the entity tag of the JSON of the requested model, allowing clients to check whether their copy is current
+   * without downloading the model again. Without its quotes the tag is the version token of the model, see
+   * {@link #loadModelDelta(String, String, String)}.
+   * 
+   * @param domainId
+   * @param modelId
+   * @return the quoted entity tag
+   */
+  public String getModelJsonETag( String domainId, String modelId ) {
+    return loadModelJsonSnapshot( domainId, modelId ).getETag();
+  }
 
+  /**
+   * Returns the changes to the requested model since a version the client has, so a client can bring its copy up to
+   * date without loading the whole model again. The delta is complete if the version is not known, or null if the
+   * model cannot be loaded.
+   * 
+   * @param domainId
+   * @param modelId
+   * @param version
+   *          the version token of the client's copy, see {@link ModelJsonSnapshot#getVersion()}
+   * @return
+   */
+  public ModelDelta loadModelDelta( String domainId, String modelId, String version ) {
     Model model = loadModel( domainId, modelId );
+    if ( model == null ) {
+      return null;
+    }
+    // the model is only versioned here, from its JSON snapshot which is usually cached already
+    String current = loadModelJsonSnapshot( domainId, modelId ).getVersion();
+    return getModelHistory().getDelta( model, current, version );
+  }
+
+  /**
+   * Returns a JSON ModelDelta object with the changes to the requested model since a version, see
+   * {@link #loadModelDelta(String, String, String)}
+   * 
+   * @param domainId
+   * @param modelId
+   * @param version
+   * @return JSON string of the delta
+   */
+  public String loadModelDeltaJson( String domainId, String modelId, String version ) {
     JSONSerializer serializer = new JSONSerializer();
-    String json = serializer.deepSerialize( model );
-    return json;
+    return serializer.deepSerialize( loadModelDelta( domainId, modelId, version ) );
+  }
+
+  /**
+   * Returns the outline of the requested model: its categories with their column counts, but without their columns.
+   * This is enough to show the collapsed category tree, the columns of a category are loaded with
+   * {@link #loadCategory(String, String, String)} when it is expanded.
+   * 
+   * @param domainId
+   * @param modelId
+   * @return
+   */
+  public Model loadModelOutline( String domainId, String modelId ) {
+    return (Model) loadModelPart( domainId, modelId, null );
+  }
+
+  /**
+   * Returns a JSON Model object with the outline of the requested model, see {@link #loadModelOutline(String, String)}
+   * 
+   * @param domainId
+   * @param modelId
+   * @return JSON string of the model outline
+   */
+  public String loadModelOutlineJson( String domainId, String modelId ) {
+    JSONSerializer serializer = new JSONSerializer();
+    return serializer.deepSerialize( loadModelOutline( domainId, modelId ) );
+  }
+
+  /**
+   * Returns a category of the requested model, including its columns
+   * 
+   * @param domainId
+   * @param modelId
+   * @param categoryId
+   * @return
+   */
+  public Category loadCategory( String domainId, String modelId, String categoryId ) {
+    if ( categoryId == null ) {
+      error( Messages.getErrorString( "MetadataService.ERROR_0012_CATEGORY_NOT_FOUND", categoryId ) ); //$NON-NLS-1$
+      return null;
+    }
+    return (Category) loadModelPart( domainId, modelId, categoryId );
+  }
+
+  /**
+   * Returns a JSON Category object for a category of the requested model, including its columns
+   * 
+   * @param domainId
+   * @param modelId
+   * @param categoryId
+   * @return JSON string of the category
+   */
+  public String loadCategoryJson( String domainId, String modelId, String categoryId ) {
+    JSONSerializer serializer = new JSONSerializer();
+    return serializer.deepSerialize( loadCategory( domainId, modelId, categoryId ) );
+  }
+
+  /**
+   * Returns the outline of a model, or a category with its columns if a category id is given. Like the thin models the
+   * parts are shared between callers through the model cache.
+   */
+  private Object loadModelPart( String domainId, String modelId, String categoryId ) {
+    if ( domainId == null ) {
+      error( Messages.getErrorString( "MetadataService.ERROR_0003_NULL_DOMAIN" ) ); //$NON-NLS-1$
+      return null;
+    }
+    if ( modelId == null ) {
+      error( Messages.getErrorString( "MetadataService.ERROR_0004_NULL_Model" ) ); //$NON-NLS-1$
+      return null;
+    }
+
+    Domain domain = getMetadataRepository().getDomain( domainId );
+    DomainCache<List<Object>, Object> modelCache = getModelCache();
+    if ( domain == null ) {
+      modelCache.invalidate( domainId );
+      error( Messages.getErrorString( "MetadataService.ERROR_0005_DOMAIN_NOT_FOUND", domainId ) ); //$NON-NLS-1$
+      return null;
+    }
+
+    String locale = LocaleResolver.getClosestLocale( domain.getLocaleCodes() );
+    List<Object> cacheKey =
+        categoryId == null ? MetadataCaches.modelKey( Model.class, modelId, locale, MODEL_OUTLINE ) : MetadataCaches
+            .modelKey( Category.class, modelId, locale, categoryId );
+    Object cached = modelCache.get( domainId, domain, cacheKey );
+    if ( cached != null ) {
+      return cached;
+    }
+
+    LogicalModel model = domain.findLogicalModel( modelId );
+    if ( model == null ) {
+      error( Messages.getErrorString( "MetadataService.ERROR_0006_MODEL_NOT_FOUND", modelId ) ); //$NON-NLS-1$
+      return null;
+    }
+
+    MetadataServiceUtil util = getMetadataServiceUtil();
+    Object part;
+    if ( categoryId == null ) {
+      part = util.createThinModelOutline( model, domainId, locale );
+    } else {
+      part = util.createThinCategory( model, categoryId, locale );
+      if ( part == null ) {
+        error( Messages.getErrorString( "MetadataService.ERROR_0012_CATEGORY_NOT_FOUND", categoryId ) ); //$NON-NLS-1$
+        return null;
+      }
+    }
+    modelCache.put( domainId, domain, cacheKey, part );
+    return part;
   }
 
   /**
@@ -304,8 +568,7 @@ public class MetadataService extends PentahoBase {
     try {
       MetadataServiceUtil2 util = getMetadataServiceUtil2();
       Domain domain = util.getDomainObject( xml );
-      util.setDomain( domain );
-      String locale = LocaleHelper.getClosestLocale( LocaleHelper.getLocale().toString(), domain.getLocaleCodes() );
+      String locale = LocaleResolver.getClosestLocale( domain.getLocaleCodes() );
       json = util.createCdaJson( resultSet, locale );
     } catch ( JSONException e ) {
       error( Messages.getErrorString( "MetadataService.ERROR_0007_JSON_ERROR" ), e ); //$NON-NLS-1$
@@ -315,6 +578,37 @@ public class MetadataService extends PentahoBase {
     return json;
   }
 
+  /**
+   * Executes a XML query and writes a CDA compatible JSON serialization of the result set to a stream. The rows are
+   * written as they are read, so no JSON copy of the result is built, but the result set is read into memory by the
+   * query (see {@link CdaJsonWriter}). If an error occurs after the first bytes have been written the output is
+   * incomplete.
+   * 
+   * @param xml
+   * @param rowLimit
+   * @param output
+   * @return false if the query could not be executed or serialized
+   * @throws IOException
+   */
+  public boolean writeXmlQueryToCdaJson( String xml, int rowLimit, OutputStream output ) throws IOException {
+    IPentahoResultSet resultSet = executeQuery( xml, rowLimit );
+    if ( resultSet == null ) {
+      return false;
+    }
+    try {
+      MetadataServiceUtil2 util = getMetadataServiceUtil2();
+      Domain domain = util.getDomainObject( xml );
+      String locale = LocaleResolver.getClosestLocale( domain.getLocaleCodes() );
+      util.writeCdaJson( resultSet, locale, output );
+      return true;
+    } catch ( JSONException e ) {
+      error( Messages.getErrorString( "MetadataService.ERROR_0007_JSON_ERROR" ), e ); //$NON-NLS-1$
+    } catch ( PentahoMetadataException e ) {
+      error( Messages.getErrorString( "MetadataService.ERROR_0007_BAD_QUERY_DOMAIN" ), e ); //$NON-NLS-1$
+    }
+    return false;
+  }
+
   /**
    * Executes a XML query and returns a serializable result set
    * 
@@ -349,94 +643,846 @@ public class MetadataService extends PentahoBase {
    * @return
    */
   public String doJsonQueryToCdaJson( String json, int rowLimit ) {
-    // return the results
-    return doXmlQueryToCdaJson( getQueryXmlFromJson( json ), rowLimit );
+    MetadataQueryContext context = getQueryContextFromJson( json );
+    if ( context == null ) {
+      return null;
+    }
+    // the domain is already known, the MQL does not need to be parsed again
+    IPentahoResultSet resultSet = executeQuery( context.getXml(), rowLimit );
+    if ( resultSet == null ) {
+      return null;
+    }
+    try {
+      return getMetadataServiceUtil2().createCdaJson( resultSet, context.getLocale() );
+    } catch ( JSONException e ) {
+      error( Messages.getErrorString( "MetadataService.ERROR_0007_JSON_ERROR" ), e ); //$NON-NLS-1$
+    }
+    return null;
   }
 
   /**
-   * Executes a XML query and returns a native result set
+   * Executes a JSON query and writes a CDA compatible JSON serialization of the result set to a stream
    * 
-   * @param query
+   * @param json
    * @param rowLimit
-   *          An optional row limit, -1 or null means all rows
-   * @return
+   * @param output
+   * @return false if the query could not be executed or serialized
+   * @throws IOException
    */
-  protected IPentahoResultSet executeQuery( String query, Integer rowLimit ) {
-    // create a component to execute the query
-    MetadataQueryComponent dataComponent = new MetadataQueryComponent();
-    dataComponent.setQuery( query );
-    dataComponent.setLive( false );
-    dataComponent.setUseForwardOnlyResultSet( true );
-    if ( rowLimit != null && rowLimit > -1 ) {
-      // set the row limit
-      dataComponent.setMaxRows( rowLimit );
+  public boolean writeJsonQueryToCdaJson( String json, int rowLimit, OutputStream output ) throws IOException {
+    MetadataQueryContext context = getQueryContextFromJson( json );
+    if ( context == null ) {
+      return false;
     }
-    if ( dataComponent.execute() ) {
-      return dataComponent.getResultSet();
+    IPentahoResultSet resultSet = executeQuery( context.getXml(), rowLimit );
+    if ( resultSet == null ) {
+      return false;
     }
-    return null;
+    try {
+      getMetadataServiceUtil2().writeCdaJson( resultSet, context.getLocale(), output );
+      return true;
+    } catch ( JSONException e ) {
+      error( Messages.getErrorString( "MetadataService.ERROR_0007_JSON_ERROR" ), e ); //$NON-NLS-1$
+    }
+    return false;
   }
 
   /**
-   * Converts a JSON query into a full Query object by going via a thin Query object
+   * Executes a JSON query and returns the result set in the columnar binary form of {@link ColumnarResultWriter}.
+   * Numeric results are much smaller and faster to produce than the CDA JSON of {@link #doJsonQueryToCdaJson}.
    * 
    * @param json
+   * @param rowLimit
    * @return
    */
-  protected String getQueryXmlFromJson( String json ) {
-    MetadataServiceUtil util = getMetadataServiceUtil();
-    Query query = util.deserializeJsonQuery( json );
-    try {
-      // convert the thin query model into a full one
-      org.pentaho.metadata.query.model.Query fullQuery = util.convertQuery( query );
-
-      // get the XML for the query
-      QueryXmlHelper helper = getHelper();
-      String xml = helper.toXML( fullQuery );
-      return xml;
-    } catch ( Exception e ) {
-      error( Messages.getErrorString( "MetadataService.ERROR_0008_BAD_QUERY" ), e ); //$NON-NLS-1$
+  public byte[] doJsonQueryToColumnar( String json, int rowLimit ) {
+    MetadataQueryContext context = getQueryContextFromJson( json );
+    if ( context == null ) {
+      return null;
     }
-    return null;
+    IPentahoResultSet resultSet = executeQuery( context.getXml(), rowLimit );
+    if ( resultSet == null ) {
+      return null;
+    }
+    return getMetadataServiceUtil2().createColumnar( resultSet, context.getLocale() );
   }
 
   /**
-   * Returns a instance of the IMetadataDomainRepository for the current session
+   * Executes a JSON query and writes the result set to a stream in the columnar binary form of
+   * {@link ColumnarResultWriter}
    * 
-   * @return
+   * @param json
+   * @param rowLimit
+   * @param output
+   * @return false if the query could not be executed
+   * @throws IOException
    */
-  protected IMetadataDomainRepository getMetadataRepository() {
-    IMetadataDomainRepository mdr =
-        PentahoSystem.get( IMetadataDomainRepository.class, PentahoSessionHolder.getSession() );
-    if ( mdr instanceof ILogger ) {
-      ( (ILogger) mdr ).setLoggingLevel( getLoggingLevel() );
+  public boolean writeJsonQueryToColumnar( String json, int rowLimit, OutputStream output ) throws IOException {
+    MetadataQueryContext context = getQueryContextFromJson( json );
+    if ( context == null ) {
+      return false;
     }
-    return mdr;
-  }
-
-  @Override
-  public Log getLogger() {
-    return logger;
+    IPentahoResultSet resultSet = executeQuery( context.getXml(), rowLimit );
+    if ( resultSet == null ) {
+      return false;
+    }
+    getMetadataServiceUtil2().writeColumnar( resultSet, context.getLocale(), output );
+    return true;
   }
 
   /**
-   * package-local visibility for testing purposes
+   * Executes a XML query and writes the result set to a stream in the columnar binary form of
+   * {@link ColumnarResultWriter}
+   * 
+   * @param xml
+   * @param rowLimit
+   * @param output
+   * @return false if the query could not be executed
+   * @throws IOException
    */
-  MetadataServiceUtil getMetadataServiceUtil() {
-    return util;
+  public boolean writeXmlQueryToColumnar( String xml, int rowLimit, OutputStream output ) throws IOException {
+    IPentahoResultSet resultSet = executeQuery( xml, rowLimit );
+    if ( resultSet == null ) {
+      return false;
+    }
+    try {
+      MetadataServiceUtil2 util = getMetadataServiceUtil2();
+      util.writeColumnar( resultSet, getResultLocale( new MetadataQueryContext( xml, null, null ), util ), output );
+      return true;
+    } catch ( PentahoMetadataException e ) {
+      error( Messages.getErrorString( "MetadataService.ERROR_0007_BAD_QUERY_DOMAIN" ), e ); //$NON-NLS-1$
+    }
+    return false;
   }
 
   /**
-   * package-local visibility for testing purposes
+   * Executes a batch of queries and returns the CDA compatible JSON serializations of their results, see
+   * {@link #writeQueriesToCdaJson(String, int, OutputStream)}
+   * 
+   * @param queries
+   * @param rowLimit
+   * @return
    */
-  MetadataServiceUtil2 getMetadataServiceUtil2() {
-    return util2;
+  public String doQueriesToCdaJson( String queries, int rowLimit ) {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    try {
+      if ( writeQueriesToCdaJson( queries, rowLimit, output ) ) {
+        return output.toString( "UTF-8" ); //$NON-NLS-1$
+      }
+    } catch ( IOException e ) {
+      // a ByteArrayOutputStream does not throw
+      error( e.getLocalizedMessage(), e );
+    }
+    return null;
   }
 
   /**
-   * package-local visibility for testing purposes
+   * Executes a batch of queries, e.g. the queries of the widgets of a dashboard, and writes the CDA compatible JSON
+   * serializations of their results to a stream. The batch is a JSON array of objects that either have a "json" member
+   * with a JSON query (as a string or an object) or a "xml" member with a XML query. Each domain is looked up once for
+   * the whole batch and the queries run in parallel on the query executor, but only as many at a time as the user may
+   * run (see {@link QueryAdmissionController}): the next ones are handed to the executor as the earlier ones finish. A
+   * query that has not been handed to the executor by the time its result is written runs on the calling thread.
+   * 
+   * The results are written in the order of the queries as <code>{"results":[result 0,result 1,...]}</code>, a query
+   * that fails is written as <code>{"error":"message"}</code> and does not affect the others.
+   * 
+   * @param queries
+   * @param rowLimit
+   *          the row limit of every query, -1 means all rows
+   * @param output
+   * @return false if the batch could not be parsed or the results could not be serialized
+   * @throws IOException
    */
-  QueryXmlHelper getHelper() {
-    return helper;
+  public boolean writeQueriesToCdaJson( String queries, final int rowLimit, OutputStream output ) throws IOException {
+    JSONArray entries;
+    try {
+      entries = new JSONArray( queries );
+    } catch ( JSONException e ) {
+      error( Messages.getErrorString( "MetadataService.ERROR_0007_BAD_JSON", queries ), e ); //$NON-NLS-1$
+      return false;
+    }
+
+    // prepare the queries on the calling thread, the domains are shared by most of them
+    Map<String, Domain> domains = new HashMap<String, Domain>();
+    MetadataQueryContext[] contexts = new MetadataQueryContext[entries.length()];
+    for ( int i = 0; i < contexts.length; i++ ) {
+      contexts[i] = getBatchQueryContext( entries.optJSONObject( i ), domains );
+    }
+
+    QueryAdmissionController admission = getAdmissionController();
+    IPentahoSession session = PentahoSessionHolder.getSession();
+    String user = session != null ? session.getName() : null;
+    MetadataQueryHandle[] handles = new MetadataQueryHandle[contexts.length];
+    int submitted = submitBatchQueries( contexts, handles, 0, rowLimit, admission, user );
+
+    Writer writer = new BufferedWriter( new OutputStreamWriter( output, "UTF-8" ) ); //$NON-NLS-1$
+    MetadataServiceUtil2 util = getMetadataServiceUtil2();
+    int next = 0;
+    try {
+      writer.write( "{\"results\":[" ); //$NON-NLS-1$
+      for ( ; next < contexts.length; next++ ) {
+        if ( next > 0 ) {
+          writer.write( ',' );
+        }
+        // the queries written so far have given back their admissions, hand the next ones to the executor
+        submitted = submitBatchQueries( contexts, handles, Math.max( submitted, next ), rowLimit, admission, user );
+        IPentahoResultSet resultSet = null;
+        String message = null;
+        if ( contexts[next] != null ) {
+          try {
+            resultSet =
+                handles[next] != null ? awaitBatchQuery( handles[next] ) : executeQuery( contexts[next].getXml(),
+                    rowLimit );
+          } catch ( QueryRejectedException e ) {
+            // the other queries of the batch are still written
+            message = e.getMessage();
+          }
+        }
+        if ( resultSet == null ) {
+          if ( message == null ) {
+            message =
+                contexts[next] == null ? Messages.getErrorString( "MetadataService.ERROR_0008_BAD_QUERY" ) //$NON-NLS-1$
+                    : Messages.getErrorString( "MetadataService.ERROR_0011_QUERY_FAILED" ); //$NON-NLS-1$
+          }
+          writer.write( "{\"error\":" + JSONObject.quote( message ) + "}" ); //$NON-NLS-1$ //$NON-NLS-2$
+          continue;
+        }
+        // the result is written to the stream directly
+        writer.flush();
+        try {
+          util.writeCdaJson( resultSet, contexts[next].getLocale(), output );
+        } finally {
+          resultSet.close();
+        }
+      }
+      writer.write( "]}" ); //$NON-NLS-1$
+      writer.flush();
+      return true;
+    } catch ( JSONException e ) {
+      error( Messages.getErrorString( "MetadataService.ERROR_0007_JSON_ERROR" ), e ); //$NON-NLS-1$
+      return false;
+    } finally {
+      // the queries that were not written, if the batch was aborted
+      for ( ; next < handles.length; next++ ) {
+        if ( handles[next] != null ) {
+          getQueryExecutor().remove( handles[next] );
+          handles[next].cancel();
+        }
+      }
+    }
+  }
+
+  /**
+   * Executes a JSON query and returns a CDA compatible JSON serialization of a page of the result set. The result is
+   * kept on the server for a while, so the other pages do not run the query again.
+   * 
+   * @param json
+   * @param offset
+   *          the index of the first row of the page
+   * @param limit
+   *          the maximum number of rows of the page, 0 or less for all remaining rows
+   * @return
+   */
+  public String doJsonQueryToCdaJsonPage( String json, int offset, int limit ) {
+    MetadataQueryContext context = getQueryContextFromJson( json );
+    if ( context == null ) {
+      return null;
+    }
+    QueryResultCache.Page page = getResultPage( context.getXml(), offset, limit );
+    if ( page == null ) {
+      return null;
+    }
+    try {
+      return getMetadataServiceUtil2().createCdaJsonPage( page, context.getLocale() );
+    } catch ( JSONException e ) {
+      error( Messages.getErrorString( "MetadataService.ERROR_0007_JSON_ERROR" ), e ); //$NON-NLS-1$
+    }
+    return null;
+  }
+
+  /**
+   * Executes a XML query and returns a CDA compatible JSON serialization of a page of the result set. The result is
+   * kept on the server for a while, so the other pages do not run the query again.
+   * 
+   * @param xml
+   * @param offset
+   *          the index of the first row of the page
+   * @param limit
+   *          the maximum number of rows of the page, 0 or less for all remaining rows
+   * @return
+   */
+  public String doXmlQueryToCdaJsonPage( String xml, int offset, int limit ) {
+    QueryResultCache.Page page = getResultPage( xml, offset, limit );
+    if ( page == null ) {
+      return null;
+    }
+    try {
+      MetadataServiceUtil2 util = getMetadataServiceUtil2();
+      return util.createCdaJsonPage( page, getResultLocale( new MetadataQueryContext( xml, null, null ), util ) );
+    } catch ( JSONException e ) {
+      error( Messages.getErrorString( "MetadataService.ERROR_0007_JSON_ERROR" ), e ); //$NON-NLS-1$
+    } catch ( PentahoMetadataException e ) {
+      error( Messages.getErrorString( "MetadataService.ERROR_0007_BAD_QUERY_DOMAIN" ), e ); //$NON-NLS-1$
+    }
+    return null;
+  }
+
+  /**
+   * Submits a XML query for execution in the background
+   * 
+   * @param xml
+   * @param rowLimit
+   *          An optional row limit, -1 or null means all rows
+   * @return the id of the query, or null if it could not be submitted
+   * @throws QueryRejectedException
+   *           if the query was not admitted, see {@link QueryAdmissionController}
+   */
+  public String submitXmlQuery( String xml, Integer rowLimit ) {
+    MetadataQueryHandle handle = submitQuery( new MetadataQueryContext( xml, null, null ), rowLimit );
+    return handle != null ? handle.getId() : null;
+  }
+
+  /**
+   * Submits a JSON query for execution in the background
+   * 
+   * @param json
+   * @param rowLimit
+   *          An optional row limit, -1 or null means all rows
+   * @return the id of the query, or null if it could not be submitted
+   * @throws QueryRejectedException
+   *           if the query was not admitted, see {@link QueryAdmissionController}
+   */
+  public String submitJsonQuery( String json, Integer rowLimit ) {
+    MetadataQueryContext context = getQueryContextFromJson( json );
+    if ( context == null ) {
+      return null;
+    }
+    MetadataQueryHandle handle = submitQuery( context, rowLimit );
+    return handle != null ? handle.getId() : null;
+  }
+
+  /**
+   * Returns the state of a submitted query: QUEUED, RUNNING, DONE, FAILED or CANCELLED
+   * 
+   * @param id
+   * @return the state, or null if the query is not known
+   */
+  public String getQueryStatus( String id ) {
+    MetadataQueryHandle handle = getQueryHandle( id );
+    return handle != null ? handle.getStatus().name() : null;
+  }
+
+  /**
+   * Cancels a submitted query and discards its result
+   * 
+   * @param id
+   * @return false if the query is not known or has already failed
+   */
+  public boolean cancelQuery( String id ) {
+    MetadataQueryHandle handle = getQueryHandle( id );
+    if ( handle == null ) {
+      return false;
+    }
+    getQueryExecutor().remove( handle );
+    return handle.cancel();
+  }
+
+  /**
+   * Waits for a submitted query and returns a CDA compatible JSON serialization of its result. The result can be
+   * fetched once.
+   * 
+   * @param id
+   * @param wait
+   *          the maximum time to wait for the query in milliseconds
+   * @return the JSON, or null if the query has not finished in time, failed or is not known
+   */
+  public String fetchQueryResultToCdaJson( String id, long wait ) {
+    MetadataQueryHandle handle = takeFinishedQuery( id, wait );
+    IPentahoResultSet resultSet = handle != null ? handle.getResultSet() : null;
+    if ( resultSet == null ) {
+      return null;
+    }
+    try {
+      MetadataServiceUtil2 util = getMetadataServiceUtil2();
+      return util.createCdaJson( resultSet, getResultLocale( handle.getContext(), util ) );
+    } catch ( JSONException e ) {
+      error( Messages.getErrorString( "MetadataService.ERROR_0007_JSON_ERROR" ), e ); //$NON-NLS-1$
+    } catch ( PentahoMetadataException e ) {
+      error( Messages.getErrorString( "MetadataService.ERROR_0007_BAD_QUERY_DOMAIN" ), e ); //$NON-NLS-1$
+    } finally {
+      handle.release();
+    }
+    return null;
+  }
+
+  /**
+   * Waits for a submitted query and writes a CDA compatible JSON serialization of its result to a stream. The result
+   * can be fetched once.
+   * 
+   * @param id
+   * @param wait
+   *          the maximum time to wait for the query in milliseconds
+   * @param output
+   * @return false if the query has not finished in time, failed or is not known
+   * @throws IOException
+   */
+  public boolean writeQueryResultToCdaJson( String id, long wait, OutputStream output ) throws IOException {
+    MetadataQueryHandle handle = takeFinishedQuery( id, wait );
+    IPentahoResultSet resultSet = handle != null ? handle.getResultSet() : null;
+    if ( resultSet == null ) {
+      return false;
+    }
+    try {
+      MetadataServiceUtil2 util = getMetadataServiceUtil2();
+      util.writeCdaJson( resultSet, getResultLocale( handle.getContext(), util ), output );
+      return true;
+    } catch ( JSONException e ) {
+      error( Messages.getErrorString( "MetadataService.ERROR_0007_JSON_ERROR" ), e ); //$NON-NLS-1$
+    } catch ( PentahoMetadataException e ) {
+      error( Messages.getErrorString( "MetadataService.ERROR_0007_BAD_QUERY_DOMAIN" ), e ); //$NON-NLS-1$
+    } finally {
+      handle.release();
+    }
+    return false;
+  }
+
+  /**
+   * Returns the number of submitted queries waiting for a thread
+   * 
+   * @return
+   */
+  public int getQueuedQueryCount() {
+    return getQueryExecutor().getQueueDepth();
+  }
+
+  /**
+   * Returns the number of submitted queries that are running
+   * 
+   * @return
+   */
+  public int getActiveQueryCount() {
+    return getQueryExecutor().getActiveCount();
+  }
+
+  /**
+   * Returns the number of queries waiting to be admitted, see {@link QueryAdmissionController}
+   * 
+   * @return
+   */
+  public int getWaitingQueryCount() {
+    return getAdmissionController().getWaitingCount();
+  }
+
+  /**
+   * Returns the number of queries that were not admitted, because too many were waiting or they waited too long
+   * 
+   * @return
+   */
+  public long getRejectedQueryCount() {
+    QueryAdmissionController admission = getAdmissionController();
+    return admission.getRejectedCount() + admission.getTimedOutCount();
+  }
+
+  /**
+   * Submits a query to the query executor. The query is admitted on the calling thread, before it is handed to the
+   * pool, so the threads of the pool never wait for the admission of a user. Its statements get the timeout of
+   * submitted queries, a cancelled query cannot run longer than that in the database.
+   * 
+   * @param context
+   * @param rowLimit
+   * @return the handle of the query, or null if the executor is busy
+   * @throws QueryRejectedException
+   *           if the query was not admitted
+   */
+  protected MetadataQueryHandle submitQuery( final MetadataQueryContext context, final Integer rowLimit ) {
+    QueryAdmissionController admission = getAdmissionController();
+    IPentahoSession session = PentahoSessionHolder.getSession();
+    try {
+      if ( !admission.acquire( session != null ? session.getName() : null ) ) {
+        throw new QueryRejectedException();
+      }
+    } catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+    try {
+      // the query holds the admission until it has run
+      return getQueryExecutor().submit( context, new Callable<IPentahoResultSet>() {
+        public IPentahoResultSet call() {
+          return executeQuery( context.getXml(), rowLimit );
+        }
+      }, admission, getAsyncQueryTimeout() );
+    } catch ( RejectedExecutionException e ) {
+      error( Messages.getErrorString( "MetadataService.ERROR_0009_QUERY_REJECTED" ), e ); //$NON-NLS-1$
+    }
+    return null;
+  }
+
+  /**
+   * Returns the handle of a query submitted by the current user
+   * 
+   * @param id
+   * @return
+   */
+  protected MetadataQueryHandle getQueryHandle( String id ) {
+    return getQueryExecutor().getHandle( id );
+  }
+
+  private MetadataQueryHandle takeFinishedQuery( String id, long wait ) {
+    MetadataQueryHandle handle = getQueryHandle( id );
+    if ( handle == null ) {
+      return null;
+    }
+    try {
+      if ( !handle.await( wait ) ) {
+        return null;
+      }
+    } catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+    getQueryExecutor().remove( handle );
+    return handle;
+  }
+
+  private MetadataQueryContext getBatchQueryContext( JSONObject entry, Map<String, Domain> domains ) {
+    if ( entry == null ) {
+      return null;
+    }
+    try {
+      if ( entry.has( "xml" ) ) { //$NON-NLS-1$
+        String xml = entry.getString( "xml" ); //$NON-NLS-1$
+        Matcher matcher = DOMAIN_ID_PATTERN.matcher( xml );
+        Domain domain =
+            matcher.find() ? getDomain( StringEscapeUtils.unescapeXml( matcher.group( 1 ) ), domains ) : null;
+        if ( domain == null ) {
+          domain = getMetadataServiceUtil2().getDomainObject( xml );
+        }
+        return new MetadataQueryContext( xml, domain, null );
+      }
+      Object json = entry.get( "json" ); //$NON-NLS-1$
+      return getQueryContextFromJson( json.toString(), domains );
+    } catch ( JSONException e ) {
+      error( Messages.getErrorString( "MetadataService.ERROR_0008_BAD_QUERY" ), e ); //$NON-NLS-1$
+    } catch ( PentahoMetadataException e ) {
+      error( Messages.getErrorString( "MetadataService.ERROR_0007_BAD_QUERY_DOMAIN" ), e ); //$NON-NLS-1$
+    }
+    return null;
+  }
+
+  /**
+   * Hands the queries of a batch to the query executor, in order, as long as the user may run another query right away.
+   * A pool thread never waits for the admission of a query, and a batch never takes more of the pool than the user may
+   * use.
+   * 
+   * @return the index of the first query that has not been handed to the executor
+   */
+  private int submitBatchQueries( MetadataQueryContext[] contexts, MetadataQueryHandle[] handles, int from,
+      int rowLimit, QueryAdmissionController admission, String user ) {
+    int i = from;
+    for ( ; i < contexts.length; i++ ) {
+      if ( contexts[i] == null ) {
+        continue;
+      }
+      if ( !admission.tryAcquire( user ) ) {
+        break;
+      }
+      handles[i] = submitBatchQuery( contexts[i], rowLimit, admission );
+      if ( handles[i] == null ) {
+        break;
+      }
+    }
+    return i;
+  }
+
+  private MetadataQueryHandle submitBatchQuery( final MetadataQueryContext context, final int rowLimit,
+      QueryAdmissionController admission ) {
+    try {
+      // the query holds the admission until it has run
+      return getQueryExecutor().submit( context, new Callable<IPentahoResultSet>() {
+        public IPentahoResultSet call() {
+          return executeQuery( context.getXml(), rowLimit );
+        }
+      }, admission );
+    } catch ( RejectedExecutionException e ) {
+      // the executor is busy and has given back the admission, the query runs when its result is written
+      return null;
+    }
+  }
+
+  private IPentahoResultSet awaitBatchQuery( MetadataQueryHandle handle ) {
+    try {
+      handle.await( Long.MAX_VALUE );
+    } catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+      handle.cancel();
+    }
+    getQueryExecutor().remove( handle );
+    IPentahoResultSet resultSet = handle.getResultSet();
+    // the result now belongs to the caller
+    handle.setResultTaken();
+    return resultSet;
+  }
+
+  private String getResultLocale( MetadataQueryContext context, MetadataServiceUtil2 util )
+    throws PentahoMetadataException {
+    if ( context.getDomain() != null ) {
+      return context.getLocale();
+    }
+    // only the MQL is known, find the domain from it
+    Domain domain = util.getDomainObject( context.getXml() );
+    return LocaleResolver.getClosestLocale( domain.getLocaleCodes() );
+  }
+
+  /**
+   * Executes a XML query and returns a native result set
+   * 
+   * @param query
+   * @param rowLimit
+   *          An optional row limit, -1 or null means all rows
+   * @return
+   */
+  protected IPentahoResultSet executeQuery( final String query, final Integer rowLimit ) {
+    // identical queries of the same user share their results for a while
+    return getQueryRunner().execute( query, rowLimit );
+  }
+
+  /**
+   * Executes a XML query against the database
+   * 
+   * @param query
+   * @param rowLimit
+   *          An optional row limit, -1 or null means all rows
+   * @return
+   */
+  protected IPentahoResultSet runQuery( String query, Integer rowLimit ) {
+    return getQueryRunner().run( query, rowLimit );
+  }
+
+  /**
+   * Returns a page of the result of a XML query. The whole result, up to the configured maximum number of rows, is
+   * kept in the paging cache of the current user. A result larger than the paging cache may keep is rejected.
+   * 
+   * @param query
+   * @param offset
+   * @param limit
+   * @return the page, or null if the query failed or its result is too large
+   */
+  protected QueryResultCache.Page getResultPage( final String query, int offset, int limit ) {
+    int maxRows = MetadataSettings.getIntSetting( MetadataSettings.PAGING_MAX_ROWS, DEFAULT_PAGING_MAX_ROWS );
+    final Integer rowLimit = maxRows > 0 ? maxRows : -1;
+    IPentahoSession session = PentahoSessionHolder.getSession();
+    return getPagingCache().getPage( query, rowLimit, session != null ? session.getName() : null,
+        new Callable<IPentahoResultSet>() {
+          public IPentahoResultSet call() {
+            return runQuery( query, rowLimit );
+          }
+        }, offset, limit );
+  }
+
+  /**
+   * Converts a JSON query into a full Query object by going via a thin Query object
+   * 
+   * @param json
+   * @return
+   */
+  protected String getQueryXmlFromJson( String json ) {
+    MetadataQueryContext context = getQueryContextFromJson( json );
+    return context != null ? context.getXml() : null;
+  }
+
+  /**
+   * Converts a JSON query into MQL and keeps the domain and model the query was resolved against, so they do not have
+   * to be looked up again from the MQL
+   * 
+   * @param json
+   * @return
+   */
+  protected MetadataQueryContext getQueryContextFromJson( String json ) {
+    return getQueryContextFromJson( json, null );
+  }
+
+  /**
+   * Converts a JSON query into a full Query object, looking up its domain in a map of the domains already used
+   * 
+   * @param json
+   * @param domains
+   *          the domains by id, the domain is added if it is not in the map yet. If null the domain is looked up in the
+   *          repository.
+   * @return
+   */
+  protected MetadataQueryContext getQueryContextFromJson( String json, Map<String, Domain> domains ) {
+    MetadataServiceUtil util = getMetadataServiceUtil();
+    Query query = util.deserializeJsonQuery( json );
+    try {
+      // the same queries are sent over and over, reuse an earlier conversion of the query if the domain is unchanged
+      String domainId = query.getDomainName();
+      Domain domain = domainId != null ? getDomain( domainId, domains ) : null;
+      String planKey = domain != null ? QueryPlan.createKey( query ) : null;
+      if ( planKey != null ) {
+        QueryPlan plan = getQueryPlanCache().get( domainId, domain, planKey );
+        if ( plan != null ) {
+          return plan.createContext();
+        }
+      }
+
+      // convert the thin query model into a full one
+      org.pentaho.metadata.query.model.Query fullQuery = util.convertQuery( query );
+
+      // get the XML for the query
+      QueryXmlHelper helper = getHelper();
+      String xml = helper.toXML( fullQuery );
+      QueryPlan plan = new QueryPlan( fullQuery, xml );
+      if ( planKey != null ) {
+        // keyed by the domain the query was converted against
+        getQueryPlanCache().put( domainId, fullQuery.getDomain(), planKey, plan );
+      }
+      return plan.createContext();
+    } catch ( Exception e ) {
+      error( Messages.getErrorString( "MetadataService.ERROR_0008_BAD_QUERY" ), e ); //$NON-NLS-1$
+    }
+    return null;
+  }
+
+  private Domain getDomain( String domainId, Map<String, Domain> domains ) {
+    if ( domains == null ) {
+      return getMetadataRepository().getDomain( domainId );
+    }
+    if ( !domains.containsKey( domainId ) ) {
+      domains.put( domainId, getMetadataRepository().getDomain( domainId ) );
+    }
+    return domains.get( domainId );
+  }
+
+  /**
+   * Returns a instance of the IMetadataDomainRepository for the current session
+   * 
+   * @return
+   */
+  protected IMetadataDomainRepository getMetadataRepository() {
+    IMetadataDomainRepository mdr =
+        PentahoSystem.get( IMetadataDomainRepository.class, PentahoSessionHolder.getSession() );
+    if ( mdr instanceof ILogger ) {
+      ( (ILogger) mdr ).setLoggingLevel( getLoggingLevel() );
+    }
+    return mdr;
+  }
+
+  @Override
+  public Log getLogger() {
+    return logger;
+  }
+
+  /**
+   * package-local visibility for testing purposes
+   */
+  MetadataServiceUtil getMetadataServiceUtil() {
+    return util;
+  }
+
+  /**
+   * package-local visibility for testing purposes
+   */
+  MetadataServiceUtil2 getMetadataServiceUtil2() {
+    return util2;
+  }
+
+  /**
+   * package-local visibility for testing purposes
+   */
+  QueryXmlHelper getHelper() {
+    return helper;
+  }
+
+  /**
+   * package-local visibility for testing purposes
+   */
+  DomainCache<List<Object>, Object> getModelCache() {
+    return MetadataCaches.getInstance().getModelCache();
+  }
+
+  /**
+   * package-local visibility for testing purposes
+   */
+  QueryResultCache getResultCache() {
+    return MetadataCaches.getInstance().getResultCache();
+  }
+
+  /**
+   * package-local visibility for testing purposes
+   */
+  QueryResultCache getPagingCache() {
+    return MetadataCaches.getInstance().getPagingCache();
+  }
+
+  /**
+   * package-local visibility for testing purposes
+   */
+  ModelCatalog getModelCatalog() {
+    return MetadataCaches.getInstance().getModelCatalog();
+  }
+
+  /**
+   * package-local visibility for testing purposes
+   */
+  ModelHistory getModelHistory() {
+    return MetadataCaches.getInstance().getModelHistory();
+  }
+
+  /**
+   * package-local visibility for testing purposes
+   */
+  DomainScanner getDomainScanner() {
+    return DomainScanner.getInstance();
+  }
+
+  /**
+   * package-local visibility for testing purposes
+   */
+  QueryAdmissionController getAdmissionController() {
+    return QueryAdmissionController.getInstance();
+  }
+
+  /**
+   * package-local visibility for testing purposes
+   */
+  DomainCache<String, QueryPlan> getQueryPlanCache() {
+    return MetadataCaches.getInstance().getQueryPlanCache();
+  }
+
+  /**
+   * package-local visibility for testing purposes
+   */
+  MetadataQueryExecutor getQueryExecutor() {
+    return MetadataQueryExecutor.getInstance();
+  }
+
+  /**
+   * package-local visibility for testing purposes
+   */
+  int getQueryTimeout() {
+    return MetadataSettings.getIntSetting( MetadataSettings.QUERY_TIMEOUT, 0 );
+  }
+
+  /**
+   * package-local visibility for testing purposes
+   */
+  int getAsyncQueryTimeout() {
+    return MetadataSettings.getIntSetting( MetadataSettings.ASYNC_QUERY_TIMEOUT, DEFAULT_ASYNC_QUERY_TIMEOUT );
+  }
+
+  /**
+   * package-local visibility for testing purposes
+   */
+  MetadataQueryRunner getQueryRunner() {
+    return new MetadataQueryRunner( getAdmissionController(), getResultCache(), getQueryTimeout() );
+  }
+
+  /**
+   * package-local visibility for testing purposes
+   */
+  boolean isModelJsonSnapshots() {
+    return MetadataSettings.getBooleanSetting( MetadataSettings.MODEL_JSON_SNAPSHOTS, true );
   }
 }
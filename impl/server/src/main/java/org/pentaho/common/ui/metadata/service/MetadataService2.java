@@ -17,8 +17,9 @@
 
 package org.pentaho.common.ui.metadata.service;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.StringTokenizer;
 
@@ -44,8 +45,6 @@ import org.pentaho.platform.api.engine.ILogger;
 import org.pentaho.platform.engine.core.system.PentahoBase;
 import org.pentaho.platform.engine.core.system.PentahoSessionHolder;
 import org.pentaho.platform.engine.core.system.PentahoSystem;
-import org.pentaho.platform.plugin.action.pentahometadata.MetadataQueryComponent;
-import org.pentaho.platform.util.messages.LocaleHelper;
 import org.pentaho.pms.core.exception.PentahoMetadataException;
 
 import flexjson.JSONSerializer;
@@ -81,8 +80,9 @@ public class MetadataService2 extends PentahoBase implements ModelProvider {
    * 
    * @param domainName
    *          optional domain to limit the results
-   * @param context
-   *          Area to check for model visibility
+   * @param match
+   *          optional text to search the names and descriptions of the models for. The models found are ranked, see
+   *          {@link ModelSearch}, and only the best ones are returned.
    * @return list of ModelInfo objects representing the available models
    */
   @Override
@@ -91,7 +91,7 @@ public class MetadataService2 extends PentahoBase implements ModelProvider {
     if ( providerId != null && !providerId.equals( PROVIDER_ID ) ) {
       return new ModelInfo[0];
     }
-    List<ModelInfo> models = new ArrayList<ModelInfo>();
+    List<ModelSearch.Hit<ModelInfo>> hits = new ArrayList<ModelSearch.Hit<ModelInfo>>();
 
     // get hold of the metadata repository
     IMetadataDomainRepository repo = getMetadataRepository();
@@ -100,21 +100,25 @@ public class MetadataService2 extends PentahoBase implements ModelProvider {
       return null;
     }
 
+    final String text = StringUtils.isBlank( match ) ? null : match.trim();
     try {
       if ( StringUtils.isEmpty( domain ) ) {
-        // if no domain has been specified, loop over all of them
-        for ( String aDomain : repo.getDomainIds() ) {
-          getModelInfos( match, aDomain, models );
-        }
+        // if no domain has been specified, scan all of them, several at a time
+        getDomainScanner().scan( repo.getDomainIds(), new DomainScanner.Task<ModelSearch.Hit<ModelInfo>>() {
+          public void scan( String aDomain, List<ModelSearch.Hit<ModelInfo>> found ) {
+            getModelInfos( text, aDomain, found );
+          }
+        }, hits );
       } else {
         // get the models for the specified domain
-        getModelInfos( match, domain, models );
+        getModelInfos( text, domain, hits );
       }
     } catch ( Throwable t ) {
       error( Messages.getErrorString( "MetadataService.ERROR_0002_BAD_MODEL_LIST" ), t ); //$NON-NLS-1$
     }
 
-    Collections.sort( models, new ModelInfoComparator() );
+    int limit = text != null ? MetadataSettings.getIntSetting( MetadataSettings.MODEL_SEARCH_LIMIT, 50 ) : 0;
+    List<ModelInfo> models = ModelSearch.top( hits, new ModelInfoComparator(), limit );
     return models.toArray( new ModelInfo[models.size()] );
   }
 
@@ -122,16 +126,41 @@ public class MetadataService2 extends PentahoBase implements ModelProvider {
    * Returns a list of ModelInfo objects for the specified domain. These objects are small and this list is intended to
    * allow a client to provide a list of models to a user so the user can pick which one they want to work with.
    * 
+   * @param match
+   *          the text to search for, all of the models are returned with the same rank if null
    * @param domain
-   * @param context
-   *          Area to check for model visibility
-   * @param models
+   * @param hits
    */
-  private void getModelInfos( final String match, final String domain, List<ModelInfo> models ) {
+  private void getModelInfos( final String match, final String domain, List<ModelSearch.Hit<ModelInfo>> hits ) {
 
     IMetadataDomainRepository repo = getMetadataRepository();
 
     String context = null;
+    ModelCatalog catalog = getModelCatalog();
+    if ( catalog.isEnabled() ) {
+      // the catalog knows the models of the domain; the repository still checks that the domain may be read
+      ModelCatalog.Entry entry = catalog.getEntry( domain, repo );
+      if ( entry == null ) {
+        // the domain does not exist
+        return;
+      }
+      String locale = LocaleResolver.getClosestLocale( entry.getLocaleCodes() );
+      if ( entry.hasLocale( locale ) ) {
+        if ( match == null ) {
+          // only the models visible in the context are visited
+          for ( ModelCatalog.Model model : entry.getVisibleModels( context ) ) {
+            hits.add( new ModelSearch.Hit<ModelInfo>( createModelInfo( domain, model, locale ), ModelSearch.EXACT ) );
+          }
+        } else {
+          for ( ModelSearch.Hit<ModelCatalog.Model> hit : entry.search( context, locale, ModelSearch.fold( match,
+              locale ) ) ) {
+            hits.add( new ModelSearch.Hit<ModelInfo>( createModelInfo( domain, hit.item, locale ), hit.rank ) );
+          }
+        }
+        return;
+      }
+    }
+
     Domain domainObject = repo.getDomain( domain );
     if ( domainObject == null ) {
       // the domain does not exist
@@ -139,42 +168,66 @@ public class MetadataService2 extends PentahoBase implements ModelProvider {
     }
 
     // find the best locale
-    String locale = LocaleHelper.getClosestLocale( LocaleHelper.getLocale().toString(), domainObject.getLocaleCodes() );
+    String locale = LocaleResolver.getClosestLocale( domainObject.getLocaleCodes() );
+    String folded = match != null ? ModelSearch.fold( match, locale ) : null;
 
     // iterate over all of the models in this domain
     for ( LogicalModel model : domainObject.getLogicalModels() ) {
-      String vis = (String) model.getProperty( "visible" );
-      if ( vis != null ) {
-        String[] visibleContexts = vis.split( "," );
-        boolean visibleToContext = false;
-        for ( String c : visibleContexts ) {
-          if ( c.equals( context ) ) {
-            // TODO investigate situation. Now context always is null.
-            visibleToContext = true;
-            break;
-          }
-        }
-        if ( !visibleToContext ) {
+      if ( !isVisible( (String) model.getProperty( "visible" ), context ) ) {
+        continue;
+      }
+      String name = model.getName( locale );
+      boolean hasDescription = model.getDescription() != null;
+      String description = hasDescription ? model.getDescription( locale ) : null;
+      int rank = ModelSearch.EXACT;
+      if ( folded != null ) {
+        rank = ModelSearch.rank( ModelSearch.fold( name, locale ), ModelSearch.fold( description, locale ), folded );
+        if ( rank == ModelSearch.NO_MATCH ) {
           continue;
         }
       }
-      // create a new ModelInfo object and give it the envelope information about the model
-      ModelInfo modelInfo = new ModelInfo();
-      modelInfo.setGroupId( domain );
-      modelInfo.setModelId( model.getId() );
-      modelInfo.setName( model.getName( locale ) );
-      modelInfo.setProvider( provider );
-      if ( model.getDescription() != null ) {
-        String modelDescription = model.getDescription( locale );
-        modelInfo.setDescription( modelDescription );
-      }
-      models.add( modelInfo );
+      hits.add( new ModelSearch.Hit<ModelInfo>( createModelInfo( domain, model.getId(), name, hasDescription,
+          description ), rank ) );
     }
     return;
   }
 
+  private boolean isVisible( String vis, String context ) {
+    if ( vis == null ) {
+      return true;
+    }
+    String[] visibleContexts = vis.split( "," );
+    for ( String c : visibleContexts ) {
+      if ( c.equals( context ) ) {
+        // TODO investigate situation. Now context always is null.
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private ModelInfo createModelInfo( String domain, ModelCatalog.Model model, String locale ) {
+    return createModelInfo( domain, model.getId(), model.getName( locale ), model.hasDescription(), model
+        .getDescription( locale ) );
+  }
+
+  private ModelInfo createModelInfo( String domain, String modelId, String name, boolean hasDescription,
+      String description ) {
+    // create a new ModelInfo object and give it the envelope information about the model
+    ModelInfo modelInfo = new ModelInfo();
+    modelInfo.setGroupId( domain );
+    modelInfo.setModelId( modelId );
+    modelInfo.setName( name );
+    modelInfo.setProvider( provider );
+    if ( hasDescription ) {
+      modelInfo.setDescription( description );
+    }
+    return modelInfo;
+  }
+
   /**
    * Returns a Model object for the requested model. The model will include the basic metadata - categories and columns.
+   * Models are shared between callers through the model cache and must not be modified.
    * 
    * @param domainId
    * @param modelId
@@ -214,11 +267,21 @@ public class MetadataService2 extends PentahoBase implements ModelProvider {
 
     // because it's lighter weight, check the thin model
     Domain domain = getMetadataRepository().getDomain( domainId );
+    DomainCache<List<Object>, Object> modelCache = getModelCache();
     if ( domain == null ) {
+      modelCache.invalidate( domainId );
       error( Messages.getErrorString( "MetadataService.ERROR_0005_DOMAIN_NOT_FOUND", domainId ) ); //$NON-NLS-1$
       return null;
     }
 
+    // models are cached per locale, the names and descriptions are localized
+    String locale = LocaleResolver.getClosestLocale( domain.getLocaleCodes() );
+    List<Object> cacheKey = MetadataCaches.modelKey( Model.class, modelId, locale );
+    Object cached = modelCache.get( domainId, domain, cacheKey );
+    if ( cached instanceof Model ) {
+      return (Model) cached;
+    }
+
     LogicalModel model = domain.findLogicalModel( modelId );
 
     if ( model == null ) {
@@ -229,9 +292,9 @@ public class MetadataService2 extends PentahoBase implements ModelProvider {
 
     // create the thin metadata model and return it
     MetadataServiceUtil2 util = getMetadataServiceUtil2();
-    util.setDomain( domain );
-    Model thinModel = util.createThinModel( model, domainId );
+    Model thinModel = util.createThinModel( model, domainId, locale );
     thinModel.setProvider( provider );
+    modelCache.put( domainId, domain, cacheKey, thinModel );
     return thinModel;
 
   }
@@ -312,8 +375,7 @@ public class MetadataService2 extends PentahoBase implements ModelProvider {
     try {
       MetadataServiceUtil2 util = getMetadataServiceUtil2();
       Domain domain = util.getDomainObject( xml );
-      util.setDomain( domain );
-      String locale = LocaleHelper.getClosestLocale( LocaleHelper.getLocale().toString(), domain.getLocaleCodes() );
+      String locale = LocaleResolver.getClosestLocale( domain.getLocaleCodes() );
       json = util.createCdaJson( resultSet, locale );
     } catch ( JSONException e ) {
       error( Messages.getErrorString( "MetadataService.ERROR_0007_JSON_ERROR" ), e ); //$NON-NLS-1$
@@ -323,6 +385,37 @@ public class MetadataService2 extends PentahoBase implements ModelProvider {
     return json;
   }
 
+  /**
+   * Executes a XML query and writes a CDA compatible JSON serialization of the result set to a stream. The rows are
+   * written as they are read, so no JSON copy of the result is built, but the result set is read into memory by the
+   * query (see {@link CdaJsonWriter}). If an error occurs after the first bytes have been written the output is
+   * incomplete.
+   * 
+   * @param xml
+   * @param rowLimit
+   * @param output
+   * @return false if the query could not be executed or serialized
+   * @throws IOException
+   */
+  public boolean writeXmlQueryToCdaJson( String xml, int rowLimit, OutputStream output ) throws IOException {
+    IPentahoResultSet resultSet = executeQuery( xml, rowLimit );
+    if ( resultSet == null ) {
+      return false;
+    }
+    try {
+      MetadataServiceUtil2 util = getMetadataServiceUtil2();
+      Domain domain = util.getDomainObject( xml );
+      String locale = LocaleResolver.getClosestLocale( domain.getLocaleCodes() );
+      util.writeCdaJson( resultSet, locale, output );
+      return true;
+    } catch ( JSONException e ) {
+      error( Messages.getErrorString( "MetadataService.ERROR_0007_JSON_ERROR" ), e ); //$NON-NLS-1$
+    } catch ( PentahoMetadataException e ) {
+      error( Messages.getErrorString( "MetadataService.ERROR_0007_BAD_QUERY_DOMAIN" ), e ); //$NON-NLS-1$
+    }
+    return false;
+  }
+
   /**
    * Executes a XML query and returns a serializable result set
    * 
@@ -357,8 +450,118 @@ public class MetadataService2 extends PentahoBase implements ModelProvider {
    * @return
    */
   public String doJsonQueryToCdaJson( String json, int rowLimit ) {
-    // return the results
-    return doXmlQueryToCdaJson( getQueryXmlFromJson( json ), rowLimit );
+    MetadataQueryContext context = getQueryContextFromJson( json );
+    if ( context == null ) {
+      return null;
+    }
+    // the domain is already known, the MQL does not need to be parsed again
+    IPentahoResultSet resultSet = executeQuery( context.getXml(), rowLimit );
+    if ( resultSet == null ) {
+      return null;
+    }
+    try {
+      return getMetadataServiceUtil2().createCdaJson( resultSet, context.getLocale() );
+    } catch ( JSONException e ) {
+      error( Messages.getErrorString( "MetadataService.ERROR_0007_JSON_ERROR" ), e ); //$NON-NLS-1$
+    }
+    return null;
+  }
+
+  /**
+   * Executes a JSON query and writes a CDA compatible JSON serialization of the result set to a stream
+   * 
+   * @param json
+   * @param rowLimit
+   * @param output
+   * @return false if the query could not be executed or serialized
+   * @throws IOException
+   */
+  public boolean writeJsonQueryToCdaJson( String json, int rowLimit, OutputStream output ) throws IOException {
+    MetadataQueryContext context = getQueryContextFromJson( json );
+    if ( context == null ) {
+      return false;
+    }
+    IPentahoResultSet resultSet = executeQuery( context.getXml(), rowLimit );
+    if ( resultSet == null ) {
+      return false;
+    }
+    try {
+      getMetadataServiceUtil2().writeCdaJson( resultSet, context.getLocale(), output );
+      return true;
+    } catch ( JSONException e ) {
+      error( Messages.getErrorString( "MetadataService.ERROR_0007_JSON_ERROR" ), e ); //$NON-NLS-1$
+    }
+    return false;
+  }
+
+  /**
+   * Executes a JSON query and returns the result set in the columnar binary form of {@link ColumnarResultWriter}.
+   * Numeric results are much smaller and faster to produce than the CDA JSON of {@link #doJsonQueryToCdaJson}.
+   * 
+   * @param json
+   * @param rowLimit
+   * @return
+   */
+  public byte[] doJsonQueryToColumnar( String json, int rowLimit ) {
+    MetadataQueryContext context = getQueryContextFromJson( json );
+    if ( context == null ) {
+      return null;
+    }
+    IPentahoResultSet resultSet = executeQuery( context.getXml(), rowLimit );
+    if ( resultSet == null ) {
+      return null;
+    }
+    return getMetadataServiceUtil2().createColumnar( resultSet, context.getLocale() );
+  }
+
+  /**
+   * Executes a JSON query and writes the result set to a stream in the columnar binary form of
+   * {@link ColumnarResultWriter}
+   * 
+   * @param json
+   * @param rowLimit
+   * @param output
+   * @return false if the query could not be executed
+   * @throws IOException
+   */
+  public boolean writeJsonQueryToColumnar( String json, int rowLimit, OutputStream output ) throws IOException {
+    MetadataQueryContext context = getQueryContextFromJson( json );
+    if ( context == null ) {
+      return false;
+    }
+    IPentahoResultSet resultSet = executeQuery( context.getXml(), rowLimit );
+    if ( resultSet == null ) {
+      return false;
+    }
+    getMetadataServiceUtil2().writeColumnar( resultSet, context.getLocale(), output );
+    return true;
+  }
+
+  /**
+   * Executes a XML query and writes the result set to a stream in the columnar binary form of
+   * {@link ColumnarResultWriter}
+   * 
+   * @param xml
+   * @param rowLimit
+   * @param output
+   * @return false if the query could not be executed
+   * @throws IOException
+   */
+  public boolean writeXmlQueryToColumnar( String xml, int rowLimit, OutputStream output ) throws IOException {
+    IPentahoResultSet resultSet = executeQuery( xml, rowLimit );
+    if ( resultSet == null ) {
+      return false;
+    }
+    try {
+      MetadataServiceUtil2 util = getMetadataServiceUtil2();
+      Domain domain = util.getDomainObject( xml );
+      String locale = LocaleResolver.getClosestLocale( domain.getLocaleCodes() );
+      util.writeColumnar( resultSet, locale, output );
+      return true;
+    } catch ( PentahoMetadataException e ) {
+      error( Messages.getErrorString( "MetadataService.ERROR_0007_BAD_QUERY_DOMAIN" ), e ); //$NON-NLS-1$
+    }
+    return false;
   }
 
   /**
@@ -369,20 +572,21 @@ public class MetadataService2 extends PentahoBase implements ModelProvider {
    *          An optional row limit, -1 or null means all rows
    * @return
    */
-  protected IPentahoResultSet executeQuery( String query, Integer rowLimit ) {
-    // create a component to execute the query
-    MetadataQueryComponent dataComponent = new MetadataQueryComponent();
-    dataComponent.setQuery( query );
-    dataComponent.setLive( false );
-    dataComponent.setUseForwardOnlyResultSet( true );
-    if ( rowLimit != null && rowLimit > -1 ) {
-      // set the row limit
-      dataComponent.setMaxRows( rowLimit );
-    }
-    if ( dataComponent.execute() ) {
-      return dataComponent.getResultSet();
-    }
-    return null;
+  protected IPentahoResultSet executeQuery( final String query, final Integer rowLimit ) {
+    // identical queries of the same user share their results for a while
+    return getQueryRunner().execute( query, rowLimit );
+  }
+
+  /**
+   * Executes a XML query against the database
+   * 
+   * @param query
+   * @param rowLimit
+   *          An optional row limit, -1 or null means all rows
+   * @return
+   */
+  protected IPentahoResultSet runQuery( String query, Integer rowLimit ) {
+    return getQueryRunner().run( query, rowLimit );
   }
 
   /**
@@ -392,17 +596,46 @@ public class MetadataService2 extends PentahoBase implements ModelProvider {
    * @return
    */
   protected String getQueryXmlFromJson( String json ) {
+    MetadataQueryContext context = getQueryContextFromJson( json );
+    return context != null ? context.getXml() : null;
+  }
+
+  /**
+   * Converts a JSON query into MQL and keeps the domain and model the query was resolved against, so they do not have
+   * to be looked up again from the MQL
+   * 
+   * @param json
+   * @return
+   */
+  protected MetadataQueryContext getQueryContextFromJson( String json ) {
     MetadataServiceUtil2 util = getMetadataServiceUtil2();
     Query query = util.deserializeJsonQuery( json );
     try {
-      // convert the thin query model into a full one
       Model model = getModel( query.getSourceId() );
+
+      // the same queries are sent over and over, reuse an earlier conversion of the query if the domain is unchanged
+      String domainId = model != null ? model.getGroupId() : null;
+      Domain domain = domainId != null ? getMetadataRepository().getDomain( domainId ) : null;
+      String planKey = domain != null ? QueryPlan.createKey( query ) : null;
+      if ( planKey != null ) {
+        QueryPlan plan = getQueryPlanCache().get( domainId, domain, planKey );
+        if ( plan != null ) {
+          return plan.createContext();
+        }
+      }
+
+      // convert the thin query model into a full one
       org.pentaho.metadata.query.model.Query fullQuery = util.convertQuery( query, model );
 
       // get the XML for the query
       QueryXmlHelper helper = getHelper();
       String xml = helper.toXML( fullQuery );
-      return xml;
+      QueryPlan plan = new QueryPlan( fullQuery, xml );
+      if ( planKey != null ) {
+        // keyed by the domain the query was converted against
+        getQueryPlanCache().put( domainId, fullQuery.getDomain(), planKey, plan );
+      }
+      return plan.createContext();
     } catch ( Exception e ) {
       error( Messages.getErrorString( "MetadataService.ERROR_0008_BAD_QUERY" ), e ); //$NON-NLS-1$
     }
@@ -446,4 +679,60 @@ public class MetadataService2 extends PentahoBase implements ModelProvider {
   QueryXmlHelper getHelper() {
     return helper;
   }
+
+  /**
+   * package-local visibility for testing purposes
+   */
+  DomainCache<List<Object>, Object> getModelCache() {
+    return MetadataCaches.getInstance().getModelCache();
+  }
+
+  /**
+   * package-local visibility for testing purposes
+   */
+  QueryResultCache getResultCache() {
+    return MetadataCaches.getInstance().getResultCache();
+  }
+
+  /**
+   * package-local visibility for testing purposes
+   */
+  ModelCatalog getModelCatalog() {
+    return MetadataCaches.getInstance().getModelCatalog();
+  }
+
+  /**
+   * package-local visibility for testing purposes
+   */
+  DomainScanner getDomainScanner() {
+    return DomainScanner.getInstance();
+  }
+
+  /**
+   * package-local visibility for testing purposes
+   */
+  QueryAdmissionController getAdmissionController() {
+    return QueryAdmissionController.getInstance();
+  }
+
+  /**
+   * package-local visibility for testing purposes
+   */
+  int getQueryTimeout() {
+    return MetadataSettings.getIntSetting( MetadataSettings.QUERY_TIMEOUT, 0 );
+  }
+
+  /**
+   * package-local visibility for testing purposes
+   */
+  MetadataQueryRunner getQueryRunner() {
+    return new MetadataQueryRunner( getAdmissionController(), getResultCache(), getQueryTimeout() );
+  }
+
+  /**
+   * package-local visibility for testing purposes
+   */
+  DomainCache<String, QueryPlan> getQueryPlanCache() {
+    return MetadataCaches.getInstance().getQueryPlanCache();
+  }
 }
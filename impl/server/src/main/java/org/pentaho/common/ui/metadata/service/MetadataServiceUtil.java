@@ -17,13 +17,12 @@
 
 package org.pentaho.common.ui.metadata.service;
 
-import flexjson.JSONDeserializer;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 import org.pentaho.common.ui.messages.Messages;
+import org.pentaho.common.ui.metadata.model.FormulaBuilder;
+import org.pentaho.common.ui.metadata.model.Operator;
 import org.pentaho.common.ui.metadata.model.impl.Category;
 import org.pentaho.common.ui.metadata.model.impl.Column;
 import org.pentaho.common.ui.metadata.model.impl.Condition;
@@ -33,15 +32,12 @@ import org.pentaho.common.ui.metadata.model.impl.Parameter;
 import org.pentaho.common.ui.metadata.model.impl.Query;
 import org.pentaho.commons.connection.IPentahoResultSet;
 import org.pentaho.metadata.model.Domain;
-import org.pentaho.metadata.model.IPhysicalColumn;
 import org.pentaho.metadata.model.LogicalColumn;
 import org.pentaho.metadata.model.LogicalModel;
-import org.pentaho.metadata.model.concept.Concept;
 import org.pentaho.metadata.model.concept.types.AggregationType;
 import org.pentaho.metadata.model.concept.types.Alignment;
 import org.pentaho.metadata.model.concept.types.DataType;
 import org.pentaho.metadata.model.concept.types.FieldType;
-import org.pentaho.metadata.model.concept.types.LocalizedString;
 import org.pentaho.metadata.query.model.CombinationType;
 import org.pentaho.metadata.query.model.Constraint;
 import org.pentaho.metadata.query.model.Order.Type;
@@ -51,12 +47,15 @@ import org.pentaho.metadata.repository.IMetadataDomainRepository;
 import org.pentaho.platform.engine.core.system.PentahoBase;
 import org.pentaho.platform.engine.core.system.PentahoSessionHolder;
 import org.pentaho.platform.engine.core.system.PentahoSystem;
-import org.pentaho.platform.engine.security.PentahoJsonValidator;
-import org.pentaho.platform.util.messages.LocaleHelper;
 import org.pentaho.pms.core.exception.PentahoMetadataException;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * This class provides utility functions used by the MetadataService
@@ -69,6 +68,11 @@ public class MetadataServiceUtil extends PentahoBase {
 
   private static final long serialVersionUID = -123835493828427853L;
 
+  /**
+   * Reads the JSON queries of all requests
+   */
+  private static final ThinQueryReader<Query> QUERY_READER = new ThinQueryReader<Query>( Query.class );
+
   private Log logger = LogFactory.getLog( MetadataServiceUtil.class );
 
   private org.pentaho.metadata.model.Domain domain;
@@ -77,7 +81,10 @@ public class MetadataServiceUtil extends PentahoBase {
    * Returns the full domain object used by this class
    * 
    * @return
+   * @deprecated the domain is not kept by this class any more, pass the locale to
+   *             {@link #createThinModel(LogicalModel, String, String)} instead
    */
+  @Deprecated
   public org.pentaho.metadata.model.Domain getDomain() {
     return domain;
   }
@@ -86,7 +93,10 @@ public class MetadataServiceUtil extends PentahoBase {
    * Sets the full domain object used by this class
    * 
    * @param domain
+   * @deprecated an instance is shared by concurrent requests, pass the locale to
+   *             {@link #createThinModel(LogicalModel, String, String)} instead
    */
+  @Deprecated
   public void setDomain( org.pentaho.metadata.model.Domain domain ) {
     this.domain = domain;
   }
@@ -95,33 +105,53 @@ public class MetadataServiceUtil extends PentahoBase {
   }
 
   /**
-   * Works out what is the most appropriate locale to use given a domain and the user's current locale
+   * Works out what is the most appropriate locale to use given the domain set with {@link #setDomain(Domain)} and the
+   * user's current locale
    * 
    * @return
+   * @deprecated use {@link LocaleResolver#getClosestLocale(String[])} with the locales of the domain
    */
+  @Deprecated
   protected String getLocale() {
-    String locale = LocaleHelper.getClosestLocale( LocaleHelper.getLocale().toString(), domain.getLocaleCodes() );
+    String locale = LocaleResolver.getClosestLocale( domain.getLocaleCodes() );
     return locale;
   }
 
   /**
-   * Creates a lightweight, serializable model object from a logical model
+   * Creates a lightweight, serializable model object from a logical model, in the locale of the domain set with
+   * {@link #setDomain(Domain)}
    * 
    * @param m
    * @param domainId
    * @return
+   * @deprecated use {@link #createThinModel(LogicalModel, String, String)}
    */
+  @Deprecated
   public Model createThinModel( LogicalModel m, String domainId ) {
+    return createThinModel( m, domainId, getLocale() );
+  }
+
+  /**
+   * Creates a lightweight, serializable model object from a logical model. Nothing is kept between calls, so an
+   * instance can build the models of different domains and locales at the same time.
+   * 
+   * @param m
+   * @param domainId
+   * @param locale
+   *          the locale of the names and descriptions, one of the locales of the domain
+   * @return
+   */
+  public Model createThinModel( LogicalModel m, String domainId, String locale ) {
     // create the model object
     Model model = new Model();
-    model.setName( m.getName( getLocale() ) );
+    model.setName( m.getName( locale ) );
     model.setId( m.getId() );
     model.setDomainId( domainId );
-    model.setDescription( m.getDescription( getLocale() ) );
+    model.setDescription( m.getDescription( locale ) );
     // add the categories to the model
     List<Category> categories = new ArrayList<Category>();
     for ( org.pentaho.metadata.model.Category cat : m.getCategories() ) {
-      categories.add( createCategory( m, cat ) );
+      categories.add( createCategory( m, cat, locale, true ) );
     }
     model.setCategories( categories.toArray( new Category[categories.size()] ) );
 
@@ -129,6 +159,48 @@ public class MetadataServiceUtil extends PentahoBase {
 
   }
 
+  /**
+   * Creates the outline of a thin model: the categories only have their column counts, the columns are created per
+   * category with {@link #createThinCategory(LogicalModel, String, String)} when they are needed
+   * 
+   * @param m
+   * @param domainId
+   * @param locale
+   *          the locale of the names and descriptions, one of the locales of the domain
+   * @return
+   */
+  public Model createThinModelOutline( LogicalModel m, String domainId, String locale ) {
+    Model model = new Model();
+    model.setName( m.getName( locale ) );
+    model.setId( m.getId() );
+    model.setDomainId( domainId );
+    model.setDescription( m.getDescription( locale ) );
+    List<Category> categories = new ArrayList<Category>();
+    for ( org.pentaho.metadata.model.Category cat : m.getCategories() ) {
+      categories.add( createCategory( m, cat, locale, false ) );
+    }
+    model.setCategories( categories.toArray( new Category[categories.size()] ) );
+    return model;
+  }
+
+  /**
+   * Creates a thin category of a logical model, including its columns
+   * 
+   * @param m
+   * @param categoryId
+   * @param locale
+   *          the locale of the names and descriptions, one of the locales of the domain
+   * @return the category, or null if the model has no such category
+   */
+  public Category createThinCategory( LogicalModel m, String categoryId, String locale ) {
+    for ( org.pentaho.metadata.model.Category cat : m.getCategories() ) {
+      if ( cat.getId().equals( categoryId ) ) {
+        return createCategory( m, cat, locale, true );
+      }
+    }
+    return null;
+  }
+
   /**
    * Creates a lightweight, serializable category objects from a logical model category
    * 
@@ -136,18 +208,23 @@ public class MetadataServiceUtil extends PentahoBase {
    * @param c
    * @return
    */
-  private Category createCategory( LogicalModel m, org.pentaho.metadata.model.Category c ) {
+  private Category createCategory( LogicalModel m, org.pentaho.metadata.model.Category c, String locale,
+      boolean withColumns ) {
     // create a thin category object
     Category cat = new Category();
-    cat.setName( c.getName( getLocale() ) );
+    cat.setName( c.getName( locale ) );
     cat.setId( c.getId() );
-    cat.setDescription( c.getDescription( getLocale() ) );
+    cat.setDescription( c.getDescription( locale ) );
     if ( cat.getId().equals( cat.getDescription() ) ) {
       cat.setDescription( null );
     }
+    if ( !withColumns ) {
+      cat.setColumnCount( c.getLogicalColumns().size() );
+      return cat;
+    }
     List<Column> columns = new ArrayList<Column>();
     for ( LogicalColumn col : c.getLogicalColumns() ) {
-      columns.add( createColumn( m, col, c ) );
+      columns.add( createColumn( m, col, c, locale ) );
     }
     cat.setColumns( columns.toArray( new Column[columns.size()] ) );
 
@@ -161,11 +238,12 @@ public class MetadataServiceUtil extends PentahoBase {
    * @param c
    * @return
    */
-  private Column createColumn( LogicalModel m, LogicalColumn c, org.pentaho.metadata.model.Category category ) {
+  private Column createColumn( LogicalModel m, LogicalColumn c, org.pentaho.metadata.model.Category category,
+      String locale ) {
     Column col = new Column();
-    col.setName( c.getName( getLocale() ) );
+    col.setName( c.getName( locale ) );
     col.setId( c.getId() );
-    col.setDescription( c.getDescription( getLocale() ) );
+    col.setDescription( c.getDescription( locale ) );
     if ( col.getId().equals( col.getDescription() ) ) {
       col.setDescription( null );
     }
@@ -243,40 +321,28 @@ public class MetadataServiceUtil extends PentahoBase {
     if ( resultSet == null ) {
       return null;
     }
-    JSONObject json = new JSONObject();
-
-    // Generate the metadata
-    final JSONArray metadataArray = new JSONArray();
-
-    final int columnCount = resultSet.getColumnCount();
-    final int rowCount = resultSet.getRowCount();
-
-    for ( int i = 0; i < columnCount; i++ ) {
-      JSONObject info = new JSONObject();
-      info.put( "colIndex", i ); //$NON-NLS-1$
-      info.put( "colName", resultSet.getMetaData().getColumnHeaders()[0][i] ); //$NON-NLS-1$
-      DataType type = (DataType) resultSet.getMetaData().getAttribute( 0, i, IPhysicalColumn.DATATYPE_PROPERTY );
-      info.put( "colType", type.getName().toUpperCase() ); //$NON-NLS-1$
-      LocalizedString name = (LocalizedString) resultSet.getMetaData().getAttribute( 0, i, Concept.NAME_PROPERTY );
-      if ( name != null && locale != null ) {
-        info.put( "colLabel", name.getString( locale ) ); //$NON-NLS-1$
-      }
-      metadataArray.put( info );
+    StringWriter writer = new StringWriter();
+    try {
+      new CdaJsonWriter().write( resultSet, locale, writer );
+    } catch ( IOException e ) {
+      // a StringWriter does not throw
+      throw new JSONException( e.toString() );
     }
-    json.put( "metadata", metadataArray ); //$NON-NLS-1$
-
-    // add the rows of data
-    final JSONArray valuesArray = new JSONArray();
-    for ( int rowIdx = 0; rowIdx < rowCount; rowIdx++ ) {
+    return writer.toString();
+  }
 
-      final JSONArray rowArray = new JSONArray();
-      valuesArray.put( rowArray );
-      for ( int colIdx = 0; colIdx < columnCount; colIdx++ ) {
-        rowArray.put( resultSet.getValueAt( rowIdx, colIdx ) );
-      }
-    }
-    json.put( "resultset", valuesArray ); //$NON-NLS-1$
-    return json.toString();
+  /**
+   * Writes a CDA JSON representation of a query result set to a stream, row by row
+   * 
+   * @param resultSet
+   * @param locale
+   * @param output
+   * @throws JSONException
+   * @throws IOException
+   */
+  public void writeCdaJson( final IPentahoResultSet resultSet, String locale, OutputStream output )
+    throws JSONException, IOException {
+    new CdaJsonWriter().write( resultSet, locale, output );
   }
 
   /**
@@ -308,28 +374,55 @@ public class MetadataServiceUtil extends PentahoBase {
 
     // create a new full query object
     org.pentaho.metadata.query.model.Query dest = new org.pentaho.metadata.query.model.Query( fullDomain, logicalModel );
+    LogicalModelIndex index = getModelIndex( fullDomain, logicalModel );
 
     // now add the selections
     List<Selection> selections = dest.getSelections();
+    // the selections of each column, used to resolve the sort order
+    Map<String, List<Selection>> columnSelections = new HashMap<String, List<Selection>>();
     for ( Column column : src.getColumns() ) {
       // get the objects needed for the selection
-      LogicalColumn logicalColumn = logicalModel.findLogicalColumn( column.getId() );
-      org.pentaho.metadata.model.Category category = getCategory( column.getId(), logicalModel );
+      LogicalColumn logicalColumn = index.findLogicalColumn( column.getId() );
+      org.pentaho.metadata.model.Category category = index.findCategory( column.getId() );
+      if ( category == null ) {
+        category = getCategory( column.getId(), logicalModel );
+      }
       AggregationType aggregationType = AggregationType.valueOf( column.getSelectedAggType() );
       // create a selection and add it to the list
       Selection selection = new Selection( category, logicalColumn, aggregationType );
       selections.add( selection );
+      if ( logicalColumn != null ) {
+        List<Selection> sameColumn = columnSelections.get( logicalColumn.getId() );
+        if ( sameColumn == null ) {
+          sameColumn = new ArrayList<Selection>( 1 );
+          columnSelections.put( logicalColumn.getId(), sameColumn );
+        }
+        sameColumn.add( selection );
+      }
     }
 
     // now add the filters
     List<Constraint> constraints = dest.getConstraints();
+    // one buffer for the formulas of all the conditions
+    FormulaBuilder formula = new FormulaBuilder();
+    InListParameters inLists = createInListParameters( src );
+    boolean strictOperators = isStrictOperators();
     for ( Condition condition : src.getConditions() ) {
+      // in strict mode a filter on an unknown operator is rejected instead of being read as EQUAL
+      Operator operator = Operator.parse( condition.getOperator(), strictOperators );
       org.pentaho.metadata.query.model.CombinationType combinationType =
           CombinationType.valueOf( condition.getCombinationType() );
-      LogicalColumn logicalColumn = logicalModel.findLogicalColumn( condition.getColumn() );
+      LogicalColumn logicalColumn = index.findLogicalColumn( condition.getColumn() );
       String paramName = condition.isParameterized() ? condition.getValue()[0] : null;
-      String formula = condition.getCondition( logicalColumn.getDataType().name(), paramName );
-      Constraint constraint = new Constraint( combinationType, formula );
+      formula.reset();
+      DataType dataType = logicalColumn.getDataType();
+      if ( inLists.accepts( operator, condition.isParameterized(), condition.getValue(), dataType ) ) {
+        inLists.bind( formula, condition.getCategory(), condition.getColumn(), condition.getSelectedAggType(),
+            condition.getValue() );
+      } else {
+        condition.appendCondition( formula, dataType.name(), paramName, operator );
+      }
+      Constraint constraint = new Constraint( combinationType, formula.toString() );
       constraints.add( constraint );
     }
 
@@ -341,14 +434,15 @@ public class MetadataServiceUtil extends PentahoBase {
     // now add the sorting information
     List<org.pentaho.metadata.query.model.Order> orders = dest.getOrders();
     for ( Order order : src.getOrders() ) {
-      // find the selection
-      for ( Selection selection : selections ) {
-        if ( selection.getLogicalColumn().getId().equals( order.getColumn() ) ) {
-          Type type = Type.valueOf( order.getOrderType() );
-          org.pentaho.metadata.query.model.Order fullOrder =
-              new org.pentaho.metadata.query.model.Order( selection, type );
-          orders.add( fullOrder );
-        }
+      // find the selections of the column
+      List<Selection> sameColumn = columnSelections.get( order.getColumn() );
+      if ( sameColumn == null ) {
+        continue;
+      }
+      Type type = Type.valueOf( order.getOrderType() );
+      for ( Selection selection : sameColumn ) {
+        org.pentaho.metadata.query.model.Order fullOrder = new org.pentaho.metadata.query.model.Order( selection, type );
+        orders.add( fullOrder );
       }
     }
 
@@ -356,7 +450,7 @@ public class MetadataServiceUtil extends PentahoBase {
     List<org.pentaho.metadata.query.model.Parameter> parameters = dest.getParameters();
     for ( Parameter parameter : src.getParameters() ) {
       // find the column for this parameter
-      LogicalColumn logicalColumn = logicalModel.findLogicalColumn( parameter.getColumn() );
+      LogicalColumn logicalColumn = index.findLogicalColumn( parameter.getColumn() );
       DataType type = logicalColumn.getDataType();
       String[] value = parameter.getValue();
       final String name = parameter.getName() != null ? parameter.getName() : parameter.getColumn();
@@ -364,9 +458,43 @@ public class MetadataServiceUtil extends PentahoBase {
           new org.pentaho.metadata.query.model.Parameter( name, type, value[0] );
       parameters.add( fullParam );
     }
+    parameters.addAll( inLists.getParameters() );
     return dest;
   }
 
+  /**
+   * Creates the binding of the long IN lists of a query, reserving the names of the parameters of the query
+   * 
+   * @param src
+   * @return
+   */
+  private InListParameters createInListParameters( Query src ) {
+    InListParameters inLists = new InListParameters( getInListParameterThreshold() );
+    for ( Parameter parameter : src.getParameters() ) {
+      inLists.reserveName( parameter.getName() != null ? parameter.getName() : parameter.getColumn() );
+    }
+    return inLists;
+  }
+
+  /**
+   * Returns the minimum number of values of a string condition that are bound as one multi-valued parameter instead
+   * of being written into the formula, 0 if lists are never bound
+   * 
+   * @return
+   */
+  protected int getInListParameterThreshold() {
+    return MetadataSettings.getIntSetting( MetadataSettings.IN_LIST_PARAMETER_THRESHOLD, 0 );
+  }
+
+  /**
+   * Returns true if query conversion rejects conditions with unknown operators, otherwise they are read as EQUAL
+   * 
+   * @return
+   */
+  protected boolean isStrictOperators() {
+    return MetadataSettings.getBooleanSetting( MetadataSettings.STRICT_OPERATORS, false );
+  }
+
   /**
    * Returns the full category object for a given column within the logical model
    * 
@@ -391,15 +519,8 @@ public class MetadataServiceUtil extends PentahoBase {
    */
   public Query deserializeJsonQuery( String json ) {
     try {
-      // convert the json query into a thin query model
-      ClassLoader oldLoader = Thread.currentThread().getContextClassLoader();
-      try {
-        Thread.currentThread().setContextClassLoader( getClass().getClassLoader() );
-        PentahoJsonValidator.validateJson( json, Query.class );
-        return new JSONDeserializer<Query>().deserialize( json, Query.class );
-      } finally {
-        Thread.currentThread().setContextClassLoader( oldLoader );
-      }
+      // convert the json query into a thin query model, validating it while it is parsed
+      return QUERY_READER.read( json );
     } catch ( Exception e ) {
       error( Messages.getErrorString( "MetadataService.ERROR_0007_BAD_JSON", json ), e ); //$NON-NLS-1$
       return null;
@@ -411,6 +532,13 @@ public class MetadataServiceUtil extends PentahoBase {
     return logger;
   }
 
+  /**
+   * package-local visibility for testing purposes
+   */
+  LogicalModelIndex getModelIndex( Domain domain, LogicalModel logicalModel ) {
+    return MetadataCaches.getInstance().getModelIndex( domain, logicalModel );
+  }
+
   /**
    * package-local visibility for testing purposes
    */
@@ -17,24 +17,20 @@
 
 package org.pentaho.common.ui.metadata.service;
 
-import flexjson.JSONDeserializer;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 import org.pentaho.common.ui.messages.Messages;
+import org.pentaho.common.ui.metadata.model.FormulaBuilder;
+import org.pentaho.common.ui.metadata.model.Operator;
 import org.pentaho.commons.connection.IPentahoResultSet;
 import org.pentaho.metadata.model.Domain;
-import org.pentaho.metadata.model.IPhysicalColumn;
 import org.pentaho.metadata.model.LogicalColumn;
 import org.pentaho.metadata.model.LogicalModel;
-import org.pentaho.metadata.model.concept.Concept;
 import org.pentaho.metadata.model.concept.types.AggregationType;
 import org.pentaho.metadata.model.concept.types.Alignment;
 import org.pentaho.metadata.model.concept.types.DataType;
 import org.pentaho.metadata.model.concept.types.FieldType;
-import org.pentaho.metadata.model.concept.types.LocalizedString;
 import org.pentaho.metadata.model.thin.Condition;
 import org.pentaho.metadata.model.thin.Element;
 import org.pentaho.metadata.model.thin.Model;
@@ -51,12 +47,16 @@ import org.pentaho.metadata.repository.IMetadataDomainRepository;
 import org.pentaho.platform.engine.core.system.PentahoBase;
 import org.pentaho.platform.engine.core.system.PentahoSessionHolder;
 import org.pentaho.platform.engine.core.system.PentahoSystem;
-import org.pentaho.platform.engine.security.PentahoJsonValidator;
-import org.pentaho.platform.util.messages.LocaleHelper;
 import org.pentaho.pms.core.exception.PentahoMetadataException;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * This class provides utility functions used by the MetadataService
@@ -69,6 +69,11 @@ public class MetadataServiceUtil2 extends PentahoBase {
 
   private static final long serialVersionUID = -123835493828427853L;
 
+  /**
+   * Reads the JSON queries of all requests
+   */
+  private static final ThinQueryReader<Query> QUERY_READER = new ThinQueryReader<Query>( Query.class );
+
   private Log logger = LogFactory.getLog( MetadataServiceUtil2.class );
 
   private org.pentaho.metadata.model.Domain domain;
@@ -77,7 +82,10 @@ public class MetadataServiceUtil2 extends PentahoBase {
    * Returns the full domain object used by this class
    * 
    * @return
+   * @deprecated the domain is not kept by this class any more, pass the locale to
+   *             {@link #createThinModel(LogicalModel, String, String)} instead
    */
+  @Deprecated
   public org.pentaho.metadata.model.Domain getDomain() {
     return domain;
   }
@@ -86,7 +94,10 @@ public class MetadataServiceUtil2 extends PentahoBase {
    * Sets the full domain object used by this class
    * 
    * @param domain
+   * @deprecated an instance is shared by concurrent requests, pass the locale to
+   *             {@link #createThinModel(LogicalModel, String, String)} instead
    */
+  @Deprecated
   public void setDomain( org.pentaho.metadata.model.Domain domain ) {
     this.domain = domain;
   }
@@ -95,33 +106,53 @@ public class MetadataServiceUtil2 extends PentahoBase {
   }
 
   /**
-   * Works out what is the most appropriate locale to use given a domain and the user's current locale
+   * Works out what is the most appropriate locale to use given the domain set with {@link #setDomain(Domain)} and the
+   * user's current locale
    * 
    * @return
+   * @deprecated use {@link LocaleResolver#getClosestLocale(String[])} with the locales of the domain
    */
+  @Deprecated
   protected String getLocale() {
-    String locale = LocaleHelper.getClosestLocale( LocaleHelper.getLocale().toString(), domain.getLocaleCodes() );
+    String locale = LocaleResolver.getClosestLocale( domain.getLocaleCodes() );
     return locale;
   }
 
   /**
-   * Creates a lightweight, serializable model object from a logical model
+   * Creates a lightweight, serializable model object from a logical model, in the locale of the domain set with
+   * {@link #setDomain(Domain)}
    * 
    * @param m
    * @param domainId
    * @return
+   * @deprecated use {@link #createThinModel(LogicalModel, String, String)}
    */
+  @Deprecated
   public Model createThinModel( LogicalModel m, String domainId ) {
+    return createThinModel( m, domainId, getLocale() );
+  }
+
+  /**
+   * Creates a lightweight, serializable model object from a logical model. Nothing is kept between calls, so an
+   * instance can build the models of different domains and locales at the same time.
+   * 
+   * @param m
+   * @param domainId
+   * @param locale
+   *          the locale of the names and descriptions, one of the locales of the domain
+   * @return
+   */
+  public Model createThinModel( LogicalModel m, String domainId, String locale ) {
     // create the model object
     Model model = new Model();
-    model.setName( m.getName( getLocale() ) );
+    model.setName( m.getName( locale ) );
     model.setModelId( m.getId() );
     model.setGroupId( domainId );
-    model.setDescription( m.getDescription( getLocale() ) );
+    model.setDescription( m.getDescription( locale ) );
     // add the categories to the model
     List<Element> elements = new ArrayList<Element>();
     for ( org.pentaho.metadata.model.Category cat : m.getCategories() ) {
-      createCategory( m, cat, elements );
+      createCategory( m, cat, elements, locale );
     }
     model.setElements( elements.toArray( new Element[elements.size()] ) );
 
@@ -136,19 +167,20 @@ public class MetadataServiceUtil2 extends PentahoBase {
    * @param c
    * @return
    */
-  private void createCategory( LogicalModel m, org.pentaho.metadata.model.Category c, List<Element> elements ) {
+  private void createCategory( LogicalModel m, org.pentaho.metadata.model.Category c, List<Element> elements,
+      String locale ) {
     // create a thin category object
     Element cat = new Element();
-    cat.setName( c.getName( getLocale() ) );
+    cat.setName( c.getName( locale ) );
     cat.setId( c.getId() );
-    cat.setDescription( c.getDescription( getLocale() ) );
+    cat.setDescription( c.getDescription( locale ) );
     if ( cat.getId().equals( cat.getDescription() ) ) {
       cat.setDescription( null );
     }
     cat.setIsQueryElement( false );
     elements.add( cat );
     for ( LogicalColumn col : c.getLogicalColumns() ) {
-      elements.add( createColumn( m, col, c, cat ) );
+      elements.add( createColumn( m, col, c, cat, locale ) );
     }
   }
 
@@ -160,11 +192,11 @@ public class MetadataServiceUtil2 extends PentahoBase {
    * @return
    */
   private Element createColumn( LogicalModel m, LogicalColumn c, org.pentaho.metadata.model.Category category,
-      Element cat ) {
+      Element cat, String locale ) {
     Element col = new Element();
-    col.setName( c.getName( getLocale() ) );
+    col.setName( c.getName( locale ) );
     col.setId( c.getId() );
-    col.setDescription( c.getDescription( getLocale() ) );
+    col.setDescription( c.getDescription( locale ) );
     col.setParentId( cat.getId() );
     if ( col.getId().equals( col.getDescription() ) ) {
       col.setDescription( null );
@@ -243,40 +275,84 @@ public class MetadataServiceUtil2 extends PentahoBase {
     if ( resultSet == null ) {
       return null;
     }
-    JSONObject json = new JSONObject();
-
-    // Generate the metadata
-    final JSONArray metadataArray = new JSONArray();
-
-    final int columnCount = resultSet.getColumnCount();
-    final int rowCount = resultSet.getRowCount();
-
-    for ( int i = 0; i < columnCount; i++ ) {
-      JSONObject info = new JSONObject();
-      info.put( "colIndex", i ); //$NON-NLS-1$
-      info.put( "colName", resultSet.getMetaData().getColumnHeaders()[0][i] ); //$NON-NLS-1$
-      DataType type = (DataType) resultSet.getMetaData().getAttribute( 0, i, IPhysicalColumn.DATATYPE_PROPERTY );
-      info.put( "colType", type.getName().toUpperCase() ); //$NON-NLS-1$
-      LocalizedString name = (LocalizedString) resultSet.getMetaData().getAttribute( 0, i, Concept.NAME_PROPERTY );
-      if ( name != null && locale != null ) {
-        info.put( "colLabel", name.getString( locale ) ); //$NON-NLS-1$
-      }
-      metadataArray.put( info );
+    StringWriter writer = new StringWriter();
+    try {
+      new CdaJsonWriter().write( resultSet, locale, writer );
+    } catch ( IOException e ) {
+      // a StringWriter does not throw
+      throw new JSONException( e.toString() );
+    }
+    return writer.toString();
+  }
+
+  /**
+   * Returns a CDA JSON representation of a page of a query result, including the position of the page
+   * 
+   * @param page
+   * @param locale
+   * @return
+   * @throws JSONException
+   */
+  public String createCdaJsonPage( final QueryResultCache.Page page, String locale ) throws JSONException {
+    if ( page == null ) {
+      return null;
     }
-    json.put( "metadata", metadataArray ); //$NON-NLS-1$
+    StringWriter writer = new StringWriter();
+    try {
+      new CdaJsonWriter().writePage( page, locale, writer );
+    } catch ( IOException e ) {
+      // a StringWriter does not throw
+      throw new JSONException( e.toString() );
+    }
+    return writer.toString();
+  }
 
-    // add the rows of data
-    final JSONArray valuesArray = new JSONArray();
-    for ( int rowIdx = 0; rowIdx < rowCount; rowIdx++ ) {
+  /**
+   * Writes a CDA JSON representation of a query result set to a stream, row by row
+   * 
+   * @param resultSet
+   * @param locale
+   * @param output
+   * @throws JSONException
+   * @throws IOException
+   */
+  public void writeCdaJson( final IPentahoResultSet resultSet, String locale, OutputStream output )
+    throws JSONException, IOException {
+    new CdaJsonWriter().write( resultSet, locale, output );
+  }
 
-      final JSONArray rowArray = new JSONArray();
-      valuesArray.put( rowArray );
-      for ( int colIdx = 0; colIdx < columnCount; colIdx++ ) {
-        rowArray.put( resultSet.getValueAt( rowIdx, colIdx ) );
-      }
+  /**
+   * Returns the columnar binary representation of a query result set, see {@link ColumnarResultWriter}
+   * 
+   * @param resultSet
+   * @param locale
+   * @return
+   */
+  public byte[] createColumnar( final IPentahoResultSet resultSet, String locale ) {
+    if ( resultSet == null ) {
+      return null;
+    }
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    try {
+      new ColumnarResultWriter().write( resultSet, locale, output );
+    } catch ( IOException e ) {
+      // a ByteArrayOutputStream does not throw
+      throw new IllegalStateException( e );
     }
-    json.put( "resultset", valuesArray ); //$NON-NLS-1$
-    return json.toString();
+    return output.toByteArray();
+  }
+
+  /**
+   * Writes the columnar binary representation of a query result set to a stream, see {@link ColumnarResultWriter}
+   * 
+   * @param resultSet
+   * @param locale
+   * @param output
+   * @throws IOException
+   */
+  public void writeColumnar( final IPentahoResultSet resultSet, String locale, OutputStream output )
+    throws IOException {
+    new ColumnarResultWriter().write( resultSet, locale, output );
   }
 
   /**
@@ -308,27 +384,54 @@ public class MetadataServiceUtil2 extends PentahoBase {
 
     // create a new full query object
     org.pentaho.metadata.query.model.Query dest = new org.pentaho.metadata.query.model.Query( fullDomain, logicalModel );
+    LogicalModelIndex index = getModelIndex( fullDomain, logicalModel );
 
     // now add the selections
     List<Selection> selections = dest.getSelections();
+    // the selections of each column, used to resolve the sort order
+    Map<String, List<Selection>> columnSelections = new HashMap<String, List<Selection>>();
     for ( Element column : src.getElements() ) {
       // get the objects needed for the selection
-      LogicalColumn logicalColumn = logicalModel.findLogicalColumn( column.getId() );
-      org.pentaho.metadata.model.Category category = getCategory( column.getId(), logicalModel );
+      LogicalColumn logicalColumn = index.findLogicalColumn( column.getId() );
+      org.pentaho.metadata.model.Category category = index.findCategory( column.getId() );
+      if ( category == null ) {
+        category = getCategory( column.getId(), logicalModel );
+      }
       AggregationType aggregationType = AggregationType.valueOf( column.getSelectedAggregation() );
       // create a selection and add it to the list
       Selection selection = new Selection( category, logicalColumn, aggregationType );
       selections.add( selection );
+      if ( logicalColumn != null ) {
+        List<Selection> sameColumn = columnSelections.get( logicalColumn.getId() );
+        if ( sameColumn == null ) {
+          sameColumn = new ArrayList<Selection>( 1 );
+          columnSelections.put( logicalColumn.getId(), sameColumn );
+        }
+        sameColumn.add( selection );
+      }
     }
 
     // now add the filters
     List<Constraint> constraints = dest.getConstraints();
+    InListParameters inLists = createInListParameters( src );
+    boolean strictOperators = isStrictOperators();
     for ( Condition condition : src.getConditions() ) {
+      // in strict mode a filter on an unknown operator is rejected instead of being read as EQUAL
+      Operator operator = Operator.parse( condition.getOperator(), strictOperators );
       org.pentaho.metadata.query.model.CombinationType combinationType =
           CombinationType.valueOf( condition.getCombinationType() );
-      LogicalColumn logicalColumn = logicalModel.findLogicalColumn( condition.getElementId() );
+      LogicalColumn logicalColumn = index.findLogicalColumn( condition.getElementId() );
       String paramName = condition.isParameterized() ? condition.getValue()[0] : null;
-      String formula = condition.getCondition( logicalColumn.getDataType().name(), paramName );
+      String formula;
+      DataType dataType = logicalColumn.getDataType();
+      if ( inLists.accepts( operator, condition.isParameterized(), condition.getValue(), dataType ) ) {
+        FormulaBuilder builder = new FormulaBuilder();
+        inLists.bind( builder, condition.getParentId(), condition.getElementId(), condition.getSelectedAggregation(),
+            condition.getValue() );
+        formula = builder.toString();
+      } else {
+        formula = condition.getCondition( dataType.name(), paramName );
+      }
       Constraint constraint = new Constraint( combinationType, formula );
       constraints.add( constraint );
     }
@@ -341,14 +444,15 @@ public class MetadataServiceUtil2 extends PentahoBase {
     // now add the sorting information
     List<org.pentaho.metadata.query.model.Order> orders = dest.getOrders();
     for ( Order order : src.getOrders() ) {
-      // find the selection
-      for ( Selection selection : selections ) {
-        if ( selection.getLogicalColumn().getId().equals( order.getElementId() ) ) {
-          Type type = Type.valueOf( order.getOrderType() );
-          org.pentaho.metadata.query.model.Order fullOrder =
-              new org.pentaho.metadata.query.model.Order( selection, type );
-          orders.add( fullOrder );
-        }
+      // find the selections of the column
+      List<Selection> sameColumn = columnSelections.get( order.getElementId() );
+      if ( sameColumn == null ) {
+        continue;
+      }
+      Type type = Type.valueOf( order.getOrderType() );
+      for ( Selection selection : sameColumn ) {
+        org.pentaho.metadata.query.model.Order fullOrder = new org.pentaho.metadata.query.model.Order( selection, type );
+        orders.add( fullOrder );
       }
     }
 
@@ -356,7 +460,7 @@ public class MetadataServiceUtil2 extends PentahoBase {
     List<org.pentaho.metadata.query.model.Parameter> parameters = dest.getParameters();
     for ( Parameter parameter : src.getParameters() ) {
       // find the column for this parameter
-      LogicalColumn logicalColumn = logicalModel.findLogicalColumn( parameter.getElementId() );
+      LogicalColumn logicalColumn = index.findLogicalColumn( parameter.getElementId() );
       DataType type = logicalColumn.getDataType();
       String[] value = parameter.getValue();
       final String name = parameter.getName() != null ? parameter.getName() : parameter.getElementId();
@@ -364,9 +468,43 @@ public class MetadataServiceUtil2 extends PentahoBase {
           new org.pentaho.metadata.query.model.Parameter( name, type, value[0] );
       parameters.add( fullParam );
     }
+    parameters.addAll( inLists.getParameters() );
     return dest;
   }
 
+  /**
+   * Creates the binding of the long IN lists of a query, reserving the names of the parameters of the query
+   * 
+   * @param src
+   * @return
+   */
+  private InListParameters createInListParameters( Query src ) {
+    InListParameters inLists = new InListParameters( getInListParameterThreshold() );
+    for ( Parameter parameter : src.getParameters() ) {
+      inLists.reserveName( parameter.getName() != null ? parameter.getName() : parameter.getElementId() );
+    }
+    return inLists;
+  }
+
+  /**
+   * Returns the minimum number of values of a string condition that are bound as one multi-valued parameter instead
+   * of being written into the formula, 0 if lists are never bound
+   * 
+   * @return
+   */
+  protected int getInListParameterThreshold() {
+    return MetadataSettings.getIntSetting( MetadataSettings.IN_LIST_PARAMETER_THRESHOLD, 0 );
+  }
+
+  /**
+   * Returns true if query conversion rejects conditions with unknown operators, otherwise they are read as EQUAL
+   * 
+   * @return
+   */
+  protected boolean isStrictOperators() {
+    return MetadataSettings.getBooleanSetting( MetadataSettings.STRICT_OPERATORS, false );
+  }
+
   /**
    * Returns the full category object for a given column within the logical model
    * 
@@ -391,15 +529,8 @@ public class MetadataServiceUtil2 extends PentahoBase {
    */
   public Query deserializeJsonQuery( String json ) {
     try {
-      // convert the json query into a thin query model
-      ClassLoader oldLoader = Thread.currentThread().getContextClassLoader();
-      try {
-        Thread.currentThread().setContextClassLoader( getClass().getClassLoader() );
-        PentahoJsonValidator.validateJson( json, Query.class );
-        return new JSONDeserializer<Query>().deserialize( json, Query.class );
-      } finally {
-        Thread.currentThread().setContextClassLoader( oldLoader );
-      }
+      // convert the json query into a thin query model, validating it while it is parsed
+      return QUERY_READER.read( json );
     } catch ( Exception e ) {
       error( Messages.getErrorString( "MetadataService.ERROR_0007_BAD_JSON", json ), e ); //$NON-NLS-1$
       return null;
@@ -411,6 +542,13 @@ public class MetadataServiceUtil2 extends PentahoBase {
     return logger;
   }
 
+  /**
+   * package-local visibility for testing purposes
+   */
+  LogicalModelIndex getModelIndex( Domain domain, LogicalModel logicalModel ) {
+    return MetadataCaches.getInstance().getModelIndex( domain, logicalModel );
+  }
+
   /**
    * package-local visibility for testing purposes
    */
@@ -0,0 +1,133 @@
+/*!
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+ */
+
+package org.pentaho.common.ui.metadata.service;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.pentaho.common.ui.Const;
+import org.pentaho.platform.engine.core.system.PentahoSystem;
+
+/**
+ * Reads the metadata service tuning options from the plugin's settings.xml. Every lookup falls back to the supplied
+ * default when the platform is not initialized (e.g. in unit tests) or when the configured value cannot be parsed.
+ */
+final class MetadataSettings {
+
+  static final String SETTINGS_FILE = Const.PLUGIN_ID + "/settings.xml"; //$NON-NLS-1$
+
+  static final String MODEL_CACHE_SIZE = "metadata-model-cache-size"; //$NON-NLS-1$
+
+  static final String MODEL_JSON_SNAPSHOTS = "metadata-model-json-snapshots"; //$NON-NLS-1$
+
+  static final String QUERY_PLAN_CACHE_SIZE = "metadata-query-plan-cache-size"; //$NON-NLS-1$
+
+  static final String QUERY_THREADS = "metadata-query-threads"; //$NON-NLS-1$
+
+  static final String QUERY_QUEUE_SIZE = "metadata-query-queue-size"; //$NON-NLS-1$
+
+  static final String QUERY_VIRTUAL_THREADS = "metadata-query-virtual-threads"; //$NON-NLS-1$
+
+  static final String QUERY_RESULT_TTL = "metadata-query-result-ttl"; //$NON-NLS-1$
+
+  static final String QUERY_TIMEOUT = "metadata-query-timeout"; //$NON-NLS-1$
+
+  static final String ASYNC_QUERY_TIMEOUT = "metadata-async-query-timeout"; //$NON-NLS-1$
+
+  static final String QUERY_MAX_CONCURRENT = "metadata-query-max-concurrent"; //$NON-NLS-1$
+
+  static final String QUERY_MAX_CONCURRENT_PER_USER = "metadata-query-max-concurrent-per-user"; //$NON-NLS-1$
+
+  static final String QUERY_MAX_WAITING = "metadata-query-max-waiting"; //$NON-NLS-1$
+
+  static final String QUERY_ADMISSION_TIMEOUT = "metadata-query-admission-timeout"; //$NON-NLS-1$
+
+  static final String RESULT_CACHE_ENABLED = "metadata-result-cache-enabled"; //$NON-NLS-1$
+
+  static final String RESULT_CACHE_SIZE = "metadata-result-cache-size"; //$NON-NLS-1$
+
+  static final String RESULT_CACHE_MAX_BYTES = "metadata-result-cache-max-bytes"; //$NON-NLS-1$
+
+  static final String RESULT_CACHE_TTL = "metadata-result-cache-ttl"; //$NON-NLS-1$
+
+  static final String PAGING_CACHE_SIZE = "metadata-paging-cache-size"; //$NON-NLS-1$
+
+  static final String PAGING_CACHE_MAX_BYTES = "metadata-paging-cache-max-bytes"; //$NON-NLS-1$
+
+  static final String PAGING_CACHE_TTL = "metadata-paging-cache-ttl"; //$NON-NLS-1$
+
+  static final String PAGING_MAX_ROWS = "metadata-paging-max-rows"; //$NON-NLS-1$
+
+  static final String DOMAIN_SCAN_THREADS = "metadata-domain-scan-threads"; //$NON-NLS-1$
+
+  static final String MODEL_CATALOG_ENABLED = "metadata-model-catalog-enabled"; //$NON-NLS-1$
+
+  static final String MODEL_SEARCH_LIMIT = "metadata-model-search-limit"; //$NON-NLS-1$
+
+  static final String MODEL_HISTORY_SIZE = "metadata-model-history-size"; //$NON-NLS-1$
+
+  static final String IN_LIST_PARAMETER_THRESHOLD = "metadata-in-list-parameter-threshold"; //$NON-NLS-1$
+
+  static final String STRICT_OPERATORS = "metadata-strict-operators"; //$NON-NLS-1$
+
+  private static final Log logger = LogFactory.getLog( MetadataSettings.class );
+
+  private MetadataSettings() {
+  }
+
+  /**
+   * Returns the raw value of a setting, or the default value if it is not set
+   *
+   * @param name
+   * @param defaultValue
+   * @return
+   */
+  static String getSetting( String name, String defaultValue ) {
+    try {
+      String value = PentahoSystem.getSystemSetting( SETTINGS_FILE, name, defaultValue );
+      return value != null ? value.trim() : defaultValue;
+    } catch ( Exception e ) {
+      // the platform has not been started, use the default
+      return defaultValue;
+    }
+  }
+
+  static int getIntSetting( String name, int defaultValue ) {
+    return (int) getLongSetting( name, defaultValue );
+  }
+
+  static long getLongSetting( String name, long defaultValue ) {
+    String value = getSetting( name, null );
+    if ( value == null || value.length() == 0 ) {
+      return defaultValue;
+    }
+    try {
+      return Long.parseLong( value );
+    } catch ( NumberFormatException e ) {
+      logger.warn( "Invalid value for setting " + name + ": " + value ); //$NON-NLS-1$ //$NON-NLS-2$
+      return defaultValue;
+    }
+  }
+
+  static boolean getBooleanSetting( String name, boolean defaultValue ) {
+    String value = getSetting( name, null );
+    if ( value == null || value.length() == 0 ) {
+      return defaultValue;
+    }
+    return Boolean.parseBoolean( value );
+  }
+}
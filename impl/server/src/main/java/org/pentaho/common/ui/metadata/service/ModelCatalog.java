@@ -0,0 +1,364 @@
+/*!
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+ */
+
+package org.pentaho.common.ui.metadata.service;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.pentaho.metadata.model.Domain;
+import org.pentaho.metadata.model.LogicalModel;
+import org.pentaho.metadata.repository.IMetadataDomainRepository;
+
+/**
+ * A lightweight catalog of the models of each domain: their ids, visibility and localized names and descriptions. The
+ * model lists only need these, so they are answered from the catalog instead of walking the logical models of the
+ * domains.
+ * <p>
+ * Every lookup asks the repository for the domain, so the repository checks that the caller may read it, and the entry
+ * is only served if it was built from the domain instance the repository returns. The repository hands out a new
+ * instance whenever a domain is stored again, so a republished domain is never listed from a stale entry (see
+ * {@link DomainCache}). An entry is only dropped when the repository no longer returns its domain.
+ */
+public class ModelCatalog {
+
+  private final boolean enabled;
+
+  private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+  /**
+   * @param enabled
+   *          if false the catalog is not used, the model lists walk the models of the domains
+   */
+  public ModelCatalog( boolean enabled ) {
+    this.enabled = enabled;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Returns the entry of a domain, building it if there is none or it was built from another version of the domain
+   *
+   * @param domainId
+   * @param repo
+   * @return the entry, or null if the domain does not exist or the caller may not read it
+   */
+  public Entry getEntry( String domainId, IMetadataDomainRepository repo ) {
+    Domain domain = repo.getDomain( domainId );
+    if ( domain == null ) {
+      entries.remove( domainId );
+      return null;
+    }
+    Entry entry = entries.get( domainId );
+    if ( entry != null && entry.getDomain() == domain ) {
+      return entry;
+    }
+    entry = new Entry( domainId, domain );
+    entries.put( domainId, entry );
+    return entry;
+  }
+
+  /**
+   * Drops the entry of a domain. Entries are checked against the repository on every lookup, this only frees the
+   * memory of a domain that has been removed.
+   *
+   * @param domainId
+   */
+  public void invalidate( String domainId ) {
+    entries.remove( domainId );
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * The models of a domain
+   */
+  public static final class Entry {
+
+    private final String domainId;
+
+    // do not keep old versions of a domain alive just because their models were listed
+    private final WeakReference<Domain> domain;
+
+    private final String[] localeCodes;
+
+    private final List<Model> models;
+
+    // the positions of the models by visibility context, built when the entry is first filtered
+    private volatile VisibilityIndex visibilityIndex;
+
+    // the search index of the models by locale, built when the entry is first searched in a locale
+    private final ConcurrentMap<String, ModelSearch.Index> searchIndexes =
+        new ConcurrentHashMap<String, ModelSearch.Index>();
+
+    Entry( String domainId, Domain domain ) {
+      this.domainId = domainId;
+      this.domain = new WeakReference<Domain>( domain );
+      String[] codes = domain.getLocaleCodes();
+      this.localeCodes = codes != null ? codes.clone() : new String[0];
+      List<Model> list = new ArrayList<Model>();
+      for ( LogicalModel logicalModel : domain.getLogicalModels() ) {
+        list.add( new Model( logicalModel, localeCodes ) );
+      }
+      this.models = Collections.unmodifiableList( list );
+    }
+
+    public String getDomainId() {
+      return domainId;
+    }
+
+    Domain getDomain() {
+      return domain.get();
+    }
+
+    /**
+     * Returns the locales of the domain
+     *
+     * @return
+     */
+    public String[] getLocaleCodes() {
+      return localeCodes.clone();
+    }
+
+    /**
+     * Determines whether the names of the models are known for a locale, i.e. it is one of the locales of the domain
+     *
+     * @param locale
+     * @return
+     */
+    public boolean hasLocale( String locale ) {
+      for ( String code : localeCodes ) {
+        if ( code.equals( locale ) ) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    public List<Model> getModels() {
+      return models;
+    }
+
+    /**
+     * Returns the models visible in a context, in the order of the domain: the models without a "visible" property and
+     * the ones that list the context. Only these models are visited, not all of the models of the domain.
+     *
+     * @param context
+     * @return
+     */
+    public List<Model> getVisibleModels( String context ) {
+      int[] positions = getVisiblePositions( context );
+      List<Model> visible = new ArrayList<Model>( positions.length );
+      for ( int position : positions ) {
+        visible.add( models.get( position ) );
+      }
+      return visible;
+    }
+
+    /**
+     * Finds the models visible in a context whose name or description contain a text, see {@link ModelSearch}. The
+     * search index of a locale is kept with the entry, so a search only ranks the models that may contain the text.
+     *
+     * @param context
+     * @param locale
+     *          one of the locales of the domain
+     * @param match
+     *          the text folded for the locale
+     * @return the models found and their ranks, in the order of the domain
+     */
+    List<ModelSearch.Hit<Model>> search( String context, String locale, String match ) {
+      ModelSearch.Index index = searchIndexes.get( locale );
+      if ( index == null ) {
+        String[] names = new String[models.size()];
+        String[] descriptions = new String[models.size()];
+        for ( int i = 0; i < models.size(); i++ ) {
+          Model model = models.get( i );
+          names[i] = ModelSearch.fold( model.getName( locale ), locale );
+          descriptions[i] = model.hasDescription() ? ModelSearch.fold( model.getDescription( locale ), locale ) : null;
+        }
+        index = new ModelSearch.Index( names, descriptions );
+        searchIndexes.put( locale, index );
+      }
+      int[] positions = getVisiblePositions( context );
+      int[] candidates = index.getCandidates( match );
+      if ( candidates != null ) {
+        positions = ModelSearch.intersect( positions, candidates );
+      }
+      List<ModelSearch.Hit<Model>> hits = new ArrayList<ModelSearch.Hit<Model>>();
+      for ( int position : positions ) {
+        int rank = index.rank( position, match );
+        if ( rank != ModelSearch.NO_MATCH ) {
+          hits.add( new ModelSearch.Hit<Model>( models.get( position ), rank ) );
+        }
+      }
+      return hits;
+    }
+
+    private int[] getVisiblePositions( String context ) {
+      VisibilityIndex index = visibilityIndex;
+      if ( index == null ) {
+        index = new VisibilityIndex( models );
+        visibilityIndex = index;
+      }
+      int[] unrestricted = index.unrestricted;
+      int[] restricted = context != null ? index.restricted.get( context ) : null;
+      if ( restricted == null ) {
+        return unrestricted;
+      }
+      // merge the two sorted position lists
+      int[] positions = new int[unrestricted.length + restricted.length];
+      int u = 0;
+      int r = 0;
+      for ( int i = 0; i < positions.length; i++ ) {
+        if ( r == restricted.length || u < unrestricted.length && unrestricted[u] < restricted[r] ) {
+          positions[i] = unrestricted[u++];
+        } else {
+          positions[i] = restricted[r++];
+        }
+      }
+      return positions;
+    }
+  }
+
+  /**
+   * The positions of the models without a "visible" property, and of the other models by the contexts they are
+   * visible in
+   */
+  private static final class VisibilityIndex {
+
+    private final int[] unrestricted;
+
+    private final Map<String, int[]> restricted = new HashMap<String, int[]>();
+
+    VisibilityIndex( List<Model> models ) {
+      List<Integer> all = new ArrayList<Integer>();
+      Map<String, List<Integer>> byContext = new HashMap<String, List<Integer>>();
+      for ( int i = 0; i < models.size(); i++ ) {
+        Set<String> contexts = models.get( i ).contexts;
+        if ( contexts == null ) {
+          all.add( i );
+          continue;
+        }
+        for ( String context : contexts ) {
+          List<Integer> positions = byContext.get( context );
+          if ( positions == null ) {
+            positions = new ArrayList<Integer>();
+            byContext.put( context, positions );
+          }
+          positions.add( i );
+        }
+      }
+      unrestricted = toArray( all );
+      for ( Map.Entry<String, List<Integer>> entry : byContext.entrySet() ) {
+        restricted.put( entry.getKey(), toArray( entry.getValue() ) );
+      }
+    }
+
+    private static int[] toArray( List<Integer> list ) {
+      int[] array = new int[list.size()];
+      for ( int i = 0; i < array.length; i++ ) {
+        array[i] = list.get( i );
+      }
+      return array;
+    }
+  }
+
+  /**
+   * What the model lists need of a logical model
+   */
+  public static final class Model {
+
+    private final String id;
+
+    private final String visible;
+
+    // the contexts of the "visible" property, split once; null if the model is visible in every context
+    private final Set<String> contexts;
+
+    private final Map<String, String> names = new HashMap<String, String>();
+
+    private final Map<String, String> descriptions;
+
+    Model( LogicalModel logicalModel, String[] localeCodes ) {
+      this.id = logicalModel.getId();
+      this.visible = (String) logicalModel.getProperty( "visible" ); //$NON-NLS-1$
+      if ( visible != null ) {
+        contexts = new HashSet<String>();
+        for ( String context : visible.split( "," ) ) { //$NON-NLS-1$
+          // there are few distinct contexts, shared by many models
+          contexts.add( context.intern() );
+        }
+      } else {
+        contexts = null;
+      }
+      this.descriptions = logicalModel.getDescription() != null ? new HashMap<String, String>() : null;
+      for ( String locale : localeCodes ) {
+        names.put( locale, logicalModel.getName( locale ) );
+        if ( descriptions != null ) {
+          descriptions.put( locale, logicalModel.getDescription( locale ) );
+        }
+      }
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    /**
+     * Returns the "visible" property of the model, the comma separated contexts the model is visible in
+     *
+     * @return
+     */
+    public String getVisible() {
+      return visible;
+    }
+
+    /**
+     * Determines whether the model is visible in a context
+     *
+     * @param context
+     * @return
+     */
+    public boolean isVisible( String context ) {
+      return contexts == null || contexts.contains( context );
+    }
+
+    public String getName( String locale ) {
+      return names.get( locale );
+    }
+
+    public boolean hasDescription() {
+      return descriptions != null;
+    }
+
+    public String getDescription( String locale ) {
+      return descriptions != null ? descriptions.get( locale ) : null;
+    }
+  }
+}
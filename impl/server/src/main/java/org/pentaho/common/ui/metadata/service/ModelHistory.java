@@ -0,0 +1,266 @@
+/*!
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+ */
+
+package org.pentaho.common.ui.metadata.service;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.pentaho.common.ui.metadata.model.impl.Category;
+import org.pentaho.common.ui.metadata.model.impl.CategoryDelta;
+import org.pentaho.common.ui.metadata.model.impl.Column;
+import org.pentaho.common.ui.metadata.model.impl.Model;
+import org.pentaho.common.ui.metadata.model.impl.ModelDelta;
+
+import flexjson.JSONSerializer;
+
+/**
+ * Remembers the recent versions of thin models, so the changes between a version a client has and the current version
+ * can be sent instead of the whole model. Changes are found per column: only a fingerprint of each category header and
+ * of each column is kept per version, not the model itself.
+ *
+ * The version token of a model is the digest of its JSON, see {@link ModelJsonSnapshot#getVersion()}. The fingerprints
+ * are only computed when a delta is asked for, loading a model does not version it.
+ *
+ * Only the thin models of {@link MetadataService} are versioned. The thin model of {@link MetadataService2} is a
+ * platform class without a version, so its clients always load the whole model.
+ *
+ * Unlike the model cache the history is not dropped when a domain is stored again, the older versions are exactly what
+ * it is for. The least recently used versions are dropped when there are too many.
+ */
+public class ModelHistory {
+
+  private static final Charset UTF_8 = Charset.forName( "UTF-8" ); //$NON-NLS-1$
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray(); //$NON-NLS-1$
+
+  private final LinkedHashMap<String, Version> versions;
+
+  /**
+   * Creates a history
+   *
+   * @param maxVersions
+   *          the maximum number of versions remembered, deltas are always complete if zero
+   */
+  public ModelHistory( final int maxVersions ) {
+    versions = new LinkedHashMap<String, Version>( 16, 0.75f, true ) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry( Map.Entry<String, Version> eldest ) {
+        return size() > maxVersions;
+      }
+    };
+  }
+
+  /**
+   * Returns the changes to a model since an older version
+   *
+   * @param model
+   *          the current version of the model
+   * @param version
+   *          the version token of the model
+   * @param fromVersion
+   *          the version of the client, may be null
+   * @return
+   */
+  public ModelDelta getDelta( Model model, String version, String fromVersion ) {
+    Version current = get( version );
+    if ( current == null ) {
+      // not versioned yet, or forgotten since
+      current = new Version( model, version );
+      put( current );
+    }
+    Version old = get( fromVersion );
+    if ( old != null && !( old.modelId.equals( current.modelId ) && old.domainId.equals( current.domainId ) ) ) {
+      // a version of another model
+      old = null;
+    }
+
+    ModelDelta delta = new ModelDelta();
+    delta.setId( model.getId() );
+    delta.setDomainId( model.getDomainId() );
+    delta.setName( model.getName() );
+    delta.setDescription( model.getDescription() );
+    delta.setFromVersion( fromVersion );
+    delta.setVersion( current.token );
+    delta.setComplete( old == null );
+
+    List<CategoryDelta> changed = new ArrayList<CategoryDelta>();
+    for ( Category category : getCategories( model ) ) {
+      CategoryVersion currentCategory = current.categories.get( category.getId() );
+      CategoryVersion oldCategory = old != null ? old.categories.get( category.getId() ) : null;
+      if ( oldCategory == null ) {
+        changed.add( createDelta( category, currentCategory, null ) );
+      } else if ( !currentCategory.equals( oldCategory ) ) {
+        changed.add( createDelta( category, currentCategory, oldCategory ) );
+      }
+    }
+    delta.setCategories( changed.toArray( new CategoryDelta[changed.size()] ) );
+    delta.setRemovedCategoryIds( getRemovedIds( current.categories, old != null ? old.categories : null ) );
+    delta.setCategoryIds( current.categories.keySet().toArray( new String[current.categories.size()] ) );
+    return delta;
+  }
+
+  /**
+   * Creates the changes to a category
+   *
+   * @param category
+   * @param current
+   *          the fingerprints of the category
+   * @param old
+   *          the fingerprints of the category in the client's version, null if the client does not have it
+   * @return
+   */
+  private static CategoryDelta createDelta( Category category, CategoryVersion current, CategoryVersion old ) {
+    CategoryDelta delta = new CategoryDelta();
+    delta.setId( category.getId() );
+    delta.setName( category.getName() );
+    delta.setDescription( category.getDescription() );
+    delta.setColumnCount( category.getColumnCount() );
+    delta.setComplete( old == null );
+    Column[] columns = getColumns( category );
+    List<Column> changed = new ArrayList<Column>( old == null ? columns.length : 4 );
+    for ( Column column : columns ) {
+      if ( old == null || !current.columns.get( column.getId() ).equals( old.columns.get( column.getId() ) ) ) {
+        changed.add( column );
+      }
+    }
+    delta.setColumns( changed.toArray( new Column[changed.size()] ) );
+    delta.setRemovedColumnIds( getRemovedIds( current.columns, old != null ? old.columns : null ) );
+    delta.setColumnIds( current.columns.keySet().toArray( new String[current.columns.size()] ) );
+    return delta;
+  }
+
+  private static String[] getRemovedIds( Map<String, ?> current, Map<String, ?> old ) {
+    List<String> removed = new ArrayList<String>();
+    if ( old != null ) {
+      for ( String id : old.keySet() ) {
+        if ( !current.containsKey( id ) ) {
+          removed.add( id );
+        }
+      }
+    }
+    return removed.toArray( new String[removed.size()] );
+  }
+
+  public int size() {
+    synchronized ( versions ) {
+      return versions.size();
+    }
+  }
+
+  private void put( Version version ) {
+    synchronized ( versions ) {
+      versions.put( version.token, version );
+    }
+  }
+
+  private Version get( String token ) {
+    if ( token == null ) {
+      return null;
+    }
+    synchronized ( versions ) {
+      return versions.get( token );
+    }
+  }
+
+  private static Category[] getCategories( Model model ) {
+    return model.getCategories() != null ? model.getCategories() : new Category[0];
+  }
+
+  private static Column[] getColumns( Category category ) {
+    return category.getColumns() != null ? category.getColumns() : new Column[0];
+  }
+
+  /**
+   * The fingerprints of the categories of a version of a model
+   */
+  private static final class Version {
+
+    private final String domainId;
+
+    private final String modelId;
+
+    // category id -> fingerprints, in the order of the model
+    private final Map<String, CategoryVersion> categories = new LinkedHashMap<String, CategoryVersion>();
+
+    private final String token;
+
+    Version( Model model, String token ) {
+      this.domainId = String.valueOf( model.getDomainId() );
+      this.modelId = String.valueOf( model.getId() );
+      this.token = token;
+      JSONSerializer serializer = new JSONSerializer();
+      for ( Category category : getCategories( model ) ) {
+        categories.put( category.getId(), new CategoryVersion( category, serializer ) );
+      }
+    }
+  }
+
+  /**
+   * The fingerprint of the name, description and column count of a category and the fingerprints of its columns
+   */
+  private static final class CategoryVersion {
+
+    private final String header;
+
+    // column id -> fingerprint, in the order of the category
+    private final Map<String, String> columns = new LinkedHashMap<String, String>();
+
+    CategoryVersion( Category category, JSONSerializer serializer ) {
+      this.header =
+          digest( category.getName() + '\n' + category.getDescription() + '\n' + category.getColumnCount() );
+      for ( Column column : getColumns( category ) ) {
+        columns.put( column.getId(), digest( serializer.deepSerialize( column ) ) );
+      }
+    }
+
+    @Override
+    public boolean equals( Object obj ) {
+      if ( !( obj instanceof CategoryVersion ) ) {
+        return false;
+      }
+      CategoryVersion other = (CategoryVersion) obj;
+      return header.equals( other.header ) && columns.equals( other.columns );
+    }
+
+    @Override
+    public int hashCode() {
+      return header.hashCode();
+    }
+  }
+
+  private static String digest( String text ) {
+    try {
+      byte[] digest = MessageDigest.getInstance( "SHA-256" ).digest( text.getBytes( UTF_8 ) ); //$NON-NLS-1$
+      StringBuilder sb = new StringBuilder( digest.length * 2 );
+      for ( byte b : digest ) {
+        sb.append( HEX[( b >> 4 ) & 0xf] ).append( HEX[b & 0xf] );
+      }
+      return sb.toString();
+    } catch ( NoSuchAlgorithmException e ) {
+      // every JRE has to provide SHA-256
+      throw new IllegalStateException( e );
+    }
+  }
+}
@@ -0,0 +1,157 @@
+/*!
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+ */
+
+package org.pentaho.common.ui.metadata.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.StringTokenizer;
+
+/**
+ * The serialized JSON form of a thin model, together with a strong entity tag computed from its content. Snapshots are
+ * immutable and are shared between requests, so they can be written to a response without serializing the model
+ * again. The UTF-8 encoding and the entity tag are only computed when first asked for, callers that just want the
+ * string do not pay for them.
+ */
+public class ModelJsonSnapshot implements Serializable {
+
+  private static final long serialVersionUID = 4101466718352880373L;
+
+  private static final Charset UTF_8 = Charset.forName( "UTF-8" ); //$NON-NLS-1$
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray(); //$NON-NLS-1$
+
+  private final String json;
+
+  // computed on first use, racing threads compute the same values
+  private transient volatile byte[] bytes;
+
+  private transient volatile String etag;
+
+  public ModelJsonSnapshot( String json ) {
+    this.json = json;
+  }
+
+  /**
+   * Returns the strong entity tag of the JSON, including the surrounding quotes
+   *
+   * @return
+   */
+  public String getETag() {
+    String result = etag;
+    if ( result == null ) {
+      result = createETag( getBytes() );
+      etag = result;
+    }
+    return result;
+  }
+
+  /**
+   * Returns the version token of the model, the entity tag without its quotes. It can be passed to
+   * {@link MetadataService#loadModelDelta(String, String, String)} later to get the changes since.
+   *
+   * @return
+   */
+  public String getVersion() {
+    String tag = getETag();
+    return tag.substring( 1, tag.length() - 1 );
+  }
+
+  /**
+   * Returns the number of bytes of the UTF-8 encoded JSON
+   *
+   * @return
+   */
+  public int getLength() {
+    return getBytes().length;
+  }
+
+  /**
+   * Writes the UTF-8 encoded JSON to a stream
+   *
+   * @param output
+   * @throws IOException
+   */
+  public void writeTo( OutputStream output ) throws IOException {
+    output.write( getBytes() );
+  }
+
+  /**
+   * Determines whether an If-None-Match request header matches this snapshot, in which case the client's copy is
+   * current and a 304 can be sent instead of the JSON
+   *
+   * @param ifNoneMatch
+   *          the value of the header, may be null
+   * @return
+   */
+  public boolean matches( String ifNoneMatch ) {
+    if ( ifNoneMatch == null ) {
+      return false;
+    }
+    StringTokenizer tokenizer = new StringTokenizer( ifNoneMatch, "," ); //$NON-NLS-1$
+    while ( tokenizer.hasMoreTokens() ) {
+      String tag = tokenizer.nextToken().trim();
+      if ( tag.equals( "*" ) ) { //$NON-NLS-1$
+        return true;
+      }
+      // If-None-Match uses the weak comparison
+      if ( tag.startsWith( "W/" ) ) { //$NON-NLS-1$
+        tag = tag.substring( 2 );
+      }
+      if ( tag.equals( getETag() ) ) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the JSON as a string
+   */
+  @Override
+  public String toString() {
+    return json;
+  }
+
+  private byte[] getBytes() {
+    byte[] result = bytes;
+    if ( result == null ) {
+      result = json.getBytes( UTF_8 );
+      bytes = result;
+    }
+    return result;
+  }
+
+  private static String createETag( byte[] bytes ) {
+    try {
+      byte[] digest = MessageDigest.getInstance( "SHA-256" ).digest( bytes ); //$NON-NLS-1$
+      StringBuilder sb = new StringBuilder( digest.length * 2 + 2 );
+      sb.append( '"' );
+      for ( byte b : digest ) {
+        sb.append( HEX[( b >> 4 ) & 0xf] ).append( HEX[b & 0xf] );
+      }
+      return sb.append( '"' ).toString();
+    } catch ( NoSuchAlgorithmException e ) {
+      // every JRE has to provide SHA-256
+      throw new IllegalStateException( e );
+    }
+  }
+}
@@ -0,0 +1,299 @@
+/*!
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+ */
+
+package org.pentaho.common.ui.metadata.service;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Matches model names and descriptions against the text typed in the model chooser. Texts are compared folded: lower
+ * cased by the rules of their locale, without accents, so "cafe" finds "Caf&eacute;". The models found are ranked by
+ * where the text was found, best first:
+ * <ol>
+ * <li>the name is the text</li>
+ * <li>the name starts with the text</li>
+ * <li>a word of the name starts with the text</li>
+ * <li>the name contains the text</li>
+ * <li>the description contains the text</li>
+ * </ol>
+ * A list searched again and again, like the models of a catalog entry, is searched through an {@link Index} of its
+ * folded texts instead of comparing the text with every item.
+ */
+final class ModelSearch {
+
+  static final int NO_MATCH = -1;
+
+  static final int EXACT = 0;
+
+  static final int PREFIX = 1;
+
+  static final int WORD_PREFIX = 2;
+
+  static final int SUBSTRING = 3;
+
+  static final int DESCRIPTION = 4;
+
+  private static final Pattern MARKS = Pattern.compile( "\\p{InCombiningDiacriticalMarks}+" ); //$NON-NLS-1$
+
+  private ModelSearch() {
+  }
+
+  /**
+   * Folds a text for comparison
+   *
+   * @param text
+   * @param locale
+   *          the locale of the text, e.g. "en_US", may be null
+   * @return the folded text, or null if the text is null
+   */
+  static String fold( String text, String locale ) {
+    if ( text == null ) {
+      return null;
+    }
+    String lower = text.toLowerCase( toLocale( locale ) );
+    String decomposed = Normalizer.normalize( lower, Normalizer.Form.NFD );
+    if ( decomposed.length() == lower.length() ) {
+      // nothing was decomposed, so there are no accents to remove
+      return lower;
+    }
+    return MARKS.matcher( decomposed ).replaceAll( "" ); //$NON-NLS-1$
+  }
+
+  /**
+   * Ranks a model by where a text was found in its name or description
+   *
+   * @param name
+   *          the folded name, may be null
+   * @param description
+   *          the folded description, may be null
+   * @param match
+   *          the folded text
+   * @return one of the ranks, or NO_MATCH
+   */
+  static int rank( String name, String description, String match ) {
+    if ( name != null ) {
+      if ( name.startsWith( match ) ) {
+        return name.length() == match.length() ? EXACT : PREFIX;
+      }
+      int index = name.indexOf( match, 1 );
+      if ( index > 0 ) {
+        for ( ; index > 0; index = name.indexOf( match, index + 1 ) ) {
+          if ( !Character.isLetterOrDigit( name.charAt( index - 1 ) ) ) {
+            return WORD_PREFIX;
+          }
+        }
+        return SUBSTRING;
+      }
+    }
+    if ( description != null && description.indexOf( match ) >= 0 ) {
+      return DESCRIPTION;
+    }
+    return NO_MATCH;
+  }
+
+  /**
+   * Returns the items found, best ranked first
+   *
+   * @param hits
+   * @param order
+   *          the order of equally ranked items
+   * @param limit
+   *          the maximum number of items to return, no limit if zero or less
+   * @return
+   */
+  static <T> List<T> top( List<Hit<T>> hits, final Comparator<? super T> order, int limit ) {
+    Collections.sort( hits, new Comparator<Hit<T>>() {
+      public int compare( Hit<T> hit1, Hit<T> hit2 ) {
+        if ( hit1.rank != hit2.rank ) {
+          return hit1.rank < hit2.rank ? -1 : 1;
+        }
+        return order.compare( hit1.item, hit2.item );
+      }
+    } );
+    int size = limit > 0 ? Math.min( limit, hits.size() ) : hits.size();
+    List<T> items = new ArrayList<T>( size );
+    for ( int i = 0; i < size; i++ ) {
+      items.add( hits.get( i ).item );
+    }
+    return items;
+  }
+
+  private static Locale toLocale( String locale ) {
+    if ( locale == null || locale.length() == 0 ) {
+      return Locale.ROOT;
+    }
+    String[] parts = locale.split( "_", 3 ); //$NON-NLS-1$
+    return parts.length == 1 ? new Locale( parts[0] ) : parts.length == 2 ? new Locale( parts[0], parts[1] )
+        : new Locale( parts[0], parts[1], parts[2] );
+  }
+
+  /**
+   * The folded names and descriptions of a list of items, indexed by the three character tokens they contain. Only the
+   * items that contain every token of a text can contain the text, so a search ranks those instead of every item. A
+   * text shorter than a token narrows nothing down, such a text is found in most items anyway.
+   */
+  static final class Index {
+
+    static final int TOKEN_LENGTH = 3;
+
+    private static final int[] NONE = new int[0];
+
+    private final String[] names;
+
+    private final String[] descriptions;
+
+    // token -> positions of the items containing it, ascending
+    private final Map<String, int[]> tokens = new HashMap<String, int[]>();
+
+    /**
+     * @param names
+     *          the folded names of the items, may contain nulls
+     * @param descriptions
+     *          the folded descriptions of the items, may contain nulls
+     */
+    Index( String[] names, String[] descriptions ) {
+      this.names = names;
+      this.descriptions = descriptions;
+      Map<String, List<Integer>> positions = new HashMap<String, List<Integer>>();
+      for ( int i = 0; i < names.length; i++ ) {
+        addTokens( positions, names[i], i );
+        addTokens( positions, descriptions[i], i );
+      }
+      for ( Map.Entry<String, List<Integer>> entry : positions.entrySet() ) {
+        List<Integer> list = entry.getValue();
+        int[] array = new int[list.size()];
+        for ( int i = 0; i < array.length; i++ ) {
+          array[i] = list.get( i );
+        }
+        tokens.put( entry.getKey(), array );
+      }
+    }
+
+    int size() {
+      return names.length;
+    }
+
+    /**
+     * Returns the positions of the items that may contain a text
+     *
+     * @param match
+     *          the folded text
+     * @return the positions, ascending, or null if any item may contain the text
+     */
+    int[] getCandidates( String match ) {
+      if ( match.length() < TOKEN_LENGTH ) {
+        return null;
+      }
+      int[] candidates = null;
+      for ( int i = 0; i + TOKEN_LENGTH <= match.length(); i++ ) {
+        int[] positions = tokens.get( match.substring( i, i + TOKEN_LENGTH ) );
+        if ( positions == null ) {
+          return NONE;
+        }
+        candidates = candidates == null ? positions : intersect( candidates, positions );
+        if ( candidates.length == 0 ) {
+          return NONE;
+        }
+      }
+      return candidates;
+    }
+
+    /**
+     * Ranks an item, see {@link ModelSearch#rank(String, String, String)}
+     *
+     * @param position
+     * @param match
+     *          the folded text
+     * @return
+     */
+    int rank( int position, String match ) {
+      return ModelSearch.rank( names[position], descriptions[position], match );
+    }
+
+    private static void addTokens( Map<String, List<Integer>> positions, String text, int position ) {
+      if ( text == null ) {
+        return;
+      }
+      for ( int i = 0; i + TOKEN_LENGTH <= text.length(); i++ ) {
+        String token = text.substring( i, i + TOKEN_LENGTH );
+        List<Integer> list = positions.get( token );
+        if ( list == null ) {
+          list = new ArrayList<Integer>( 4 );
+          positions.put( token, list );
+        }
+        // items are added in order, a repeated token of the same item is only listed once
+        if ( list.isEmpty() || list.get( list.size() - 1 ) != position ) {
+          list.add( position );
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the positions in both of two ascending position lists
+   *
+   * @param positions1
+   * @param positions2
+   * @return
+   */
+  static int[] intersect( int[] positions1, int[] positions2 ) {
+    int[] both = new int[Math.min( positions1.length, positions2.length )];
+    int size = 0;
+    int i1 = 0;
+    int i2 = 0;
+    while ( i1 < positions1.length && i2 < positions2.length ) {
+      if ( positions1[i1] < positions2[i2] ) {
+        i1++;
+      } else if ( positions1[i1] > positions2[i2] ) {
+        i2++;
+      } else {
+        both[size++] = positions1[i1];
+        i1++;
+        i2++;
+      }
+    }
+    if ( size == both.length ) {
+      return both;
+    }
+    int[] result = new int[size];
+    System.arraycopy( both, 0, result, 0, size );
+    return result;
+  }
+
+  /**
+   * An item found and its rank
+   */
+  static final class Hit<T> {
+
+    final T item;
+
+    final int rank;
+
+    Hit( T item, int rank ) {
+      this.item = item;
+      this.rank = rank;
+    }
+  }
+}
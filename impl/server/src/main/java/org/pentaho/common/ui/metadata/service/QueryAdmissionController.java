@@ -0,0 +1,338 @@
+/*!
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+ */
+
+package org.pentaho.common.ui.metadata.service;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Limits the number of metadata queries that run at the same time, in total and per user. Queries over the limits
+ * wait in a bounded queue. When a query finishes the next one is taken from the users in turn, so one user with many
+ * queued queries cannot keep the others waiting.
+ * <p>
+ * Queries that run on a shared pool are admitted before they are handed to the pool, so a pool thread never waits for
+ * its turn: the submitting thread calls {@link #acquire(String)} or {@link #tryAcquire(String)}, and the pool thread
+ * marks itself with {@link #setHeld(boolean)} while it runs the query.
+ */
+public class QueryAdmissionController {
+
+  // no limits unless they are configured
+  private static final int DEFAULT_MAX_CONCURRENT = 0;
+
+  private static final int DEFAULT_MAX_CONCURRENT_PER_USER = 0;
+
+  private static final int DEFAULT_MAX_WAITING = 100;
+
+  private static final long DEFAULT_TIMEOUT = 30000;
+
+  private static QueryAdmissionController instance;
+
+  private final int maxConcurrent;
+
+  private final int maxConcurrentPerUser;
+
+  private final int maxWaiting;
+
+  private final long timeout;
+
+  private final Map<String, Integer> activeByUser = new HashMap<String, Integer>();
+
+  /**
+   * The waiting queries of each user, in the order the users are served
+   */
+  private final LinkedHashMap<String, Deque<Waiter>> waiting = new LinkedHashMap<String, Deque<Waiter>>();
+
+  private int active;
+
+  private int waitingCount;
+
+  private long queuedCount;
+
+  private long rejectedCount;
+
+  private long timedOutCount;
+
+  // set on the threads that run a query admitted before it was handed to them
+  private final ThreadLocal<Boolean> held = new ThreadLocal<Boolean>();
+
+  /**
+   * @param maxConcurrent
+   *          the number of queries that run at the same time, 0 or less for no limit
+   * @param maxConcurrentPerUser
+   *          the number of queries of one user that run at the same time, 0 or less for no limit
+   * @param maxWaiting
+   *          the number of queries that may wait, more are rejected
+   * @param timeout
+   *          the time in milliseconds a query waits before it is rejected
+   */
+  QueryAdmissionController( int maxConcurrent, int maxConcurrentPerUser, int maxWaiting, long timeout ) {
+    this.maxConcurrent = maxConcurrent > 0 ? maxConcurrent : Integer.MAX_VALUE;
+    this.maxConcurrentPerUser = maxConcurrentPerUser > 0 ? maxConcurrentPerUser : Integer.MAX_VALUE;
+    this.maxWaiting = Math.max( 0, maxWaiting );
+    this.timeout = timeout;
+  }
+
+  public static synchronized QueryAdmissionController getInstance() {
+    if ( instance == null ) {
+      instance =
+          new QueryAdmissionController( MetadataSettings.getIntSetting( MetadataSettings.QUERY_MAX_CONCURRENT,
+              DEFAULT_MAX_CONCURRENT ), MetadataSettings.getIntSetting(
+              MetadataSettings.QUERY_MAX_CONCURRENT_PER_USER, DEFAULT_MAX_CONCURRENT_PER_USER ), MetadataSettings
+              .getIntSetting( MetadataSettings.QUERY_MAX_WAITING, DEFAULT_MAX_WAITING ), MetadataSettings
+              .getLongSetting( MetadataSettings.QUERY_ADMISSION_TIMEOUT, DEFAULT_TIMEOUT ) );
+    }
+    return instance;
+  }
+
+  /**
+   * Waits until a query of the user may run, for the configured time at most. A successful call has to be followed by
+   * a call to {@link #release(String)}.
+   * 
+   * @param user
+   *          the name of the user, null if there is no session
+   * @return false if the query has been rejected
+   * @throws InterruptedException
+   */
+  public boolean acquire( String user ) throws InterruptedException {
+    return acquire( user, timeout );
+  }
+
+  /**
+   * Waits until a query of the user may run. A successful call has to be followed by a call to
+   * {@link #release(String)}.
+   * 
+   * @param user
+   *          the name of the user, null if there is no session
+   * @param timeout
+   *          the maximum time to wait in milliseconds
+   * @return false if the query has been rejected
+   * @throws InterruptedException
+   */
+  public synchronized boolean acquire( String user, long timeout ) throws InterruptedException {
+    String key = user != null ? user : ""; //$NON-NLS-1$
+    if ( canAdmit( key ) ) {
+      admit( key );
+      return true;
+    }
+    if ( waitingCount >= maxWaiting ) {
+      rejectedCount++;
+      return false;
+    }
+
+    Waiter waiter = new Waiter();
+    Deque<Waiter> queue = waiting.get( key );
+    if ( queue == null ) {
+      queue = new ArrayDeque<Waiter>();
+      waiting.put( key, queue );
+    }
+    queue.add( waiter );
+    waitingCount++;
+    queuedCount++;
+    dispatch();
+
+    long deadline = System.currentTimeMillis() + timeout;
+    try {
+      while ( !waiter.admitted ) {
+        long remaining = deadline - System.currentTimeMillis();
+        if ( remaining <= 0 ) {
+          removeWaiter( key, waiter );
+          timedOutCount++;
+          return false;
+        }
+        wait( remaining );
+      }
+    } catch ( InterruptedException e ) {
+      if ( waiter.admitted ) {
+        // too late, give the slot to the next one
+        release( user );
+      } else {
+        removeWaiter( key, waiter );
+      }
+      throw e;
+    }
+    return true;
+  }
+
+  /**
+   * Admits a query of the user if it may run right away, without waiting. A successful call has to be followed by a
+   * call to {@link #release(String)}.
+   * 
+   * @param user
+   *          the name of the user, null if there is no session
+   * @return false if the query would have to wait
+   */
+  public synchronized boolean tryAcquire( String user ) {
+    String key = user != null ? user : ""; //$NON-NLS-1$
+    if ( !canAdmit( key ) ) {
+      return false;
+    }
+    admit( key );
+    return true;
+  }
+
+  /**
+   * Determines whether the current thread runs a query that was admitted before it was handed to the thread. Such a
+   * query must not be admitted again.
+   * 
+   * @return
+   */
+  public boolean isHeld() {
+    return Boolean.TRUE.equals( held.get() );
+  }
+
+  /**
+   * Marks the current thread as running a query that was admitted before it was handed to the thread
+   * 
+   * @param value
+   */
+  void setHeld( boolean value ) {
+    if ( value ) {
+      held.set( Boolean.TRUE );
+    } else {
+      held.remove();
+    }
+  }
+
+  /**
+   * Marks a query of the user as finished
+   * 
+   * @param user
+   */
+  public synchronized void release( String user ) {
+    String key = user != null ? user : ""; //$NON-NLS-1$
+    int count = getActive( key );
+    if ( count <= 0 ) {
+      return;
+    }
+    if ( count == 1 ) {
+      activeByUser.remove( key );
+    } else {
+      activeByUser.put( key, count - 1 );
+    }
+    active--;
+    dispatch();
+  }
+
+  /**
+   * Returns the number of queries that are running
+   * 
+   * @return
+   */
+  public synchronized int getActiveCount() {
+    return active;
+  }
+
+  /**
+   * Returns the number of queries that are waiting
+   * 
+   * @return
+   */
+  public synchronized int getWaitingCount() {
+    return waitingCount;
+  }
+
+  /**
+   * Returns the number of queries that had to wait since the start
+   * 
+   * @return
+   */
+  public synchronized long getQueuedCount() {
+    return queuedCount;
+  }
+
+  /**
+   * Returns the number of queries that were rejected because too many were waiting
+   * 
+   * @return
+   */
+  public synchronized long getRejectedCount() {
+    return rejectedCount;
+  }
+
+  /**
+   * Returns the number of queries that were rejected because they waited too long
+   * 
+   * @return
+   */
+  public synchronized long getTimedOutCount() {
+    return timedOutCount;
+  }
+
+  private int getActive( String key ) {
+    Integer count = activeByUser.get( key );
+    return count != null ? count : 0;
+  }
+
+  private boolean canAdmit( String key ) {
+    return waitingCount == 0 && active < maxConcurrent && getActive( key ) < maxConcurrentPerUser;
+  }
+
+  private void admit( String key ) {
+    activeByUser.put( key, getActive( key ) + 1 );
+    active++;
+  }
+
+  /**
+   * Admits waiting queries while there is room, one per user in turn
+   */
+  private void dispatch() {
+    boolean admitted = false;
+    while ( active < maxConcurrent ) {
+      String next = null;
+      for ( Map.Entry<String, Deque<Waiter>> entry : waiting.entrySet() ) {
+        if ( getActive( entry.getKey() ) < maxConcurrentPerUser ) {
+          next = entry.getKey();
+          break;
+        }
+      }
+      if ( next == null ) {
+        break;
+      }
+      // move the user to the end of the line
+      Deque<Waiter> queue = waiting.remove( next );
+      Waiter waiter = queue.poll();
+      if ( !queue.isEmpty() ) {
+        waiting.put( next, queue );
+      }
+      waitingCount--;
+      waiter.admitted = true;
+      admit( next );
+      admitted = true;
+    }
+    if ( admitted ) {
+      notifyAll();
+    }
+  }
+
+  private void removeWaiter( String key, Waiter waiter ) {
+    Deque<Waiter> queue = waiting.get( key );
+    if ( queue != null && queue.remove( waiter ) ) {
+      waitingCount--;
+      if ( queue.isEmpty() ) {
+        waiting.remove( key );
+      }
+    }
+  }
+
+  private static class Waiter {
+    private boolean admitted;
+  }
+}
@@ -0,0 +1,91 @@
+/*!
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+ */
+
+package org.pentaho.common.ui.metadata.service;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.pentaho.metadata.query.model.Query;
+
+import flexjson.JSONSerializer;
+
+/**
+ * A thin query converted into a full query, together with the MQL generated for it. Plans are cached per domain and
+ * shared between requests, neither the query nor the MQL may be modified.
+ */
+public class QueryPlan {
+
+  private static final Charset UTF_8 = Charset.forName( "UTF-8" ); //$NON-NLS-1$
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray(); //$NON-NLS-1$
+
+  private final Query query;
+
+  private final String xml;
+
+  public QueryPlan( Query query, String xml ) {
+    this.query = query;
+    this.xml = xml;
+  }
+
+  public Query getQuery() {
+    return query;
+  }
+
+  /**
+   * Returns the MQL of the query
+   * 
+   * @return
+   */
+  public String getXml() {
+    return xml;
+  }
+
+  /**
+   * Creates the context of a request that executes this plan. The context resolves the locale of the current request.
+   * 
+   * @return
+   */
+  public MetadataQueryContext createContext() {
+    return new MetadataQueryContext( xml, query.getDomain(), query.getLogicalModel() );
+  }
+
+  /**
+   * Returns the key of a thin query (v1 or v2) in the plan cache. Every property of the query is part of the key, two
+   * queries with the same key convert to the same full query.
+   * 
+   * @param thinQuery
+   * @return the SHA-256 digest of the canonical JSON form of the query
+   */
+  public static String createKey( Object thinQuery ) {
+    // flexjson writes the properties of a bean in name order
+    String canonical = new JSONSerializer().exclude( "*.class" ).deepSerialize( thinQuery ); //$NON-NLS-1$
+    try {
+      byte[] digest = MessageDigest.getInstance( "SHA-256" ).digest( canonical.getBytes( UTF_8 ) ); //$NON-NLS-1$
+      StringBuilder sb = new StringBuilder( digest.length * 2 );
+      for ( byte b : digest ) {
+        sb.append( HEX[( b >> 4 ) & 0xf] ).append( HEX[b & 0xf] );
+      }
+      return sb.toString();
+    } catch ( NoSuchAlgorithmException e ) {
+      // every JRE has to provide SHA-256
+      throw new IllegalStateException( e );
+    }
+  }
+}
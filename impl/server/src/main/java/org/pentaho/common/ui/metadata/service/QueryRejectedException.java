@@ -0,0 +1,33 @@
+/*!
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+ */
+
+package org.pentaho.common.ui.metadata.service;
+
+import org.pentaho.common.ui.messages.Messages;
+
+/**
+ * Thrown when a query is not admitted by the {@link QueryAdmissionController} because too many queries are running or
+ * waiting. Unlike a failed query, which gives no result, a rejected query can be sent again later.
+ */
+public class QueryRejectedException extends RuntimeException {
+
+  private static final long serialVersionUID = 6318072254719083525L;
+
+  public QueryRejectedException() {
+    super( Messages.getErrorString( "MetadataService.ERROR_0010_QUERY_NOT_ADMITTED" ) ); //$NON-NLS-1$
+  }
+}
@@ -0,0 +1,505 @@
+/*!
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+ */
+
+package org.pentaho.common.ui.metadata.service;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.pentaho.common.ui.messages.Messages;
+import org.pentaho.commons.connection.IPentahoMetaData;
+import org.pentaho.commons.connection.IPentahoResultSet;
+import org.pentaho.commons.connection.memory.MemoryResultSet;
+
+/**
+ * Keeps the results of metadata queries for a short time, so that widgets issuing the same query at about the same
+ * time do not all go to the database. Results are keyed by the MQL (which includes the parameter values), the row
+ * limit and the user, since the security constraints of a model depend on the user. When the same query is requested
+ * again while it is running, the callers wait for the running query instead of starting their own.
+ * 
+ * The cache is disabled unless metadata-result-cache-enabled is set.
+ */
+public class QueryResultCache {
+
+  private static final Log logger = LogFactory.getLog( QueryResultCache.class );
+
+  private static final int ROW_OVERHEAD = 16;
+
+  private static final int VALUE_OVERHEAD = 16;
+
+  // returned for a result that is larger than the cache may keep, it is not copied any further
+  private static final Snapshot TOO_LARGE = new Snapshot( null, new Object[0][], 0, 0 );
+
+  private final boolean enabled;
+
+  private final int maxEntries;
+
+  private final long maxBytes;
+
+  private final long ttl;
+
+  private final LinkedHashMap<Key, Snapshot> entries = new LinkedHashMap<Key, Snapshot>( 16, 0.75f, true );
+
+  private final ConcurrentMap<Key, FutureTask<Snapshot>> running = new ConcurrentHashMap<Key, FutureTask<Snapshot>>();
+
+  private long bytes;
+
+  private long hitCount;
+
+  private long missCount;
+
+  private long sharedCount;
+
+  private long evictionCount;
+
+  /**
+   * @param enabled
+   * @param maxEntries
+   *          the maximum number of results kept
+   * @param maxBytes
+   *          the maximum estimated size of the results kept, larger results are not cached
+   * @param ttl
+   *          the time in milliseconds a result is used
+   */
+  public QueryResultCache( boolean enabled, int maxEntries, long maxBytes, long ttl ) {
+    this.enabled = enabled && maxEntries > 0 && maxBytes > 0 && ttl > 0;
+    this.maxEntries = maxEntries;
+    this.maxBytes = maxBytes;
+    this.ttl = ttl;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Returns the result of a query, from the cache if it has been executed recently
+   * 
+   * @param xml
+   *          the MQL of the query
+   * @param rowLimit
+   * @param user
+   *          the name of the user, null if there is no session
+   * @param query
+   *          executes the query, returns null if the query failed
+   * @return a result set of its own for the caller, or null if the query failed
+   */
+  public IPentahoResultSet get( String xml, Integer rowLimit, String user, Callable<IPentahoResultSet> query ) {
+    if ( !enabled || xml == null ) {
+      return call( query );
+    }
+    IPentahoResultSet[] uncached = new IPentahoResultSet[1];
+    Snapshot snapshot = getSnapshot( xml, rowLimit, user, query, uncached );
+    if ( snapshot == TOO_LARGE ) {
+      // the caller that executed the query gets its result as is, the callers that waited for it execute it themselves
+      return uncached[0] != null ? uncached[0] : call( query );
+    }
+    return snapshot != null ? snapshot.createResultSet( 0, snapshot.rows.length ) : null;
+  }
+
+  /**
+   * Returns a window of the rows of a query. The whole result is kept, so the other pages of the query are taken from
+   * the cache as long as it has not expired. A result larger than the cache may keep is rejected: it could not be kept
+   * for the next pages, so each of them would execute and copy the query again.
+   * 
+   * @param xml
+   *          the MQL of the query
+   * @param rowLimit
+   * @param user
+   *          the name of the user, null if there is no session
+   * @param query
+   *          executes the query, returns null if the query failed
+   * @param offset
+   *          the index of the first row of the page
+   * @param limit
+   *          the maximum number of rows of the page, 0 or less for all remaining rows
+   * @return the page, or null if the query failed or its result is too large
+   */
+  public Page getPage( String xml, Integer rowLimit, String user, Callable<IPentahoResultSet> query, int offset,
+      int limit ) {
+    if ( !enabled || xml == null ) {
+      return createPage( call( query ), offset, limit );
+    }
+    IPentahoResultSet[] uncached = new IPentahoResultSet[1];
+    Snapshot snapshot = getSnapshot( xml, rowLimit, user, query, uncached );
+    if ( snapshot == TOO_LARGE ) {
+      if ( uncached[0] != null ) {
+        uncached[0].close();
+      }
+      logger.error( Messages.getErrorString( "MetadataService.ERROR_0014_RESULT_TOO_LARGE", //$NON-NLS-1$
+          String.valueOf( maxBytes ) ) );
+      return null;
+    }
+    if ( snapshot == null ) {
+      return null;
+    }
+    int total = snapshot.rows.length;
+    int from = Math.min( Math.max( 0, offset ), total );
+    int to = limit > 0 ? (int) Math.min( (long) from + limit, total ) : total;
+    return new Page( snapshot.createResultSet( from, to ), from, total );
+  }
+
+  /**
+   * Copies the rows of a page from a result and closes the result
+   * 
+   * @param resultSet
+   * @param offset
+   * @param limit
+   * @return the page, or null if there is no result
+   */
+  private static Page createPage( IPentahoResultSet resultSet, int offset, int limit ) {
+    if ( resultSet == null ) {
+      return null;
+    }
+    try {
+      int total = resultSet.getRowCount();
+      int from = Math.min( Math.max( 0, offset ), total );
+      int to = limit > 0 ? (int) Math.min( (long) from + limit, total ) : total;
+      int columnCount = resultSet.getColumnCount();
+      MemoryResultSet page = new MemoryResultSet( resultSet.getMetaData() );
+      for ( int r = from; r < to; r++ ) {
+        Object[] row = new Object[columnCount];
+        for ( int c = 0; c < columnCount; c++ ) {
+          row[c] = resultSet.getValueAt( r, c );
+        }
+        page.addRow( row );
+      }
+      return new Page( page, from, total );
+    } finally {
+      resultSet.close();
+    }
+  }
+
+  /**
+   * Returns the snapshot of the result of a query, from the cache or by executing the query
+   * 
+   * @param uncached
+   *          receives the result of the query if this caller executed it and it is too large to be kept
+   * @return the snapshot, {@link #TOO_LARGE} if the result is too large to be kept, null if the query failed
+   */
+  private Snapshot getSnapshot( String xml, Integer rowLimit, String user, final Callable<IPentahoResultSet> query,
+      final IPentahoResultSet[] uncached ) {
+    final Key key = new Key( normalize( xml ), rowLimit != null && rowLimit > -1 ? rowLimit : -1, user );
+    Snapshot snapshot = lookup( key );
+    if ( snapshot != null ) {
+      return snapshot;
+    }
+
+    FutureTask<Snapshot> task = new FutureTask<Snapshot>( new Callable<Snapshot>() {
+      public Snapshot call() throws Exception {
+        IPentahoResultSet resultSet = query.call();
+        if ( resultSet == null ) {
+          return null;
+        }
+        Snapshot result = Snapshot.copy( resultSet, System.currentTimeMillis() + ttl, maxBytes );
+        if ( result == null ) {
+          // the rows have not been copied, the result is handed to the caller instead
+          uncached[0] = resultSet;
+          return TOO_LARGE;
+        }
+        resultSet.close();
+        store( key, result );
+        return result;
+      }
+    } );
+    FutureTask<Snapshot> execution = running.putIfAbsent( key, task );
+    if ( execution == null ) {
+      execution = task;
+      try {
+        task.run();
+      } finally {
+        running.remove( key, task );
+      }
+    } else {
+      synchronized ( this ) {
+        sharedCount++;
+      }
+    }
+
+    try {
+      snapshot = execution.get();
+    } catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+      return null;
+    } catch ( ExecutionException e ) {
+      Throwable cause = e.getCause();
+      if ( cause instanceof RuntimeException ) {
+        throw (RuntimeException) cause;
+      }
+      if ( cause instanceof Error ) {
+        throw (Error) cause;
+      }
+      throw new IllegalStateException( cause );
+    }
+    return snapshot;
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * Returns the estimated size of the results kept
+   * 
+   * @return
+   */
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  public synchronized long getHitCount() {
+    return hitCount;
+  }
+
+  public synchronized long getMissCount() {
+    return missCount;
+  }
+
+  /**
+   * Returns the number of requests that waited for the same query instead of executing it
+   * 
+   * @return
+   */
+  public synchronized long getSharedCount() {
+    return sharedCount;
+  }
+
+  public synchronized long getEvictionCount() {
+    return evictionCount;
+  }
+
+  /**
+   * Collapses the white space between the elements of the MQL
+   * 
+   * @param xml
+   * @return
+   */
+  static String normalize( String xml ) {
+    return xml.replaceAll( ">\\s+<", "><" ).trim(); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  private synchronized Snapshot lookup( Key key ) {
+    Snapshot snapshot = entries.get( key );
+    if ( snapshot != null && snapshot.expires < System.currentTimeMillis() ) {
+      entries.remove( key );
+      bytes -= snapshot.bytes;
+      snapshot = null;
+    }
+    if ( snapshot != null ) {
+      hitCount++;
+    } else {
+      missCount++;
+    }
+    return snapshot;
+  }
+
+  private synchronized void store( Key key, Snapshot snapshot ) {
+    if ( snapshot.bytes > maxBytes ) {
+      return;
+    }
+    Snapshot previous = entries.put( key, snapshot );
+    if ( previous != null ) {
+      bytes -= previous.bytes;
+    }
+    bytes += snapshot.bytes;
+    long now = System.currentTimeMillis();
+    Iterator<Snapshot> it = entries.values().iterator();
+    while ( it.hasNext() && ( entries.size() > maxEntries || bytes > maxBytes ) ) {
+      Snapshot eldest = it.next();
+      if ( eldest == snapshot ) {
+        continue;
+      }
+      it.remove();
+      bytes -= eldest.bytes;
+      if ( eldest.expires >= now ) {
+        evictionCount++;
+      }
+    }
+  }
+
+  private static IPentahoResultSet call( Callable<IPentahoResultSet> query ) {
+    try {
+      return query.call();
+    } catch ( RuntimeException e ) {
+      throw e;
+    } catch ( Exception e ) {
+      throw new IllegalStateException( e );
+    }
+  }
+
+  /**
+   * A window of the rows of a query result
+   */
+  public static final class Page {
+
+    private final IPentahoResultSet resultSet;
+
+    private final int offset;
+
+    private final int totalRows;
+
+    Page( IPentahoResultSet resultSet, int offset, int totalRows ) {
+      this.resultSet = resultSet;
+      this.offset = offset;
+      this.totalRows = totalRows;
+    }
+
+    /**
+     * Returns the rows of the page
+     * 
+     * @return
+     */
+    public IPentahoResultSet getResultSet() {
+      return resultSet;
+    }
+
+    /**
+     * Returns the index of the first row of the page in the whole result
+     * 
+     * @return
+     */
+    public int getOffset() {
+      return offset;
+    }
+
+    /**
+     * Returns the number of rows of the whole result
+     * 
+     * @return
+     */
+    public int getTotalRows() {
+      return totalRows;
+    }
+  }
+
+  private static final class Key {
+
+    private final String xml;
+
+    private final int rowLimit;
+
+    private final String user;
+
+    private final int hash;
+
+    Key( String xml, int rowLimit, String user ) {
+      this.xml = xml;
+      this.rowLimit = rowLimit;
+      this.user = user;
+      this.hash = ( xml.hashCode() * 31 + rowLimit ) * 31 + ( user != null ? user.hashCode() : 0 );
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals( Object obj ) {
+      if ( !( obj instanceof Key ) ) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return hash == other.hash && rowLimit == other.rowLimit && xml.equals( other.xml )
+          && ( user == null ? other.user == null : user.equals( other.user ) );
+    }
+  }
+
+  /**
+   * The rows of a result. The rows are shared by the result sets created from the snapshot and must not be modified.
+   */
+  private static final class Snapshot {
+
+    private final IPentahoMetaData metaData;
+
+    private final Object[][] rows;
+
+    private final long bytes;
+
+    private final long expires;
+
+    Snapshot( IPentahoMetaData metaData, Object[][] rows, long bytes, long expires ) {
+      this.metaData = metaData;
+      this.rows = rows;
+      this.bytes = bytes;
+      this.expires = expires;
+    }
+
+    /**
+     * Copies the rows of a result. The size of the rows is estimated while they are copied, and the copy is abandoned
+     * as soon as it exceeds the maximum size.
+     * 
+     * @param resultSet
+     * @param expires
+     * @param maxBytes
+     * @return the snapshot, or null if the result is larger than maxBytes
+     */
+    static Snapshot copy( IPentahoResultSet resultSet, long expires, long maxBytes ) {
+      int rowCount = resultSet.getRowCount();
+      int columnCount = resultSet.getColumnCount();
+      long rowOverhead = ROW_OVERHEAD + 8L * columnCount;
+      if ( rowOverhead * rowCount > maxBytes ) {
+        return null;
+      }
+      Object[][] rows = new Object[rowCount][];
+      long size = 0;
+      for ( int r = 0; r < rowCount; r++ ) {
+        Object[] row = new Object[columnCount];
+        for ( int c = 0; c < columnCount; c++ ) {
+          row[c] = resultSet.getValueAt( r, c );
+          size += estimateSize( row[c] );
+        }
+        rows[r] = row;
+        size += rowOverhead;
+        if ( size > maxBytes ) {
+          return null;
+        }
+      }
+      return new Snapshot( resultSet.getMetaData(), rows, size, expires );
+    }
+
+    IPentahoResultSet createResultSet( int from, int to ) {
+      MemoryResultSet resultSet = new MemoryResultSet( metaData );
+      for ( int i = from; i < to; i++ ) {
+        resultSet.addRow( rows[i] );
+      }
+      return resultSet;
+    }
+
+    private static long estimateSize( Object value ) {
+      if ( value == null ) {
+        return 0;
+      }
+      if ( value instanceof String ) {
+        return VALUE_OVERHEAD + 24 + 2L * ( (String) value ).length();
+      }
+      if ( value instanceof Date ) {
+        return VALUE_OVERHEAD + 8;
+      }
+      // numbers, booleans and the rest
+      return VALUE_OVERHEAD + 16;
+    }
+  }
+}
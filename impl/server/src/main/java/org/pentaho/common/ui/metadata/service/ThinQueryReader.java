@@ -0,0 +1,346 @@
+/*!
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+ */
+
+package org.pentaho.common.ui.metadata.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import flexjson.ObjectBinder;
+
+/**
+ * Reads thin queries (v1 or v2) from their flexjson form. The JSON is parsed once into maps and lists. While it is
+ * parsed, the "class" member of every object is checked against the package of the query class, so the binding that
+ * follows cannot instantiate any other class. This replaces validating the JSON with PentahoJsonValidator, which
+ * parses it a first time, and then deserializing it with a new JSONDeserializer.
+ * 
+ * A reader keeps no state between calls, one instance is shared by all requests.
+ * 
+ * @param <T>
+ *          the class of the query
+ */
+public class ThinQueryReader<T> {
+
+  static final String CLASS_MEMBER = "class"; //$NON-NLS-1$
+
+  /**
+   * The deepest nesting of objects and arrays accepted, thin queries are a few levels deep
+   */
+  static final int MAX_DEPTH = 32;
+
+  private final Class<T> queryClass;
+
+  private final String packagePrefix;
+
+  public ThinQueryReader( Class<T> queryClass ) {
+    this.queryClass = queryClass;
+    String name = queryClass.getName();
+    this.packagePrefix = name.substring( 0, name.lastIndexOf( '.' ) + 1 );
+  }
+
+  /**
+   * Parses, validates and binds a JSON query
+   * 
+   * @param json
+   * @return
+   * @throws IllegalArgumentException
+   *           if the JSON is malformed or names a class that is not allowed
+   */
+  public T read( String json ) {
+    if ( json == null ) {
+      throw new IllegalArgumentException( "No JSON query" ); //$NON-NLS-1$
+    }
+    Object tree = new Parser( json ).parseDocument();
+    if ( !( tree instanceof Map ) ) {
+      throw new IllegalArgumentException( "A JSON query must be an object" ); //$NON-NLS-1$
+    }
+    Object rootClass = ( (Map<?, ?>) tree ).get( CLASS_MEMBER );
+    if ( rootClass != null && !queryClass.getName().equals( rootClass ) ) {
+      throw new IllegalArgumentException( "Not a " + queryClass.getName() + ": " + rootClass ); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+    // flexjson looks up the classes named in the JSON with the context class loader
+    ClassLoader oldLoader = Thread.currentThread().getContextClassLoader();
+    try {
+      Thread.currentThread().setContextClassLoader( queryClass.getClassLoader() );
+      return queryClass.cast( new ObjectBinder().bind( tree, queryClass ) );
+    } finally {
+      Thread.currentThread().setContextClassLoader( oldLoader );
+    }
+  }
+
+  /**
+   * Determines whether objects of a class may be created from the JSON: the classes of the package of the query
+   * 
+   * @param className
+   * @return
+   */
+  boolean isAllowedClass( String className ) {
+    return className.startsWith( packagePrefix ) && className.indexOf( '.', packagePrefix.length() ) < 0;
+  }
+
+  /**
+   * A parser of one JSON text. Objects become HashMaps and arrays ArrayLists, the values flexjson binds from.
+   */
+  private final class Parser {
+
+    private final String json;
+
+    private final int length;
+
+    private int pos;
+
+    private int depth;
+
+    Parser( String json ) {
+      this.json = json;
+      this.length = json.length();
+    }
+
+    Object parseDocument() {
+      Object value = parseValue();
+      skipWhitespace();
+      if ( pos < length ) {
+        throw error( "Unexpected content after the JSON value" ); //$NON-NLS-1$
+      }
+      return value;
+    }
+
+    private Object parseValue() {
+      skipWhitespace();
+      if ( pos >= length ) {
+        throw error( "Unexpected end of the JSON" ); //$NON-NLS-1$
+      }
+      char c = json.charAt( pos );
+      switch ( c ) {
+        case '{':
+          return parseObject();
+        case '[':
+          return parseArray();
+        case '"':
+          return parseString();
+        case 't':
+          expect( "true" ); //$NON-NLS-1$
+          return Boolean.TRUE;
+        case 'f':
+          expect( "false" ); //$NON-NLS-1$
+          return Boolean.FALSE;
+        case 'n':
+          expect( "null" ); //$NON-NLS-1$
+          return null;
+        default:
+          if ( c == '-' || ( c >= '0' && c <= '9' ) ) {
+            return parseNumber();
+          }
+          throw error( "Unexpected character '" + c + "'" ); //$NON-NLS-1$ //$NON-NLS-2$
+      }
+    }
+
+    private Map<String, Object> parseObject() {
+      enter();
+      Map<String, Object> object = new HashMap<String, Object>();
+      pos++;
+      skipWhitespace();
+      if ( pos < length && json.charAt( pos ) == '}' ) {
+        pos++;
+        depth--;
+        return object;
+      }
+      while ( true ) {
+        skipWhitespace();
+        if ( pos >= length || json.charAt( pos ) != '"' ) {
+          throw error( "Expected a member name" ); //$NON-NLS-1$
+        }
+        String name = parseString();
+        skipWhitespace();
+        if ( pos >= length || json.charAt( pos ) != ':' ) {
+          throw error( "Expected ':'" ); //$NON-NLS-1$
+        }
+        pos++;
+        Object value = parseValue();
+        if ( CLASS_MEMBER.equals( name ) && !( value instanceof String && isAllowedClass( (String) value ) ) ) {
+          throw error( "Class not allowed in a query: " + value ); //$NON-NLS-1$
+        }
+        object.put( name, value );
+        skipWhitespace();
+        if ( pos >= length ) {
+          throw error( "Unterminated object" ); //$NON-NLS-1$
+        }
+        char c = json.charAt( pos++ );
+        if ( c == '}' ) {
+          depth--;
+          return object;
+        }
+        if ( c != ',' ) {
+          throw error( "Expected ',' or '}'" ); //$NON-NLS-1$
+        }
+      }
+    }
+
+    private List<Object> parseArray() {
+      enter();
+      List<Object> array = new ArrayList<Object>();
+      pos++;
+      skipWhitespace();
+      if ( pos < length && json.charAt( pos ) == ']' ) {
+        pos++;
+        depth--;
+        return array;
+      }
+      while ( true ) {
+        array.add( parseValue() );
+        skipWhitespace();
+        if ( pos >= length ) {
+          throw error( "Unterminated array" ); //$NON-NLS-1$
+        }
+        char c = json.charAt( pos++ );
+        if ( c == ']' ) {
+          depth--;
+          return array;
+        }
+        if ( c != ',' ) {
+          throw error( "Expected ',' or ']'" ); //$NON-NLS-1$
+        }
+      }
+    }
+
+    private String parseString() {
+      int start = ++pos;
+      // most strings have no escapes and are cut out of the JSON as they are
+      while ( pos < length ) {
+        char c = json.charAt( pos );
+        if ( c == '"' ) {
+          return json.substring( start, pos++ );
+        }
+        if ( c == '\\' ) {
+          break;
+        }
+        pos++;
+      }
+      StringBuilder sb = new StringBuilder( pos - start + 16 );
+      sb.append( json, start, pos );
+      while ( pos < length ) {
+        char c = json.charAt( pos++ );
+        if ( c == '"' ) {
+          return sb.toString();
+        }
+        if ( c != '\\' ) {
+          sb.append( c );
+          continue;
+        }
+        if ( pos >= length ) {
+          break;
+        }
+        c = json.charAt( pos++ );
+        switch ( c ) {
+          case 'b':
+            sb.append( '\b' );
+            break;
+          case 'f':
+            sb.append( '\f' );
+            break;
+          case 'n':
+            sb.append( '\n' );
+            break;
+          case 'r':
+            sb.append( '\r' );
+            break;
+          case 't':
+            sb.append( '\t' );
+            break;
+          case 'u':
+            if ( pos + 4 > length ) {
+              throw error( "Invalid unicode escape" ); //$NON-NLS-1$
+            }
+            try {
+              sb.append( (char) Integer.parseInt( json.substring( pos, pos + 4 ), 16 ) );
+            } catch ( NumberFormatException e ) {
+              throw error( "Invalid unicode escape" ); //$NON-NLS-1$
+            }
+            pos += 4;
+            break;
+          case '"':
+          case '\\':
+          case '/':
+            sb.append( c );
+            break;
+          default:
+            throw error( "Invalid escape '\\" + c + "'" ); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+      }
+      throw error( "Unterminated string" ); //$NON-NLS-1$
+    }
+
+    private Number parseNumber() {
+      int start = pos;
+      boolean decimal = false;
+      if ( json.charAt( pos ) == '-' ) {
+        pos++;
+      }
+      while ( pos < length ) {
+        char c = json.charAt( pos );
+        if ( c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-' ) {
+          decimal = true;
+        } else if ( c < '0' || c > '9' ) {
+          break;
+        }
+        pos++;
+      }
+      String number = json.substring( start, pos );
+      try {
+        if ( !decimal ) {
+          try {
+            return Long.valueOf( number );
+          } catch ( NumberFormatException e ) {
+            // too long for a long
+          }
+        }
+        return Double.valueOf( number );
+      } catch ( NumberFormatException e ) {
+        throw error( "Invalid number " + number ); //$NON-NLS-1$
+      }
+    }
+
+    private void expect( String literal ) {
+      if ( !json.startsWith( literal, pos ) ) {
+        throw error( "Expected " + literal ); //$NON-NLS-1$
+      }
+      pos += literal.length();
+    }
+
+    private void enter() {
+      if ( ++depth > MAX_DEPTH ) {
+        throw error( "The JSON is nested too deeply" ); //$NON-NLS-1$
+      }
+    }
+
+    private void skipWhitespace() {
+      while ( pos < length ) {
+        char c = json.charAt( pos );
+        if ( c != ' ' && c != '\t' && c != '\n' && c != '\r' ) {
+          return;
+        }
+        pos++;
+      }
+    }
+
+    private IllegalArgumentException error( String message ) {
+      return new IllegalArgumentException( message + " at position " + pos ); //$NON-NLS-1$
+    }
+  }
+}
@@ -0,0 +1,68 @@
+/*!
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+ */
+
+package org.pentaho.common.ui.metadata.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class OperatorTest {
+
+  @Test
+  public void testParse() {
+    for ( Operator operator : Operator.values() ) {
+      assertEquals( operator, Operator.parse( operator.toString() ) );
+      assertEquals( operator, Operator.parse( operator.toString().toLowerCase() ) );
+      assertEquals( operator, Operator.parse( operator.toString(), true ) );
+    }
+    assertEquals( Operator.GREATOR_OR_EQUAL, Operator.parse( ">=" ) );
+    assertEquals( Operator.BEGINS_WITH, Operator.parse( "beginsWith" ) );
+    assertEquals( Operator.ENDS_WITH, Operator.parse( "ENDSWITH" ) );
+    assertEquals( Operator.IS_NULL, Operator.parse( "ISNA" ) );
+  }
+
+  @Test
+  public void testParseMissing() {
+    assertEquals( Operator.EQUAL, Operator.parse( null ) );
+    assertEquals( Operator.EQUAL, Operator.parse( "", true ) );
+  }
+
+  @Test
+  public void testParseEnumName() {
+    // only the UI names and the formula function names are operator names
+    assertEquals( Operator.EQUAL, Operator.parse( "GREATER_THAN" ) );
+    try {
+      Operator.parse( "IS_NOT_NULL", true );
+      fail( "an enum name is not an operator name" );
+    } catch ( IllegalArgumentException e ) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testParseUnknown() {
+    assertEquals( Operator.EQUAL, Operator.parse( "LIKE" ) );
+    try {
+      Operator.parse( "LIKE", true );
+      fail( "an unknown operator is rejected in strict mode" );
+    } catch ( IllegalArgumentException e ) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,87 @@
+/*!
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+ */
+
+package org.pentaho.common.ui.metadata.model.impl;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.pentaho.common.ui.metadata.model.FormulaBuilder;
+import org.pentaho.common.ui.metadata.model.Operator;
+
+/**
+ * Measures building the formula of a string condition with a large IN list, once with a new builder per condition and
+ * once reusing the builder of the query conversion.
+ * 
+ * Benchmarks are not run by the unit tests, run the main method with the test classpath.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class ConditionFormulaBenchmark {
+
+  @Param( { "10", "10000" } )
+  public int values;
+
+  private Condition condition;
+
+  private FormulaBuilder formula;
+
+  @Setup
+  public void setUp() {
+    String[] value = new String[values];
+    for ( int i = 0; i < values; i++ ) {
+      value[i] = "customer_" + i; //$NON-NLS-1$
+    }
+    condition = new Condition();
+    condition.setCategory( "customers" ); //$NON-NLS-1$
+    condition.setColumn( "name" ); //$NON-NLS-1$
+    condition.setOperator( Operator.EQUAL.toString() );
+    condition.setValue( value );
+    formula = new FormulaBuilder();
+  }
+
+  @Benchmark
+  public String getCondition() {
+    return condition.getCondition( "STRING", null ); //$NON-NLS-1$
+  }
+
+  @Benchmark
+  public int appendCondition() {
+    formula.reset();
+    return condition.appendCondition( formula, "STRING", null ).length(); //$NON-NLS-1$
+  }
+
+  public static void main( String[] args ) throws Exception {
+    new Runner( new OptionsBuilder().include( ConditionFormulaBenchmark.class.getSimpleName() ).build() ).run();
+  }
+}
@@ -17,10 +17,12 @@
 
 package org.pentaho.common.ui.metadata.model.impl;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.pentaho.common.ui.metadata.model.FormulaBuilder;
 import org.pentaho.common.ui.metadata.model.Operator;
 
 public class ConditionTest {
@@ -77,4 +79,41 @@ public class ConditionTest {
     String result = condition.getCondition( "Date", TEST_PARAM );
     assertEquals( "[" + TEST_CATEGORY + "." + TEST_COLUMN + "] =DATEVALUE(\"val_0\")", result );
   }
+
+  @Test
+  public void testGetConditionForStringInList() {
+    condition.setOperator( Operator.EQUAL.toString() );
+    condition.setParameterized( false );
+    String result = condition.getCondition( "STRING", null );
+    assertEquals( "IN([" + TEST_CATEGORY + "." + TEST_COLUMN + "]; \"val_0\";\"val_1\")", result );
+  }
+
+  @Test
+  public void testGetConditionIsIdempotent() {
+    condition.setOperator( Operator.CONTAINS.toString() );
+    condition.setParameterized( false );
+    String result = condition.getCondition( "STRING", null );
+    assertEquals( "CONTAINS([" + TEST_CATEGORY + "." + TEST_COLUMN + "];\"val_0\")", result );
+    assertEquals( result, condition.getCondition( "STRING", null ) );
+    assertArrayEquals( new String[] { "val_0", "val_1" }, condition.getValue() );
+
+    condition.setOperator( Operator.EQUAL.toString() );
+    condition.setParameterized( true );
+    result = condition.getCondition( "Date", TEST_PARAM );
+    assertEquals( result, condition.getCondition( "Date", TEST_PARAM ) );
+    assertArrayEquals( new String[] { "val_0", "val_1" }, condition.getValue() );
+  }
+
+  @Test
+  public void testAppendCondition() {
+    condition.setOperator( Operator.GREATER_THAN.toString() );
+    FormulaBuilder formula = new FormulaBuilder();
+    condition.appendCondition( formula, "Numeric", null );
+    assertEquals( "[" + TEST_CATEGORY + "." + TEST_COLUMN + "] >val_0", formula.toString() );
+
+    formula.reset();
+    condition.setParameterized( true );
+    condition.appendCondition( formula, "Numeric", "{" + TEST_PARAM + "}" );
+    assertEquals( "[" + TEST_CATEGORY + "." + TEST_COLUMN + "] >[param:" + TEST_PARAM + "]", formula.toString() );
+  }
 }
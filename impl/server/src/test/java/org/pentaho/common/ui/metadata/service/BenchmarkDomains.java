@@ -0,0 +1,163 @@
+/*!
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+ */
+
+package org.pentaho.common.ui.metadata.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.pentaho.common.ui.metadata.model.impl.Column;
+import org.pentaho.common.ui.metadata.model.impl.Order;
+import org.pentaho.metadata.model.Category;
+import org.pentaho.metadata.model.Domain;
+import org.pentaho.metadata.model.LogicalColumn;
+import org.pentaho.metadata.model.LogicalModel;
+import org.pentaho.metadata.model.LogicalTable;
+import org.pentaho.metadata.model.concept.types.AggregationType;
+import org.pentaho.metadata.model.concept.types.DataType;
+import org.pentaho.metadata.model.concept.types.LocaleType;
+import org.pentaho.metadata.model.concept.types.LocalizedString;
+import org.pentaho.metadata.query.model.Query;
+import org.pentaho.metadata.query.model.Selection;
+import org.pentaho.metadata.repository.IMetadataDomainRepository;
+import org.pentaho.metadata.repository.InMemoryMetadataDomainRepository;
+
+/**
+ * Builds synthetic metadata domains for the benchmarks. The domain has a single model with one table and one category
+ * holding all of the columns.
+ */
+public class BenchmarkDomains {
+
+  public static final String DOMAIN_ID = "benchmark_domain"; //$NON-NLS-1$
+
+  public static final String MODEL_ID = "BV_BENCHMARK"; //$NON-NLS-1$
+
+  public static final String CATEGORY_ID = "BC_BENCHMARK"; //$NON-NLS-1$
+
+  public static final String LOCALE = "en_US"; //$NON-NLS-1$
+
+  private BenchmarkDomains() {
+  }
+
+  /**
+   * Returns the id of the column with the given index
+   * 
+   * @param index
+   * @return
+   */
+  public static String columnId( int index ) {
+    return "BC_COLUMN_" + index; //$NON-NLS-1$
+  }
+
+  /**
+   * Creates a domain whose model has the given number of string columns
+   * 
+   * @param columns
+   * @return
+   */
+  public static Domain createDomain( int columns ) {
+    Domain domain = new Domain();
+    domain.setId( DOMAIN_ID );
+    List<LocaleType> locales = new ArrayList<LocaleType>();
+    locales.add( new LocaleType( LOCALE, "English (US)" ) ); //$NON-NLS-1$
+    domain.setLocales( locales );
+
+    LogicalModel model = new LogicalModel();
+    model.setId( MODEL_ID );
+    model.setName( new LocalizedString( LOCALE, "Benchmark" ) ); //$NON-NLS-1$
+
+    LogicalTable table = new LogicalTable();
+    table.setId( "BT_BENCHMARK" ); //$NON-NLS-1$
+    table.setLogicalModel( model );
+    model.addLogicalTable( table );
+
+    Category category = new Category();
+    category.setId( CATEGORY_ID );
+    category.setName( new LocalizedString( LOCALE, "Benchmark" ) ); //$NON-NLS-1$
+    model.addCategory( category );
+
+    for ( int i = 0; i < columns; i++ ) {
+      LogicalColumn column = new LogicalColumn();
+      column.setId( columnId( i ) );
+      column.setName( new LocalizedString( LOCALE, "Column " + i ) ); //$NON-NLS-1$
+      column.setDataType( DataType.STRING );
+      column.setLogicalTable( table );
+      table.addLogicalColumn( column );
+      category.addLogicalColumn( column );
+    }
+
+    domain.addLogicalModel( model );
+    return domain;
+  }
+
+  /**
+   * Creates a repository that holds the domain
+   * 
+   * @param domain
+   * @return
+   * @throws Exception
+   */
+  public static IMetadataDomainRepository createRepository( Domain domain ) throws Exception {
+    IMetadataDomainRepository repository = new InMemoryMetadataDomainRepository();
+    repository.storeDomain( domain, true );
+    return repository;
+  }
+
+  /**
+   * Creates a full query that selects every column of the benchmark model
+   * 
+   * @param domain
+   * @return
+   */
+  public static Query createQuery( Domain domain ) {
+    LogicalModel model = domain.findLogicalModel( MODEL_ID );
+    Category category = model.findCategory( CATEGORY_ID );
+    Query query = new Query( domain, model );
+    for ( LogicalColumn column : category.getLogicalColumns() ) {
+      query.getSelections().add( new Selection( category, column, AggregationType.NONE ) );
+    }
+    return query;
+  }
+
+  /**
+   * Creates a v1 thin query that selects and sorts by the first columns of the benchmark model
+   * 
+   * @param columns
+   *          the number of columns to select
+   * @return
+   */
+  public static org.pentaho.common.ui.metadata.model.impl.Query createThinQuery( int columns ) {
+    Column[] selections = new Column[columns];
+    Order[] orders = new Order[columns];
+    for ( int i = 0; i < columns; i++ ) {
+      selections[i] = new Column();
+      selections[i].setId( columnId( i ) );
+      selections[i].setCategory( CATEGORY_ID );
+      selections[i].setSelectedAggType( AggregationType.NONE.name() );
+      orders[i] = new Order();
+      orders[i].setColumn( columnId( i ) );
+      orders[i].setCategory( CATEGORY_ID );
+      orders[i].setOrderType( "ASC" ); //$NON-NLS-1$
+    }
+    org.pentaho.common.ui.metadata.model.impl.Query query = new org.pentaho.common.ui.metadata.model.impl.Query();
+    query.setDomainName( DOMAIN_ID );
+    query.setModelId( MODEL_ID );
+    query.setColumns( selections );
+    query.setOrders( orders );
+    return query;
+  }
+}
@@ -0,0 +1,140 @@
+/*!
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+ */
+
+package org.pentaho.common.ui.metadata.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Date;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.commons.connection.IPentahoMetaData;
+import org.pentaho.commons.connection.IPentahoResultSet;
+import org.pentaho.metadata.model.IPhysicalColumn;
+import org.pentaho.metadata.model.concept.Concept;
+import org.pentaho.metadata.model.concept.types.DataType;
+import org.pentaho.metadata.model.concept.types.LocalizedString;
+
+public class ColumnarResultWriterTest {
+
+  private static final String LOCALE = "en";
+
+  private static final Object[][] ROWS = new Object[][] {
+    { "east", 1.5, true, new Date( 1000 ), "a" },
+    { "west", null, false, null, 2 },
+    { "east", new BigDecimal( "3" ), null, new Date( 2000 ), "c" } };
+
+  private IPentahoResultSet resultSet;
+
+  @Before
+  public void setUp() {
+    Object[][] headers = new Object[][] { { "region", "amount", "flag", "day", "mixed" } };
+    DataType[] types =
+        new DataType[] { DataType.STRING, DataType.NUMERIC, DataType.BOOLEAN, DataType.DATE, DataType.STRING };
+    IPentahoMetaData metaData = mock( IPentahoMetaData.class );
+    doReturn( headers ).when( metaData ).getColumnHeaders();
+    for ( int i = 0; i < types.length; i++ ) {
+      doReturn( types[i] ).when( metaData ).getAttribute( 0, i, IPhysicalColumn.DATATYPE_PROPERTY );
+      doReturn( new LocalizedString( LOCALE, "label_" + i ) ).when( metaData ).getAttribute( 0, i,
+          Concept.NAME_PROPERTY );
+    }
+    resultSet = mock( IPentahoResultSet.class );
+    doReturn( metaData ).when( resultSet ).getMetaData();
+    doReturn( types.length ).when( resultSet ).getColumnCount();
+    doReturn( ROWS.length ).when( resultSet ).getRowCount();
+    for ( int r = 0; r < ROWS.length; r++ ) {
+      for ( int c = 0; c < types.length; c++ ) {
+        doReturn( ROWS[r][c] ).when( resultSet ).getValueAt( r, c );
+      }
+    }
+  }
+
+  @Test
+  public void testWrite() throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    new ColumnarResultWriter().write( resultSet, LOCALE, output );
+    DataInputStream in = new DataInputStream( new ByteArrayInputStream( output.toByteArray() ) );
+
+    byte[] magic = new byte[4];
+    in.readFully( magic );
+    assertEquals( "PCRS", new String( magic, "UTF-8" ) );
+    assertEquals( ColumnarResultWriter.VERSION, in.readByte() );
+    assertEquals( 5, in.readInt() );
+    assertEquals( 3, in.readInt() );
+
+    byte[] expected =
+        new byte[] { ColumnarResultWriter.STRING, ColumnarResultWriter.NUMBER, ColumnarResultWriter.BOOLEAN,
+          ColumnarResultWriter.DATE, ColumnarResultWriter.STRING };
+    String[] names = new String[] { "region", "amount", "flag", "day", "mixed" };
+    for ( int i = 0; i < expected.length; i++ ) {
+      assertEquals( names[i], readString( in ) );
+      readString( in );
+      assertEquals( "label_" + i, readString( in ) );
+      assertEquals( expected[i], in.readByte() );
+    }
+
+    // region, the repeated value is written once
+    assertEquals( 2, in.readInt() );
+    assertEquals( "east", readString( in ) );
+    assertEquals( "west", readString( in ) );
+    assertEquals( 0, in.readInt() );
+    assertEquals( 1, in.readInt() );
+    assertEquals( 0, in.readInt() );
+
+    // amount
+    assertEquals( 5, in.readByte() );
+    assertEquals( 1.5, in.readDouble(), 0 );
+    in.readDouble();
+    assertEquals( 3, in.readDouble(), 0 );
+
+    // flag
+    assertEquals( 3, in.readByte() );
+    assertEquals( 1, in.readByte() );
+
+    // day
+    assertEquals( 5, in.readByte() );
+    assertEquals( 1000, in.readDouble(), 0 );
+    in.readDouble();
+    assertEquals( 2000, in.readDouble(), 0 );
+
+    // mixed, written as strings
+    assertEquals( 3, in.readInt() );
+    assertEquals( "a", readString( in ) );
+    assertEquals( "2", readString( in ) );
+    assertEquals( "c", readString( in ) );
+    in.skipBytes( 12 );
+    assertEquals( -1, in.read() );
+  }
+
+  private String readString( DataInputStream in ) throws IOException {
+    int length = in.readInt();
+    if ( length < 0 ) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    in.readFully( bytes );
+    return new String( bytes, "UTF-8" );
+  }
+}
@@ -0,0 +1,81 @@
+/*!
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+ */
+
+package org.pentaho.common.ui.metadata.service;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.pentaho.common.ui.metadata.model.impl.Query;
+import org.pentaho.metadata.model.Domain;
+import org.pentaho.metadata.repository.IMetadataDomainRepository;
+
+/**
+ * Measures MetadataServiceUtil.convertQuery for a query that selects and sorts by every one of its columns. The time
+ * per call should grow linearly with the number of selections.
+ * 
+ * Benchmarks are not run by the unit tests, run the main method with the test classpath.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class ConvertQueryBenchmark {
+
+  @Param( { "10", "100", "1000" } )
+  public int selections;
+
+  private MetadataServiceUtil util;
+
+  private Query query;
+
+  @Setup
+  public void setUp() throws Exception {
+    Domain domain = BenchmarkDomains.createDomain( selections );
+    final IMetadataDomainRepository repository = BenchmarkDomains.createRepository( domain );
+    util = new MetadataServiceUtil() {
+      @Override
+      IMetadataDomainRepository getDomainRepository() {
+        return repository;
+      }
+    };
+    query = BenchmarkDomains.createThinQuery( selections );
+  }
+
+  @Benchmark
+  public org.pentaho.metadata.query.model.Query convertQuery() {
+    return util.convertQuery( query );
+  }
+
+  public static void main( String[] args ) throws Exception {
+    new Runner( new OptionsBuilder().include( ConvertQueryBenchmark.class.getSimpleName() ).build() ).run();
+  }
+}
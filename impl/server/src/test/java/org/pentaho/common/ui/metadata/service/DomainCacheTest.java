@@ -0,0 +1,95 @@
+/*!
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+ */
+
+package org.pentaho.common.ui.metadata.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.metadata.model.Domain;
+
+public class DomainCacheTest {
+
+  private static final String DOMAIN_ID = "domain_id";
+
+  private DomainCache<String, String> cache;
+  private Domain domain;
+
+  @Before
+  public void setUp() {
+    cache = new DomainCache<String, String>( 2 );
+    domain = mock( Domain.class );
+  }
+
+  @Test
+  public void testGetPut() {
+    assertNull( cache.get( DOMAIN_ID, domain, "key" ) );
+    cache.put( DOMAIN_ID, domain, "key", "value" );
+    assertEquals( "value", cache.get( DOMAIN_ID, domain, "key" ) );
+    assertEquals( 1, cache.getHitCount() );
+    assertEquals( 1, cache.getMissCount() );
+  }
+
+  @Test
+  public void testEviction() {
+    cache.put( DOMAIN_ID, domain, "key_0", "value_0" );
+    cache.put( DOMAIN_ID, domain, "key_1", "value_1" );
+    // touch the first key so that the second one is the least recently used
+    cache.get( DOMAIN_ID, domain, "key_0" );
+    cache.put( DOMAIN_ID, domain, "key_2", "value_2" );
+
+    assertEquals( 2, cache.size() );
+    assertEquals( 1, cache.getEvictionCount() );
+    assertEquals( "value_0", cache.get( DOMAIN_ID, domain, "key_0" ) );
+    assertNull( cache.get( DOMAIN_ID, domain, "key_1" ) );
+  }
+
+  @Test
+  public void testNewDomainVersion() {
+    cache.put( DOMAIN_ID, domain, "key", "value" );
+    Domain storedAgain = mock( Domain.class );
+    assertNull( cache.get( DOMAIN_ID, storedAgain, "key" ) );
+    assertEquals( 0, cache.size() );
+    assertEquals( 1, cache.getInvalidationCount() );
+  }
+
+  @Test
+  public void testRemovedDomain() {
+    cache.put( DOMAIN_ID, domain, "key", "value" );
+    cache.put( "other_domain", domain, "key", "value" );
+    assertNull( cache.get( DOMAIN_ID, null, "key" ) );
+    assertEquals( 1, cache.size() );
+  }
+
+  @Test
+  public void testInvalidate() {
+    cache.put( DOMAIN_ID, domain, "key", "value" );
+    cache.invalidate( DOMAIN_ID );
+    assertNull( cache.get( DOMAIN_ID, domain, "key" ) );
+  }
+
+  @Test
+  public void testDisabled() {
+    cache = new DomainCache<String, String>( 0 );
+    cache.put( DOMAIN_ID, domain, "key", "value" );
+    assertNull( cache.get( DOMAIN_ID, domain, "key" ) );
+    assertEquals( 0, cache.size() );
+  }
+}
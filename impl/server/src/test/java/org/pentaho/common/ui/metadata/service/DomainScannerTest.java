@@ -0,0 +1,118 @@
+/*!
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+ */
+
+package org.pentaho.common.ui.metadata.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DomainScannerTest {
+
+  private DomainScanner scanner;
+  private List<String> domainIds;
+
+  @Before
+  public void setUp() {
+    scanner = new DomainScanner( 3 );
+    domainIds = new ArrayList<String>();
+    for ( int i = 0; i < 20; i++ ) {
+      domainIds.add( "domain_" + i );
+    }
+  }
+
+  @After
+  public void tearDown() {
+    scanner.shutdown();
+  }
+
+  @Test
+  public void testResultsInDomainOrder() throws Exception {
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger maxRunning = new AtomicInteger();
+    List<String> results = new ArrayList<String>();
+    scanner.scan( domainIds, new DomainScanner.Task<String>() {
+      public void scan( String domainId, List<String> found ) {
+        int now = running.incrementAndGet();
+        synchronized ( maxRunning ) {
+          maxRunning.set( Math.max( maxRunning.get(), now ) );
+        }
+        try {
+          // the later domains finish first
+          Thread.sleep( 40 - Integer.parseInt( domainId.substring( 7 ) ) * 2 );
+        } catch ( InterruptedException e ) {
+          Thread.currentThread().interrupt();
+        }
+        found.add( domainId + "_a" );
+        found.add( domainId + "_b" );
+        running.decrementAndGet();
+      }
+    }, results );
+
+    assertEquals( 40, results.size() );
+    for ( int i = 0; i < 20; i++ ) {
+      assertEquals( "domain_" + i + "_a", results.get( i * 2 ) );
+      assertEquals( "domain_" + i + "_b", results.get( i * 2 + 1 ) );
+    }
+    assertTrue( maxRunning.get() <= 3 );
+  }
+
+  @Test
+  public void testFailure() throws Exception {
+    List<String> results = new ArrayList<String>();
+    try {
+      scanner.scan( domainIds, new DomainScanner.Task<String>() {
+        public void scan( String domainId, List<String> found ) {
+          if ( domainId.equals( "domain_5" ) ) {
+            throw new IllegalArgumentException( domainId );
+          }
+          found.add( domainId );
+        }
+      }, results );
+      fail();
+    } catch ( IllegalArgumentException e ) {
+      assertEquals( "domain_5", e.getMessage() );
+    }
+    // the domains before the failed one are kept
+    assertEquals( 5, results.size() );
+    assertEquals( "domain_4", results.get( 4 ) );
+  }
+
+  @Test
+  public void testSequential() throws Exception {
+    scanner.shutdown();
+    scanner = new DomainScanner( 1 );
+    final List<String> threads = new ArrayList<String>();
+    List<String> results = new ArrayList<String>();
+    scanner.scan( domainIds, new DomainScanner.Task<String>() {
+      public void scan( String domainId, List<String> found ) {
+        threads.add( Thread.currentThread().getName() );
+        found.add( domainId );
+      }
+    }, results );
+    assertEquals( domainIds, results );
+    assertEquals( Thread.currentThread().getName(), threads.get( 0 ) );
+  }
+}
@@ -0,0 +1,81 @@
+/*!
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+ */
+
+package org.pentaho.common.ui.metadata.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.pentaho.common.ui.metadata.model.FormulaBuilder;
+import org.pentaho.common.ui.metadata.model.Operator;
+import org.pentaho.metadata.model.concept.types.DataType;
+import org.pentaho.metadata.query.model.Parameter;
+
+public class InListParametersTest {
+
+  private static final String[] VALUES = new String[] { "a", "b", "c" };
+
+  @Test
+  public void testAccepts() {
+    InListParameters inLists = new InListParameters( 3 );
+    assertTrue( inLists.accepts( Operator.EQUAL, false, VALUES, DataType.STRING ) );
+    assertTrue( inLists.accepts( Operator.EXACTLY_MATCHES, false, VALUES, DataType.STRING ) );
+    assertFalse( inLists.accepts( Operator.CONTAINS, false, VALUES, DataType.STRING ) );
+    assertFalse( inLists.accepts( Operator.EQUAL, true, VALUES, DataType.STRING ) );
+    assertFalse( inLists.accepts( Operator.EQUAL, false, VALUES, DataType.NUMERIC ) );
+    assertFalse( inLists.accepts( Operator.EQUAL, false, new String[] { "a", "b" }, DataType.STRING ) );
+    assertFalse( inLists.accepts( Operator.EQUAL, false, null, DataType.STRING ) );
+  }
+
+  @Test
+  public void testAcceptsOnlySerializableValues() {
+    InListParameters inLists = new InListParameters( 1 );
+    assertFalse( inLists.accepts( Operator.EQUAL, false, new String[] { "a" }, DataType.STRING ) );
+    assertFalse( inLists.accepts( Operator.EQUAL, false, new String[] { "a", "b|c" }, DataType.STRING ) );
+    assertFalse( inLists.accepts( Operator.EQUAL, false, new String[] { "a", "\"b\"" }, DataType.STRING ) );
+    assertFalse( inLists.accepts( Operator.EQUAL, false, new String[] { "a", "" }, DataType.STRING ) );
+    assertFalse( inLists.accepts( Operator.EQUAL, false, new String[] { "a", "b\nc" }, DataType.STRING ) );
+    assertTrue( inLists.accepts( Operator.EQUAL, false, new String[] { "a b", "c's", "d;e" }, DataType.STRING ) );
+  }
+
+  @Test
+  public void testDisabled() {
+    assertFalse( new InListParameters( 0 ).accepts( Operator.EQUAL, false, VALUES, DataType.STRING ) );
+  }
+
+  @Test
+  public void testBind() {
+    InListParameters inLists = new InListParameters( 3 );
+    inLists.reserveName( "in_list_0" );
+    FormulaBuilder formula = new FormulaBuilder();
+    assertEquals( "in_list_1", inLists.bind( formula, "cat", "col", "MINIMUM", VALUES ) );
+    assertEquals( "IN([cat.col.MINIMUM]; [param:in_list_1])", formula.toString() );
+
+    formula.reset();
+    assertEquals( "in_list_2", inLists.bind( formula, "cat", "col", null, VALUES ) );
+    assertEquals( "IN([cat.col]; [param:in_list_2])", formula.toString() );
+
+    assertEquals( 2, inLists.getParameters().size() );
+    Parameter parameter = inLists.getParameters().get( 0 );
+    assertEquals( "in_list_1", parameter.getName() );
+    assertEquals( DataType.STRING, parameter.getType() );
+    assertArrayEquals( VALUES, (Object[]) parameter.getDefaultValue() );
+  }
+}
@@ -0,0 +1,67 @@
+/*!
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+ */
+
+package org.pentaho.common.ui.metadata.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LocaleResolverTest {
+
+  @Before
+  public void setUp() {
+    LocaleResolver.clear();
+  }
+
+  @After
+  public void tearDown() {
+    LocaleResolver.clear();
+  }
+
+  @Test
+  public void testGetClosestLocale() {
+    String[] localeCodes = { "en", "de" };
+    assertEquals( "de", LocaleResolver.getClosestLocale( "de_DE", localeCodes ) );
+    assertEquals( "de", LocaleResolver.getClosestLocale( "de_DE", new String[] { "en", "de" } ) );
+    assertEquals( 1, LocaleResolver.size() );
+    assertEquals( "en", LocaleResolver.getClosestLocale( "en_US", localeCodes ) );
+    assertEquals( 2, LocaleResolver.size() );
+  }
+
+  @Test
+  public void testLocaleCodesChanged() {
+    String[] localeCodes = { "en", "de" };
+    assertEquals( "de", LocaleResolver.getClosestLocale( "de", localeCodes ) );
+    // the domain no longer has a German locale
+    localeCodes[1] = "fr";
+    assertEquals( "fr", LocaleResolver.getClosestLocale( "fr", localeCodes ) );
+    assertEquals( "en", LocaleResolver.getClosestLocale( "de", new String[] { "en", "fr" } ) );
+  }
+
+  @Test
+  public void testBounded() {
+    String[] localeCodes = { "en" };
+    for ( int i = 0; i < 1000; i++ ) {
+      LocaleResolver.getClosestLocale( "xx_" + i, localeCodes );
+    }
+    assertTrue( LocaleResolver.size() <= 256 );
+  }
+}
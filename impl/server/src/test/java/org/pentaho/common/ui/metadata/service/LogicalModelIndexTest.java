@@ -0,0 +1,86 @@
+/*!
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+ */
+
+package org.pentaho.common.ui.metadata.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.metadata.model.Category;
+import org.pentaho.metadata.model.LogicalColumn;
+import org.pentaho.metadata.model.LogicalModel;
+import org.pentaho.metadata.model.LogicalTable;
+
+public class LogicalModelIndexTest {
+
+  private LogicalModel logicalModel;
+  private LogicalColumn column1;
+  private LogicalColumn column2;
+  private Category category1;
+  private Category category2;
+
+  @Before
+  public void setUp() {
+    column1 = createColumn( "column_1" );
+    column2 = createColumn( "column_2" );
+    LogicalTable table = mock( LogicalTable.class );
+    doReturn( Arrays.asList( column1, column2 ) ).when( table ).getLogicalColumns();
+
+    category1 = mock( Category.class );
+    doReturn( Arrays.asList( column1 ) ).when( category1 ).getLogicalColumns();
+    category2 = mock( Category.class );
+    doReturn( Arrays.asList( column1, column2 ) ).when( category2 ).getLogicalColumns();
+
+    logicalModel = mock( LogicalModel.class );
+    doReturn( Arrays.asList( table ) ).when( logicalModel ).getLogicalTables();
+    doReturn( Arrays.asList( category1, category2 ) ).when( logicalModel ).getCategories();
+  }
+
+  @Test
+  public void testFindLogicalColumn() {
+    LogicalModelIndex index = new LogicalModelIndex( logicalModel );
+    assertEquals( column1, index.findLogicalColumn( "column_1" ) );
+    assertEquals( column2, index.findLogicalColumn( "column_2" ) );
+    assertNull( index.findLogicalColumn( "unknown" ) );
+
+    // columns that are not in a table are resolved by the model
+    LogicalColumn column3 = createColumn( "column_3" );
+    doReturn( column3 ).when( logicalModel ).findLogicalColumn( "column_3" );
+    assertEquals( column3, index.findLogicalColumn( "column_3" ) );
+  }
+
+  @Test
+  public void testFindCategory() {
+    LogicalModelIndex index = new LogicalModelIndex( logicalModel );
+    // the first category holding the column wins
+    assertEquals( category1, index.findCategory( "column_1" ) );
+    assertEquals( category2, index.findCategory( "column_2" ) );
+    assertNull( index.findCategory( "unknown" ) );
+  }
+
+  private LogicalColumn createColumn( String id ) {
+    LogicalColumn column = mock( LogicalColumn.class );
+    doReturn( id ).when( column ).getId();
+    return column;
+  }
+}
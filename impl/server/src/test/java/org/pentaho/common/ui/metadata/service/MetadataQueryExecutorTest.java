@@ -0,0 +1,206 @@
+/*!
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+ */
+
+package org.pentaho.common.ui.metadata.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.common.ui.metadata.service.MetadataQueryHandle.Status;
+import org.pentaho.commons.connection.IPentahoResultSet;
+
+public class MetadataQueryExecutorTest {
+
+  private static final long WAIT = 5000;
+
+  private MetadataQueryExecutor executor;
+  private MetadataQueryContext context;
+  private CountDownLatch release;
+
+  @Before
+  public void setUp() {
+    executor = new MetadataQueryExecutor( 1, 1, 60000, false );
+    context = new MetadataQueryContext( "xml", null, null );
+    release = new CountDownLatch( 1 );
+  }
+
+  @After
+  public void tearDown() {
+    release.countDown();
+    executor.shutdown();
+  }
+
+  @Test
+  public void testSubmit() throws Exception {
+    IPentahoResultSet resultSet = mock( IPentahoResultSet.class );
+    MetadataQueryHandle handle = executor.submit( context, result( resultSet ) );
+    assertNotNull( handle.getId() );
+    assertEquals( handle, executor.getHandle( handle.getId() ) );
+
+    assertTrue( handle.await( WAIT ) );
+    assertEquals( Status.DONE, handle.getStatus() );
+    assertEquals( resultSet, handle.getResultSet() );
+    assertEquals( context, handle.getContext() );
+
+    executor.remove( handle );
+    assertNull( executor.getHandle( handle.getId() ) );
+    assertEquals( 0, executor.getHandleCount() );
+  }
+
+  @Test
+  public void testExpiredOnGetHandle() throws Exception {
+    executor.shutdown();
+    executor = new MetadataQueryExecutor( 1, 1, 0, false );
+    IPentahoResultSet resultSet = mock( IPentahoResultSet.class );
+    MetadataQueryHandle handle = executor.submit( context, result( resultSet ) );
+    assertTrue( handle.await( WAIT ) );
+    Thread.sleep( 10 );
+
+    // looking up any query releases the expired ones, without another submit
+    assertNull( executor.getHandle( "unknown" ) );
+    assertEquals( 0, executor.getHandleCount() );
+    verify( resultSet ).close();
+  }
+
+  @Test
+  public void testFailed() throws Exception {
+    MetadataQueryHandle handle = executor.submit( context, result( null ) );
+    assertTrue( handle.await( WAIT ) );
+    assertEquals( Status.FAILED, handle.getStatus() );
+    assertNull( handle.getResultSet() );
+  }
+
+  @Test
+  public void testCancelRunning() throws Exception {
+    IPentahoResultSet resultSet = mock( IPentahoResultSet.class );
+    MetadataQueryHandle running = executor.submit( context, blocked( resultSet ) );
+    MetadataQueryHandle queued = executor.submit( context, result( resultSet ) );
+    assertEquals( 1, executor.getQueueDepth() );
+
+    assertTrue( queued.cancel() );
+    assertEquals( Status.CANCELLED, queued.getStatus() );
+    assertTrue( running.cancel() );
+    assertFalse( running.cancel() );
+    assertTrue( running.await( 0 ) );
+    assertEquals( Status.CANCELLED, running.getStatus() );
+    assertNull( running.getResultSet() );
+  }
+
+  @Test
+  public void testCancelDone() throws Exception {
+    IPentahoResultSet resultSet = mock( IPentahoResultSet.class );
+    MetadataQueryHandle handle = executor.submit( context, result( resultSet ) );
+    assertTrue( handle.await( WAIT ) );
+    assertTrue( handle.cancel() );
+    verify( resultSet ).close();
+  }
+
+  @Test( expected = RejectedExecutionException.class )
+  public void testQueueFull() throws Exception {
+    executor.submit( context, blocked( null ) );
+    executor.submit( context, blocked( null ) );
+    executor.submit( context, blocked( null ) );
+  }
+
+  @Test
+  public void testSubmitWithTimeout() throws Exception {
+    final Integer[] timeouts = new Integer[2];
+    Callable<IPentahoResultSet> query = new Callable<IPentahoResultSet>() {
+      public IPentahoResultSet call() {
+        timeouts[timeouts[0] == null ? 0 : 1] = MetadataQueryRunner.getThreadTimeout();
+        return null;
+      }
+    };
+    // the statements of the query get the timeout, the pool thread does not keep it
+    assertTrue( executor.submit( context, query, null, 300 ).await( WAIT ) );
+    assertTrue( executor.submit( context, query ).await( WAIT ) );
+    assertEquals( Integer.valueOf( 300 ), timeouts[0] );
+    assertNull( timeouts[1] );
+  }
+
+  @Test
+  public void testSubmitAdmitted() throws Exception {
+    final QueryAdmissionController admission = new QueryAdmissionController( 0, 0, 0, 0 );
+    final boolean[] held = new boolean[1];
+    assertTrue( admission.acquire( null ) );
+    MetadataQueryHandle handle = executor.submit( context, new Callable<IPentahoResultSet>() {
+      public IPentahoResultSet call() {
+        held[0] = admission.isHeld();
+        return null;
+      }
+    }, admission );
+    assertTrue( handle.await( WAIT ) );
+    // the pool thread did not have to be admitted again, and gave the admission back
+    assertTrue( held[0] );
+    assertFalse( admission.isHeld() );
+    assertEquals( 0, admission.getActiveCount() );
+  }
+
+  @Test
+  public void testCancelQueuedReleasesAdmission() throws Exception {
+    QueryAdmissionController admission = new QueryAdmissionController( 0, 0, 0, 0 );
+    executor.submit( context, blocked( null ) );
+    assertTrue( admission.acquire( null ) );
+    MetadataQueryHandle queued = executor.submit( context, result( null ), admission );
+    assertTrue( queued.cancel() );
+    assertEquals( 0, admission.getActiveCount() );
+  }
+
+  @Test
+  public void testRejectedReleasesAdmission() throws Exception {
+    QueryAdmissionController admission = new QueryAdmissionController( 0, 0, 0, 0 );
+    executor.submit( context, blocked( null ) );
+    executor.submit( context, blocked( null ) );
+    assertTrue( admission.acquire( null ) );
+    try {
+      executor.submit( context, result( null ), admission );
+      fail();
+    } catch ( RejectedExecutionException e ) {
+      assertEquals( 0, admission.getActiveCount() );
+    }
+  }
+
+  private Callable<IPentahoResultSet> result( final IPentahoResultSet resultSet ) {
+    return new Callable<IPentahoResultSet>() {
+      public IPentahoResultSet call() {
+        return resultSet;
+      }
+    };
+  }
+
+  private Callable<IPentahoResultSet> blocked( final IPentahoResultSet resultSet ) {
+    return new Callable<IPentahoResultSet>() {
+      public IPentahoResultSet call() throws Exception {
+        release.await();
+        return resultSet;
+      }
+    };
+  }
+}
@@ -20,9 +20,13 @@ package org.pentaho.common.ui.metadata.service;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
 import java.util.ArrayList;
 import java.util.HashSet;
@@ -54,7 +58,7 @@ public class MetadataService2Test {
   private static final String DOMAIN_NAME = "testDomain";
   private static final String MODEL_ID = "visibleModelId";
   // private static final String CTX = "testContext";
-  private static final String MATCH = "match";
+  private static final String MATCH = "visible";
 
   private MetadataService2 metadataService;
 
@@ -99,6 +103,10 @@ public class MetadataService2Test {
 
     helper = mock( QueryXmlHelper.class );
     doReturn( helper ).when( metadataService ).getHelper();
+
+    doReturn( new DomainCache<List<Object>, Object>( 10 ) ).when( metadataService ).getModelCache();
+    doReturn( new DomainCache<String, QueryPlan>( 10 ) ).when( metadataService ).getQueryPlanCache();
+    doReturn( new ModelCatalog( true ) ).when( metadataService ).getModelCatalog();
   }
 
   @Test
@@ -136,6 +144,46 @@ public class MetadataService2Test {
     assertEquals( visibleModel.getDescription( DEFAULT_LOCALE ), result[0].getDescription() );
   }
 
+  @Test
+  public void testGetModelListSearch() throws Exception {
+    List<LogicalModel> listModels = new ArrayList<LogicalModel>();
+    listModels.add( createModel( "description", "Orders", "Sales by customer" ) );
+    listModels.add( createModel( "substring", "Presales", null ) );
+    listModels.add( createModel( "word", "Monthly Sales", null ) );
+    listModels.add( createModel( "prefix", "Sales Forecast", null ) );
+    listModels.add( createModel( "exact", "sal\u00e9s", null ) );
+    listModels.add( createModel( "other", "Inventory", null ) );
+    doReturn( listModels ).when( validDomain ).getLogicalModels();
+
+    ModelInfo[] result = metadataService.getModelList( MetadataService2.PROVIDER_ID, DOMAIN_NAME, " Sales " );
+    assertEquals( 5, result.length );
+    String[] ids = { "exact", "prefix", "word", "substring", "description" };
+    for ( int i = 0; i < ids.length; i++ ) {
+      assertEquals( ids[i], result[i].getModelId() );
+    }
+
+    // without the catalog
+    doReturn( new ModelCatalog( false ) ).when( metadataService ).getModelCatalog();
+    result = metadataService.getModelList( MetadataService2.PROVIDER_ID, DOMAIN_NAME, "sales" );
+    assertEquals( 5, result.length );
+    assertEquals( "exact", result[0].getModelId() );
+
+    // all of the models when there is nothing to search for
+    result = metadataService.getModelList( MetadataService2.PROVIDER_ID, DOMAIN_NAME, null );
+    assertEquals( 6, result.length );
+  }
+
+  private LogicalModel createModel( String id, String name, String description ) {
+    LogicalModel model = mock( LogicalModel.class );
+    doReturn( id ).when( model ).getId();
+    doReturn( name ).when( model ).getName( DEFAULT_LOCALE );
+    if ( description != null ) {
+      doReturn( new LocalizedString() ).when( model ).getDescription();
+      doReturn( description ).when( model ).getDescription( DEFAULT_LOCALE );
+    }
+    return model;
+  }
+
   @Test
   public void testGetModel() {
     Model model = metadataService.getModel( PROVIDER_ID );
@@ -151,11 +199,25 @@ public class MetadataService2Test {
     assertNull( model );
 
     Model mockModel = mock( Model.class );
-    doReturn( mockModel ).when( util2 ).createThinModel( visibleModel, DOMAIN_NAME );
+    doReturn( mockModel ).when( util2 ).createThinModel( visibleModel, DOMAIN_NAME, DEFAULT_LOCALE );
     model = metadataService.getModel( PROVIDER_ID + "~" + DOMAIN_NAME + "~" + MODEL_ID );
     assertEquals( mockModel, model );
   }
 
+  @Test
+  public void testGetModelCached() {
+    String id = PROVIDER_ID + "~" + DOMAIN_NAME + "~" + MODEL_ID;
+    Model thinModel = new Model();
+    doReturn( thinModel ).when( util2 ).createThinModel( visibleModel, DOMAIN_NAME, DEFAULT_LOCALE );
+    assertEquals( thinModel, metadataService.getModel( id ) );
+    assertEquals( thinModel, metadataService.getModel( id ) );
+    verify( util2, times( 1 ) ).createThinModel( visibleModel, DOMAIN_NAME, DEFAULT_LOCALE );
+
+    // the domain is removed
+    doReturn( null ).when( mockDomainRepo ).getDomain( DOMAIN_NAME );
+    assertNull( metadataService.getModel( id ) );
+  }
+
   @Test
   public void testExecuteQuery() {
     Query query = mock( Query.class );
@@ -269,16 +331,24 @@ public class MetadataService2Test {
   }
 
   @Test
-  public void testDoJsonQueryToCdaJson() {
+  public void testDoJsonQueryToCdaJson() throws Exception {
     Integer rowLimit = new Integer( 10 );
     String json = "json";
     String query = "query";
     String rs = "result";
 
-    doReturn( query ).when( metadataService ).getQueryXmlFromJson( json );
-    doReturn( rs ).when( metadataService ).doXmlQueryToCdaJson( query, rowLimit );
+    doReturn( null ).when( metadataService ).getQueryContextFromJson( json );
+    assertNull( metadataService.doJsonQueryToCdaJson( json, rowLimit ) );
+
+    MetadataQueryContext context = new MetadataQueryContext( query, validDomain, visibleModel );
+    IPentahoResultSet mockedResult = mock( IPentahoResultSet.class );
+    doReturn( context ).when( metadataService ).getQueryContextFromJson( json );
+    doReturn( mockedResult ).when( metadataService ).executeQuery( query, rowLimit );
+    doReturn( rs ).when( util2 ).createCdaJson( mockedResult, DEFAULT_LOCALE );
     String result = metadataService.doJsonQueryToCdaJson( json, rowLimit );
     assertEquals( rs, result );
+    // the domain comes with the context, the MQL is not parsed again
+    verify( util2, never() ).getDomainObject( anyString() );
   }
 
   @Test
@@ -22,20 +22,38 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMap;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.lang.StringUtils;
 import org.junit.Before;
+import org.json.JSONArray;
+import org.json.JSONObject;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.pentaho.common.ui.metadata.model.impl.Category;
 import org.pentaho.common.ui.metadata.model.impl.Model;
+import org.pentaho.common.ui.metadata.model.impl.ModelDelta;
 import org.pentaho.common.ui.metadata.model.impl.ModelInfo;
 import org.pentaho.common.ui.metadata.model.impl.Query;
 import org.pentaho.commons.connection.IPentahoMetaData;
@@ -114,6 +132,11 @@ public class MetadataServiceTest {
 
     helper = mock( QueryXmlHelper.class );
     doReturn( helper ).when( metadataService ).getHelper();
+
+    doReturn( new DomainCache<List<Object>, Object>( 10 ) ).when( metadataService ).getModelCache();
+    doReturn( new DomainCache<String, QueryPlan>( 10 ) ).when( metadataService ).getQueryPlanCache();
+    doReturn( new ModelCatalog( true ) ).when( metadataService ).getModelCatalog();
+    doReturn( new ModelHistory( 10 ) ).when( metadataService ).getModelHistory();
   }
 
   @Test
@@ -168,11 +191,70 @@ public class MetadataServiceTest {
     assertNull( model );
 
     Model mockModel = mock( Model.class );
-    doReturn( mockModel ).when( util ).createThinModel( visibleModel, DOMAIN_NAME );
+    doReturn( mockModel ).when( util ).createThinModel( visibleModel, DOMAIN_NAME, DEFAULT_LOCALE );
     model = metadataService.loadModel( DOMAIN_NAME, MODEL_ID );
     assertEquals( mockModel, model );
   }
 
+  @Test
+  public void testLoadModelCached() {
+    Model thinModel = new Model();
+    doReturn( thinModel ).when( util ).createThinModel( visibleModel, DOMAIN_NAME, DEFAULT_LOCALE );
+    assertEquals( thinModel, metadataService.loadModel( DOMAIN_NAME, MODEL_ID ) );
+    assertEquals( thinModel, metadataService.loadModel( DOMAIN_NAME, MODEL_ID ) );
+    verify( util, times( 1 ) ).createThinModel( visibleModel, DOMAIN_NAME, DEFAULT_LOCALE );
+
+    // the domain is stored again
+    Domain storedDomain = mock( Domain.class );
+    doReturn( DEFAULT_LOCALES_CODES ).when( storedDomain ).getLocaleCodes();
+    doReturn( visibleModel ).when( storedDomain ).findLogicalModel( MODEL_ID );
+    doReturn( storedDomain ).when( mockDomainRepo ).getDomain( DOMAIN_NAME );
+    assertEquals( thinModel, metadataService.loadModel( DOMAIN_NAME, MODEL_ID ) );
+    verify( util, times( 2 ) ).createThinModel( visibleModel, DOMAIN_NAME, DEFAULT_LOCALE );
+  }
+
+  @Test
+  public void testLoadModelOutline() {
+    assertNull( metadataService.loadModelOutline( DOMAIN_NAME, "invalid_model" ) );
+
+    Model outline = new Model();
+    doReturn( outline ).when( util ).createThinModelOutline( visibleModel, DOMAIN_NAME, DEFAULT_LOCALE );
+    assertEquals( outline, metadataService.loadModelOutline( DOMAIN_NAME, MODEL_ID ) );
+    assertEquals( outline, metadataService.loadModelOutline( DOMAIN_NAME, MODEL_ID ) );
+    verify( util, times( 1 ) ).createThinModelOutline( visibleModel, DOMAIN_NAME, DEFAULT_LOCALE );
+
+    Category category = new Category();
+    category.setId( "category" );
+    doReturn( category ).when( util ).createThinCategory( visibleModel, "category", DEFAULT_LOCALE );
+    assertEquals( category, metadataService.loadCategory( DOMAIN_NAME, MODEL_ID, "category" ) );
+    assertEquals( category, metadataService.loadCategory( DOMAIN_NAME, MODEL_ID, "category" ) );
+    verify( util, times( 1 ) ).createThinCategory( visibleModel, "category", DEFAULT_LOCALE );
+    assertNull( metadataService.loadCategory( DOMAIN_NAME, MODEL_ID, "missing" ) );
+    assertNull( metadataService.loadCategory( DOMAIN_NAME, MODEL_ID, null ) );
+  }
+
+  @Test
+  public void testLoadModelDelta() {
+    Model thinModel = new Model();
+    thinModel.setId( MODEL_ID );
+    thinModel.setDomainId( DOMAIN_NAME );
+    doReturn( thinModel ).when( util ).createThinModel( visibleModel, DOMAIN_NAME, DEFAULT_LOCALE );
+    ModelHistory history = metadataService.getModelHistory();
+    assertNotNull( metadataService.loadModel( DOMAIN_NAME, MODEL_ID ) );
+    // loading the model does not version it
+    assertEquals( 0, history.size() );
+    String etag = metadataService.getModelJsonETag( DOMAIN_NAME, MODEL_ID );
+    String version = etag.substring( 1, etag.length() - 1 );
+
+    ModelDelta delta = metadataService.loadModelDelta( DOMAIN_NAME, MODEL_ID, version );
+    assertEquals( version, delta.getVersion() );
+    assertFalse( delta.isComplete() );
+    assertEquals( 0, delta.getCategories().length );
+
+    assertTrue( metadataService.loadModelDelta( DOMAIN_NAME, MODEL_ID, "unknown" ).isComplete() );
+    assertNull( metadataService.loadModelDelta( DOMAIN_NAME, "invalid_model", version ) );
+  }
+
   @Test
   public void testLoadModelJson() {
     String dId = "dom_id";
@@ -182,6 +264,7 @@ public class MetadataServiceTest {
     model.setName( "name" );
     model.setDomainId( dId );
     doReturn( model ).when( metadataService ).loadModel( dId, mId );
+    doReturn( false ).when( metadataService ).isModelJsonSnapshots();
 
     String json = metadataService.loadModelJson( dId, mId );
     assertEquals(
@@ -189,6 +272,23 @@ public class MetadataServiceTest {
         json );
   }
 
+  @Test
+  public void testLoadModelJsonSnapshot() {
+    Model model = new Model();
+    model.setId( MODEL_ID );
+    model.setName( "name" );
+    model.setDomainId( DOMAIN_NAME );
+    doReturn( model ).when( util ).createThinModel( visibleModel, DOMAIN_NAME, DEFAULT_LOCALE );
+
+    ModelJsonSnapshot snapshot = metadataService.loadModelJsonSnapshot( DOMAIN_NAME, MODEL_ID );
+    assertEquals( metadataService.loadModelJson( DOMAIN_NAME, MODEL_ID ), snapshot.toString() );
+    assertTrue( snapshot == metadataService.loadModelJsonSnapshot( DOMAIN_NAME, MODEL_ID ) );
+    assertEquals( snapshot.getETag(), metadataService.getModelJsonETag( DOMAIN_NAME, MODEL_ID ) );
+    verify( util, times( 1 ) ).createThinModel( visibleModel, DOMAIN_NAME, DEFAULT_LOCALE );
+    // the domain is looked up once for the snapshot and the model it is built from
+    verify( mockDomainRepo, times( 4 ) ).getDomain( DOMAIN_NAME );
+  }
+
   @Test
   public void testDoQuery() {
     Integer rowLimit = new Integer( 10 );
@@ -291,16 +391,97 @@ public class MetadataServiceTest {
   }
 
   @Test
-  public void testDoJsonQueryToCdaJson() {
+  public void testDoJsonQueryToCdaJson() throws Exception {
     Integer rowLimit = new Integer( 10 );
     String json = "json";
     String query = "query";
     String rs = "result";
 
-    doReturn( query ).when( metadataService ).getQueryXmlFromJson( json );
-    doReturn( rs ).when( metadataService ).doXmlQueryToCdaJson( query, rowLimit );
+    doReturn( null ).when( metadataService ).getQueryContextFromJson( json );
+    assertNull( metadataService.doJsonQueryToCdaJson( json, rowLimit ) );
+
+    MetadataQueryContext context = new MetadataQueryContext( query, validDomain, visibleModel );
+    IPentahoResultSet mockedResult = mock( IPentahoResultSet.class );
+    doReturn( context ).when( metadataService ).getQueryContextFromJson( json );
+    doReturn( mockedResult ).when( metadataService ).executeQuery( query, rowLimit );
+    doReturn( rs ).when( util2 ).createCdaJson( mockedResult, DEFAULT_LOCALE );
     String result = metadataService.doJsonQueryToCdaJson( json, rowLimit );
     assertEquals( rs, result );
+    // the domain comes with the context, the MQL is not parsed again
+    verify( util2, never() ).getDomainObject( anyString() );
+  }
+
+  @Test
+  public void testDoJsonQueryToCdaJsonPage() throws Exception {
+    String json = "json";
+    String query = "query";
+    doReturn( new QueryResultCache( true, 10, 1024 * 1024, 60000 ) ).when( metadataService ).getPagingCache();
+
+    doReturn( null ).when( metadataService ).getQueryContextFromJson( json );
+    assertNull( metadataService.doJsonQueryToCdaJsonPage( json, 0, 10 ) );
+
+    MetadataQueryContext context = new MetadataQueryContext( query, validDomain, visibleModel );
+    IPentahoResultSet mockedResult = mock( IPentahoResultSet.class );
+    doReturn( 25 ).when( mockedResult ).getRowCount();
+    doReturn( 1 ).when( mockedResult ).getColumnCount();
+    doReturn( context ).when( metadataService ).getQueryContextFromJson( json );
+    // a paged result is bounded unless another limit is configured
+    doReturn( mockedResult ).when( metadataService ).runQuery( query, MetadataService.DEFAULT_PAGING_MAX_ROWS );
+    doReturn( "page" ).when( util2 ).createCdaJsonPage( any( QueryResultCache.Page.class ), eq( DEFAULT_LOCALE ) );
+
+    assertEquals( "page", metadataService.doJsonQueryToCdaJsonPage( json, 0, 10 ) );
+    assertEquals( "page", metadataService.doJsonQueryToCdaJsonPage( json, 10, 10 ) );
+    // the second page is taken from the result of the first request
+    verify( metadataService, times( 1 ) ).runQuery( query, MetadataService.DEFAULT_PAGING_MAX_ROWS );
+    verify( util2, never() ).getDomainObject( anyString() );
+  }
+
+  @Test
+  public void testWriteQueriesToCdaJson() throws Exception {
+    String xml = "<mql><domain_id>" + DOMAIN_NAME + "</domain_id><model_id>1</model_id></mql>";
+    String failingXml = "<mql><domain_id>" + DOMAIN_NAME + "</domain_id><model_id>2</model_id></mql>";
+    MetadataQueryExecutor executor = new MetadataQueryExecutor( 2, 10, 60000, false );
+    doReturn( executor ).when( metadataService ).getQueryExecutor();
+
+    MetadataQueryContext context = new MetadataQueryContext( "query", validDomain, visibleModel );
+    doReturn( context ).when( metadataService ).getQueryContextFromJson( eq( "json" ), anyMap() );
+    doReturn( null ).when( metadataService ).getQueryContextFromJson( eq( "bad" ), anyMap() );
+    final IPentahoResultSet jsonResult = mock( IPentahoResultSet.class );
+    IPentahoResultSet xmlResult = mock( IPentahoResultSet.class );
+    doReturn( jsonResult ).when( metadataService ).executeQuery( "query", 10 );
+    doReturn( xmlResult ).when( metadataService ).executeQuery( xml, 10 );
+    doReturn( null ).when( metadataService ).executeQuery( failingXml, 10 );
+    doAnswer( new Answer<Object>() {
+      public Object answer( InvocationOnMock invocation ) throws Throwable {
+        String name = invocation.getArguments()[0] == jsonResult ? "json" : "xml";
+        ( (OutputStream) invocation.getArguments()[2] ).write( ( "{\"name\":\"" + name + "\"}" ).getBytes( "UTF-8" ) );
+        return null;
+      }
+    } ).when( util2 ).writeCdaJson( any( IPentahoResultSet.class ), eq( DEFAULT_LOCALE ), any( OutputStream.class ) );
+
+    JSONArray batch = new JSONArray();
+    batch.put( new JSONObject().put( "xml", xml ) );
+    batch.put( new JSONObject().put( "json", "json" ) );
+    batch.put( new JSONObject().put( "json", "bad" ) );
+    batch.put( new JSONObject().put( "xml", failingXml ) );
+    try {
+      String result = metadataService.doQueriesToCdaJson( batch.toString(), 10 );
+      JSONArray results = new JSONObject( result ).getJSONArray( "results" );
+      assertEquals( 4, results.length() );
+      assertEquals( "xml", results.getJSONObject( 0 ).getString( "name" ) );
+      assertEquals( "json", results.getJSONObject( 1 ).getString( "name" ) );
+      assertTrue( results.getJSONObject( 2 ).has( "error" ) );
+      assertTrue( results.getJSONObject( 3 ).has( "error" ) );
+    } finally {
+      executor.shutdown();
+    }
+    // both XML queries use the same domain
+    verify( mockDomainRepo, times( 1 ) ).getDomain( DOMAIN_NAME );
+    verify( util2, never() ).getDomainObject( anyString() );
+    verify( jsonResult ).close();
+    verify( xmlResult ).close();
+    assertEquals( 0, executor.getHandleCount() );
+    assertNull( metadataService.doQueriesToCdaJson( "not a batch", 10 ) );
   }
 
   @Test
@@ -318,6 +499,192 @@ public class MetadataServiceTest {
     assertEquals( resultXml, result );
   }
 
+  @Test
+  public void testGetQueryContextFromJsonCached() {
+    String json = "json";
+    String resultXml = "result";
+
+    Query query = new Query();
+    query.setDomainName( DOMAIN_NAME );
+    query.setModelId( MODEL_ID );
+    org.pentaho.metadata.query.model.Query modelQuery = mock( org.pentaho.metadata.query.model.Query.class );
+    doReturn( validDomain ).when( modelQuery ).getDomain();
+    doReturn( visibleModel ).when( modelQuery ).getLogicalModel();
+    doReturn( query ).when( util ).deserializeJsonQuery( json );
+    doReturn( modelQuery ).when( util ).convertQuery( query );
+    doReturn( resultXml ).when( helper ).toXML( modelQuery );
+
+    assertEquals( resultXml, metadataService.getQueryXmlFromJson( json ) );
+    MetadataQueryContext context = metadataService.getQueryContextFromJson( json );
+    assertEquals( resultXml, context.getXml() );
+    assertEquals( validDomain, context.getDomain() );
+    assertEquals( visibleModel, context.getLogicalModel() );
+    verify( util, times( 1 ) ).convertQuery( query );
+    verify( helper, times( 1 ) ).toXML( modelQuery );
+  }
+
+  @Test
+  public void testWriteQueriesToCdaJsonWithinUserLimit() throws Exception {
+    QueryAdmissionController admission = new QueryAdmissionController( 0, 1, 10, 5000 );
+    doReturn( admission ).when( metadataService ).getAdmissionController();
+    MetadataQueryExecutor executor = new MetadataQueryExecutor( 4, 10, 60000, false );
+    doReturn( executor ).when( metadataService ).getQueryExecutor();
+
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger maxRunning = new AtomicInteger();
+    JSONArray batch = new JSONArray();
+    for ( int i = 0; i < 3; i++ ) {
+      MetadataQueryContext context = new MetadataQueryContext( "query" + i, validDomain, visibleModel );
+      doReturn( context ).when( metadataService ).getQueryContextFromJson( eq( "json" + i ), anyMap() );
+      doAnswer( new Answer<IPentahoResultSet>() {
+        public IPentahoResultSet answer( InvocationOnMock invocation ) throws Throwable {
+          maxRunning.set( Math.max( maxRunning.get(), running.incrementAndGet() ) );
+          Thread.sleep( 20 );
+          running.decrementAndGet();
+          return mock( IPentahoResultSet.class );
+        }
+      } ).when( metadataService ).executeQuery( "query" + i, 10 );
+      batch.put( new JSONObject().put( "json", "json" + i ) );
+    }
+    doAnswer( new Answer<Object>() {
+      public Object answer( InvocationOnMock invocation ) throws Throwable {
+        ( (OutputStream) invocation.getArguments()[2] ).write( "{}".getBytes( "UTF-8" ) );
+        return null;
+      }
+    } ).when( util2 ).writeCdaJson( any( IPentahoResultSet.class ), eq( DEFAULT_LOCALE ), any( OutputStream.class ) );
+    try {
+      String result = metadataService.doQueriesToCdaJson( batch.toString(), 10 );
+      assertEquals( 3, new JSONObject( result ).getJSONArray( "results" ).length() );
+    } finally {
+      executor.shutdown();
+    }
+    // the batch never ran more queries at the same time than the user may run
+    assertEquals( 1, maxRunning.get() );
+    assertEquals( 0, admission.getActiveCount() );
+    assertEquals( 0, admission.getTimedOutCount() );
+  }
+
+  @Test
+  public void testSubmitXmlQuery() throws Exception {
+    Integer rowLimit = new Integer( 10 );
+    String xml = "xml";
+    String json = "json";
+    MetadataQueryExecutor executor = new MetadataQueryExecutor( 1, 10, 60000, false );
+    doReturn( executor ).when( metadataService ).getQueryExecutor();
+
+    IPentahoResultSet mockedResult = mock( IPentahoResultSet.class );
+    doReturn( mockedResult ).when( metadataService ).executeQuery( xml, rowLimit );
+    doReturn( validDomain ).when( util2 ).getDomainObject( xml );
+    doReturn( json ).when( util2 ).createCdaJson( mockedResult, DEFAULT_LOCALE );
+    try {
+      String id = metadataService.submitXmlQuery( xml, rowLimit );
+      assertNotNull( id );
+      assertEquals( json, metadataService.fetchQueryResultToCdaJson( id, 5000 ) );
+      // the result can only be fetched once
+      assertNull( metadataService.getQueryStatus( id ) );
+      assertNull( metadataService.fetchQueryResultToCdaJson( id, 0 ) );
+      verify( mockedResult ).close();
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testCancelQuery() throws Exception {
+    MetadataQueryExecutor executor = new MetadataQueryExecutor( 1, 10, 60000, false );
+    doReturn( executor ).when( metadataService ).getQueryExecutor();
+    doReturn( null ).when( metadataService ).executeQuery( "xml", 10 );
+    try {
+      String id = metadataService.submitXmlQuery( "xml", 10 );
+      executor.getHandle( id ).await( 5000 );
+      assertEquals( "FAILED", metadataService.getQueryStatus( id ) );
+      assertFalse( metadataService.cancelQuery( id ) );
+      assertFalse( metadataService.cancelQuery( "unknown" ) );
+      assertEquals( 0, metadataService.getActiveQueryCount() );
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testSubmitQueryAdmittedBeforePool() throws Exception {
+    QueryAdmissionController admission = new QueryAdmissionController( 0, 1, 0, 0 );
+    doReturn( admission ).when( metadataService ).getAdmissionController();
+    MetadataQueryExecutor executor = new MetadataQueryExecutor( 1, 10, 60000, false );
+    doReturn( executor ).when( metadataService ).getQueryExecutor();
+    final CountDownLatch running = new CountDownLatch( 1 );
+    doAnswer( new Answer<IPentahoResultSet>() {
+      public IPentahoResultSet answer( InvocationOnMock invocation ) throws Throwable {
+        running.await();
+        return null;
+      }
+    } ).when( metadataService ).executeQuery( "xml", 10 );
+    try {
+      String id = metadataService.submitXmlQuery( "xml", 10 );
+      assertNotNull( id );
+      assertEquals( 1, admission.getActiveCount() );
+      // the only admission of the user is taken, the second query is not handed to the pool
+      try {
+        metadataService.submitXmlQuery( "xml", 10 );
+        fail( "the second query is rejected" );
+      } catch ( QueryRejectedException e ) {
+        // expected
+      }
+      assertEquals( 0, executor.getQueueDepth() );
+
+      running.countDown();
+      assertTrue( executor.getHandle( id ).await( 5000 ) );
+      assertEquals( 0, admission.getActiveCount() );
+    } finally {
+      running.countDown();
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testRunQueryRejected() throws Exception {
+    QueryAdmissionController admission = new QueryAdmissionController( 1, 0, 0, 0 );
+    doReturn( admission ).when( metadataService ).getAdmissionController();
+    assertTrue( admission.acquire( "other" ) );
+    // a rejected query is not reported as a query without a result
+    try {
+      metadataService.runQuery( "xml", 10 );
+      fail( "the query is rejected" );
+    } catch ( QueryRejectedException e ) {
+      assertEquals( 1, admission.getRejectedCount() );
+    } finally {
+      admission.release( "other" );
+    }
+  }
+
+  @Test
+  public void testDefaultQueryTimeout() {
+    // queries run to completion unless a timeout is configured
+    assertEquals( 0, metadataService.getQueryTimeout() );
+    // without a timeout a cancelled submitted query would run in the database until it finishes
+    assertEquals( MetadataService.DEFAULT_ASYNC_QUERY_TIMEOUT, metadataService.getAsyncQueryTimeout() );
+    assertTrue( metadataService.getAsyncQueryTimeout() > 0 );
+  }
+
+  @Test
+  public void testListBusinessModelsFromCatalog() throws Exception {
+    ModelInfo[] first = metadataService.listBusinessModels( StringUtils.EMPTY, CTX );
+    ModelInfo[] second = metadataService.listBusinessModels( StringUtils.EMPTY, CTX );
+    assertEquals( first.length, second.length );
+    assertEquals( first[0].getModelName(), second[0].getModelName() );
+    // the repository is asked for the domain every time, but its models are only walked once
+    verify( mockDomainRepo, times( 2 ) ).getDomain( DOMAIN_NAME );
+    verify( validDomain, times( 1 ) ).getLogicalModels();
+  }
+
+  @Test
+  public void testListBusinessModelsChecksAccess() throws Exception {
+    assertEquals( 2, metadataService.listBusinessModels( StringUtils.EMPTY, CTX ).length );
+    // the domain may no longer be read, the catalog must not list it
+    doReturn( null ).when( mockDomainRepo ).getDomain( DOMAIN_NAME );
+    assertEquals( 0, metadataService.listBusinessModels( StringUtils.EMPTY, CTX ).length );
+  }
+
   @Test
   public void testListBusinessModelsXSS() throws Exception {
     ModelInfo[] result = metadataService.listBusinessModels( DOMAIN_NAME, CTX );
@@ -29,6 +29,11 @@ import static org.mockito.Mockito.spy;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -61,6 +66,7 @@ import org.pentaho.metadata.query.model.Constraint;
 import org.pentaho.metadata.query.model.Order.Type;
 import org.pentaho.metadata.query.model.Selection;
 import org.pentaho.metadata.repository.IMetadataDomainRepository;
+import org.pentaho.platform.util.messages.LocaleHelper;
 
 public class MetadataServiceUtil2Test {
 
@@ -95,6 +101,60 @@ public class MetadataServiceUtil2Test {
     assertColumns( column, elemCol, category.getId() );
   }
 
+  @Test
+  public void testCreateThinModelConcurrently() throws Exception {
+    final MetadataServiceUtil2 util = new MetadataServiceUtil2();
+    final String[] localeCodes = { "en", "de" };
+    final LogicalModel[] models = new LogicalModel[4];
+    for ( int i = 0; i < models.length; i++ ) {
+      models[i] = createLocalizedModel( i );
+    }
+    ExecutorService pool = Executors.newFixedThreadPool( 8 );
+    try {
+      List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for ( int i = 0; i < 2000; i++ ) {
+        final int domain = i % models.length;
+        final String language = i % 3 == 0 ? "de" : "en";
+        futures.add( pool.submit( new Callable<Void>() {
+          public Void call() {
+            LocaleHelper.setLocale( new Locale( language ) );
+            String locale = LocaleResolver.getClosestLocale( localeCodes );
+            Model model = util.createThinModel( models[domain], "domain_" + domain, locale );
+            assertEquals( "domain_" + domain, model.getGroupId() );
+            assertEquals( "model_" + domain + "_" + language, model.getName() );
+            assertEquals( "category_" + domain + "_" + language, model.getElements()[0].getName() );
+            return null;
+          }
+        } ) );
+      }
+      for ( Future<Void> future : futures ) {
+        future.get();
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private LogicalModel createLocalizedModel( int domain ) {
+    Category category = new Category();
+    category.setId( "category" );
+    category.setName( createLocalizedString( "category_" + domain ) );
+    category.setDescription( createLocalizedString( "category_description_" + domain ) );
+    LogicalModel model = new LogicalModel();
+    model.setId( "model" );
+    model.setName( createLocalizedString( "model_" + domain ) );
+    model.setDescription( createLocalizedString( "model_description_" + domain ) );
+    model.addCategory( category );
+    return model;
+  }
+
+  private LocalizedString createLocalizedString( String prefix ) {
+    LocalizedString string = new LocalizedString();
+    string.setString( "en", prefix + "_en" );
+    string.setString( "de", prefix + "_de" );
+    return string;
+  }
+
   @Test
   public void testCreateCdaJson() throws JSONException {
     String result = spyMetadataServiceUtil.createCdaJson( null, DEFAULT_LOCALE );
@@ -130,6 +190,30 @@ public class MetadataServiceUtil2Test {
     makeMetadataObjectAssertions( metadata.getJSONObject( 1 ), 1, "BOOLEAN" );
   }
 
+  @Test
+  public void testCreateCdaJsonPage() throws JSONException {
+    assertNull( spyMetadataServiceUtil.createCdaJsonPage( null, DEFAULT_LOCALE ) );
+
+    IPentahoMetaData mockMetaData = mock( IPentahoMetaData.class );
+    doReturn( new Object[][] { { "Header_0" } } ).when( mockMetaData ).getColumnHeaders();
+    doReturn( DataType.STRING ).when( mockMetaData ).getAttribute( 0, 0, IPhysicalColumn.DATATYPE_PROPERTY );
+    IPentahoResultSet mockResultSet = mock( IPentahoResultSet.class );
+    doReturn( 1 ).when( mockResultSet ).getColumnCount();
+    doReturn( 2 ).when( mockResultSet ).getRowCount();
+    doReturn( "val_10" ).when( mockResultSet ).getValueAt( 0, 0 );
+    doReturn( "val_11" ).when( mockResultSet ).getValueAt( 1, 0 );
+    doReturn( mockMetaData ).when( mockResultSet ).getMetaData();
+
+    String result =
+        spyMetadataServiceUtil.createCdaJsonPage( new QueryResultCache.Page( mockResultSet, 10, 25 ), DEFAULT_LOCALE );
+    JSONObject resultObj = new JSONObject( result );
+    assertEquals( "[[\"val_10\"],[\"val_11\"]]", resultObj.getJSONArray( "resultset" ).toString() );
+    JSONObject queryInfo = resultObj.getJSONObject( "queryInfo" );
+    assertEquals( 10, queryInfo.getInt( "pageStart" ) );
+    assertEquals( 2, queryInfo.getInt( "pageSize" ) );
+    assertEquals( 25, queryInfo.getInt( "totalRows" ) );
+  }
+
   private void makeMetadataObjectAssertions( JSONObject obj, int idx, String type ) throws JSONException {
     assertEquals( "name_" + idx, obj.getString( "colLabel" ) );
     assertEquals( idx, obj.getInt( "colIndex" ) );
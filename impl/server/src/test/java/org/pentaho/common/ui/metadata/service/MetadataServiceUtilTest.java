@@ -22,10 +22,15 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
 
+import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -36,6 +41,10 @@ import org.json.JSONObject;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.pentaho.common.ui.metadata.model.FormulaBuilder;
+import org.pentaho.common.ui.metadata.model.Operator;
 import org.pentaho.common.ui.metadata.model.impl.Column;
 import org.pentaho.common.ui.metadata.model.impl.Condition;
 import org.pentaho.common.ui.metadata.model.impl.Model;
@@ -59,6 +68,7 @@ import org.pentaho.metadata.query.model.CombinationType;
 import org.pentaho.metadata.query.model.Constraint;
 import org.pentaho.metadata.query.model.Order.Type;
 import org.pentaho.metadata.query.model.Selection;
+import org.pentaho.metadata.query.model.util.QueryXmlHelper;
 import org.pentaho.metadata.repository.IMetadataDomainRepository;
 
 public class MetadataServiceUtilTest {
@@ -95,6 +105,33 @@ public class MetadataServiceUtilTest {
     assertColumns( column, col, category.getId() );
   }
 
+  @Test
+  public void testCreateThinModelOutline() {
+    LogicalColumn column =
+        createMockColumn( "id_column", "name_column", "description_column", DataType.STRING, FieldType.ATTRIBUTE );
+    List<LogicalColumn> listColumns = new ArrayList<LogicalColumn>( 1 );
+    listColumns.add( column );
+    Category category = createMockCategory( "id_category", "name_category", "description_category", listColumns );
+    List<Category> listCategories = new ArrayList<Category>( 1 );
+    listCategories.add( category );
+    LogicalModel lmodel = createMockModel( "id", "name", "description", listCategories );
+
+    Model model = spyMetadataServiceUtil.createThinModelOutline( lmodel, DOMAIN_ID, DEFAULT_LOCALE );
+
+    assertModels( lmodel, model, DOMAIN_ID );
+    assertEquals( 1, model.getCategories().length );
+    org.pentaho.common.ui.metadata.model.impl.Category cat = model.getCategories()[0];
+    assertCategories( category, cat );
+    assertEquals( 0, cat.getColumns().length );
+    assertEquals( 1, cat.getColumnCount() );
+
+    cat = spyMetadataServiceUtil.createThinCategory( lmodel, "id_category", DEFAULT_LOCALE );
+    assertCategories( category, cat );
+    assertEquals( 1, cat.getColumnCount() );
+    assertColumns( column, cat.getColumns()[0], category.getId() );
+    assertNull( spyMetadataServiceUtil.createThinCategory( lmodel, "missing", DEFAULT_LOCALE ) );
+  }
+
   @Test
   public void testCreateCdaJson() throws JSONException {
     String result = spyMetadataServiceUtil.createCdaJson( null, DEFAULT_LOCALE );
@@ -130,6 +167,34 @@ public class MetadataServiceUtilTest {
     makeMetadataObjectAssertions( metadata.getJSONObject( 1 ), 1, "BOOLEAN" );
   }
 
+  @Test
+  public void testWriteCdaJson() throws Exception {
+    Object[][] headers = new Object[][] { { "Header_0", "Header_1" } };
+    IPentahoMetaData mockMetaData = mock( IPentahoMetaData.class );
+    doReturn( headers ).when( mockMetaData ).getColumnHeaders();
+    doReturn( DataType.STRING ).when( mockMetaData ).getAttribute( 0, 0, IPhysicalColumn.DATATYPE_PROPERTY );
+    doReturn( DataType.NUMERIC ).when( mockMetaData ).getAttribute( 0, 1, IPhysicalColumn.DATATYPE_PROPERTY );
+    IPentahoResultSet mockResultSet = mock( IPentahoResultSet.class );
+    doReturn( 2 ).when( mockResultSet ).getColumnCount();
+    doReturn( 2 ).when( mockResultSet ).getRowCount();
+    doReturn( "say \"hi\"" ).when( mockResultSet ).getValueAt( 0, 0 );
+    doReturn( 1.5 ).when( mockResultSet ).getValueAt( 0, 1 );
+    doReturn( null ).when( mockResultSet ).getValueAt( 1, 0 );
+    doReturn( 2 ).when( mockResultSet ).getValueAt( 1, 1 );
+    doReturn( mockMetaData ).when( mockResultSet ).getMetaData();
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    spyMetadataServiceUtil.writeCdaJson( mockResultSet, DEFAULT_LOCALE, output );
+    String streamed = new String( output.toByteArray(), "UTF-8" );
+    assertEquals( spyMetadataServiceUtil.createCdaJson( mockResultSet, DEFAULT_LOCALE ), streamed );
+
+    JSONObject resultObj = new JSONObject( streamed );
+    assertEquals( "[[\"say \\\"hi\\\"\",1.5],[null,2]]", resultObj.getJSONArray( "resultset" ).toString() );
+    JSONObject info = resultObj.getJSONArray( "metadata" ).getJSONObject( 1 );
+    assertEquals( "NUMERIC", info.getString( "colType" ) );
+    assertFalse( info.has( "colLabel" ) );
+  }
+
   private void makeMetadataObjectAssertions( JSONObject obj, int idx, String type ) throws JSONException {
     assertEquals( "name_" + idx, obj.getString( "colLabel" ) );
     assertEquals( idx, obj.getInt( "colIndex" ) );
@@ -172,7 +237,7 @@ public class MetadataServiceUtilTest {
     assertEquals( 1, result.getConstraints().size() );
     Constraint constraint = result.getConstraints().get( 0 );
     assertEquals( CombinationType.AND, constraint.getCombinationType() );
-    assertNull( constraint.getFormula() );
+    assertEquals( "test_condition", constraint.getFormula() );
     assertEquals( 1, result.getOrders().size() );
     org.pentaho.metadata.query.model.Order resOrder = result.getOrders().get( 0 );
     assertEquals( selection, resOrder.getSelection() );
@@ -311,6 +376,113 @@ public class MetadataServiceUtilTest {
     assertEquals( category.getDescription( DEFAULT_LOCALE ), cat.getDescription() );
   }
 
+  @Test
+  public void testConvertQueryInList() {
+    String domainName = "test_domain";
+    String modelId = "model_id";
+    String columnId = "column_id";
+    LogicalColumn mockColumn = mock( LogicalColumn.class );
+    doReturn( DataType.STRING ).when( mockColumn ).getDataType();
+    doReturn( columnId ).when( mockColumn ).getId();
+    LogicalModel mockModel = mock( LogicalModel.class );
+    doReturn( mockColumn ).when( mockModel ).findLogicalColumn( columnId );
+    Domain mockDomain = mock( Domain.class );
+    doReturn( mockModel ).when( mockDomain ).findLogicalModel( modelId );
+    IMetadataDomainRepository mockRepo = mock( IMetadataDomainRepository.class );
+    doReturn( mockDomain ).when( mockRepo ).getDomain( domainName );
+    doReturn( mockRepo ).when( spyMetadataServiceUtil ).getDomainRepository();
+    doReturn( 3 ).when( spyMetadataServiceUtil ).getInListParameterThreshold();
+
+    Condition shortList = new Condition();
+    shortList.setCategory( "cat" );
+    shortList.setColumn( columnId );
+    shortList.setValue( new String[] { "a", "b" } );
+    Condition longList = new Condition();
+    longList.setCategory( "cat" );
+    longList.setColumn( columnId );
+    longList.setValue( new String[] { "a", "b", "c" } );
+    Query srcQuery = createMockQuery( domainName, modelId, columnId );
+    doReturn( new Condition[] { shortList, longList } ).when( srcQuery ).getConditions();
+
+    org.pentaho.metadata.query.model.Query result = spyMetadataServiceUtil.convertQuery( srcQuery );
+
+    assertEquals( 2, result.getConstraints().size() );
+    assertEquals( "IN([cat.column_id]; \"a\";\"b\")", result.getConstraints().get( 0 ).getFormula() );
+    assertEquals( "IN([cat.column_id]; [param:in_list_0])", result.getConstraints().get( 1 ).getFormula() );
+    assertEquals( 2, result.getParameters().size() );
+    org.pentaho.metadata.query.model.Parameter param = result.getParameters().get( 1 );
+    assertEquals( "in_list_0", param.getName() );
+    assertEquals( DataType.STRING, param.getType() );
+    Assert.assertArrayEquals( new String[] { "a", "b", "c" }, (Object[]) param.getDefaultValue() );
+    // the values of the condition are not shared with the query
+    assertFalse( longList.getValue() == param.getDefaultValue() );
+  }
+
+  @Test
+  public void testConvertQueryInListXmlRoundTrip() throws Exception {
+    Domain domain = BenchmarkDomains.createDomain( 1 );
+    IMetadataDomainRepository repository = BenchmarkDomains.createRepository( domain );
+    doReturn( repository ).when( spyMetadataServiceUtil ).getDomainRepository();
+    doReturn( 3 ).when( spyMetadataServiceUtil ).getInListParameterThreshold();
+
+    String[] plain = new String[] { "a", "b c", "d's" };
+    String[] reserved = new String[] { "a|b", "\"c\"", "d" };
+    Query srcQuery = BenchmarkDomains.createThinQuery( 1 );
+    srcQuery.setConditions( new Condition[] { createCondition( plain ), createCondition( reserved ) } );
+
+    org.pentaho.metadata.query.model.Query result = spyMetadataServiceUtil.convertQuery( srcQuery );
+    // the list holding a separator and a quote cannot be read back from the MQL and keeps the inline formula
+    assertEquals( 1, result.getParameters().size() );
+    assertFalse( result.getConstraints().get( 1 ).getFormula().contains( InListParameters.PARAMETER_PREFIX ) );
+
+    QueryXmlHelper helper = new QueryXmlHelper();
+    org.pentaho.metadata.query.model.Query readBack = helper.fromXML( repository, helper.toXML( result ) );
+
+    assertEquals( 1, readBack.getParameters().size() );
+    org.pentaho.metadata.query.model.Parameter param = readBack.getParameters().get( 0 );
+    assertEquals( "in_list_0", param.getName() );
+    Assert.assertArrayEquals( plain, (Object[]) param.getDefaultValue() );
+    assertEquals( 2, readBack.getConstraints().size() );
+    for ( int i = 0; i < 2; i++ ) {
+      assertEquals( result.getConstraints().get( i ).getFormula(), readBack.getConstraints().get( i ).getFormula() );
+    }
+  }
+
+  private Condition createCondition( String[] value ) {
+    Condition condition = new Condition();
+    condition.setCategory( BenchmarkDomains.CATEGORY_ID );
+    condition.setColumn( BenchmarkDomains.columnId( 0 ) );
+    condition.setValue( value );
+    return condition;
+  }
+
+  @Test( expected = IllegalArgumentException.class )
+  public void testConvertQueryStrictOperators() {
+    String domainName = "test_domain";
+    String modelId = "model_id";
+    String columnId = "column_id";
+    LogicalColumn mockColumn = mock( LogicalColumn.class );
+    doReturn( DataType.STRING ).when( mockColumn ).getDataType();
+    LogicalModel mockModel = mock( LogicalModel.class );
+    doReturn( mockColumn ).when( mockModel ).findLogicalColumn( columnId );
+    Domain mockDomain = mock( Domain.class );
+    doReturn( mockModel ).when( mockDomain ).findLogicalModel( modelId );
+    IMetadataDomainRepository mockRepo = mock( IMetadataDomainRepository.class );
+    doReturn( mockDomain ).when( mockRepo ).getDomain( domainName );
+    doReturn( mockRepo ).when( spyMetadataServiceUtil ).getDomainRepository();
+    doReturn( true ).when( spyMetadataServiceUtil ).isStrictOperators();
+
+    Condition condition = new Condition();
+    condition.setCategory( "cat" );
+    condition.setColumn( columnId );
+    condition.setOperator( "LIKE" );
+    condition.setValue( new String[] { "a" } );
+    Query srcQuery = createMockQuery( domainName, modelId, columnId );
+    doReturn( new Condition[] { condition } ).when( srcQuery ).getConditions();
+
+    spyMetadataServiceUtil.convertQuery( srcQuery );
+  }
+
   private void assertModels( LogicalModel lmodel, Model model, String domainId ) {
     assertNotNull( model );
     assertEquals( lmodel.getId(), model.getId() );
@@ -324,7 +496,12 @@ public class MetadataServiceUtilTest {
     column.setSelectedAggType( "SUM" );
     column.setId( columnId );
     Condition condition = mock( Condition.class );
-    doReturn( "test_condition" ).when( condition ).getCondition( "String", null );
+    doAnswer( new Answer<Object>() {
+      public Object answer( InvocationOnMock invocation ) throws Throwable {
+        return ( (FormulaBuilder) invocation.getArguments()[0] ).append( "test_condition" );
+      }
+    } ).when( condition ).appendCondition( any( FormulaBuilder.class ), eq( "STRING" ), (String) isNull(),
+        eq( Operator.EQUAL ) );
     doReturn( "AND" ).when( condition ).getCombinationType();
     doReturn( columnId ).when( condition ).getColumn();
     Order order = mock( Order.class );
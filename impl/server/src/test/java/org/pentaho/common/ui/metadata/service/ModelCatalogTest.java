@@ -0,0 +1,162 @@
+/*!
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+ */
+
+package org.pentaho.common.ui.metadata.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.metadata.model.Domain;
+import org.pentaho.metadata.model.LogicalModel;
+import org.pentaho.metadata.model.concept.types.LocalizedString;
+import org.pentaho.metadata.repository.IMetadataDomainRepository;
+
+public class ModelCatalogTest {
+
+  private static final String DOMAIN_ID = "steel-wheels/orders.xmi";
+
+  private IMetadataDomainRepository repo;
+
+  @Before
+  public void setUp() throws Exception {
+    LogicalModel model = mock( LogicalModel.class );
+    doReturn( "model" ).when( model ).getId();
+    doReturn( "ctx" ).when( model ).getProperty( "visible" );
+    doReturn( "Model" ).when( model ).getName( "en" );
+    doReturn( "Modell" ).when( model ).getName( "de" );
+    doReturn( new LocalizedString() ).when( model ).getDescription();
+    doReturn( "Description" ).when( model ).getDescription( "en" );
+    Domain domain = mock( Domain.class );
+    doReturn( new String[] { "en", "de" } ).when( domain ).getLocaleCodes();
+    doReturn( Collections.singletonList( model ) ).when( domain ).getLogicalModels();
+    repo = mock( IMetadataDomainRepository.class );
+    doReturn( domain ).when( repo ).getDomain( DOMAIN_ID );
+  }
+
+  @Test
+  public void testGetEntry() {
+    ModelCatalog catalog = new ModelCatalog( true );
+    ModelCatalog.Entry entry = catalog.getEntry( DOMAIN_ID, repo );
+    assertSame( entry, catalog.getEntry( DOMAIN_ID, repo ) );
+
+    assertTrue( entry.hasLocale( "de" ) );
+    assertFalse( entry.hasLocale( "fr" ) );
+    ModelCatalog.Model model = entry.getModels().get( 0 );
+    assertEquals( "model", model.getId() );
+    assertEquals( "ctx", model.getVisible() );
+    assertEquals( "Modell", model.getName( "de" ) );
+    assertTrue( model.hasDescription() );
+    assertEquals( "Description", model.getDescription( "en" ) );
+
+    assertNull( catalog.getEntry( "missing", repo ) );
+  }
+
+  @Test
+  public void testGetVisibleModels() {
+    Domain domain = mock( Domain.class );
+    doReturn( new String[] { "en" } ).when( domain ).getLocaleCodes();
+    doReturn( Arrays.asList( createModel( "a", null ), createModel( "b", "t1,t2" ), createModel( "c", "t2" ),
+        createModel( "d", null ), createModel( "e", "t1" ) ) ).when( domain ).getLogicalModels();
+    doReturn( domain ).when( repo ).getDomain( "tenants" );
+    ModelCatalog.Entry entry = new ModelCatalog( true ).getEntry( "tenants", repo );
+
+    assertEquals( "[a, b, d, e]", ids( entry.getVisibleModels( "t1" ) ) );
+    assertEquals( "[a, b, c, d]", ids( entry.getVisibleModels( "t2" ) ) );
+    assertEquals( "[a, d]", ids( entry.getVisibleModels( "t3" ) ) );
+    assertEquals( "[a, d]", ids( entry.getVisibleModels( null ) ) );
+    assertTrue( entry.getModels().get( 1 ).isVisible( "t2" ) );
+    assertFalse( entry.getModels().get( 1 ).isVisible( "t3" ) );
+  }
+
+  @Test
+  public void testAccessCheckedOnEveryLookup() {
+    ModelCatalog catalog = new ModelCatalog( true );
+    assertNotNull( catalog.getEntry( DOMAIN_ID, repo ) );
+
+    // another user may not read the domain, the repository does not return it
+    IMetadataDomainRepository restricted = mock( IMetadataDomainRepository.class );
+    assertNull( catalog.getEntry( DOMAIN_ID, restricted ) );
+    verify( restricted ).getDomain( DOMAIN_ID );
+  }
+
+  @Test
+  public void testRebuiltWhenDomainStoredAgain() {
+    ModelCatalog catalog = new ModelCatalog( true );
+    ModelCatalog.Entry entry = catalog.getEntry( DOMAIN_ID, repo );
+
+    Domain republished = mock( Domain.class );
+    doReturn( new String[] { "en" } ).when( republished ).getLocaleCodes();
+    doReturn( Collections.singletonList( createModel( "other", null ) ) ).when( republished ).getLogicalModels();
+    doReturn( republished ).when( repo ).getDomain( DOMAIN_ID );
+
+    ModelCatalog.Entry rebuilt = catalog.getEntry( DOMAIN_ID, repo );
+    assertNotSame( entry, rebuilt );
+    assertEquals( "[other]", ids( rebuilt.getModels() ) );
+    assertSame( rebuilt, catalog.getEntry( DOMAIN_ID, repo ) );
+  }
+
+  @Test
+  public void testRemovedDomain() {
+    ModelCatalog catalog = new ModelCatalog( true );
+    catalog.getEntry( DOMAIN_ID, repo );
+    assertEquals( 1, catalog.size() );
+    doReturn( null ).when( repo ).getDomain( DOMAIN_ID );
+    assertNull( catalog.getEntry( DOMAIN_ID, repo ) );
+    assertEquals( 0, catalog.size() );
+  }
+
+  @Test
+  public void testInvalidate() {
+    ModelCatalog catalog = new ModelCatalog( true );
+    catalog.getEntry( DOMAIN_ID, repo );
+    catalog.invalidate( DOMAIN_ID );
+    assertEquals( 0, catalog.size() );
+    catalog.getEntry( DOMAIN_ID, repo );
+    verify( repo, times( 2 ) ).getDomain( DOMAIN_ID );
+  }
+
+  private LogicalModel createModel( String id, String visible ) {
+    LogicalModel model = mock( LogicalModel.class );
+    doReturn( id ).when( model ).getId();
+    doReturn( visible ).when( model ).getProperty( "visible" );
+    return model;
+  }
+
+  private String ids( List<ModelCatalog.Model> models ) {
+    List<String> ids = new ArrayList<String>();
+    for ( ModelCatalog.Model model : models ) {
+      ids.add( model.getId() );
+    }
+    return ids.toString();
+  }
+}
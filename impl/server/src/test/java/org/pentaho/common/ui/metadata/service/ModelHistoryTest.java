@@ -0,0 +1,159 @@
+/*!
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+ */
+
+package org.pentaho.common.ui.metadata.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.common.ui.metadata.model.impl.Category;
+import org.pentaho.common.ui.metadata.model.impl.CategoryDelta;
+import org.pentaho.common.ui.metadata.model.impl.Column;
+import org.pentaho.common.ui.metadata.model.impl.Model;
+import org.pentaho.common.ui.metadata.model.impl.ModelDelta;
+
+public class ModelHistoryTest {
+
+  private ModelHistory history;
+
+  @Before
+  public void setUp() {
+    history = new ModelHistory( 10 );
+  }
+
+  @Test
+  public void testVersion() {
+    Model model = createModel( createCategory( "customers", "name", "city" ) );
+    ModelDelta delta = history.getDelta( model, "v1", null );
+    assertEquals( "v1", delta.getVersion() );
+    assertTrue( delta.isComplete() );
+    assertEquals( 1, history.size() );
+    // the version is only remembered once
+    assertFalse( history.getDelta( model, "v1", "v1" ).isComplete() );
+    assertEquals( 1, history.size() );
+  }
+
+  @Test
+  public void testDelta() {
+    history.getDelta( createModel( createCategory( "customers", "name", "city" ), createCategory( "orders", "date" ),
+        createCategory( "products", "code" ) ), "v1", null );
+    Model model =
+        createModel( createCategory( "customers", "name", "city" ), createCategory( "orders", "date", "status" ),
+            createCategory( "payments", "amount" ) );
+
+    ModelDelta delta = history.getDelta( model, "v2", "v1" );
+    assertFalse( delta.isComplete() );
+    assertEquals( "v1", delta.getFromVersion() );
+    assertEquals( "v2", delta.getVersion() );
+    assertEquals( 2, delta.getCategories().length );
+    CategoryDelta orders = delta.getCategories()[0];
+    assertEquals( "orders", orders.getId() );
+    assertFalse( orders.isComplete() );
+    // only the added column
+    assertEquals( 1, orders.getColumns().length );
+    assertEquals( "status", orders.getColumns()[0].getId() );
+    assertArrayEquals( new String[] { "date", "status" }, orders.getColumnIds() );
+    CategoryDelta payments = delta.getCategories()[1];
+    assertEquals( "payments", payments.getId() );
+    assertTrue( payments.isComplete() );
+    assertEquals( 1, payments.getColumns().length );
+    assertArrayEquals( new String[] { "products" }, delta.getRemovedCategoryIds() );
+    assertArrayEquals( new String[] { "customers", "orders", "payments" }, delta.getCategoryIds() );
+
+    delta = history.getDelta( model, "v2", "v2" );
+    assertEquals( 0, delta.getCategories().length );
+    assertEquals( 0, delta.getRemovedCategoryIds().length );
+  }
+
+  @Test
+  public void testColumnDelta() {
+    history.getDelta( createModel( createCategory( "customers", "name", "city", "zip" ) ), "v1", null );
+    Category customers = createCategory( "customers", "city", "name" );
+    customers.getColumns()[0].setFormatMask( "#" );
+    Model model = createModel( customers );
+
+    ModelDelta delta = history.getDelta( model, "v2", "v1" );
+    assertEquals( 1, delta.getCategories().length );
+    CategoryDelta category = delta.getCategories()[0];
+    assertFalse( category.isComplete() );
+    assertEquals( 1, category.getColumns().length );
+    assertEquals( "city", category.getColumns()[0].getId() );
+    assertArrayEquals( new String[] { "zip" }, category.getRemovedColumnIds() );
+    assertArrayEquals( new String[] { "city", "name" }, category.getColumnIds() );
+
+    // a new name changes the category but none of its columns
+    customers = createCategory( "customers", "city", "name" );
+    customers.getColumns()[0].setFormatMask( "#" );
+    customers.setName( "Customers" );
+    category = history.getDelta( createModel( customers ), "v3", "v2" ).getCategories()[0];
+    assertEquals( "Customers", category.getName() );
+    assertEquals( 0, category.getColumns().length );
+    assertEquals( 0, category.getRemovedColumnIds().length );
+  }
+
+  @Test
+  public void testUnknownVersion() {
+    Model model = createModel( createCategory( "customers", "name" ), createCategory( "orders", "date" ) );
+    ModelDelta delta = history.getDelta( model, "v1", "unknown" );
+    assertTrue( delta.isComplete() );
+    assertEquals( 2, delta.getCategories().length );
+
+    // a version of another model
+    Model other = createModel( createCategory( "customers", "name" ) );
+    other.setId( "other" );
+    history.getDelta( other, "other_v1", null );
+    assertTrue( history.getDelta( model, "v1", "other_v1" ).isComplete() );
+  }
+
+  @Test
+  public void testForgottenVersion() {
+    history = new ModelHistory( 1 );
+    Model model = createModel( createCategory( "customers", "name" ) );
+    history.getDelta( model, "v1", null );
+    history.getDelta( createModel( createCategory( "orders", "date" ) ), "v2", null );
+    assertEquals( 1, history.size() );
+    // the current version is remembered again, the client's version is not known any more
+    assertTrue( history.getDelta( model, "v1", "v2" ).isComplete() );
+    assertEquals( 1, history.size() );
+  }
+
+  private Model createModel( Category... categories ) {
+    Model model = new Model();
+    model.setId( "model" );
+    model.setDomainId( "domain" );
+    model.setName( "Model" );
+    model.setCategories( categories );
+    return model;
+  }
+
+  private Category createCategory( String id, String... columnIds ) {
+    Column[] columns = new Column[columnIds.length];
+    for ( int i = 0; i < columns.length; i++ ) {
+      columns[i] = new Column();
+      columns[i].setId( columnIds[i] );
+      columns[i].setCategory( id );
+    }
+    Category category = new Category();
+    category.setId( id );
+    category.setColumns( columns );
+    return category;
+  }
+}
@@ -0,0 +1,61 @@
+/*!
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+ */
+
+package org.pentaho.common.ui.metadata.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Test;
+
+public class ModelJsonSnapshotTest {
+
+  private static final String JSON = "{\"name\":\"Caf\u00e9\"}";
+
+  @Test
+  public void testContent() throws Exception {
+    ModelJsonSnapshot snapshot = new ModelJsonSnapshot( JSON );
+    assertEquals( JSON, snapshot.toString() );
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    snapshot.writeTo( output );
+    assertArrayEquals( JSON.getBytes( "UTF-8" ), output.toByteArray() );
+    assertEquals( output.size(), snapshot.getLength() );
+  }
+
+  @Test
+  public void testETag() {
+    ModelJsonSnapshot snapshot = new ModelJsonSnapshot( JSON );
+    String etag = snapshot.getETag();
+    assertTrue( etag.startsWith( "\"" ) && etag.endsWith( "\"" ) );
+    assertEquals( etag, new ModelJsonSnapshot( JSON ).getETag() );
+    assertFalse( etag.equals( new ModelJsonSnapshot( "{}" ).getETag() ) );
+  }
+
+  @Test
+  public void testMatches() {
+    ModelJsonSnapshot snapshot = new ModelJsonSnapshot( JSON );
+    assertFalse( snapshot.matches( null ) );
+    assertFalse( snapshot.matches( "\"other\"" ) );
+    assertTrue( snapshot.matches( snapshot.getETag() ) );
+    assertTrue( snapshot.matches( "\"other\", W/" + snapshot.getETag() ) );
+    assertTrue( snapshot.matches( "*" ) );
+  }
+}
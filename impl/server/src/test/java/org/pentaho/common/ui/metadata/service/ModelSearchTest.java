@@ -0,0 +1,84 @@
+/*!
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+ */
+
+package org.pentaho.common.ui.metadata.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ModelSearchTest {
+
+  @Test
+  public void testFold() {
+    assertNull( ModelSearch.fold( null, "en" ) );
+    assertEquals( "cafe creme", ModelSearch.fold( "Caf\u00e9 Cr\u00e8me", "fr_FR" ) );
+    assertEquals( "orders", ModelSearch.fold( "ORDERS", null ) );
+    // the Turkish dotted and dotless i
+    assertEquals( "\u0131", ModelSearch.fold( "I", "tr" ) );
+  }
+
+  @Test
+  public void testRank() {
+    assertEquals( ModelSearch.EXACT, ModelSearch.rank( "sales", null, "sales" ) );
+    assertEquals( ModelSearch.PREFIX, ModelSearch.rank( "sales forecast", null, "sales" ) );
+    assertEquals( ModelSearch.WORD_PREFIX, ModelSearch.rank( "presales / sales", null, "sales" ) );
+    assertEquals( ModelSearch.SUBSTRING, ModelSearch.rank( "presales", null, "sales" ) );
+    assertEquals( ModelSearch.DESCRIPTION, ModelSearch.rank( "orders", "sales by customer", "sales" ) );
+    assertEquals( ModelSearch.NO_MATCH, ModelSearch.rank( "orders", null, "sales" ) );
+    assertEquals( ModelSearch.NO_MATCH, ModelSearch.rank( null, null, "sales" ) );
+  }
+
+  @Test
+  public void testTop() {
+    List<ModelSearch.Hit<String>> hits = new ArrayList<ModelSearch.Hit<String>>();
+    hits.add( new ModelSearch.Hit<String>( "d", ModelSearch.SUBSTRING ) );
+    hits.add( new ModelSearch.Hit<String>( "c", ModelSearch.PREFIX ) );
+    hits.add( new ModelSearch.Hit<String>( "b", ModelSearch.PREFIX ) );
+    hits.add( new ModelSearch.Hit<String>( "a", ModelSearch.DESCRIPTION ) );
+    assertEquals( "[b, c, d]", ModelSearch.top( hits, String.CASE_INSENSITIVE_ORDER, 3 ).toString() );
+    assertEquals( 4, ModelSearch.top( hits, String.CASE_INSENSITIVE_ORDER, 0 ).size() );
+  }
+
+  @Test
+  public void testIndex() {
+    ModelSearch.Index index =
+        new ModelSearch.Index( new String[] { "sales", "presales", "orders", null }, new String[] { null, null,
+          "sales by customer", "inventory" } );
+    assertArrayEquals( new int[] { 0, 1, 2 }, index.getCandidates( "sales" ) );
+    assertArrayEquals( new int[] { 2 }, index.getCandidates( "customer" ) );
+    // every token of "customers" is in the name or the description, but the text is in neither
+    assertArrayEquals( new int[] { 2 }, index.getCandidates( "customers" ) );
+    assertEquals( ModelSearch.NO_MATCH, index.rank( 2, "customers" ) );
+    assertArrayEquals( new int[0], index.getCandidates( "forecast" ) );
+    // too short to narrow down
+    assertNull( index.getCandidates( "in" ) );
+    assertEquals( ModelSearch.SUBSTRING, index.rank( 1, "sales" ) );
+    assertEquals( ModelSearch.DESCRIPTION, index.rank( 3, "vent" ) );
+  }
+
+  @Test
+  public void testIntersect() {
+    assertArrayEquals( new int[] { 2, 5 }, ModelSearch.intersect( new int[] { 1, 2, 5, 7 }, new int[] { 2, 3, 5 } ) );
+    assertArrayEquals( new int[0], ModelSearch.intersect( new int[] { 1 }, new int[0] ) );
+  }
+}
@@ -0,0 +1,114 @@
+/*!
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+ */
+
+package org.pentaho.common.ui.metadata.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class QueryAdmissionControllerTest {
+
+  private static final long WAIT = 5000;
+
+  @Test
+  public void testLimits() throws Exception {
+    QueryAdmissionController admission = new QueryAdmissionController( 3, 2, 0, 0 );
+    assertTrue( admission.acquire( "a" ) );
+    assertTrue( admission.acquire( "a" ) );
+    // per user limit
+    assertFalse( admission.acquire( "a" ) );
+    assertTrue( admission.acquire( "b" ) );
+    // global limit
+    assertFalse( admission.acquire( "c" ) );
+    assertEquals( 3, admission.getActiveCount() );
+    assertEquals( 2, admission.getRejectedCount() );
+
+    admission.release( "a" );
+    assertTrue( admission.acquire( "c" ) );
+  }
+
+  @Test
+  public void testTryAcquire() throws Exception {
+    QueryAdmissionController admission = new QueryAdmissionController( 2, 1, 10, WAIT );
+    assertTrue( admission.tryAcquire( "a" ) );
+    assertFalse( admission.tryAcquire( "a" ) );
+    assertTrue( admission.tryAcquire( "b" ) );
+    assertFalse( admission.tryAcquire( "c" ) );
+    // nothing waits and nothing is counted as rejected
+    assertEquals( 0, admission.getWaitingCount() );
+    assertEquals( 0, admission.getRejectedCount() );
+
+    admission.release( "a" );
+    assertTrue( admission.tryAcquire( "c" ) );
+  }
+
+  @Test
+  public void testTimeout() throws Exception {
+    QueryAdmissionController admission = new QueryAdmissionController( 1, 1, 1, 0 );
+    assertTrue( admission.acquire( "a" ) );
+    assertFalse( admission.acquire( "b", 10 ) );
+    assertEquals( 1, admission.getQueuedCount() );
+    assertEquals( 1, admission.getTimedOutCount() );
+    assertEquals( 0, admission.getWaitingCount() );
+  }
+
+  @Test
+  public void testUsersTakeTurns() throws Exception {
+    final QueryAdmissionController admission = new QueryAdmissionController( 1, 1, 10, WAIT );
+    final List<String> order = Collections.synchronizedList( new ArrayList<String>() );
+    assertTrue( admission.acquire( "x" ) );
+
+    List<Thread> threads = new ArrayList<Thread>();
+    int waiting = 0;
+    for ( final String user : new String[] { "a", "a", "b" } ) {
+      Thread thread = new Thread() {
+        public void run() {
+          try {
+            if ( admission.acquire( user ) ) {
+              order.add( user );
+              admission.release( user );
+            }
+          } catch ( InterruptedException e ) {
+            // ends the test thread
+          }
+        }
+      };
+      thread.start();
+      threads.add( thread );
+      // queue the users in a known order
+      waiting++;
+      while ( admission.getWaitingCount() < waiting ) {
+        Thread.sleep( 1 );
+      }
+    }
+
+    admission.release( "x" );
+    for ( Thread thread : threads ) {
+      thread.join( WAIT );
+    }
+    assertEquals( Arrays.asList( "a", "b", "a" ), order );
+    assertEquals( 0, admission.getActiveCount() );
+  }
+}
@@ -0,0 +1,51 @@
+/*!
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+ */
+
+package org.pentaho.common.ui.metadata.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.Test;
+import org.pentaho.common.ui.metadata.model.impl.Column;
+import org.pentaho.common.ui.metadata.model.impl.Condition;
+import org.pentaho.common.ui.metadata.model.impl.Query;
+
+public class QueryPlanTest {
+
+  @Test
+  public void testCreateKey() {
+    assertEquals( QueryPlan.createKey( createQuery( "value" ) ), QueryPlan.createKey( createQuery( "value" ) ) );
+    assertFalse( QueryPlan.createKey( createQuery( "value" ) ).equals( QueryPlan.createKey( createQuery( "other" ) ) ) );
+  }
+
+  private Query createQuery( String value ) {
+    Column column = new Column();
+    column.setId( "column_id" );
+    column.setSelectedAggType( "NONE" );
+    Condition condition = new Condition();
+    condition.setColumn( "column_id" );
+    condition.setValue( new String[] { value } );
+
+    Query query = new Query();
+    query.setDomainName( "domain_id" );
+    query.setModelId( "model_id" );
+    query.setColumns( new Column[] { column } );
+    query.setConditions( new Condition[] { condition } );
+    return query;
+  }
+}
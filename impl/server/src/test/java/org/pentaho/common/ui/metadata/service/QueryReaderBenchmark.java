@@ -0,0 +1,101 @@
+/*!
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+ */
+
+package org.pentaho.common.ui.metadata.service;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.pentaho.common.ui.metadata.model.impl.Column;
+import org.pentaho.common.ui.metadata.model.impl.Condition;
+import org.pentaho.common.ui.metadata.model.impl.Query;
+import org.pentaho.platform.engine.security.PentahoJsonValidator;
+
+import flexjson.JSONDeserializer;
+import flexjson.JSONSerializer;
+
+/**
+ * Compares reading a JSON query by validating it with PentahoJsonValidator and deserializing it with a new
+ * JSONDeserializer, with reading it with the shared ThinQueryReader. The query selects and filters on the given number
+ * of columns.
+ * 
+ * Benchmarks are not run by the unit tests, run the main method with the test classpath.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class QueryReaderBenchmark {
+
+  private static final ThinQueryReader<Query> READER = new ThinQueryReader<Query>( Query.class );
+
+  @Param( { "1", "100", "1000" } )
+  public int columns;
+
+  private String json;
+
+  @Setup
+  public void setUp() {
+    Column[] selections = new Column[columns];
+    Condition[] conditions = new Condition[columns];
+    for ( int i = 0; i < columns; i++ ) {
+      selections[i] = new Column();
+      selections[i].setId( "column_" + i ); //$NON-NLS-1$
+      selections[i].setCategory( "category" ); //$NON-NLS-1$
+      selections[i].setSelectedAggType( "NONE" ); //$NON-NLS-1$
+      conditions[i] = new Condition();
+      conditions[i].setCategory( "category" ); //$NON-NLS-1$
+      conditions[i].setColumn( "column_" + i ); //$NON-NLS-1$
+      conditions[i].setValue( new String[] { "value_" + i } ); //$NON-NLS-1$
+    }
+    Query query = new Query();
+    query.setDomainName( "domain" ); //$NON-NLS-1$
+    query.setModelId( "model" ); //$NON-NLS-1$
+    query.setColumns( selections );
+    query.setConditions( conditions );
+    json = new JSONSerializer().deepSerialize( query );
+  }
+
+  @Benchmark
+  public Query validateAndDeserialize() throws Exception {
+    PentahoJsonValidator.validateJson( json, Query.class );
+    return new JSONDeserializer<Query>().deserialize( json, Query.class );
+  }
+
+  @Benchmark
+  public Query reader() {
+    return READER.read( json );
+  }
+
+  public static void main( String[] args ) throws Exception {
+    new Runner( new OptionsBuilder().include( QueryReaderBenchmark.class.getSimpleName() ).build() ).run();
+  }
+}
@@ -0,0 +1,225 @@
+/*!
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+ */
+
+package org.pentaho.common.ui.metadata.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.commons.connection.IPentahoMetaData;
+import org.pentaho.commons.connection.IPentahoResultSet;
+
+public class QueryResultCacheTest {
+
+  private static final String XML = "<mql>\n  <domain_id>domain</domain_id>\n</mql>";
+
+  private QueryResultCache cache;
+  private AtomicInteger executions;
+
+  @Before
+  public void setUp() {
+    cache = new QueryResultCache( true, 10, 1024 * 1024, 60000 );
+    executions = new AtomicInteger();
+  }
+
+  @Test
+  public void testHit() {
+    IPentahoResultSet first = cache.get( XML, 10, "user", query( "value" ) );
+    IPentahoResultSet second =
+        cache.get( "<mql><domain_id>domain</domain_id></mql>", 10, "user", query( "other value" ) );
+    assertEquals( 1, executions.get() );
+    assertEquals( "value", first.getValueAt( 0, 0 ) );
+    assertEquals( "value", second.getValueAt( 0, 0 ) );
+    assertFalse( first == second );
+    assertEquals( 1, cache.getHitCount() );
+  }
+
+  @Test
+  public void testKey() {
+    cache.get( XML, 10, "user", query( "value" ) );
+    cache.get( XML, 10, "other_user", query( "value" ) );
+    cache.get( XML, 20, "user", query( "value" ) );
+    assertEquals( 3, executions.get() );
+    assertEquals( 3, cache.size() );
+  }
+
+  @Test
+  public void testFailedQueryNotCached() {
+    assertNull( cache.get( XML, 10, "user", query( null ) ) );
+    assertNull( cache.get( XML, 10, "user", query( null ) ) );
+    assertEquals( 2, executions.get() );
+  }
+
+  @Test
+  public void testDisabled() {
+    cache = new QueryResultCache( false, 10, 1024 * 1024, 60000 );
+    cache.get( XML, 10, "user", query( "value" ) );
+    cache.get( XML, 10, "user", query( "value" ) );
+    assertEquals( 2, executions.get() );
+    assertEquals( 0, cache.size() );
+  }
+
+  @Test
+  public void testByteLimit() {
+    cache = new QueryResultCache( true, 10, 100, 60000 );
+    cache.get( "<a/>", 10, "user", query( "value" ) );
+    cache.get( "<b/>", 10, "user", query( "value" ) );
+    assertEquals( 1, cache.size() );
+    assertEquals( 1, cache.getEvictionCount() );
+  }
+
+  @Test
+  public void testTooLargeResultNotCopied() throws Exception {
+    cache = new QueryResultCache( true, 10, 100, 60000 );
+    final IPentahoResultSet resultSet = rows( 3 ).call();
+    IPentahoResultSet result = cache.get( XML, -1, "user", new Callable<IPentahoResultSet>() {
+      public IPentahoResultSet call() {
+        return resultSet;
+      }
+    } );
+    // the copy stopped once it was over the limit, the caller gets the result itself
+    assertSame( resultSet, result );
+    verify( resultSet, never() ).getValueAt( 2, 0 );
+    verify( resultSet, never() ).close();
+    assertEquals( 0, cache.size() );
+  }
+
+  @Test
+  public void testTooLargePageRejected() throws Exception {
+    cache = new QueryResultCache( true, 10, 100, 60000 );
+    final IPentahoResultSet resultSet = rows( 3 ).call();
+    // the result could not be kept for the next pages, each of them would run the query again
+    assertNull( cache.getPage( XML, -1, "user", new Callable<IPentahoResultSet>() {
+      public IPentahoResultSet call() {
+        return resultSet;
+      }
+    }, 2, 1 ) );
+    verify( resultSet ).close();
+    assertEquals( 0, cache.size() );
+  }
+
+  @Test
+  public void testPage() {
+    QueryResultCache.Page page = cache.getPage( XML, -1, "user", rows( 5 ), 1, 2 );
+    assertEquals( 1, page.getOffset() );
+    assertEquals( 5, page.getTotalRows() );
+    assertEquals( 2, page.getResultSet().getRowCount() );
+    assertEquals( "value_1", page.getResultSet().getValueAt( 0, 0 ) );
+    assertEquals( "value_2", page.getResultSet().getValueAt( 1, 0 ) );
+
+    // the next pages come from the cache
+    page = cache.getPage( XML, -1, "user", rows( 5 ), 3, 2 );
+    assertEquals( 2, page.getResultSet().getRowCount() );
+    assertEquals( "value_4", page.getResultSet().getValueAt( 1, 0 ) );
+    page = cache.getPage( XML, -1, "user", rows( 5 ), 4, 10 );
+    assertEquals( 1, page.getResultSet().getRowCount() );
+    page = cache.getPage( XML, -1, "user", rows( 5 ), 10, 10 );
+    assertEquals( 5, page.getOffset() );
+    assertEquals( 0, page.getResultSet().getRowCount() );
+    assertEquals( 1, executions.get() );
+  }
+
+  @Test
+  public void testPageDisabled() {
+    cache = new QueryResultCache( false, 10, 1024 * 1024, 60000 );
+    QueryResultCache.Page page = cache.getPage( XML, -1, "user", rows( 5 ), 0, 0 );
+    assertEquals( 5, page.getResultSet().getRowCount() );
+    cache.getPage( XML, -1, "user", rows( 5 ), 0, 0 );
+    assertEquals( 2, executions.get() );
+    assertNull( cache.getPage( XML, -1, "user", query( null ), 0, 10 ) );
+  }
+
+  @Test
+  public void testConcurrentQueriesShareExecution() throws Exception {
+    final CountDownLatch started = new CountDownLatch( 1 );
+    final CountDownLatch release = new CountDownLatch( 1 );
+    final Callable<IPentahoResultSet> slow = new Callable<IPentahoResultSet>() {
+      public IPentahoResultSet call() throws Exception {
+        started.countDown();
+        release.await();
+        return query( "value" ).call();
+      }
+    };
+    Thread first = new Thread() {
+      public void run() {
+        cache.get( XML, 10, "user", slow );
+      }
+    };
+    first.start();
+    started.await();
+
+    Thread second = new Thread() {
+      public void run() {
+        cache.get( XML, 10, "user", query( "value" ) );
+      }
+    };
+    second.start();
+    while ( cache.getSharedCount() == 0 && second.isAlive() ) {
+      Thread.sleep( 1 );
+    }
+    release.countDown();
+    first.join( 5000 );
+    second.join( 5000 );
+    assertEquals( 1, executions.get() );
+    assertEquals( 1, cache.getSharedCount() );
+  }
+
+  private Callable<IPentahoResultSet> rows( final int count ) {
+    return new Callable<IPentahoResultSet>() {
+      public IPentahoResultSet call() {
+        executions.incrementAndGet();
+        IPentahoResultSet resultSet = mock( IPentahoResultSet.class );
+        doReturn( mock( IPentahoMetaData.class ) ).when( resultSet ).getMetaData();
+        doReturn( count ).when( resultSet ).getRowCount();
+        doReturn( 1 ).when( resultSet ).getColumnCount();
+        for ( int i = 0; i < count; i++ ) {
+          doReturn( "value_" + i ).when( resultSet ).getValueAt( i, 0 );
+        }
+        return resultSet;
+      }
+    };
+  }
+
+  private Callable<IPentahoResultSet> query( final String value ) {
+    return new Callable<IPentahoResultSet>() {
+      public IPentahoResultSet call() {
+        executions.incrementAndGet();
+        if ( value == null ) {
+          return null;
+        }
+        IPentahoResultSet resultSet = mock( IPentahoResultSet.class );
+        doReturn( mock( IPentahoMetaData.class ) ).when( resultSet ).getMetaData();
+        doReturn( 1 ).when( resultSet ).getRowCount();
+        doReturn( 1 ).when( resultSet ).getColumnCount();
+        doReturn( value ).when( resultSet ).getValueAt( 0, 0 );
+        return resultSet;
+      }
+    };
+  }
+}
@@ -0,0 +1,108 @@
+/*!
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+ */
+
+package org.pentaho.common.ui.metadata.service;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.pentaho.commons.connection.memory.MemoryMetaData;
+import org.pentaho.commons.connection.memory.MemoryResultSet;
+import org.pentaho.metadata.model.IPhysicalColumn;
+import org.pentaho.metadata.model.concept.types.DataType;
+
+/**
+ * Compares the CDA JSON and the columnar binary encoding of a chart-like result: one string dimension with few
+ * distinct values and numeric measures. The size of the encoded results is printed by the setup.
+ * 
+ * Benchmarks are not run by the unit tests, run the main method with the test classpath.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class ResultEncodingBenchmark {
+
+  private static final int MEASURES = 4;
+
+  @Param( { "1000", "100000" } )
+  public int rows;
+
+  private MemoryResultSet resultSet;
+
+  @Setup
+  public void setUp() throws Exception {
+    String[] headers = new String[MEASURES + 1];
+    headers[0] = "region"; //$NON-NLS-1$
+    for ( int i = 1; i <= MEASURES; i++ ) {
+      headers[i] = "measure_" + i; //$NON-NLS-1$
+    }
+    MemoryMetaData metaData = new MemoryMetaData( new String[][] { headers }, null ) {
+      @Override
+      public Object getAttribute( int rowNumber, int columnNumber, String attributeName ) {
+        if ( IPhysicalColumn.DATATYPE_PROPERTY.equals( attributeName ) ) {
+          return columnNumber == 0 ? DataType.STRING : DataType.NUMERIC;
+        }
+        return null;
+      }
+    };
+    resultSet = new MemoryResultSet( metaData );
+    for ( int r = 0; r < rows; r++ ) {
+      Object[] row = new Object[MEASURES + 1];
+      row[0] = "region_" + ( r % 20 ); //$NON-NLS-1$
+      for ( int i = 1; i <= MEASURES; i++ ) {
+        row[i] = r * 1.25 + i;
+      }
+      resultSet.addRow( row );
+    }
+    System.out.println( "CDA JSON " + cdaJson().size() + " bytes, columnar " //$NON-NLS-1$ //$NON-NLS-2$
+        + columnar().size() + " bytes" ); //$NON-NLS-1$
+  }
+
+  @Benchmark
+  public ByteArrayOutputStream cdaJson() throws Exception {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    new CdaJsonWriter().write( resultSet, null, output );
+    return output;
+  }
+
+  @Benchmark
+  public ByteArrayOutputStream columnar() throws Exception {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    new ColumnarResultWriter().write( resultSet, null, output );
+    return output;
+  }
+
+  public static void main( String[] args ) throws Exception {
+    new Runner( new OptionsBuilder().include( ResultEncodingBenchmark.class.getSimpleName() ).build() ).run();
+  }
+}
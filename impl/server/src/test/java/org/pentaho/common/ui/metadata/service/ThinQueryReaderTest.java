@@ -0,0 +1,97 @@
+/*!
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+ */
+
+package org.pentaho.common.ui.metadata.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.pentaho.common.ui.metadata.model.impl.Column;
+import org.pentaho.common.ui.metadata.model.impl.Condition;
+import org.pentaho.common.ui.metadata.model.impl.Query;
+
+import flexjson.JSONSerializer;
+
+public class ThinQueryReaderTest {
+
+  private ThinQueryReader<Query> reader = new ThinQueryReader<Query>( Query.class );
+
+  @Test
+  public void testRead() {
+    Column column = new Column();
+    column.setId( "column_id" );
+    column.setCategory( "category_id" );
+    column.setSelectedAggType( "SUM" );
+    Condition condition = new Condition();
+    condition.setColumn( "column_id" );
+    condition.setValue( new String[] { "say \"hello\"\n", "caf\u00e9" } );
+    Query query = new Query();
+    query.setDomainName( "domain_id" );
+    query.setModelId( "model_id" );
+    query.setColumns( new Column[] { column } );
+    query.setConditions( new Condition[] { condition } );
+    String json = new JSONSerializer().deepSerialize( query );
+
+    Query result = reader.read( json );
+    assertEquals( "domain_id", result.getDomainName() );
+    assertEquals( "model_id", result.getModelId() );
+    assertEquals( 1, result.getColumns().length );
+    assertEquals( "column_id", result.getColumns()[0].getId() );
+    assertEquals( "SUM", result.getColumns()[0].getSelectedAggType() );
+    assertEquals( 1, result.getConditions().length );
+    assertArrayEquals( condition.getValue(), result.getConditions()[0].getValue() );
+    // a reader is reused
+    assertEquals( "domain_id", reader.read( json ).getDomainName() );
+  }
+
+  @Test
+  public void testRejectsOtherClasses() {
+    assertRejected( "{\"class\":\"org.pentaho.common.ui.metadata.model.impl.Query\",\"columns\":"
+        + "[{\"class\":\"java.lang.ProcessBuilder\"}]}" );
+    assertRejected( "{\"class\":\"org.pentaho.common.ui.metadata.model.impl.Column\"}" );
+    assertRejected( "{\"columns\":[{\"class\":\"org.pentaho.common.ui.metadata.model.impl.sub.Column\"}]}" );
+    assertRejected( "{\"domainName\":{\"class\":null}}" );
+  }
+
+  @Test
+  public void testRejectsMalformedJson() {
+    assertRejected( null );
+    assertRejected( "" );
+    assertRejected( "[]" );
+    assertRejected( "{\"domainName\":\"a\"} {}" );
+    assertRejected( "{\"domainName\":}" );
+    assertRejected( "{\"domainName\":\"a}" );
+    assertRejected( "{\"domainName\":\"\\x\"}" );
+    assertRejected( "{\"columns\":[1,]}" );
+    StringBuilder deep = new StringBuilder( "{\"columns\":" );
+    for ( int i = 0; i <= ThinQueryReader.MAX_DEPTH; i++ ) {
+      deep.append( '[' );
+    }
+    assertRejected( deep.toString() );
+  }
+
+  private void assertRejected( String json ) {
+    try {
+      reader.read( json );
+      fail( "accepted " + json );
+    } catch ( IllegalArgumentException e ) {
+      // expected
+    }
+  }
+}